@@ -0,0 +1,93 @@
+package it.sogei.beanutils.benchmark;
+
+import it.sogei.beanutils.BeanComparator;
+import it.sogei.beanutils.ComparisonOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Il costo di {@link BeanComparator#compare(Object, Object, ComparisonOptions)} sulle forme di bean piu' comuni,
+ * misurato sia come throughput sia come distribuzione dei tempi (percentili), per due bean distinti e uguali
+ * ({@code identical}) e per due bean con tutti i campi differenti ({@code different}).
+ *
+ * I bean sono costruiti una sola volta per prova: la misura comprende solo la comparazione e le
+ * differenze raccolte nella mappa del risultato.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ComparatorBenchmark {
+    /**
+     * Il seme del secondo bean nel caso {@code different}, lontano abbastanza da non produrre elementi in comune
+     */
+    private static final int DIFFERENT_SEED = 1_000_000;
+
+    @Param({"identical", "different"})
+    public String scenario;
+
+    /**
+     * Il numero di elementi delle liste, delle mappe e degli array
+     */
+    @Param({"1000"})
+    public int size;
+
+    private final ComparisonOptions options = ComparisonOptions.defaults();
+
+    private Fixtures.FlatBean firstFlat;
+    private Fixtures.FlatBean secondFlat;
+    private Fixtures.MegaBean firstMega;
+    private Fixtures.MegaBean secondMega;
+    private Fixtures.ListBean firstList;
+    private Fixtures.ListBean secondList;
+    private Fixtures.MapBean firstMap;
+    private Fixtures.MapBean secondMap;
+    private Fixtures.ArrayBean firstArrays;
+    private Fixtures.ArrayBean secondArrays;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int seed = "different".equals(scenario) ? DIFFERENT_SEED : 0;
+        firstFlat = Fixtures.flat(0);
+        secondFlat = Fixtures.flat(seed);
+        firstMega = Fixtures.mega(0, size / 10);
+        secondMega = Fixtures.mega(seed, size / 10);
+        firstList = Fixtures.list(0, size);
+        secondList = Fixtures.list(seed, size);
+        firstMap = Fixtures.map(0, size);
+        secondMap = Fixtures.map(seed, size);
+        firstArrays = Fixtures.arrays(0, size);
+        secondArrays = Fixtures.arrays(seed, size);
+    }
+
+    @Benchmark
+    public Map<Field, List<Map.Entry<Object, Object>>> flatBean() throws IllegalAccessException {
+        return BeanComparator.compare(firstFlat, secondFlat, options);
+    }
+
+    @Benchmark
+    public Map<Field, List<Map.Entry<Object, Object>>> nestedGraph() throws IllegalAccessException {
+        return BeanComparator.compare(firstMega, secondMega, options);
+    }
+
+    @Benchmark
+    public Map<Field, List<Map.Entry<Object, Object>>> largeList() throws IllegalAccessException {
+        return BeanComparator.compare(firstList, secondList, options);
+    }
+
+    @Benchmark
+    public Map<Field, List<Map.Entry<Object, Object>>> largeMap() throws IllegalAccessException {
+        return BeanComparator.compare(firstMap, secondMap, options);
+    }
+
+    @Benchmark
+    public Map<Field, List<Map.Entry<Object, Object>>> primitiveArrays() throws IllegalAccessException {
+        return BeanComparator.compare(firstArrays, secondArrays, options);
+    }
+}
@@ -0,0 +1,161 @@
+package it.sogei.beanutils.benchmark;
+
+import java.util.*;
+
+/**
+ * I bean confrontati dai benchmark. Ogni fabbrica costruisce, a partire dallo stesso seme, due grafi distinti
+ * e uguali oppure due grafi con tutti i campi differenti, per misurare i due estremi della comparazione.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * @param seed il seme dei valori (semi differenti producono bean con tutti i campi differenti)
+     * @return un bean piatto con campi primitivi, wrapper, stringhe e date
+     */
+    static FlatBean flat(int seed) {
+        FlatBean bean = new FlatBean();
+        bean.id = seed;
+        bean.version = seed * 31L;
+        bean.amount = seed * 1.5;
+        bean.active = seed % 2 == 0;
+        bean.code = "CODE-" + seed;
+        bean.description = "Descrizione del bean " + seed;
+        bean.quantity = seed * 7;
+        bean.price = seed * 0.25;
+        bean.created = new Date(1_600_000_000_000L + seed);
+        bean.category = (char) ('A' + seed % 26);
+        return bean;
+    }
+
+    /**
+     * @param seed il seme dei valori
+     * @param size il numero di elementi delle liste
+     * @return un grafo annidato con la struttura del SuperComplexMegaBean dei test
+     */
+    static MegaBean mega(int seed, int size) {
+        List<Float> floats = new ArrayList<>(size);
+        List<SimpleBean> beans = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            floats.add(seed + i * 0.5f);
+            beans.add(new SimpleBean(seed + i, "simple" + (seed + i)));
+        }
+        SimpleBean nested = new SimpleBean(seed, "nested" + seed);
+        ComplexBean complex = new ComplexBean(seed, "complex" + seed, new String[]{"a" + seed, "b" + seed, "c" + seed}, nested);
+        return new MegaBean(seed, "mega" + seed, seed * 2.0, floats, beans, complex);
+    }
+
+    /**
+     * @param seed il seme dei valori
+     * @param size il numero di elementi
+     * @return un bean con una lista di bean piatti
+     */
+    static ListBean list(int seed, int size) {
+        ListBean bean = new ListBean();
+        bean.items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            bean.items.add(flat(seed + i));
+        return bean;
+    }
+
+    /**
+     * @param seed il seme dei valori
+     * @param size il numero di elementi
+     * @return un bean con una mappa di bean piatti (le chiavi sono le stesse per ogni seme)
+     */
+    static MapBean map(int seed, int size) {
+        MapBean bean = new MapBean();
+        bean.index = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++)
+            bean.index.put("key" + i, flat(seed + i));
+        return bean;
+    }
+
+    /**
+     * @param seed il seme dei valori
+     * @param size la lunghezza degli array
+     * @return un bean con array primitivi
+     */
+    static ArrayBean arrays(int seed, int size) {
+        ArrayBean bean = new ArrayBean();
+        bean.samples = new int[size];
+        bean.values = new double[size];
+        bean.timestamps = new long[size];
+        bean.payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bean.samples[i] = seed + i;
+            bean.values[i] = (seed + i) * 0.1;
+            bean.timestamps[i] = 1_600_000_000_000L + seed + i;
+            bean.payload[i] = (byte) (seed + i);
+        }
+        return bean;
+    }
+
+    static class FlatBean {
+        private int id;
+        private long version;
+        private double amount;
+        private boolean active;
+        private String code;
+        private String description;
+        private Integer quantity;
+        private Double price;
+        private Date created;
+        private char category;
+    }
+
+    static class SimpleBean {
+        private int id;
+        private String desc;
+
+        SimpleBean(int id, String desc) {
+            this.id = id;
+            this.desc = desc;
+        }
+    }
+
+    static class ComplexBean extends SimpleBean {
+        private String[] stringArray;
+        private SimpleBean s;
+
+        ComplexBean(int id, String desc, String[] stringArray, SimpleBean s) {
+            super(id, desc);
+            this.stringArray = stringArray;
+            this.s = s;
+        }
+    }
+
+    static class MegaBean {
+        private int id;
+        private String s;
+        private Double d;
+        private List<Float> floatList;
+        private List<SimpleBean> simpleBeanList;
+        private ComplexBean complexBean;
+
+        MegaBean(int id, String s, Double d, List<Float> floatList, List<SimpleBean> simpleBeanList, ComplexBean complexBean) {
+            this.id = id;
+            this.s = s;
+            this.d = d;
+            this.floatList = floatList;
+            this.simpleBeanList = simpleBeanList;
+            this.complexBean = complexBean;
+        }
+    }
+
+    static class ListBean {
+        private List<FlatBean> items;
+    }
+
+    static class MapBean {
+        private Map<String, FlatBean> index;
+    }
+
+    static class ArrayBean {
+        private int[] samples;
+        private double[] values;
+        private long[] timestamps;
+        private byte[] payload;
+    }
+}
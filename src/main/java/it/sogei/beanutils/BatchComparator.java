@@ -0,0 +1,256 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Comparazione in parallelo di molte coppie di bean (ad es. le riconciliazioni notturne tra versione
+ * precedente e attuale dei record).
+ *
+ * Ogni coppia viene confrontata con {@link BeanComparator#compare(Object, Object, ComparisonOptions)} su un
+ * {@link ExecutorService} configurabile: di default il {@link ForkJoinPool#commonPool()}, ma va bene anche un
+ * pool dedicato o un executor di virtual thread. I piani delle classi ({@link ClassPlan}) e le opzioni sono
+ * condivisi tra i thread senza sincronizzazione, per cui il throughput cresce con il numero di core.
+ *
+ * I risultati sono consegnati al consumer sempre dal thread chiamante, nell'ordine delle coppie oppure (se
+ * richiesto) nell'ordine di completamento; le coppie in corso di comparazione sono al massimo
+ * {@link Builder#maxPending(int)}, cosi' che uno stream di milioni di coppie non venga mai caricato in memoria.
+ * <pre>
+ *     BatchComparator batch = BatchComparator.builder()
+ *             .options(options)
+ *             .ordered(false)
+ *             .build();
+ *     batch.compareAll(pairs, (pair, differences) -&gt; log(pair, differences));
+ * </pre>
+ */
+public final class BatchComparator {
+    private final ComparisonOptions options;
+    private final ExecutorService executor;
+    private final boolean ordered;
+    private final int maxPending;
+
+    private BatchComparator(Builder builder) {
+        this.options = builder.options;
+        this.executor = builder.executor;
+        this.ordered = builder.ordered;
+        this.maxPending = builder.maxPending > 0 ? builder.maxPending : 4 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return un nuovo builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Confronta tutte le coppie dello stream
+     * @param pairs le coppie da confrontare
+     * @param consumer riceve ciascuna coppia con la mappa dei suoi campi "diversi"
+     * @param <T> la tipologia dei bean
+     * @throws IllegalArgumentException in caso di errore su una coppia
+     * @throws IllegalAccessException in caso di errore su una coppia
+     */
+    public <T> void compareAll(Stream<BeanPair<T>> pairs, BiConsumer<? super BeanPair<T>, Map<Field, List<Map.Entry<Object, Object>>>> consumer) throws IllegalArgumentException, IllegalAccessException {
+        if (pairs == null || consumer == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        compareAll(pairs.iterator(), consumer);
+    }
+
+    /**
+     * Confronta tutte le coppie
+     * @param pairs le coppie da confrontare
+     * @param consumer riceve ciascuna coppia con la mappa dei suoi campi "diversi"
+     * @param <T> la tipologia dei bean
+     * @throws IllegalArgumentException in caso di errore su una coppia
+     * @throws IllegalAccessException in caso di errore su una coppia
+     */
+    public <T> void compareAll(Iterable<BeanPair<T>> pairs, BiConsumer<? super BeanPair<T>, Map<Field, List<Map.Entry<Object, Object>>>> consumer) throws IllegalArgumentException, IllegalAccessException {
+        if (pairs == null || consumer == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        compareAll(pairs.iterator(), consumer);
+    }
+
+    /**
+     * Confronta tutte le coppie e ne restituisce i risultati nell'ordine delle coppie (da usare solo quando
+     * i risultati stanno comodamente in memoria)
+     * @param pairs le coppie da confrontare
+     * @param <T> la tipologia dei bean
+     * @return per ciascuna coppia la mappa dei campi "diversi"
+     * @throws IllegalArgumentException in caso di errore su una coppia
+     * @throws IllegalAccessException in caso di errore su una coppia
+     */
+    public <T> List<Map<Field, List<Map.Entry<Object, Object>>>> compareAll(List<BeanPair<T>> pairs) throws IllegalArgumentException, IllegalAccessException {
+        if (pairs == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        final IdentityHashMap<BeanPair<T>, Map<Field, List<Map.Entry<Object, Object>>>> results = new IdentityHashMap<>();
+        compareAll(pairs.iterator(), new BiConsumer<BeanPair<T>, Map<Field, List<Map.Entry<Object, Object>>>>() {
+            @Override
+            public void accept(BeanPair<T> pair, Map<Field, List<Map.Entry<Object, Object>>> differences) {
+                results.put(pair, differences);
+            }
+        });
+        List<Map<Field, List<Map.Entry<Object, Object>>>> list = new ArrayList<>(pairs.size());
+        for (BeanPair<T> pair : pairs)
+            list.add(results.get(pair));
+        return list;
+    }
+
+    private <T> void compareAll(Iterator<BeanPair<T>> pairs, BiConsumer<? super BeanPair<T>, Map<Field, List<Map.Entry<Object, Object>>>> consumer) throws IllegalAccessException {
+        // le comparazioni in corso, nell'ordine di invio
+        Deque<Future<Outcome<T>>> pending = new ArrayDeque<>();
+        CompletionService<Outcome<T>> completion = ordered ? null : new ExecutorCompletionService<Outcome<T>>(executor);
+        try {
+            while (pairs.hasNext()) {
+                Callable<Outcome<T>> task = new Comparison<>(pairs.next(), options);
+                pending.add(ordered ? executor.submit(task) : completion.submit(task));
+                if (pending.size() >= maxPending)
+                    deliver(next(pending, completion), consumer);
+            }
+            while (!pending.isEmpty())
+                deliver(next(pending, completion), consumer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Comparazione interrotta!", e);
+        } finally {
+            // in caso di errore le comparazioni ancora in corso non servono piu'
+            for (Future<Outcome<T>> future : pending)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Restituisce la prossima comparazione da consegnare: la piu' vecchia se i risultati vanno ordinati,
+     * altrimenti la prima completata
+     */
+    private static <T> Future<Outcome<T>> next(Deque<Future<Outcome<T>>> pending, CompletionService<Outcome<T>> completion) throws InterruptedException {
+        if (completion == null)
+            return pending.poll();
+        Future<Outcome<T>> future = completion.take();
+        pending.remove(future);
+        return future;
+    }
+
+    /**
+     * Attende l'esito di una comparazione e lo consegna al consumer, rilanciando l'eventuale errore
+     */
+    private static <T> void deliver(Future<Outcome<T>> future, BiConsumer<? super BeanPair<T>, Map<Field, List<Map.Entry<Object, Object>>>> consumer) throws InterruptedException, IllegalAccessException {
+        Outcome<T> outcome;
+        try {
+            outcome = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalAccessException)
+                throw (IllegalAccessException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+        consumer.accept(outcome.pair, outcome.differences);
+    }
+
+    /**
+     * La comparazione di una coppia, eseguita su un thread dell'executor
+     */
+    private static final class Comparison<T> implements Callable<Outcome<T>> {
+        private final BeanPair<T> pair;
+        private final ComparisonOptions options;
+
+        Comparison(BeanPair<T> pair, ComparisonOptions options) {
+            this.pair = pair;
+            this.options = options;
+        }
+
+        @Override
+        public Outcome<T> call() throws IllegalAccessException {
+            if (pair == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            return new Outcome<>(pair, BeanComparator.compare(pair.getFirst(), pair.getSecond(), options));
+        }
+    }
+
+    /**
+     * Una coppia con il risultato della sua comparazione
+     */
+    private static final class Outcome<T> {
+        final BeanPair<T> pair;
+        final Map<Field, List<Map.Entry<Object, Object>>> differences;
+
+        Outcome(BeanPair<T> pair, Map<Field, List<Map.Entry<Object, Object>>> differences) {
+            this.pair = pair;
+            this.differences = differences;
+        }
+    }
+
+    /**
+     * Builder del comparatore di coppie
+     */
+    public static final class Builder {
+        private ComparisonOptions options = ComparisonOptions.defaults();
+        private ExecutorService executor = ForkJoinPool.commonPool();
+        private boolean ordered = true;
+        private int maxPending;
+
+        private Builder() {}
+
+        /**
+         * @param options le opzioni di comparazione usate per tutte le coppie (senza budget, come per
+         *                {@link BeanComparator#compare(Object, Object, ComparisonOptions)})
+         * @return il builder
+         */
+        public Builder options(ComparisonOptions options) {
+            if (options == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            if (options.bounded())
+                throw new IllegalArgumentException("Le differenze delle coppie non indicano il troncamento: opzioni con un budget non ammesse!");
+            this.options = options;
+            return this;
+        }
+
+        /**
+         * L'executor su cui eseguire le comparazioni (un {@link ForkJoinPool}, un pool di thread o un executor
+         * di virtual thread). L'executor non viene chiuso dal comparatore.
+         * @param executor l'executor
+         * @return il builder
+         */
+        public Builder executor(ExecutorService executor) {
+            if (executor == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param ordered true (default) per ricevere i risultati nell'ordine delle coppie, false per riceverli
+         *                appena disponibili
+         * @return il builder
+         */
+        public Builder ordered(boolean ordered) {
+            this.ordered = ordered;
+            return this;
+        }
+
+        /**
+         * @param maxPending il numero massimo di coppie in corso di comparazione (default quattro per core)
+         * @return il builder
+         */
+        public Builder maxPending(int maxPending) {
+            if (maxPending <= 0)
+                throw new IllegalArgumentException("Il numero massimo di coppie in corso deve essere maggiore di zero!");
+            this.maxPending = maxPending;
+            return this;
+        }
+
+        /**
+         * @return il comparatore
+         */
+        public BatchComparator build() {
+            return new BatchComparator(this);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package it.sogei.beanutils;
 
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
 
 /**
  * Classe di utilita' per la comparazione tra due oggetti della stessa classe.
@@ -9,17 +12,17 @@ import java.util.*;
  *
  * Confronta anche proprieta' che sono oggetti complessi, liste, mappe e collezioni in genere.
  *
- * La comparazione su collezioni è limitata alla esistenza, non esistenza e comparazione diretta degli oggetti presenti.
+ * La comparazione su collezioni è limitata alla esistenza, non esistenza e comparazione diretta degli oggetti presenti,
+ * a meno di registrare nelle {@link ComparisonOptions} un estrattore di chiave per gli elementi: in tal caso gli
+ * elementi con la stessa chiave vengono confrontati campo per campo.
+ *
+ * Se le opzioni lo prevedono la comparazione di un grafo molto grande viene suddivisa in task su un
+ * {@link java.util.concurrent.ForkJoinPool}: ogni task raccoglie le proprie differenze, che vengono unite
+ * a quelle del task padre al termine del task.
  *
  * giovannicaruso,21/12/16.
  */
 public class BeanComparator {
-    /**
-     * Il set di classi wrapper delle primitive, stringhe e altri tipi semplici (date, timestamp, etc.)
-     */
-    private static final Set<Class> WRAPPERS = new HashSet<>(Arrays.asList(String.class, java.util.Date.class, java.sql.Date.class, java.sql.Timestamp.class,
-            Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, Void.class));
-
     /**
      * Costruttore privato per non far istanziare la classe
      */
@@ -37,8 +40,141 @@ public class BeanComparator {
      * @throws IllegalAccessException in caso di errore
      */
     public static <T> Map<Field, List<Map.Entry<Object, Object>>> compare(T firstBean, T secondBean, String... exclusions) throws IllegalArgumentException, IllegalAccessException {
-        // verifiche sui parametri
-        if(firstBean == null || secondBean == null)
+        return compare(firstBean, secondBean, ComparisonOptions.excluding(exclusions));
+    }
+
+    /**
+     * Restituisce la lista dei campi per cui differiscono i due oggetti passati a parametro. La mappa non puo'
+     * indicare una comparazione troncata, per cui le opzioni non possono avere un budget (vedi
+     * {@link #diff(Object, Object, ComparisonOptions)} e {@link DiffResult#isTruncated()})
+     * @param firstBean l'oggetto sorgente
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param options le opzioni di comparazione (campi esclusi, estrattori di chiave, etc.)
+     * @param <T> la tipologia di classe (serve solo per il type checking)
+     * @return la collezione dei campi "diversi"
+     * @throws IllegalArgumentException in caso di errore o di opzioni con un budget
+     * @throws IllegalAccessException in caso di errore
+     */
+    public static <T> Map<Field, List<Map.Entry<Object, Object>>> compare(T firstBean, T secondBean, ComparisonOptions options) throws IllegalArgumentException, IllegalAccessException {
+        if (options != null && options.bounded())
+            throw new IllegalArgumentException("La mappa dei campi non indica il troncamento: con un budget usare diff o un DiffListener!");
+        // la mappa dei campi con valore differente che sara' ritornta dal metodo
+        DifferenceCollector collector = new DifferenceCollector();
+        compare(firstBean, secondBean, options, collector);
+        return collector.differentFields();
+    }
+
+    /**
+     * Confronta i due oggetti passati a parametro e restituisce le differenze in un {@link DiffResult},
+     * che conserva il percorso di ogni differenza in una struttura compatta
+     * @param firstBean l'oggetto sorgente
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param options le opzioni di comparazione (campi esclusi, estrattori di chiave, etc.)
+     * @param <T> la tipologia di classe (serve solo per il type checking)
+     * @return il risultato della comparazione
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public static <T> DiffResult diff(T firstBean, T secondBean, ComparisonOptions options) throws IllegalArgumentException, IllegalAccessException {
+        DiffResult.Recorder recorder = new DiffResult.Recorder();
+        compare(firstBean, secondBean, options, recorder);
+        return recorder.build();
+    }
+
+    /**
+     * Confronta i due oggetti passati a parametro consegnando le differenze al listener man mano che vengono
+     * trovate, senza raccoglierle in memoria
+     * @param firstBean l'oggetto sorgente
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param options le opzioni di comparazione (campi esclusi, estrattori di chiave, etc.)
+     * @param listener il listener delle differenze
+     * @param <T> la tipologia di classe (serve solo per il type checking)
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public static <T> void compare(T firstBean, T secondBean, ComparisonOptions options, DiffListener listener) throws IllegalArgumentException, IllegalAccessException {
+        Object first = unwrap(firstBean, options);
+        Object second = unwrap(secondBean, options);
+        checkArguments(first, second, options);
+        if (listener == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        // lo stesso oggetto non ha differenze
+        if (first == second)
+            return;
+
+        compareRoot(first, second, new ComparisonContext(options, listener));
+    }
+
+    /**
+     * Verifica se i due oggetti passati a parametro differiscono in almeno un campo. A differenza di
+     * {@link #compare(Object, Object, String...)} non costruisce la mappa dei campi differenti e si ferma
+     * alla prima differenza trovata.
+     * @param firstBean l'oggetto sorgente
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param exclusions array di campi da non verificare
+     * @param <T> la tipologia di classe (serve solo per il type checking)
+     * @return true se gli oggetti sono differenti
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public static <T> boolean differs(T firstBean, T secondBean, String... exclusions) throws IllegalArgumentException, IllegalAccessException {
+        return differs(firstBean, secondBean, ComparisonOptions.excluding(exclusions));
+    }
+
+    /**
+     * Verifica se i due oggetti passati a parametro differiscono in almeno un campo, fermandosi alla prima differenza.
+     * Se il budget delle opzioni interrompe la comparazione (o ne salta un sottografo) prima di trovare una
+     * differenza, gli oggetti non possono essere dichiarati uguali e vengono considerati differenti
+     * @param firstBean l'oggetto sorgente
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param options le opzioni di comparazione (campi esclusi, estrattori di chiave, etc.)
+     * @param <T> la tipologia di classe (serve solo per il type checking)
+     * @return true se gli oggetti sono differenti o se la comparazione e' stata troncata
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public static <T> boolean differs(T firstBean, T secondBean, ComparisonOptions options) throws IllegalArgumentException, IllegalAccessException {
+        Object first = unwrap(firstBean, options);
+        Object second = unwrap(secondBean, options);
+        checkArguments(first, second, options);
+        if (first == second)
+            return false;
+
+        // nessun listener: basta la prima differenza
+        ComparisonContext context = new ComparisonContext(options, null, 1);
+        compareRoot(first, second, context);
+        return context.limitReached() || context.truncated();
+    }
+
+    /**
+     * Confronta la fotografia di un bean con l'oggetto vivo: il nodo della fotografia prende il posto del primo bean
+     * @param snapshot il nodo del bean fotografato
+     * @param bean l'oggetto vivo (della classe del bean fotografato)
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    static void compareSnapshot(BeanSnapshot.Node snapshot, Object bean, ComparisonContext context) throws IllegalAccessException {
+        compareRoot(snapshot, bean, context);
+    }
+
+    /**
+     * @param bean il bean da confrontare (anche nullo)
+     * @param options le opzioni di comparazione (anche nulle)
+     * @return l'oggetto reale se il bean e' un proxy inizializzato, altrimenti il bean stesso
+     */
+    private static Object unwrap(Object bean, ComparisonOptions options) {
+        return bean == null || options == null || !options.loadStrategy().isLoaded(bean) ? bean : options.loadStrategy().unwrap(bean);
+    }
+
+    /**
+     * Verifica i parametri di una comparazione
+     * @param firstBean l'oggetto sorgente
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param options le opzioni di comparazione
+     * @throws IllegalArgumentException se i parametri non sono validi
+     */
+    private static void checkArguments(Object firstBean, Object secondBean, ComparisonOptions options) throws IllegalArgumentException {
+        if(firstBean == null || secondBean == null || options == null)
             throw new IllegalArgumentException("Argomento nullo!");
         if (!firstBean.getClass().equals(secondBean.getClass())){
             throw new IllegalArgumentException("Gli oggetti devono appartenere alla stessa classe!");
@@ -46,284 +182,922 @@ public class BeanComparator {
             throw new IllegalArgumentException("L'argomento e' un array!");
         if (isPrimitive(firstBean) || isPrimitive(secondBean))
             throw new IllegalArgumentException("L'argomento e' una primitiva!");
+    }
 
-        // la lista di campi da verificare
-        List<Field> fields = getAllFields(firstBean.getClass());
-        // la lista dei campi da escludere
-        List<String> excludedFields = Arrays.asList(exclusions);
+    /**
+     * Confronta i due bean, misurando la comparazione per le metriche delle opzioni e per JFR
+     * @param firstBean l'oggetto sorgente (o il nodo della sua fotografia)
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareRoot(Object firstBean, Object secondBean, ComparisonContext context) throws IllegalAccessException {
+        ComparisonEvents.Compare event = new ComparisonEvents.Compare();
+        event.begin();
+        long start = context.startMeasure();
+        context.visit(firstBean, secondBean);
+        traverseRoot(firstBean, secondBean, context);
+        context.endMeasure(BeanSnapshot.typeOf(firstBean), start, event);
+    }
 
-        // la mappa dei campi con valore differente che sara' ritornta dal metodo
-        Map<Field, List<Map.Entry<Object, Object>>> differentFields = new HashMap<>();
+    /**
+     * Avvia la traversata dei due bean, all'interno del pool se la comparazione e' parallela
+     * @param firstBean l'oggetto sorgente
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void traverseRoot(final Object firstBean, final Object secondBean, ComparisonContext context) throws IllegalAccessException {
+        // impronte uguali: nessuna differenza
+        if (context.fingerprints() != null && Fingerprints.same(firstBean, secondBean, context))
+            return;
+        if (context.bounded())
+            traverseBounded(firstBean, secondBean, context);
+        else if (context.parallel() && !ForkJoinTask.inForkJoinPool())
+            forkJoin(1, 1, (from, to, task) -> traverseObject(firstBean, secondBean, task), context);
+        else
+            traverseObject(firstBean, secondBean, context);
+    }
 
-        Object firstBeanPropertyValue;
-        Object secondBeanPropertyValue;
+    /**
+     * Traversa i due bean rispettando il budget delle opzioni: i bean annidati vengono rinviati sullo stack
+     * esplicito del contesto e ripresi uno alla volta, per cui la profondita' del grafo non consuma lo stack del thread
+     * @param firstBean l'oggetto sorgente (o il nodo della sua fotografia)
+     * @param secondBean l'oggetto che si vuole comparare
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void traverseBounded(Object firstBean, Object secondBean, ComparisonContext context) throws IllegalAccessException {
+        context.startBudget();
+        traverseObject(firstBean, secondBean, context);
+        ComparisonContext.Frame frame;
+        while ((frame = context.nextFrame()) != null)
+            traverseObject(frame.first, frame.second, context);
+    }
 
-        for(Field field : fields){
-            field.setAccessible(true);
-            // il campo non deve essere tra quelli esclusi (escudiamo anche i costruttori e i riferimenti a this e superclassi)
-            if (excludedFields.contains(field.getName()) || field.getName().startsWith("this$"))
-                continue;
-            // estraggo i valori
-            firstBeanPropertyValue = field.get(firstBean);
-            secondBeanPropertyValue = field.get(secondBean);
-
-            //comparo i valori
-            if (isPrimitive(firstBeanPropertyValue)){
-                differentFields = comparePrimitives(differentFields, field, firstBeanPropertyValue, secondBeanPropertyValue);
-            } else if (isCollection(firstBeanPropertyValue)) {
-                differentFields = compareCollections(differentFields, field, (Collection) firstBeanPropertyValue, (Collection) secondBeanPropertyValue);
-            } else if (isMap(firstBeanPropertyValue)) {
-                differentFields = compareMaps(differentFields, field, (Map) firstBeanPropertyValue, (Map) secondBeanPropertyValue);
+    /**
+     * Confronta due mappe percorrendo una sola volta le entry di ciascuna: le chiavi presenti in una sola mappa
+     * e i valori differenti sono riportati come {@link KeyedEntry}. Se entrambe le mappe sono ordinate con lo
+     * stesso comparatore il confronto avviene con un merge delle due sequenze di chiavi.
+     * @param field il campo che si sta verificando
+     * @param firstBeanMap la mappa del primo bean
+     * @param secondBeanMap la mappa del secondo bean
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareMaps(Field field, Map<Object, Object> firstBeanMap, Map<Object, Object> secondBeanMap, ComparisonContext context) throws IllegalAccessException {
+        if (!context.collecting() && firstBeanMap.size() != secondBeanMap.size()) {
+            // se non servono i dettagli, mappe di dimensione diversa sono sicuramente diverse
+            context.report(field, firstBeanMap, secondBeanMap);
+            return;
+        }
+        if (firstBeanMap instanceof SortedMap && secondBeanMap instanceof SortedMap
+                && Objects.equals(((SortedMap) firstBeanMap).comparator(), ((SortedMap) secondBeanMap).comparator())) {
+            compareSortedMaps(field, (SortedMap<Object, Object>) firstBeanMap, (SortedMap<Object, Object>) secondBeanMap, context);
+            return;
+        }
+
+        int matchedKeys = 0;
+        for (Map.Entry<Object, Object> entry: firstBeanMap.entrySet()){
+            Object key = entry.getKey();
+            Object secondBeanValue = secondBeanMap.get(key);
+            if (secondBeanValue == null && !secondBeanMap.containsKey(key)) {
+                context.removedKey(field, key, entry.getValue());
             } else {
-                differentFields = traverse(differentFields, field, firstBeanPropertyValue, secondBeanPropertyValue, excludedFields);
+                matchedKeys++;
+                compareMapValues(field, key, entry.getValue(), secondBeanValue, context);
+            }
+            if (context.stopped())
+                return;
+        }
+        // se tutte le chiavi della seconda mappa sono state abbinate non serve percorrerla
+        if (matchedKeys < secondBeanMap.size()) {
+            for (Map.Entry<Object, Object> entry: secondBeanMap.entrySet()){
+                if (!firstBeanMap.containsKey(entry.getKey()))
+                    context.addedKey(field, entry.getKey(), entry.getValue());
             }
-
         }
-        return differentFields;
     }
 
     /**
-     * Confronta due mappe per chiavi prima e valori dopo
-     * @param map la mappa delle differenze
+     * Confronta due mappe ordinate con lo stesso comparatore tramite un merge delle due sequenze di chiavi,
+     * in tempo lineare e senza ricerche sulle mappe
      * @param field il campo che si sta verificando
      * @param firstBeanMap la mappa del primo bean
      * @param secondBeanMap la mappa del secondo bean
-     * @return la mappa aggiornata
-     * // TODO deep comparison
-     */
-    private static Map<Field,List<Map.Entry<Object,Object>>> compareMaps(Map<Field, List<Map.Entry<Object, Object>>> map, Field field, Map firstBeanMap, Map secondBeanMap) {
-        if (firstBeanMap.keySet().equals(secondBeanMap.keySet())){
-            // le chiavi sono uguali, controlliamo i valori...
-            for (Object key: firstBeanMap.keySet()){
-                if (!firstBeanMap.get(key).equals(secondBeanMap.get(key))){
-                    put(map, field, firstBeanMap.get(key), secondBeanMap.get(key));
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    @SuppressWarnings("unchecked")
+    private static void compareSortedMaps(Field field, SortedMap<Object, Object> firstBeanMap, SortedMap<Object, Object> secondBeanMap, ComparisonContext context) throws IllegalAccessException {
+        Comparator<? super Object> comparator = firstBeanMap.comparator();
+        Iterator<Map.Entry<Object, Object>> firstIterator = firstBeanMap.entrySet().iterator();
+        Iterator<Map.Entry<Object, Object>> secondIterator = secondBeanMap.entrySet().iterator();
+        Map.Entry<Object, Object> first = firstIterator.hasNext() ? firstIterator.next() : null;
+        Map.Entry<Object, Object> second = secondIterator.hasNext() ? secondIterator.next() : null;
+        while ((first != null || second != null) && !context.stopped()) {
+            int comparison;
+            if (first == null)
+                comparison = 1;
+            else if (second == null)
+                comparison = -1;
+            else
+                comparison = comparator == null ? ((Comparable<Object>) first.getKey()).compareTo(second.getKey()) : comparator.compare(first.getKey(), second.getKey());
+            if (comparison < 0) {
+                // chiave presente solo nella prima mappa
+                context.removedKey(field, first.getKey(), first.getValue());
+                first = firstIterator.hasNext() ? firstIterator.next() : null;
+            } else if (comparison > 0) {
+                // chiave presente solo nella seconda mappa
+                context.addedKey(field, second.getKey(), second.getValue());
+                second = secondIterator.hasNext() ? secondIterator.next() : null;
+            } else {
+                compareMapValues(field, first.getKey(), first.getValue(), second.getValue(), context);
+                first = firstIterator.hasNext() ? firstIterator.next() : null;
+                second = secondIterator.hasNext() ? secondIterator.next() : null;
+            }
+        }
+    }
+
+    /**
+     * Confronta i valori associati alla stessa chiave nelle due mappe. Se richiesto dalle opzioni i valori che
+     * non sono tipi semplici vengono confrontati in profondita', altrimenti si usa equals.
+     * @param field il campo che si sta verificando
+     * @param key la chiave
+     * @param firstBeanValue il valore nella mappa del primo bean
+     * @param secondBeanValue il valore nella mappa del secondo bean
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareMapValues(Field field, Object key, Object firstBeanValue, Object secondBeanValue, ComparisonContext context) throws IllegalAccessException {
+        if (firstBeanValue == secondBeanValue)
+            return;
+        if (context.options.deepMapValues() && firstBeanValue != null && secondBeanValue != null
+                && BeanSnapshot.typeOf(firstBeanValue) == secondBeanValue.getClass() && !isPrimitive(firstBeanValue)) {
+            context.enterKey(key);
+            compareValues(field, ClassPlan.Kind.DYNAMIC, firstBeanValue, secondBeanValue, context);
+            context.leave();
+        } else if (!Objects.equals(firstBeanValue, secondBeanValue))
+            context.reportKey(field, key, firstBeanValue, secondBeanValue);
+    }
+
+    /**
+     * Confronta due collezioni verificando gli oggetti che sono nella prima e non nella seconda e viceversa.
+     * Gli elementi per cui e' registrato un estrattore di chiave vengono abbinati per chiave e le coppie abbinate
+     * confrontate in profondita'; gli altri sono confrontati tramite equals.
+     * @param field il campo che si sta controllando
+     * @param firstBeanCollection la collezione del primo bean
+     * @param secondBeanCollection la collezione del secondo bean
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareCollections(Field field, Collection firstBeanCollection, Collection secondBeanCollection, ComparisonContext context) throws IllegalAccessException {
+        if (!context.collecting() && firstBeanCollection.size() != secondBeanCollection.size()) {
+            // se non servono i dettagli, collezioni di dimensione diversa sono sicuramente diverse
+            context.report(field, firstBeanCollection, secondBeanCollection);
+            return;
+        }
+        if (context.options.orderedLists() && firstBeanCollection instanceof List && secondBeanCollection instanceof List) {
+            compareSequences(field, (List) firstBeanCollection, (List) secondBeanCollection, context);
+            return;
+        }
+        if (!context.options.hasKeyExtractors() && !keyed(firstBeanCollection, context.options) && !keyed(secondBeanCollection, context.options)) {
+            compareElements(field, firstBeanCollection, secondBeanCollection, context);
+            return;
+        }
+
+        // indice per chiave degli elementi della seconda collezione (in caso di chiavi duplicate gli elementi
+        // successivi al primo vengono accodati in duplicates)
+        Map<Object, Object> secondBeanIndex = new LinkedHashMap<>();
+        Map<Object, Deque<Object>> duplicates = null;
+        List<Object> firstBeanUnkeyed = new ArrayList<>();
+        List<Object> secondBeanUnkeyed = new ArrayList<>();
+        // nella comparazione parallela le coppie abbinate vengono confrontate tutte insieme alla fine
+        List<MatchedPair> matched = context.parallel() ? new ArrayList<MatchedPair>() : null;
+        for (Object obj: secondBeanCollection){
+            Function<Object, Object> extractor = keyExtractorFor(obj, context.options);
+            if (extractor == null) {
+                secondBeanUnkeyed.add(obj);
+                continue;
+            }
+            Object key = extractor.apply(obj);
+            if (secondBeanIndex.containsKey(key)) {
+                if (duplicates == null)
+                    duplicates = new HashMap<>();
+                Deque<Object> queue = duplicates.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    duplicates.put(key, queue);
                 }
+                queue.add(obj);
+            } else {
+                secondBeanIndex.put(key, obj);
             }
-        } else {
-            for (Object key: firstBeanMap.keySet()){
-                if (!secondBeanMap.containsKey(key)){
-                    put(map, field, firstBeanMap.get(key), null);
-                } else {
-                    if (!firstBeanMap.get(key).equals(secondBeanMap.get(key))){
-                        put(map, field, firstBeanMap.get(key), secondBeanMap.get(key));
-                    }
+        }
+        // abbinamento degli elementi della prima collezione in un solo passaggio
+        for (Object obj: firstBeanCollection){
+            Function<Object, Object> extractor = keyExtractorFor(obj, context.options);
+            if (extractor == null) {
+                firstBeanUnkeyed.add(obj);
+                continue;
+            }
+            Object key = extractor.apply(obj);
+            if (!secondBeanIndex.containsKey(key)) {
+                context.removed(field, obj);
+                continue;
+            }
+            Object match = secondBeanIndex.remove(key);
+            Deque<Object> queue = duplicates == null ? null : duplicates.get(key);
+            if (queue != null) {
+                secondBeanIndex.put(key, queue.poll());
+                if (queue.isEmpty())
+                    duplicates.remove(key);
+            }
+            if (matched != null) {
+                matched.add(new MatchedPair(key, -1, -1, obj, match));
+                continue;
+            }
+            context.enterKey(key);
+            compareValues(field, ClassPlan.Kind.DYNAMIC, obj, match, context);
+            context.leave();
+            if (context.stopped())
+                return;
+        }
+        if (matched != null)
+            compareMatched(field, matched, context);
+        // gli elementi della seconda collezione rimasti senza abbinamento
+        for (Map.Entry<Object, Object> entry: secondBeanIndex.entrySet()){
+            if (context.stopped())
+                return;
+            context.added(field, entry.getValue());
+            Deque<Object> queue = duplicates == null ? null : duplicates.get(entry.getKey());
+            if (queue != null) {
+                for (Object obj: queue)
+                    context.added(field, obj);
+            }
+        }
+        compareElements(field, firstBeanUnkeyed, secondBeanUnkeyed, context);
+    }
+
+    /**
+     * Confronta due liste come sequenze ordinate, riportando per posizione gli elementi cancellati (valore, null),
+     * inseriti (null, valore) e spostati (valore, valore), sempre come {@link IndexedEntry}.
+     * Gli elementi sono considerati uguali se hanno la stessa chiave (quando e' registrato un estrattore di chiave,
+     * e allora le coppie abbinate vengono confrontate in profondita') oppure se sono uguali per equals.
+     * @param field il campo che si sta controllando
+     * @param firstBeanList la lista del primo bean
+     * @param secondBeanList la lista del secondo bean
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareSequences(Field field, List firstBeanList, List secondBeanList, ComparisonContext context) throws IllegalAccessException {
+        Object[] firstElements = firstBeanList.toArray();
+        Object[] secondElements = secondBeanList.toArray();
+        // ogni elemento viene ridotto ad un identificativo intero: stessa chiave (o elementi uguali), stesso identificativo
+        Map<Object, Integer> keyIds = new HashMap<>();
+        Map<Object, Integer> elementIds = new HashMap<>();
+        int[] firstIds = new int[firstElements.length];
+        int[] secondIds = new int[secondElements.length];
+        for (int i = 0; i < firstElements.length; i++)
+            firstIds[i] = elementId(firstElements[i], keyIds, elementIds, context.options);
+        for (int j = 0; j < secondElements.length; j++)
+            secondIds[j] = elementId(secondElements[j], keyIds, elementIds, context.options);
+        boolean keyed = !keyIds.isEmpty();
+
+        SequenceDiff script = SequenceDiff.diff(firstIds, secondIds);
+
+        // gli elementi cancellati, raggruppati per identificativo, per riconoscere gli spostamenti
+        int distinctIds = keyIds.size() + elementIds.size();
+        int[] deletedHead = new int[distinctIds];
+        int[] deletedNext = new int[firstElements.length];
+        int[] deletedTail = new int[distinctIds];
+        Arrays.fill(deletedHead, -1);
+        for (int op = 0; op < script.size(); op++) {
+            int i = script.firstIndex(op);
+            if (i >= 0 && script.secondIndex(op) < 0) {
+                int id = firstIds[i];
+                deletedNext[i] = -1;
+                if (deletedHead[id] < 0)
+                    deletedHead[id] = i;
+                else
+                    deletedNext[deletedTail[id]] = i;
+                deletedTail[id] = i;
+            }
+        }
+        // un inserimento di un elemento cancellato altrove e' uno spostamento
+        int[] movedTo = new int[firstElements.length];
+        Arrays.fill(movedTo, -1);
+        int[] movedFrom = new int[secondElements.length];
+        Arrays.fill(movedFrom, -1);
+        for (int op = 0; op < script.size(); op++) {
+            int j = script.secondIndex(op);
+            if (j >= 0 && script.firstIndex(op) < 0) {
+                int id = secondIds[j];
+                int i = deletedHead[id];
+                if (i >= 0) {
+                    deletedHead[id] = deletedNext[i];
+                    movedTo[i] = j;
+                    movedFrom[j] = i;
                 }
             }
-            for (Object key: secondBeanMap.keySet()){
-                if (!firstBeanMap.containsKey(key)){
-                    put(map, field, null, secondBeanMap.get(key));
+        }
+
+        // nella comparazione parallela le coppie abbinate vengono confrontate tutte insieme alla fine
+        List<MatchedPair> matched = keyed && context.parallel() ? new ArrayList<MatchedPair>() : null;
+        for (int op = 0; op < script.size() && !context.stopped(); op++) {
+            int i = script.firstIndex(op);
+            int j = script.secondIndex(op);
+            if (i >= 0 && j >= 0) {
+                // elementi abbinati: se abbinati per chiave vanno confrontati in profondita'
+                if (matched != null) {
+                    matched.add(new MatchedPair(null, i, j, firstElements[i], secondElements[j]));
+                } else if (keyed) {
+                    context.enterIndex(i, j);
+                    compareValues(field, ClassPlan.Kind.DYNAMIC, firstElements[i], secondElements[j], context);
+                    context.leave();
+                }
+            } else if (i >= 0) {
+                if (movedTo[i] < 0)
+                    context.reportIndex(field, i, -1, firstElements[i], null);
+            } else if (movedFrom[j] < 0) {
+                context.reportIndex(field, -1, j, null, secondElements[j]);
+            } else {
+                int from = movedFrom[j];
+                context.reportMove(field, from, j, firstElements[from], secondElements[j]);
+                if (matched != null) {
+                    matched.add(new MatchedPair(null, from, j, firstElements[from], secondElements[j]));
+                } else if (keyed) {
+                    context.enterIndex(from, j);
+                    compareValues(field, ClassPlan.Kind.DYNAMIC, firstElements[from], secondElements[j], context);
+                    context.leave();
                 }
             }
         }
-        return map;
+        if (matched != null)
+            compareMatched(field, matched, context);
     }
 
     /**
-     * Confronta due collezioni verificando gli oggetti che sono nella prima e non nella seconda e viceversa.
-     * @param map la mappa delle differenze
+     * Confronta in profondita' le coppie di elementi abbinati di una collezione, suddividendole in task
+     * paralleli se sono piu' della soglia
+     * @param field il campo che si sta controllando
+     * @param matched le coppie abbinate
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareMatched(final Field field, final List<MatchedPair> matched, ComparisonContext context) throws IllegalAccessException {
+        RangeComparison comparison = (from, to, task) -> {
+            for (int i = from; i < to && !task.stopped(); i++) {
+                MatchedPair pair = matched.get(i);
+                if (pair.firstIndex < 0)
+                    task.enterKey(pair.key);
+                else
+                    task.enterIndex(pair.firstIndex, pair.secondIndex);
+                compareValues(field, ClassPlan.Kind.DYNAMIC, pair.first, pair.second, task);
+                task.leave();
+            }
+        };
+        if (matched.size() > context.options.parallelThreshold())
+            forkJoin(matched.size(), context.options.parallelThreshold(), comparison, context);
+        else
+            comparison.compare(0, matched.size(), context);
+    }
+
+    /**
+     * Una coppia di elementi abbinati (per chiave o per posizione) da confrontare in profondita'
+     */
+    private static final class MatchedPair {
+        final Object key;
+        final int firstIndex;
+        final int secondIndex;
+        final Object first;
+        final Object second;
+
+        MatchedPair(Object key, int firstIndex, int secondIndex, Object first, Object second) {
+            this.key = key;
+            this.firstIndex = firstIndex;
+            this.secondIndex = secondIndex;
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    /**
+     * Restituisce l'identificativo intero di un elemento di una lista: gli elementi con estrattore di chiave
+     * sono identificati dalla chiave, gli altri dall'elemento stesso (secondo equals)
+     */
+    private static int elementId(Object element, Map<Object, Integer> keyIds, Map<Object, Integer> elementIds, ComparisonOptions options) {
+        Function<Object, Object> extractor = keyExtractorFor(element, options);
+        Map<Object, Integer> ids = extractor == null ? elementIds : keyIds;
+        Object token = extractor == null ? element : extractor.apply(element);
+        Integer id = ids.get(token);
+        if (id == null) {
+            id = keyIds.size() + elementIds.size();
+            ids.put(token, id);
+        }
+        return id;
+    }
+
+    /**
+     * Verifica se gli elementi di una collezione hanno una chiave dichiarata con {@link DiffKey}, guardando
+     * solo il primo elemento
+     * @param collection la collezione
+     * @param options le opzioni di comparazione
+     * @return true se il primo elemento ha un estrattore di chiave
+     */
+    private static boolean keyed(Collection collection, ComparisonOptions options) {
+        return !collection.isEmpty() && keyExtractorFor(collection.iterator().next(), options) != null;
+    }
+
+    /**
+     * Restituisce l'estrattore di chiave di un elemento di una collezione
+     * @param element l'elemento (eventualmente un bean fotografato)
+     * @param options le opzioni di comparazione
+     * @return l'estrattore o null se l'elemento non ha chiave
+     */
+    private static Function<Object, Object> keyExtractorFor(Object element, ComparisonOptions options) {
+        if (element == null)
+            return null;
+        if (element instanceof BeanSnapshot.Node)
+            return ((BeanSnapshot.Node) element).keyExtractor();
+        return options.keyExtractorFor(element.getClass());
+    }
+
+    /**
+     * Confronta due collezioni verificando tramite equals gli oggetti che sono nella prima e non nella seconda e viceversa.
+     * Le collezioni sono trattate come multiset (conta anche il numero di occorrenze di ciascun elemento) e il
+     * confronto avviene in tempo lineare tramite un indice hash degli elementi della seconda collezione;
+     * se entrambe le collezioni sono set si usa direttamente la loro contains.
      * @param field il campo che si sta controllando
      * @param firstBeanCollection la collezione del primo bean
      * @param secondBeanCollection la collezione del secondo bean
-     * @return la mappa aggiornata
-     * // TODO deep comparison
+     * @param context lo stato della comparazione
      */
-    private static Map<Field,List<Map.Entry<Object,Object>>> compareCollections(Map<Field, List<Map.Entry<Object, Object>>> map, Field field, Collection firstBeanCollection, Collection secondBeanCollection) {
+    private static void compareElements(Field field, Collection firstBeanCollection, Collection secondBeanCollection, ComparisonContext context) {
+        if (firstBeanCollection instanceof Set && secondBeanCollection instanceof Set) {
+            // nei set non ci sono duplicati
+            for (Object obj: firstBeanCollection){
+                if (!secondBeanCollection.contains(obj)){
+                    context.removed(field, obj);
+                    if (context.stopped())
+                        return;
+                }
+            }
+            for (Object obj: secondBeanCollection){
+                if (!firstBeanCollection.contains(obj)){
+                    context.added(field, obj);
+                    if (context.stopped())
+                        return;
+                }
+            }
+            return;
+        }
+        // numero di occorrenze di ciascun elemento della seconda collezione
+        Map<Object, int[]> occurrences = new HashMap<>(Math.max(16, (int) (secondBeanCollection.size() / .75f) + 1));
+        for (Object obj: secondBeanCollection){
+            int[] count = occurrences.get(obj);
+            if (count == null)
+                occurrences.put(obj, new int[]{1});
+            else
+                count[0]++;
+        }
+        // gli elementi della prima collezione consumano le occorrenze della seconda
         for (Object obj: firstBeanCollection){
-            if (!secondBeanCollection.contains(obj)){
-                put(map, field, obj, null);
+            int[] count = occurrences.get(obj);
+            if (count == null || count[0] == 0) {
+                context.removed(field, obj);
+                if (context.stopped())
+                    return;
+            } else {
+                count[0]--;
             }
         }
+        // le occorrenze rimaste sono gli elementi presenti solo nella seconda collezione
         for (Object obj: secondBeanCollection){
-            if (!firstBeanCollection.contains(obj)){
-                put(map, field, null, obj);
+            int[] count = occurrences.get(obj);
+            if (count[0] > 0) {
+                count[0]--;
+                context.added(field, obj);
+                if (context.stopped())
+                    return;
             }
         }
-        return map;
     }
 
     /**
-     * Traversa l'oggetto sorgente
-     * @param map la mappa dei campi diversi
+     * Confronta i valori di un campo in base alla tipologia prevista dal piano della classe
      * @param field il campo che si sta verificando
+     * @param kind la tipologia di confronto del campo ({@link ClassPlan.Kind#DYNAMIC} se va ricavata dal valore)
      * @param firstBeanPropertyValue il valore della proprieta' del bean a
      * @param secondBeanPropertyValue il valore della proprieta' del bean b
-     * @param exclusions i nomi dei campi da escludere dal confronto
-     * @return la mappa aggiornata
+     * @param context lo stato della comparazione
      * @throws IllegalAccessException in caso di accesso violato
      */
-    private static Map<Field, List<Map.Entry<Object, Object>>> traverse (Map<Field, List<Map.Entry<Object, Object>>> map, Field field, Object firstBeanPropertyValue, Object secondBeanPropertyValue, List<String> exclusions) throws IllegalAccessException{
-        // array
-        if (isArray(firstBeanPropertyValue)) {
-            // controllo sulla lunghezza dell'array
-            if (((Object[])firstBeanPropertyValue).length > 0) {
-                Object[] firstBeanPropertyValueAsArray = (Object[])firstBeanPropertyValue;
-                Object[] secondBeanPropertyValueAsArray = (Object[])secondBeanPropertyValue;
-                // controllo se e' un array di primitive
-                if (isPrimitive(firstBeanPropertyValueAsArray[0]) ) {
-                    // verifico la lunghezza degli array
-                    if (firstBeanPropertyValueAsArray.length != secondBeanPropertyValueAsArray.length) {
-                        // array di lunghezza diversa sono sicuramente diversi
-                        put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-                        return map;
-                    } else {
-                        //comparo le primitive
-                        for (int i = 0; i < firstBeanPropertyValueAsArray.length; i++) {
-                            map = comparePrimitives(map, field, firstBeanPropertyValueAsArray[i], secondBeanPropertyValueAsArray[i]);
-                        }
-                    }
-                    return map;
-                } else if (isArray(firstBeanPropertyValueAsArray[0])){
-                    // controllo sulla lunghezza dell'array
-                    if (((Object[])firstBeanPropertyValueAsArray[0]).length > 0) {
-                        Object[] _arrayFromFirstBean = (Object[])firstBeanPropertyValueAsArray[0];
-                        Object[] _arrayFromSecondBean = (Object[])secondBeanPropertyValueAsArray[0];
-                        // controllo se e' un array di primitive
-                        if (isPrimitive(_arrayFromFirstBean[0]) ) {
-                            // verifico la lunghezza degli array
-                            if (_arrayFromFirstBean.length != _arrayFromSecondBean.length) {
-                                // array di lunghezza diversa sono sicuramente diversi
-                                put(map, field, firstBeanPropertyValueAsArray[0], secondBeanPropertyValueAsArray[0]);
-                                return map;
-                            } else {
-                                //comparo le primitive
-                                for (int i = 0; i < firstBeanPropertyValueAsArray.length; i++) {
-                                    map = comparePrimitives(map, field, firstBeanPropertyValueAsArray[i], secondBeanPropertyValueAsArray[i]);
-                                }
-                            }
-                            return map;
-                        } else {
-                            return traverseObject(map, field, firstBeanPropertyValue, secondBeanPropertyValue, exclusions);
-                        }
-                    } else if (secondBeanPropertyValue != null && ((Object[])secondBeanPropertyValue).length > 0){
-                        put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-                        return map;
-                    } else {
-                        return map;
-                    }
-                } else {
-                    return traverseObject(map, field, firstBeanPropertyValue, secondBeanPropertyValue, exclusions);
+    static void compareValues(Field field, ClassPlan.Kind kind, Object firstBeanPropertyValue, Object secondBeanPropertyValue, ComparisonContext context) throws IllegalAccessException {
+        if (firstBeanPropertyValue == null || secondBeanPropertyValue == null) {
+            // se solo uno dei due valori e' nullo i valori sono sicuramente diversi
+            if (firstBeanPropertyValue != secondBeanPropertyValue)
+                context.report(field, firstBeanPropertyValue, secondBeanPropertyValue);
+            return;
+        }
+        // stesso oggetto, nessuna differenza
+        if (firstBeanPropertyValue == secondBeanPropertyValue)
+            return;
+        // i proxy e le collezioni non caricati non vengono attraversati, per non forzarne il caricamento;
+        // i proxy inizializzati si confrontano tramite l'oggetto reale
+        if (kind != ClassPlan.Kind.PRIMITIVE && context.options.loadStrategy() != LoadStrategy.NONE) {
+            LoadStrategy loadStrategy = context.options.loadStrategy();
+            if (!loadStrategy.isLoaded(firstBeanPropertyValue) || !loadStrategy.isLoaded(secondBeanPropertyValue)) {
+                context.notCompared(field, firstBeanPropertyValue, secondBeanPropertyValue);
+                return;
+            }
+            firstBeanPropertyValue = loadStrategy.unwrap(firstBeanPropertyValue);
+            secondBeanPropertyValue = loadStrategy.unwrap(secondBeanPropertyValue);
+            if (firstBeanPropertyValue == secondBeanPropertyValue)
+                return;
+        }
+        Class<?> type = BeanSnapshot.typeOf(firstBeanPropertyValue);
+        // i tipi con un confronto registrato nelle opzioni sono valori semplici, anche se avrebbero un'altra tipologia
+        if (context.options.hasValueComparators()) {
+            ValueComparator<Object> comparator = context.options.valueComparatorFor(type);
+            if (comparator != null) {
+                if (comparator != context.options.valueComparatorFor(secondBeanPropertyValue.getClass()) || !comparator.equal(firstBeanPropertyValue, secondBeanPropertyValue))
+                    context.report(field, firstBeanPropertyValue, secondBeanPropertyValue);
+                return;
+            }
+        }
+        if (kind == ClassPlan.Kind.DYNAMIC)
+            kind = ClassPlan.of(type).kind();
+        if (type != secondBeanPropertyValue.getClass()) {
+            // valori di classi non confrontabili tra loro (ad es. campi dichiarati come Object) sono sicuramente diversi
+            if (kind == ClassPlan.Kind.PRIMITIVE || kind == ClassPlan.Kind.BEAN || ClassPlan.of(secondBeanPropertyValue.getClass()).kind() != kind) {
+                context.report(field, firstBeanPropertyValue, secondBeanPropertyValue);
+                return;
+            }
+        }
+        if (kind != ClassPlan.Kind.PRIMITIVE) {
+            // sottografi con la stessa impronta non hanno differenze
+            if (context.fingerprints() != null && Fingerprints.same(firstBeanPropertyValue, secondBeanPropertyValue, context))
+                return;
+            // una coppia di oggetti gia' confrontata (grafo ciclico o sottografo condiviso) non va confrontata di nuovo
+            if (!context.visit(firstBeanPropertyValue, secondBeanPropertyValue))
+                return;
+            // oltre la profondita' massima o a budget esaurito il sottografo viene saltato
+            if (context.bounded() && !context.admit())
+                return;
+        }
+        switch (kind) {
+            case PRIMITIVE:
+                comparePrimitives(field, firstBeanPropertyValue, secondBeanPropertyValue, context);
+                break;
+            case COLLECTION: {
+                ComparisonEvents.CompareCollections event = new ComparisonEvents.CompareCollections();
+                event.begin();
+                compareCollections(field, (Collection) firstBeanPropertyValue, (Collection) secondBeanPropertyValue, context);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.beanClass = field.getDeclaringClass();
+                    event.field = field.getName();
+                    event.collectionClass = type;
+                    event.firstSize = ((Collection) firstBeanPropertyValue).size();
+                    event.secondSize = ((Collection) secondBeanPropertyValue).size();
+                    event.commit();
+                }
+                break;
+            }
+            case MAP: {
+                ComparisonEvents.CompareMaps event = new ComparisonEvents.CompareMaps();
+                event.begin();
+                compareMaps(field, (Map) firstBeanPropertyValue, (Map) secondBeanPropertyValue, context);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.beanClass = field.getDeclaringClass();
+                    event.field = field.getName();
+                    event.mapClass = type;
+                    event.firstSize = ((Map) firstBeanPropertyValue).size();
+                    event.secondSize = ((Map) secondBeanPropertyValue).size();
+                    event.commit();
                 }
-            } else if (secondBeanPropertyValue != null && ((Object[])secondBeanPropertyValue).length > 0){
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-                return map;
+                break;
+            }
+            case ARRAY:
+                if (PrimitiveArrays.isPrimitiveArray(firstBeanPropertyValue) || PrimitiveArrays.isPrimitiveArray(secondBeanPropertyValue))
+                    comparePrimitiveArrays(field, firstBeanPropertyValue, secondBeanPropertyValue, context);
+                else
+                    compareArrays(field, (Object[]) firstBeanPropertyValue, (Object[]) secondBeanPropertyValue, context);
+                break;
+            default:
+                // con un budget i bean vengono rinviati sullo stack esplicito invece di essere attraversati per ricorsione
+                if (context.bounded())
+                    context.defer(firstBeanPropertyValue, secondBeanPropertyValue);
+                else
+                    traverseObject(firstBeanPropertyValue, secondBeanPropertyValue, context);
+        }
+    }
+
+    /**
+     * Confronta due array elemento per elemento
+     * @param field il campo che si sta verificando
+     * @param firstBeanArray l'array del primo bean
+     * @param secondBeanArray l'array del secondo bean
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareArrays(final Field field, final Object[] firstBeanArray, final Object[] secondBeanArray, ComparisonContext context) throws IllegalAccessException {
+        if (firstBeanArray.length != secondBeanArray.length) {
+            // array di lunghezza diversa sono sicuramente diversi
+            context.report(field, firstBeanArray, secondBeanArray);
+            return;
+        }
+        if (context.parallel() && firstBeanArray.length > context.options.parallelThreshold())
+            forkJoin(firstBeanArray.length, context.options.parallelThreshold(),
+                    (from, to, task) -> compareArrayElements(field, firstBeanArray, secondBeanArray, from, to, task), context);
+        else
+            compareArrayElements(field, firstBeanArray, secondBeanArray, 0, firstBeanArray.length, context);
+    }
+
+    /**
+     * Confronta gli elementi di due array della stessa lunghezza in un intervallo di posizioni
+     * @param field il campo che si sta verificando
+     * @param firstBeanArray l'array del primo bean
+     * @param secondBeanArray l'array del secondo bean
+     * @param from la prima posizione (inclusa)
+     * @param to l'ultima posizione (esclusa)
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareArrayElements(Field field, Object[] firstBeanArray, Object[] secondBeanArray, int from, int to, ComparisonContext context) throws IllegalAccessException {
+        for (int i = from; i < to && !context.stopped(); i++) {
+            Object firstElement = firstBeanArray[i];
+            Object secondElement = secondBeanArray[i];
+            if (firstElement == null || secondElement == null || isPrimitive(firstElement)) {
+                // elementi semplici: la differenza viene riportata con la sua posizione
+                if (firstElement == null ? secondElement != null
+                        : secondElement == null || firstElement.getClass() != secondElement.getClass() || !arePrimitivesEqual(firstElement, secondElement))
+                    context.reportIndex(field, i, i, firstElement, secondElement);
             } else {
-                return map;
+                context.enterIndex(i, i);
+                compareValues(field, ClassPlan.Kind.DYNAMIC, firstElement, secondElement, context);
+                context.leave();
+            }
+        }
+    }
+
+    /**
+     * Confronta due array di primitive (int[], long[], double[], ...) senza boxing, riportando
+     * una differenza per ogni posizione in cui gli elementi non coincidono
+     * @param field il campo che si sta verificando
+     * @param firstBeanArray l'array del primo bean
+     * @param secondBeanArray l'array del secondo bean
+     * @param context lo stato della comparazione
+     */
+    private static void comparePrimitiveArrays(Field field, Object firstBeanArray, Object secondBeanArray, ComparisonContext context) {
+        if (firstBeanArray.getClass() != secondBeanArray.getClass() || PrimitiveArrays.length(firstBeanArray) != PrimitiveArrays.length(secondBeanArray)) {
+            // array di tipo o lunghezza diversa sono sicuramente diversi
+            context.report(field, firstBeanArray, secondBeanArray);
+            return;
+        }
+        int i = 0;
+        while (!context.stopped() && (i = PrimitiveArrays.nextMismatch(firstBeanArray, secondBeanArray, i)) >= 0) {
+            context.reportIndex(field, i, i, PrimitiveArrays.get(firstBeanArray, i), PrimitiveArrays.get(secondBeanArray, i));
+            i++;
+        }
+    }
+
+    /**
+     * Traversa l'oggetto sorgente percorrendo il piano di comparazione della sua classe
+     * @param firstBeanObject l'oggetto del primo bean (o il suo nodo in una fotografia)
+     * @param secondBeanObject l'oggetto del secondo bean (della stessa classe del primo)
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void traverseObject(final Object firstBeanObject, final Object secondBeanObject, ComparisonContext context) throws IllegalAccessException{
+        // il comparatore generato non serve con le regole sui percorsi, con le fotografie e in parallelo;
+        // quando c'e' il piano dei campi non viene nemmeno calcolato
+        PathRules.State state = context.state();
+        if (state == null && !context.parallel() && !(firstBeanObject instanceof BeanSnapshot.Node)) {
+            GeneratedComparator<Object> generated = ClassPlan.of(firstBeanObject.getClass()).generated();
+            if (generated != null) {
+                generated.compare(firstBeanObject, secondBeanObject, context.fieldComparison());
+                return;
             }
-        } else if (isPrimitive(firstBeanPropertyValue)){ // primitiva
-            return comparePrimitives(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else { // oggetto generico
-            return traverseObject(map, field, firstBeanPropertyValue, secondBeanPropertyValue, exclusions);
         }
+        // con regole sui percorsi i campi esclusi (e i loro sottografi) sono gia' stati tolti dalla selezione
+        final ClassPlan.FieldPlan[] fields;
+        final PathRules.State[] states;
+        if (state == null) {
+            fields = ClassPlan.of(BeanSnapshot.typeOf(firstBeanObject)).fields();
+            states = null;
+        } else {
+            PathRules.Selection selection = state.select(BeanSnapshot.typeOf(firstBeanObject));
+            fields = selection.fields;
+            states = selection.states;
+        }
+        // i sottografi dei campi vengono confrontati in parallelo solo se il pool non ha gia' abbastanza lavoro
+        if (context.parallel() && ForkJoinTask.inForkJoinPool() && ForkJoinTask.getSurplusQueuedTaskCount() <= 2 && subtrees(fields) > 1)
+            forkJoin(fields.length, 1, (from, to, task) -> compareFields(fields, states, from, to, firstBeanObject, secondBeanObject, task), context);
+        else
+            compareFields(fields, states, 0, fields.length, firstBeanObject, secondBeanObject, context);
+    }
+
+    /**
+     * @param fields i campi del piano di una classe
+     * @return il numero di campi che non sono tipi semplici (e che quindi possono contenere sottografi)
+     */
+    private static int subtrees(ClassPlan.FieldPlan[] fields) {
+        int subtrees = 0;
+        for (ClassPlan.FieldPlan fieldPlan : fields) {
+            if (!fieldPlan.kind.primitiveField && fieldPlan.kind != ClassPlan.Kind.PRIMITIVE)
+                subtrees++;
+        }
+        return subtrees;
     }
 
-    private static Map<Field, List<Map.Entry<Object, Object>>> traverseObject(Map<Field, List<Map.Entry<Object, Object>>> map, Field field, Object firstBeanObject, Object secondBeanObject, List<String> exclusions) throws IllegalAccessException{
-        // la lista di campi da verificare
-        List<Field> fields = getAllFields(firstBeanObject.getClass());
-        Object _firstBeanObject;
-        Object _secondBeanObject;
-        for(Field _field : fields){
-            _field.setAccessible(true);
+    /**
+     * Confronta un intervallo dei campi del piano di una classe
+     * @param fields i campi del piano
+     * @param states lo stato delle regole sui percorsi di ciascun campo (null se le regole si limitano ai nomi)
+     * @param from il primo campo (incluso)
+     * @param to l'ultimo campo (escluso)
+     * @param firstBeanObject l'oggetto del primo bean (o il suo nodo in una fotografia, con i valori nelle posizioni dei campi)
+     * @param secondBeanObject l'oggetto del secondo bean
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareFields(ClassPlan.FieldPlan[] fields, PathRules.State[] states, int from, int to, Object firstBeanObject, Object secondBeanObject, ComparisonContext context) throws IllegalAccessException {
+        for (int i = from; i < to; i++) {
+            ClassPlan.FieldPlan fieldPlan = fields[i];
+            if (context.stopped())
+                return;
             // il campo non deve essere tra quelli esclusi
-            if (exclusions.contains(_field.getName()) || _field.getName().startsWith("this"))
+            if (states == null && context.options.rules().isExcluded(fieldPlan.name))
                 continue;
-            // estraggo i valori
-            _firstBeanObject = _field.get(firstBeanObject);
-            _secondBeanObject = _field.get(secondBeanObject);
-
-            //comparo i valori
-            if (isPrimitive(_firstBeanObject)){ // primitiva
-                map = comparePrimitives(map, _field, _firstBeanObject, _secondBeanObject);
-            } else if (isArray(_firstBeanObject)){ // array
-                // controllo sulla lunghezza dell'array
-                if (((Object[])_firstBeanObject).length > 0) {
-                    Object[] _firstBeanObjectAsArray = (Object[])_firstBeanObject;
-                    Object[] _secondBeanObjectAsArray = (Object[])_secondBeanObject;
-                    // controllo se e' un array di primitive
-                    if (isPrimitive(_firstBeanObjectAsArray[0]) ) {
-                        // verifico la lunghezza degli array
-                        if (_firstBeanObjectAsArray.length != _secondBeanObjectAsArray.length) {
-                            // array di lunghezza diversa sono sicuramente diversi
-                            put(map, _field, firstBeanObject, secondBeanObject);
-                            return map;
-                        } else {
-                            //comparo le primitive
-                            for (int i = 0; i < _firstBeanObjectAsArray.length; i++) {
-                                map = comparePrimitives(map, _field, _firstBeanObjectAsArray[i], _secondBeanObjectAsArray[i]);
-                            }
-                        }
-                        return map;
-                    } else {
-                        return traverse(map, _field, _firstBeanObject, _secondBeanObject, exclusions);
-                    }
-                } else if (_secondBeanObject != null && ((Object[])_secondBeanObject).length > 0){
-                    put(map, _field, _firstBeanObject, _secondBeanObject);
-                    return map;
-                } else {
-                    return map;
-                }
-            }else { // oggetto
-                return traverseObject(map, _field, _firstBeanObject, _secondBeanObject, exclusions);
+            context.enter(fieldPlan.field, states == null ? null : states[i]);
+            if (firstBeanObject instanceof BeanSnapshot.Node) {
+                BeanSnapshot.Node snapshot = (BeanSnapshot.Node) firstBeanObject;
+                if (fieldPlan.kind.primitiveField)
+                    compareSnapshotPrimitiveFields(fieldPlan, snapshot.bits(i), secondBeanObject, context);
+                else
+                    compareValues(fieldPlan.field, fieldPlan.kind, snapshot.value(i), fieldPlan.accessor.get(secondBeanObject), context);
+            } else if (fieldPlan.kind.primitiveField)
+                comparePrimitiveFields(fieldPlan, firstBeanObject, secondBeanObject, context);
+            else
+                compareValues(fieldPlan.field, fieldPlan.kind, fieldPlan.accessor.get(firstBeanObject), fieldPlan.accessor.get(secondBeanObject), context);
+            context.leave();
+        }
+    }
+
+    /**
+     * Confronta un campo di tipo primitivo leggendone il valore senza boxing
+     * (il boxing avviene solo per riportare i valori differenti)
+     * @param fieldPlan il campo che si sta verificando
+     * @param firstBeanObject l'oggetto del primo bean
+     * @param secondBeanObject l'oggetto del secondo bean
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void comparePrimitiveFields(ClassPlan.FieldPlan fieldPlan, Object firstBeanObject, Object secondBeanObject, ComparisonContext context) throws IllegalAccessException {
+        FieldAccessor accessor = fieldPlan.accessor;
+        switch (fieldPlan.kind) {
+            case INT: {
+                int firstValue = accessor.getInt(firstBeanObject), secondValue = accessor.getInt(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case LONG: {
+                long firstValue = accessor.getLong(firstBeanObject), secondValue = accessor.getLong(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case DOUBLE: {
+                double firstValue = accessor.getDouble(firstBeanObject), secondValue = accessor.getDouble(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case FLOAT: {
+                float firstValue = accessor.getFloat(firstBeanObject), secondValue = accessor.getFloat(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case BOOLEAN: {
+                boolean firstValue = accessor.getBoolean(firstBeanObject), secondValue = accessor.getBoolean(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case SHORT: {
+                short firstValue = accessor.getShort(firstBeanObject), secondValue = accessor.getShort(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case BYTE: {
+                byte firstValue = accessor.getByte(firstBeanObject), secondValue = accessor.getByte(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case CHAR: {
+                char firstValue = accessor.getChar(firstBeanObject), secondValue = accessor.getChar(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
             }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Confronta un campo di tipo primitivo fotografato con quello dell'oggetto vivo, senza boxing
+     * @param fieldPlan il campo che si sta verificando
+     * @param bits i bit del valore fotografato
+     * @param secondBeanObject l'oggetto vivo
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    private static void compareSnapshotPrimitiveFields(ClassPlan.FieldPlan fieldPlan, long bits, Object secondBeanObject, ComparisonContext context) throws IllegalAccessException {
+        FieldAccessor accessor = fieldPlan.accessor;
+        switch (fieldPlan.kind) {
+            case INT: {
+                int firstValue = (int) bits, secondValue = accessor.getInt(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case LONG: {
+                long secondValue = accessor.getLong(secondBeanObject);
+                if (bits != secondValue)
+                    context.report(fieldPlan.field, bits, secondValue);
+                break;
+            }
+            case DOUBLE: {
+                double firstValue = Double.longBitsToDouble(bits), secondValue = accessor.getDouble(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case FLOAT: {
+                float firstValue = Float.intBitsToFloat((int) bits), secondValue = accessor.getFloat(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case BOOLEAN: {
+                boolean firstValue = bits != 0, secondValue = accessor.getBoolean(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case SHORT: {
+                short firstValue = (short) bits, secondValue = accessor.getShort(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case BYTE: {
+                byte firstValue = (byte) bits, secondValue = accessor.getByte(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            case CHAR: {
+                char firstValue = (char) bits, secondValue = accessor.getChar(secondBeanObject);
+                if (firstValue != secondValue)
+                    context.report(fieldPlan.field, firstValue, secondValue);
+                break;
+            }
+            default:
+                break;
         }
-        return map;
     }
 
     /**
      * Compara due primitive in base alla tipologia
-     * @param map la mappa che contiene i valori diversi delle proprietà dei bean da comparare
      * @param field il campo che si sta confrontando
      * @param firstBeanPropertyValue la proprieta' del primo bean
      * @param secondBeanPropertyValue la proprieta' del secondo bean
-     * @return la mappa aggiornata
+     * @param context lo stato della comparazione
      */
-    private static Map<Field, List<Map.Entry<Object, Object>>> comparePrimitives(Map<Field, List<Map.Entry<Object, Object>>> map, Field field, Object firstBeanPropertyValue, Object secondBeanPropertyValue){
-        if (firstBeanPropertyValue instanceof java.lang.String ) {
-            if (!((String) firstBeanPropertyValue).equalsIgnoreCase((String)secondBeanPropertyValue))
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.lang.Character) {
-            if (firstBeanPropertyValue != secondBeanPropertyValue)
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.lang.Byte){
-            if (((Byte) firstBeanPropertyValue).byteValue() != ((Byte) secondBeanPropertyValue).byteValue())
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.lang.Short){
-            if (((Short) firstBeanPropertyValue).shortValue() != ((Short) secondBeanPropertyValue).shortValue())
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.lang.Double){
-            if (((Double) firstBeanPropertyValue).doubleValue() != ((Double) secondBeanPropertyValue).doubleValue())
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.lang.Float){
-            if (((Float) firstBeanPropertyValue).floatValue() != ((Float) secondBeanPropertyValue).floatValue())
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.lang.Integer){
-            if (((Integer) firstBeanPropertyValue).intValue() != ((Integer) secondBeanPropertyValue).intValue())
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.sql.Date ){
-            if (((java.sql.Date)firstBeanPropertyValue).getTime() != ((java.sql.Date)secondBeanPropertyValue).getTime())
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.sql.Timestamp){
-            if (((java.sql.Timestamp)firstBeanPropertyValue).getTime() != ((java.sql.Timestamp)secondBeanPropertyValue).getTime())
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        } else if (firstBeanPropertyValue instanceof java.util.Date ){
-            if (((java.util.Date)firstBeanPropertyValue).getTime() != ((java.util.Date)secondBeanPropertyValue).getTime())
-                put(map, field, firstBeanPropertyValue, secondBeanPropertyValue);
-        }
-        return map;
-    }
-
-    /**
-     * Ricerca tutte le proprietà (private e pubbliche) della gerarchia di classi
-     * cui appartiene la classe passata come parametro
-     * @param aClass la classe di cui si vuole conoscere la totalità dei campi disponibili
-     * @return la lista dei campi che appartengono alla classe passata
-     */
-    private static List<Field> getAllFields(Class aClass) {
-        List<Field> fields = new ArrayList<>();
-        do {
-            Collections.addAll(fields, aClass.getDeclaredFields());
-            aClass = aClass.getSuperclass();
-        } while (aClass != null);
-        return fields;
+    private static void comparePrimitives(Field field, Object firstBeanPropertyValue, Object secondBeanPropertyValue, ComparisonContext context){
+        if (!arePrimitivesEqual(firstBeanPropertyValue, secondBeanPropertyValue))
+            context.report(field, firstBeanPropertyValue, secondBeanPropertyValue);
+    }
+
+    /**
+     * Verifica l'uguaglianza di due valori semplici della stessa classe con il confronto predefinito della
+     * classe (vedi {@link ValueComparators})
+     * @param firstBeanPropertyValue la proprieta' del primo bean
+     * @param secondBeanPropertyValue la proprieta' del secondo bean
+     * @return true se i valori sono uguali
+     */
+    static boolean arePrimitivesEqual(Object firstBeanPropertyValue, Object secondBeanPropertyValue){
+        ValueComparator<Object> comparator = ValueComparators.of(firstBeanPropertyValue.getClass());
+        return comparator == null || comparator.equal(firstBeanPropertyValue, secondBeanPropertyValue);
     }
 
     /**
@@ -341,51 +1115,79 @@ public class BeanComparator {
      * @return true se primitiva o wrapper di primitiva altrimenti false
      */
     private static boolean isPrimitive(Object obj){
-        return obj != null && isPrimitiveWrapper(obj.getClass());
+        return obj != null && ClassPlan.of(obj.getClass()).kind() == ClassPlan.Kind.PRIMITIVE;
     }
 
     /**
-     * Verfica se la classe appartiene ad uno dei wrapper delle primitive o e' una stringa (che noi consideriamo una
-     * primitiva in questo caso
-     * @param clazz la classe da verificare
-     * @return true se primitiva altrimenti false
+     * Esegue la comparazione di un intervallo di elementi suddividendolo in task paralleli: il task corrente
+     * confronta la prima meta' e affida la seconda ad un task separato, fino ad intervalli non piu' grandi di grain.
+     * Le differenze dei task vengono unite nell'ordine degli intervalli.
+     * @param size il numero di elementi
+     * @param grain il numero di elementi sotto il quale l'intervallo non viene piu' suddiviso
+     * @param comparison la comparazione di un intervallo
+     * @param context lo stato della comparazione
+     * @throws IllegalAccessException in caso di accesso violato
      */
-    private static boolean isPrimitiveWrapper(Class clazz) {
-        return WRAPPERS.contains(clazz);
+    private static void forkJoin(int size, int grain, RangeComparison comparison, ComparisonContext context) throws IllegalAccessException {
+        RangeTask task = new RangeTask(comparison, 0, size, grain, context);
+        try {
+            if (ForkJoinTask.inForkJoinPool())
+                task.invoke();
+            else
+                context.options.pool().invoke(task);
+        } catch (RuntimeException e) {
+            // l'eccezione originale puo' arrivare incapsulata dal task che l'ha sollevata
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IllegalAccessException)
+                    throw (IllegalAccessException) cause;
+            }
+            throw e;
+        }
     }
 
     /**
-     * Verifica se l'oggetto e' una collezione (liste, set, etc.)
-     * @param obj l'oggetto da verificare
-     * @return true se l'oggetto e' una collezione
+     * La comparazione di un intervallo di elementi (ad es. posizioni di un array o campi di un bean)
      */
-    private static boolean isCollection(Object obj){
-        return obj instanceof Collection<?>;
+    private interface RangeComparison {
+        void compare(int from, int to, ComparisonContext context) throws IllegalAccessException;
     }
 
     /**
-     * Verifica se l'oggetto e' una implementazione di una mappa (hashmap etc.)
-     * @param obj l'oggetto da verificare
-     * @return true se l'ogetto e' una mappa
-     */
-    private static boolean isMap(Object obj){
-        return obj instanceof Map<?,?>;
-    }
-    /**
-     * Inserisce un coppia chiave -> valore sulla mappa se il campo non esiste gia',
-     * altrimenti aggiunge un elemento nella lista dei valori corrispondenti alla chiave (utile in caso di array)
-     * @param map la mappa dei campi differenti
-     * @param field il campo che si sta inserendo
-     * @param firstBeanPropertyValue l'oggetto del primo bean
-     * @param secondBeanPropertyValue l'oggetto del secondo bean
+     * Il task che confronta un intervallo di elementi, con un proprio contesto per le differenze
      */
-    private static void put(Map<Field, List<Map.Entry<Object, Object>>> map, Field field, Object firstBeanPropertyValue, Object secondBeanPropertyValue) {
-        if (map.get(field) == null) {
-            List<Map.Entry<Object, Object>> list = new ArrayList<>();
-            list.add(new AbstractMap.SimpleEntry(firstBeanPropertyValue, secondBeanPropertyValue));
-            map.put(field, list);
-        } else {
-            map.get(field).add(new AbstractMap.SimpleEntry(firstBeanPropertyValue, secondBeanPropertyValue));
+    private static final class RangeTask extends RecursiveTask<ComparisonContext> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient RangeComparison comparison;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final transient ComparisonContext context;
+
+        RangeTask(RangeComparison comparison, int from, int to, int grain, ComparisonContext context) {
+            this.comparison = comparison;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.context = context;
+        }
+
+        @Override
+        protected ComparisonContext compute() {
+            try {
+                if (to - from <= grain) {
+                    comparison.compare(from, to, context);
+                    return context;
+                }
+                int middle = (from + to) >>> 1;
+                RangeTask second = new RangeTask(comparison, middle, to, grain, context.fork());
+                second.fork();
+                new RangeTask(comparison, from, middle, grain, context).compute();
+                context.join(second.join());
+                return context;
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
         }
     }
 }
@@ -0,0 +1,1215 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Il delta binario di una comparazione: l'elenco compatto delle modifiche che trasformano il primo bean nel
+ * secondo, da trasmettere al posto dell'intero bean (ad es. per replicare le modifiche di un'entita' tra nodi)
+ * e da applicare con {@link #apply(byte[], Object)} ad una copia del primo bean.
+ *
+ * <pre>
+ *     byte[] delta = BeanDelta.encode(before, after, options);
+ *     ...
+ *     BeanDelta.apply(delta, replica, options);
+ * </pre>
+ *
+ * Ogni modifica e' un'operazione (valore impostato, elemento aggiunto, rimosso o spostato) con il suo percorso:
+ * i campi sono indicati dalla loro posizione nel {@link ClassPlan} della classe (senza nomi), le posizioni e le
+ * chiavi degli elementi con il loro valore. Gli interi sono scritti come varint e le classi dei valori solo alla
+ * prima occorrenza; collezioni, mappe e liste ordinate ricevono solo le operazioni sui singoli elementi.
+ *
+ * Chi applica il delta deve avere le stesse classi di chi lo ha prodotto e le stesse opzioni di comparazione
+ * per gli estrattori di chiave. Gli elementi rimossi dalle collezioni non ordinate vengono cercati per equals,
+ * poi per chiave, poi per contenuto; le collezioni e le mappe immodificabili vengono sostituite da una copia
+ * modificabile. Le collezioni usate come valori delle mappe confrontati in profondita' non sono supportate.
+ * I valori non confrontati perche' non caricati (vedi {@link LoadStrategy}) non fanno parte del delta.
+ *
+ * Il delta puo' arrivare da una fonte non fidata, per cui non usa la serializzazione Java e chi lo applica
+ * accetta solo le classi raggiungibili dai campi del bean (tipi dichiarati, argomenti generici e componenti
+ * degli array, lungo tutto il piano della classe) e le collezioni e mappe di {@code java.util}; i valori di
+ * altre classi (ad es. in un campo dichiarato {@code Object}) vengono rifiutati. Le collezioni e mappe di altre
+ * classi vengono ricreate con una classe di {@code java.util} equivalente. I bean nuovi (campi prima nulli,
+ * elementi aggiunti) vengono istanziati con il costruttore senza argomenti; quelli che non lo hanno solo con
+ * {@link ComparisonOptions.Builder#bypassConstructors(boolean)}.
+ */
+public final class BeanDelta {
+    private static final byte VERSION = 2;
+
+    /*
+     * Le operazioni, scritte insieme al numero di nodi del percorso (0 chiude il delta)
+     */
+    private static final int SET = 0;
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+    private static final int MOVE = 3;
+
+    /*
+     * I nodi del percorso, scritti insieme alla posizione del campo o alla prima posizione dell'elemento
+     */
+    private static final int FIELD = 0;
+    private static final int INDEX = 1;
+    private static final int KEY = 2;
+
+    /*
+     * I tag dei valori
+     */
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte BYTE = 3;
+    private static final byte SHORT = 4;
+    private static final byte CHAR = 5;
+    private static final byte INT = 6;
+    private static final byte LONG = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte STRING = 10;
+    private static final byte DATE = 11;
+    private static final byte SQL_DATE = 12;
+    private static final byte TIMESTAMP = 13;
+    private static final byte BIG_DECIMAL = 14;
+    private static final byte BIG_INTEGER = 15;
+    private static final byte UUID_VALUE = 16;
+    private static final byte ENUM = 17;
+    private static final byte BEAN = 18;
+    private static final byte COLLECTION = 19;
+    private static final byte MAP = 20;
+    private static final byte PRIMITIVE_ARRAY = 21;
+    private static final byte OBJECT_ARRAY = 22;
+    private static final byte REF = 23;
+    /** i tipi di java.time: codice del tipo, componenti ed eventuale zona (vedi TimeValues) */
+    private static final byte TEMPORAL = 24;
+
+    /*
+     * La forma delle collezioni e delle mappe, per ricrearle quando la loro classe non e' ammessa
+     */
+    private static final byte LIST_SHAPE = 0;
+    private static final byte SET_SHAPE = 1;
+    private static final byte SORTED_SET_SHAPE = 2;
+    private static final byte MAP_SHAPE = 3;
+    private static final byte SORTED_MAP_SHAPE = 4;
+
+    /**
+     * I costruttori senza argomenti con cui istanziare i bean decodificati (vuoto se la classe non ne ha)
+     */
+    private static final ClassValue<Optional<Constructor<?>>> CONSTRUCTORS = new ClassValue<Optional<Constructor<?>>>() {
+        @Override
+        protected Optional<Constructor<?>> computeValue(Class<?> type) {
+            try {
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return Optional.of(constructor);
+            } catch (NoSuchMethodException | RuntimeException e) {
+                return Optional.empty();
+            }
+        }
+    };
+
+    /**
+     * Le classi ammesse nei delta applicati ai bean di una classe, per nome
+     */
+    private static final ClassValue<Map<String, Class<?>>> REACHABLE = new ClassValue<Map<String, Class<?>>>() {
+        @Override
+        protected Map<String, Class<?>> computeValue(Class<?> type) {
+            return reachableFrom(type);
+        }
+    };
+
+    private static final Map<String, Class<?>> PRIMITIVE_ARRAYS = new HashMap<>();
+
+    static {
+        for (Class<?> type : new Class<?>[]{boolean[].class, byte[].class, char[].class, short[].class, int[].class, long[].class, float[].class, double[].class})
+            PRIMITIVE_ARRAYS.put(type.getName(), type);
+    }
+
+    private BeanDelta() {
+    }
+
+    /**
+     * Codifica il risultato di una comparazione
+     * @param result il risultato (completo: senza numero massimo di differenze e non troncato da un budget)
+     * @return il delta
+     * @throws IllegalArgumentException se il risultato e' nullo o troncato o contiene una differenza sul bean confrontato
+     */
+    public static byte[] encode(DiffResult result) throws IllegalArgumentException {
+        if (result == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        if (result.isTruncated())
+            throw new IllegalArgumentException("Il delta richiede tutte le differenze!");
+        Encoder encoder = new Encoder();
+        for (int i = 0; i < result.size(); i++) {
+            switch (result.getChangeKind(i)) {
+                case ADDED:
+                    encoder.onAdded(result.getPath(i), result.getField(i), result.getRight(i));
+                    break;
+                case REMOVED:
+                    encoder.onRemoved(result.getPath(i), result.getField(i), result.getLeft(i));
+                    break;
+                case MOVED:
+                    encoder.onMoved(result.getPath(i), result.getField(i), result.getLeft(i), result.getRight(i));
+                    break;
+                default:
+                    encoder.onDifference(result.getPath(i), result.getField(i), result.getLeft(i), result.getRight(i));
+            }
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Confronta due bean e codifica le differenze man mano che vengono trovate, senza raccoglierle
+     * @param firstBean il bean di partenza
+     * @param secondBean il bean da ottenere applicando il delta
+     * @param options le opzioni di comparazione (senza numero massimo di differenze ne' budget)
+     * @param <T> la tipologia di classe
+     * @return il delta
+     * @throws IllegalArgumentException in caso di argomenti nulli, di numero massimo di differenze, di budget o di bean di classi diverse
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    public static <T> byte[] encode(T firstBean, T secondBean, ComparisonOptions options) throws IllegalArgumentException, IllegalAccessException {
+        if (firstBean == null || secondBean == null || options == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        if (options.maxDifferences() != Integer.MAX_VALUE || options.bounded())
+            throw new IllegalArgumentException("Il delta richiede tutte le differenze!");
+        Encoder encoder = new Encoder();
+        BeanComparator.compare(firstBean, secondBean, options, encoder);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Applica un delta al bean passato, con le opzioni di default
+     * @see #apply(byte[], Object, ComparisonOptions)
+     */
+    public static <T> T apply(byte[] delta, T target) throws IllegalArgumentException, IllegalAccessException {
+        return apply(delta, target, ComparisonOptions.defaults());
+    }
+
+    /**
+     * Applica un delta al bean passato, modificandolo
+     * @param delta il delta
+     * @param target il bean (uguale al primo bean da cui e' stato prodotto il delta)
+     * @param options le opzioni con cui e' stato prodotto il delta (servono gli estrattori di chiave)
+     * @param <T> la tipologia di classe
+     * @return il bean modificato
+     * @throws IllegalArgumentException in caso di argomenti nulli o di delta non valido
+     * @throws IllegalAccessException in caso di accesso violato
+     * @throws IllegalStateException se il bean non corrisponde a quello da cui e' stato prodotto il delta
+     */
+    public static <T> T apply(byte[] delta, T target, ComparisonOptions options) throws IllegalArgumentException, IllegalAccessException {
+        if (delta == null || target == null || options == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        if (delta.length == 0 || delta[0] != VERSION)
+            throw new IllegalArgumentException("Delta non valido!");
+        new Decoder(delta, target, options).run();
+        return target;
+    }
+
+    /**
+     * Scrive le differenze ricevute dal comparatore
+     */
+    private static final class Encoder implements DiffListener {
+        private final Output output = new Output();
+        private final Map<Class<?>, Integer> classIds = new HashMap<>();
+        /**
+         * La posizione di ciascun campo contata dalla fine del piano della sua classe: i campi di una
+         * superclasse chiudono il piano di ogni sottoclasse, per cui la posizione vale per qualunque sottoclasse
+         */
+        private final Map<Field, Integer> fieldOrdinals = new HashMap<>();
+        /**
+         * Gli oggetti gia' scritti nel valore in corso (sottografi condivisi e cicli)
+         */
+        private final IdentityHashMap<Object, Integer> objects = new IdentityHashMap<>();
+        private final List<DiffPath> segments = new ArrayList<>();
+
+        Encoder() {
+            output.putByte(VERSION);
+        }
+
+        @Override
+        public void onDifference(DiffPath path, Field field, Object left, Object right) {
+            if (path == null)
+                throw new IllegalArgumentException("Il delta non puo' sostituire il bean confrontato!");
+            operation(SET, path);
+            value(right);
+        }
+
+        @Override
+        public void onMoved(DiffPath path, Field field, Object left, Object right) {
+            // anche con le due posizioni uguali l'elemento va tolto dalla sua posizione (vedi DiffListener#onMoved)
+            operation(MOVE, path);
+        }
+
+        @Override
+        public void onAdded(DiffPath path, Field field, Object element) {
+            operation(ADD, path);
+            value(element);
+        }
+
+        @Override
+        public void onRemoved(DiffPath path, Field field, Object element) {
+            operation(REMOVE, path);
+            // le posizioni nelle liste e le chiavi bastano ad identificare l'elemento
+            if (path == null || path.getKind() == DiffPath.Kind.FIELD || path.getKind() == DiffPath.Kind.INDEX && path.getSecondIndex() >= 0)
+                value(element);
+        }
+
+        private void operation(int operation, DiffPath path) {
+            segments.clear();
+            for (DiffPath current = path; current != null; current = current.getParent())
+                segments.add(current);
+            output.putVarint(((segments.size() << 2) | operation) + 1);
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                DiffPath segment = segments.get(i);
+                switch (segment.getKind()) {
+                    case FIELD:
+                        output.putVarint(((long) fieldOrdinal(segment.getField()) << 2) | FIELD);
+                        break;
+                    case INDEX:
+                        output.putVarint(((long) (segment.getFirstIndex() + 1) << 2) | INDEX);
+                        output.putVarint(segment.getSecondIndex() + 1);
+                        break;
+                    default:
+                        output.putVarint(KEY);
+                        value(segment.getKey());
+                }
+            }
+        }
+
+        private int fieldOrdinal(Field field) {
+            Integer ordinal = fieldOrdinals.get(field);
+            if (ordinal == null) {
+                ClassPlan.FieldPlan[] fields = ClassPlan.of(field.getDeclaringClass()).fields();
+                for (int i = 0; i < fields.length && ordinal == null; i++) {
+                    if (fields[i].field.equals(field))
+                        ordinal = fields.length - i;
+                }
+                if (ordinal == null)
+                    throw new IllegalArgumentException("Campo non previsto dal piano della classe: " + field);
+                fieldOrdinals.put(field, ordinal);
+            }
+            return ordinal;
+        }
+
+        private void value(Object value) {
+            objects.clear();
+            try {
+                write(value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void write(Object value) throws IllegalAccessException {
+            if (value == null) {
+                output.putByte(NULL);
+                return;
+            }
+            if (value instanceof Enum) {
+                output.putByte(ENUM);
+                classRef(((Enum<?>) value).getDeclaringClass());
+                output.putVarint(((Enum<?>) value).ordinal());
+                return;
+            }
+            ClassPlan.Kind kind = ClassPlan.of(value.getClass()).kind();
+            if (kind == ClassPlan.Kind.PRIMITIVE) {
+                leaf(value);
+                return;
+            }
+            Integer id = objects.get(value);
+            if (id != null) {
+                output.putByte(REF);
+                output.putVarint(id);
+                return;
+            }
+            objects.put(value, objects.size());
+            switch (kind) {
+                case COLLECTION: {
+                    Collection<?> collection = (Collection<?>) value;
+                    output.putByte(COLLECTION);
+                    classRef(value.getClass());
+                    output.putByte(value instanceof SortedSet ? SORTED_SET_SHAPE : value instanceof Set ? SET_SHAPE : LIST_SHAPE);
+                    output.putVarint(collection.size());
+                    for (Object element : collection)
+                        write(element);
+                    break;
+                }
+                case MAP: {
+                    Map<?, ?> map = (Map<?, ?>) value;
+                    output.putByte(MAP);
+                    classRef(value.getClass());
+                    output.putByte(value instanceof SortedMap ? SORTED_MAP_SHAPE : MAP_SHAPE);
+                    output.putVarint(map.size());
+                    for (Map.Entry<?, ?> entry : map.entrySet()) {
+                        write(entry.getKey());
+                        write(entry.getValue());
+                    }
+                    break;
+                }
+                case ARRAY:
+                    if (PrimitiveArrays.isPrimitiveArray(value)) {
+                        output.putByte(PRIMITIVE_ARRAY);
+                        classRef(value.getClass());
+                        int length = Array.getLength(value);
+                        output.putVarint(length);
+                        Class<?> component = value.getClass().getComponentType();
+                        for (int i = 0; i < length; i++)
+                            primitive(component, Array.get(value, i));
+                    } else {
+                        Object[] array = (Object[]) value;
+                        output.putByte(OBJECT_ARRAY);
+                        classRef(value.getClass());
+                        output.putVarint(array.length);
+                        for (Object element : array)
+                            write(element);
+                    }
+                    break;
+                default: {
+                    output.putByte(BEAN);
+                    classRef(value.getClass());
+                    // i campi primitivi sono scritti senza tag, il tipo e' nel piano della classe
+                    for (ClassPlan.FieldPlan fieldPlan : ClassPlan.of(value.getClass()).fields()) {
+                        if (fieldPlan.kind.primitiveField)
+                            primitive(fieldPlan.field.getType(), fieldPlan.accessor.get(value));
+                        else
+                            write(fieldPlan.accessor.get(value));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Scrive senza tag un valore di tipo primitivo
+         */
+        private void primitive(Class<?> type, Object value) {
+            if (type == int.class)
+                output.putZigzag((Integer) value);
+            else if (type == long.class)
+                output.putZigzag((Long) value);
+            else if (type == double.class)
+                output.putLong(Double.doubleToRawLongBits((Double) value));
+            else if (type == float.class)
+                output.putInt(Float.floatToRawIntBits((Float) value));
+            else if (type == boolean.class)
+                output.putByte((byte) ((Boolean) value ? 1 : 0));
+            else if (type == short.class)
+                output.putZigzag((Short) value);
+            else if (type == byte.class)
+                output.putByte((Byte) value);
+            else
+                output.putVarint((Character) value);
+        }
+
+        private void leaf(Object value) {
+            if (value instanceof String) {
+                output.putByte(STRING);
+                output.putString((String) value);
+            } else if (value instanceof Integer) {
+                output.putByte(INT);
+                output.putZigzag((Integer) value);
+            } else if (value instanceof Long) {
+                output.putByte(LONG);
+                output.putZigzag((Long) value);
+            } else if (value instanceof Double) {
+                output.putByte(DOUBLE);
+                output.putLong(Double.doubleToRawLongBits((Double) value));
+            } else if (value instanceof Float) {
+                output.putByte(FLOAT);
+                output.putInt(Float.floatToRawIntBits((Float) value));
+            } else if (value instanceof Boolean) {
+                output.putByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Short) {
+                output.putByte(SHORT);
+                output.putZigzag((Short) value);
+            } else if (value instanceof Byte) {
+                output.putByte(BYTE);
+                output.putByte((Byte) value);
+            } else if (value instanceof Character) {
+                output.putByte(CHAR);
+                output.putVarint((Character) value);
+            } else if (value instanceof java.sql.Timestamp) {
+                output.putByte(TIMESTAMP);
+                output.putZigzag(((java.sql.Timestamp) value).getTime());
+                output.putVarint(((java.sql.Timestamp) value).getNanos());
+            } else if (value instanceof java.sql.Date) {
+                output.putByte(SQL_DATE);
+                output.putZigzag(((java.sql.Date) value).getTime());
+            } else if (value instanceof java.util.Date) {
+                output.putByte(DATE);
+                output.putZigzag(((java.util.Date) value).getTime());
+            } else if (value instanceof BigDecimal) {
+                output.putByte(BIG_DECIMAL);
+                output.putZigzag(((BigDecimal) value).scale());
+                output.putBytes(((BigDecimal) value).unscaledValue().toByteArray());
+            } else if (value instanceof BigInteger) {
+                output.putByte(BIG_INTEGER);
+                output.putBytes(((BigInteger) value).toByteArray());
+            } else if (value instanceof UUID) {
+                output.putByte(UUID_VALUE);
+                output.putLong(((UUID) value).getMostSignificantBits());
+                output.putLong(((UUID) value).getLeastSignificantBits());
+            } else if (TimeValues.kindOf(value.getClass()) >= 0) {
+                output.putByte(TEMPORAL);
+                output.putByte((byte) TimeValues.kindOf(value.getClass()));
+                for (long component : TimeValues.components(value))
+                    output.putZigzag(component);
+                String zone = TimeValues.zone(value);
+                if (zone != null)
+                    output.putString(zone);
+            } else {
+                throw new IllegalArgumentException("Valore non codificabile: " + value.getClass().getName());
+            }
+        }
+
+        /**
+         * Scrive una classe: il nome la prima volta, poi solo il suo identificativo
+         */
+        private void classRef(Class<?> type) {
+            Integer id = classIds.get(type);
+            if (id == null) {
+                classIds.put(type, classIds.size());
+                output.putVarint(0);
+                output.putString(type.getName());
+            } else {
+                output.putVarint(id + 1);
+            }
+        }
+
+        byte[] toByteArray() {
+            output.putVarint(0);
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Applica le operazioni di un delta ad un bean. Le operazioni sulle posizioni delle liste si riferiscono
+     * alle posizioni nel primo bean, per cui vengono raccolte e applicate solo alla fine, lista per lista.
+     */
+    @SuppressWarnings("unchecked")
+    private static final class Decoder {
+        private final Input input;
+        private final Object target;
+        private final ComparisonOptions options;
+        private final List<Class<?>> classes = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private final List<Object> objects = new ArrayList<>();
+        private final IdentityHashMap<Object, ListEdit> listEdits = new IdentityHashMap<>();
+
+        Decoder(byte[] delta, Object target, ComparisonOptions options) {
+            this.input = new Input(delta, 1);
+            this.target = target;
+            this.options = options;
+        }
+
+        void run() throws IllegalAccessException {
+            for (long header = input.getVarint(); header != 0; header = input.getVarint()) {
+                int operation = (int) ((header - 1) & 3);
+                int count = (int) ((header - 1) >>> 2);
+                Location location = new Location(null, null, null);
+                for (int i = 0; i < count; i++)
+                    location = segment(location.get(), location);
+                operation(operation, location);
+            }
+            for (ListEdit edit : listEdits.values())
+                edit.apply();
+        }
+
+        /**
+         * Legge un nodo del percorso a partire dal contenitore
+         */
+        private Location segment(Object container, Location containerLocation) throws IllegalAccessException {
+            if (container == null)
+                throw new IllegalStateException("Percorso del delta non presente nel bean");
+            long segment = input.getVarint();
+            switch ((int) (segment & 3)) {
+                case FIELD: {
+                    ClassPlan.FieldPlan[] fields = ClassPlan.of(container.getClass()).fields();
+                    int index = fields.length - (int) (segment >>> 2);
+                    if (index < 0 || index >= fields.length)
+                        throw new IllegalStateException("Campo del delta non presente in " + container.getClass().getName());
+                    return new Location(container, fields[index], containerLocation);
+                }
+                case INDEX: {
+                    Location location = new Location(container, (int) (segment >>> 2) - 1, containerLocation);
+                    location.secondIndex = (int) input.getVarint() - 1;
+                    return location;
+                }
+                default:
+                    return new Location(container, new Key(read()), containerLocation);
+            }
+        }
+
+        private void operation(int operation, Location location) throws IllegalAccessException {
+            Object container = location.container;
+            if (location.segment instanceof Integer && container instanceof List) {
+                // operazioni sulle posizioni di una lista
+                int firstIndex = (Integer) location.segment;
+                switch (operation) {
+                    case SET: {
+                        Object value = read();
+                        mutate(location.parent, container, list -> ((List<Object>) list).set(firstIndex, value));
+                        break;
+                    }
+                    case MOVE:
+                        edit(location).move(firstIndex, location.secondIndex);
+                        break;
+                    case ADD:
+                        edit(location).insert(location.secondIndex, read());
+                        break;
+                    default:
+                        edit(location).remove(firstIndex);
+                }
+                return;
+            }
+            if (location.segment instanceof Key && container instanceof Map) {
+                Object key = ((Key) location.segment).value;
+                if (operation == REMOVE) {
+                    mutate(location.parent, container, map -> ((Map<Object, Object>) map).remove(key));
+                } else {
+                    Object value = read();
+                    mutate(location.parent, container, map -> ((Map<Object, Object>) map).put(key, value));
+                }
+                return;
+            }
+            if (operation == SET) {
+                location.set(read());
+                return;
+            }
+            if (operation == MOVE)
+                throw new IllegalArgumentException("Delta non valido!");
+            if (location.segment instanceof Key && operation == REMOVE) {
+                // l'elemento di una collezione abbinato per chiave e' identificato dalla chiave
+                Object element = location.get();
+                mutate(location.parent, container, c -> removeIdentical(c, element));
+                return;
+            }
+            // operazioni sugli elementi di una collezione non ordinata
+            Object value = location.get();
+            if (!(value instanceof Collection))
+                throw new IllegalStateException("Collezione del delta non presente nel bean");
+            Collection<Object> collection = (Collection<Object>) value;
+            Object element = read();
+            if (operation == ADD) {
+                mutate(location, collection, c -> ((Collection<Object>) c).add(element));
+                return;
+            }
+            Object match = find(collection, element);
+            mutate(location, collection, c -> removeIdentical(c, match));
+        }
+
+        /**
+         * Cerca nella collezione l'elemento rimosso: per equals, poi per chiave, poi per contenuto
+         */
+        private Object find(Collection<Object> collection, Object element) throws IllegalAccessException {
+            for (Object candidate : collection) {
+                if (Objects.equals(candidate, element))
+                    return candidate;
+            }
+            if (element != null) {
+                Function<Object, Object> extractor = options.keyExtractorFor(element.getClass());
+                if (extractor != null) {
+                    Object key = extractor.apply(element);
+                    Object candidate = byKey(collection, key);
+                    if (candidate != null)
+                        return candidate;
+                }
+                for (Object candidate : collection) {
+                    if (candidate != null && candidate.getClass() == element.getClass() && !BeanComparator.differs(candidate, element, options))
+                        return candidate;
+                }
+            }
+            throw new IllegalStateException("Elemento del delta non presente nella collezione del bean");
+        }
+
+        private Object byKey(Collection<?> collection, Object key) {
+            for (Object candidate : collection) {
+                Function<Object, Object> extractor = candidate == null ? null : options.keyExtractorFor(candidate.getClass());
+                if (extractor != null && Objects.equals(extractor.apply(candidate), key))
+                    return candidate;
+            }
+            return null;
+        }
+
+        private ListEdit edit(Location location) {
+            ListEdit edit = listEdits.get(location.container);
+            if (edit == null) {
+                edit = new ListEdit((List<Object>) location.container, location.parent);
+                listEdits.put(location.container, edit);
+            }
+            return edit;
+        }
+
+        /**
+         * Legge un valore
+         */
+        private Object read() {
+            objects.clear();
+            try {
+                return readValue();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            } catch (ArithmeticException | java.time.DateTimeException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Delta non valido!", e);
+            }
+        }
+
+        private Object readValue() throws ReflectiveOperationException {
+            byte tag = input.getByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case BYTE:
+                    return input.getByte();
+                case SHORT:
+                    return (short) input.getZigzag();
+                case CHAR:
+                    return (char) input.getVarint();
+                case INT:
+                    return (int) input.getZigzag();
+                case LONG:
+                    return input.getZigzag();
+                case FLOAT:
+                    return Float.intBitsToFloat(input.getInt());
+                case DOUBLE:
+                    return Double.longBitsToDouble(input.getLong());
+                case STRING:
+                    return input.getString();
+                case DATE:
+                    return new java.util.Date(input.getZigzag());
+                case SQL_DATE:
+                    return new java.sql.Date(input.getZigzag());
+                case TIMESTAMP: {
+                    java.sql.Timestamp timestamp = new java.sql.Timestamp(input.getZigzag());
+                    timestamp.setNanos((int) input.getVarint());
+                    return timestamp;
+                }
+                case BIG_DECIMAL: {
+                    int scale = (int) input.getZigzag();
+                    return new BigDecimal(new BigInteger(input.getBytes()), scale);
+                }
+                case BIG_INTEGER:
+                    return new BigInteger(input.getBytes());
+                case UUID_VALUE:
+                    return new UUID(input.getLong(), input.getLong());
+                case TEMPORAL: {
+                    int kind = input.getByte();
+                    long[] components = new long[TimeValues.componentCount(kind)];
+                    for (int i = 0; i < components.length; i++)
+                        components[i] = input.getZigzag();
+                    return TimeValues.value(kind, components, TimeValues.zoned(kind) ? input.getString() : null);
+                }
+                case ENUM: {
+                    Class<?> type = classRef();
+                    if (!type.isEnum())
+                        throw new IllegalArgumentException("Delta non valido!");
+                    return type.getEnumConstants()[(int) input.getVarint()];
+                }
+                case REF:
+                    return objects.get((int) input.getVarint());
+                case COLLECTION: {
+                    Class<?> type = containerRef(Collection.class);
+                    byte shape = input.getByte();
+                    int size = (int) input.getVarint();
+                    Collection<Object> collection = (Collection<Object>) newContainer(type, shape);
+                    objects.add(collection);
+                    for (int i = 0; i < size; i++)
+                        collection.add(readValue());
+                    return collection;
+                }
+                case MAP: {
+                    Class<?> type = containerRef(Map.class);
+                    byte shape = input.getByte();
+                    int size = (int) input.getVarint();
+                    Map<Object, Object> map = (Map<Object, Object>) newContainer(type, shape);
+                    objects.add(map);
+                    for (int i = 0; i < size; i++)
+                        map.put(readValue(), readValue());
+                    return map;
+                }
+                case PRIMITIVE_ARRAY: {
+                    Class<?> type = classRef();
+                    if (!PRIMITIVE_ARRAYS.containsValue(type))
+                        throw new IllegalArgumentException("Delta non valido!");
+                    Class<?> component = type.getComponentType();
+                    int length = (int) input.getVarint();
+                    Object array = Array.newInstance(component, length);
+                    objects.add(array);
+                    for (int i = 0; i < length; i++)
+                        Array.set(array, i, primitive(component));
+                    return array;
+                }
+                case OBJECT_ARRAY: {
+                    Class<?> type = classRef();
+                    if (!type.isArray() || type.getComponentType().isPrimitive())
+                        throw new IllegalArgumentException("Delta non valido!");
+                    Class<?> component = type.getComponentType();
+                    int length = (int) input.getVarint();
+                    Object[] array = (Object[]) Array.newInstance(component, length);
+                    objects.add(array);
+                    for (int i = 0; i < length; i++)
+                        array[i] = readValue();
+                    return array;
+                }
+                case BEAN: {
+                    Class<?> type = classRef();
+                    if (ClassPlan.of(type).kind() != ClassPlan.Kind.BEAN || type.isEnum())
+                        throw new IllegalArgumentException("Delta non valido!");
+                    Object bean = newBean(type);
+                    objects.add(bean);
+                    for (ClassPlan.FieldPlan fieldPlan : ClassPlan.of(type).fields())
+                        fieldPlan.field.set(bean, fieldPlan.kind.primitiveField ? primitive(fieldPlan.field.getType()) : readValue());
+                    return bean;
+                }
+                default:
+                    throw new IllegalArgumentException("Delta non valido!");
+            }
+        }
+
+        private Object primitive(Class<?> type) {
+            if (type == int.class)
+                return (int) input.getZigzag();
+            if (type == long.class)
+                return input.getZigzag();
+            if (type == double.class)
+                return Double.longBitsToDouble(input.getLong());
+            if (type == float.class)
+                return Float.intBitsToFloat(input.getInt());
+            if (type == boolean.class)
+                return input.getByte() != 0;
+            if (type == short.class)
+                return (short) input.getZigzag();
+            if (type == byte.class)
+                return input.getByte();
+            return (char) input.getVarint();
+        }
+
+        /**
+         * Legge una classe tra quelle ammesse per il bean a cui si applica il delta
+         * @throws IllegalArgumentException se la classe non e' ammessa
+         */
+        private Class<?> classRef() {
+            int index = readClass();
+            if (classes.get(index) == null)
+                throw new IllegalArgumentException("Classe del delta non prevista dal bean " + target.getClass().getName() + ": " + names.get(index));
+            return classes.get(index);
+        }
+
+        /**
+         * Legge la classe di una collezione o di una mappa
+         * @param expected l'interfaccia che la classe deve implementare
+         * @return la classe o null se non e' ammessa (la collezione viene ricreata in base alla sua forma)
+         */
+        private Class<?> containerRef(Class<?> expected) {
+            Class<?> type = classes.get(readClass());
+            if (type != null && !expected.isAssignableFrom(type))
+                throw new IllegalArgumentException("Delta non valido!");
+            return type;
+        }
+
+        /**
+         * Legge una classe, risolvendo il nome alla prima occorrenza solo tra le classi ammesse
+         * @return la posizione della classe tra quelle lette (con null se la classe non e' ammessa)
+         */
+        private int readClass() {
+            int id = (int) input.getVarint();
+            if (id > 0) {
+                if (id > classes.size())
+                    throw new IllegalArgumentException("Delta non valido!");
+                return id - 1;
+            }
+            String name = input.getString();
+            Class<?> type = REACHABLE.get(target.getClass()).get(name);
+            if (type == null)
+                type = PRIMITIVE_ARRAYS.get(name);
+            if (type == null)
+                type = containerOf(name);
+            classes.add(type);
+            names.add(name);
+            return classes.size() - 1;
+        }
+
+        private Object newBean(Class<?> type) throws ReflectiveOperationException {
+            Optional<Constructor<?>> constructor = CONSTRUCTORS.get(type);
+            if (constructor.isPresent())
+                return constructor.get().newInstance();
+            if (!options.bypassConstructors())
+                throw new IllegalStateException("La classe " + type.getName() + " non ha un costruttore senza argomenti");
+            return serializationConstructorOf(type).newInstance();
+        }
+
+        /**
+         * Un nodo del percorso: il contenitore (bean, array, lista, mappa o collezione) e il campo, la posizione o
+         * la chiave al suo interno, con il nodo del contenitore per poterlo sostituire
+         */
+        private final class Location {
+            final Object container;
+            final Object segment;
+            final Location parent;
+            int secondIndex;
+
+            Location(Object container, Object segment, Location parent) {
+                this.container = container;
+                this.segment = segment;
+                this.parent = parent;
+            }
+
+            Object get() throws IllegalAccessException {
+                if (parent == null)
+                    return target;
+                if (segment instanceof ClassPlan.FieldPlan)
+                    return ((ClassPlan.FieldPlan) segment).accessor.get(container);
+                if (segment instanceof Integer) {
+                    int index = (Integer) segment;
+                    return container instanceof List ? ((List<?>) container).get(index) : Array.get(container, index);
+                }
+                Object key = ((Key) segment).value;
+                if (container instanceof Map)
+                    return ((Map<?, ?>) container).get(key);
+                Object element = byKey((Collection<?>) container, key);
+                if (element == null)
+                    throw new IllegalStateException("Elemento con chiave " + key + " non presente nella collezione del bean");
+                return element;
+            }
+
+            void set(Object value) throws IllegalAccessException {
+                if (parent == null)
+                    throw new IllegalStateException("Il delta non puo' sostituire il bean a cui si applica");
+                if (segment instanceof ClassPlan.FieldPlan) {
+                    ((ClassPlan.FieldPlan) segment).field.set(container, value);
+                } else if (segment instanceof Integer) {
+                    Array.set(container, (Integer) segment, value);
+                } else {
+                    // l'elemento di una collezione abbinato per chiave viene sostituito
+                    Object element = get();
+                    mutate(parent, container, c -> {
+                        removeIdentical(c, element);
+                        ((Collection<Object>) c).add(value);
+                    });
+                }
+            }
+        }
+
+        /**
+         * Le operazioni sulle posizioni di una lista, riferite alle posizioni nel primo bean
+         */
+        private final class ListEdit {
+            private final List<Object> list;
+            private final Location location;
+            private final BitSet removed = new BitSet();
+            private final Map<Integer, Object> inserted = new HashMap<>();
+            private final Map<Integer, Integer> moved = new HashMap<>();
+
+            ListEdit(List<Object> list, Location location) {
+                this.list = list;
+                this.location = location;
+            }
+
+            void remove(int firstIndex) {
+                removed.set(firstIndex);
+            }
+
+            void insert(int secondIndex, Object element) {
+                inserted.put(secondIndex, element);
+            }
+
+            void move(int firstIndex, int secondIndex) {
+                removed.set(firstIndex);
+                moved.put(secondIndex, firstIndex);
+            }
+
+            void apply() throws IllegalAccessException {
+                int size = list.size() - removed.cardinality() + inserted.size() + moved.size();
+                List<Object> result = new ArrayList<>(size);
+                int next = 0;
+                for (int j = 0; j < size; j++) {
+                    if (inserted.containsKey(j)) {
+                        result.add(inserted.get(j));
+                    } else if (moved.containsKey(j)) {
+                        result.add(list.get(moved.get(j)));
+                    } else {
+                        next = removed.nextClearBit(next);
+                        if (next >= list.size())
+                            throw new IllegalStateException("Lista del delta non corrispondente a quella del bean");
+                        result.add(list.get(next++));
+                    }
+                }
+                mutate(location, list, l -> {
+                    ((List<Object>) l).clear();
+                    ((List<Object>) l).addAll(result);
+                });
+            }
+        }
+    }
+
+    /**
+     * Una chiave letta dal delta (per distinguerla da un campo o da una posizione)
+     */
+    private static final class Key {
+        final Object value;
+
+        Key(Object value) {
+            this.value = value;
+        }
+    }
+
+    private interface Mutation {
+        void apply(Object container);
+    }
+
+    /**
+     * Modifica una collezione o una mappa; se e' immodificabile la sostituisce con una copia modificata
+     * @param location il nodo del percorso che contiene la collezione o la mappa
+     * @param container la collezione o la mappa
+     * @param mutation la modifica
+     */
+    private static void mutate(Decoder.Location location, Object container, Mutation mutation) throws IllegalAccessException {
+        try {
+            mutation.apply(container);
+        } catch (UnsupportedOperationException e) {
+            Object copy = mutableCopy(container);
+            mutation.apply(copy);
+            location.set(copy);
+        }
+    }
+
+    private static void removeIdentical(Object collection, Object element) {
+        for (Iterator<?> iterator = ((Collection<?>) collection).iterator(); iterator.hasNext(); ) {
+            if (iterator.next() == element) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    private static Object mutableCopy(Object container) {
+        if (container instanceof SortedMap)
+            return new TreeMap<>((SortedMap<?, ?>) container);
+        if (container instanceof Map)
+            return new LinkedHashMap<>((Map<?, ?>) container);
+        if (container instanceof SortedSet)
+            return new TreeSet<>((SortedSet<?>) container);
+        if (container instanceof Set)
+            return new LinkedHashSet<>((Set<?>) container);
+        return new ArrayList<>((Collection<?>) container);
+    }
+
+    /**
+     * Crea una collezione o una mappa vuota della classe indicata, o se la classe non e' ammessa o non e'
+     * istanziabile (ad es. collezioni immodificabili) di una classe modificabile con la stessa forma
+     */
+    private static Object newContainer(Class<?> type, byte shape) {
+        if (type != null) {
+            try {
+                return type.getConstructor().newInstance();
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // classe non istanziabile, si usa la forma
+            }
+        }
+        switch (shape) {
+            case SORTED_MAP_SHAPE:
+                return new TreeMap<>();
+            case MAP_SHAPE:
+                return new LinkedHashMap<>();
+            case SORTED_SET_SHAPE:
+                return new TreeSet<>();
+            case SET_SHAPE:
+                return new LinkedHashSet<>();
+            case LIST_SHAPE:
+                return new ArrayList<>();
+            default:
+                throw new IllegalArgumentException("Delta non valido!");
+        }
+    }
+
+    /**
+     * Restituisce il costruttore usato dalla serializzazione, che crea l'oggetto senza eseguire i costruttori
+     * della classe (solo con {@link ComparisonOptions.Builder#bypassConstructors(boolean)})
+     */
+    private static Constructor<?> serializationConstructorOf(Class<?> type) {
+        try {
+            Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+            Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+            return (Constructor<?>) factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class)
+                    .invoke(factory, type, Object.class.getDeclaredConstructor());
+        } catch (ReflectiveOperationException | RuntimeException unavailable) {
+            throw new IllegalStateException("Impossibile istanziare la classe " + type.getName(), unavailable);
+        }
+    }
+
+    /**
+     * Raccoglie le classi raggiungibili dal piano di una classe: la classe stessa, i tipi dichiarati dei campi
+     * con i loro argomenti generici e i componenti degli array, ripetendo per ogni bean raggiunto
+     * @param root la classe del bean a cui si applicano i delta
+     * @return le classi per nome
+     */
+    private static Map<String, Class<?>> reachableFrom(Class<?> root) {
+        Map<String, Class<?>> reachable = new HashMap<>();
+        Deque<Type> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Type type = pending.pop();
+            if (type instanceof ParameterizedType) {
+                pending.push(((ParameterizedType) type).getRawType());
+                Collections.addAll(pending, ((ParameterizedType) type).getActualTypeArguments());
+            } else if (type instanceof GenericArrayType) {
+                pending.push(((GenericArrayType) type).getGenericComponentType());
+            } else if (type instanceof WildcardType) {
+                Collections.addAll(pending, ((WildcardType) type).getUpperBounds());
+            } else if (type instanceof TypeVariable) {
+                Collections.addAll(pending, ((TypeVariable<?>) type).getBounds());
+            } else if (type instanceof Class && reachable.putIfAbsent(((Class<?>) type).getName(), (Class<?>) type) == null) {
+                Class<?> aClass = (Class<?>) type;
+                if (aClass.isArray()) {
+                    pending.push(aClass.getComponentType());
+                } else if (ClassPlan.of(aClass).kind() == ClassPlan.Kind.BEAN) {
+                    for (ClassPlan.FieldPlan fieldPlan : ClassPlan.of(aClass).fields()) {
+                        pending.push(fieldPlan.field.getType());
+                        pending.push(fieldPlan.field.getGenericType());
+                    }
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Risolve il nome di una collezione o di una mappa di java.util (o java.util.concurrent), caricata senza
+     * inizializzarla dal class loader della piattaforma
+     * @return la classe o null se il nome non e' di una collezione o di una mappa di quei package
+     */
+    private static Class<?> containerOf(String name) {
+        String simpleName = name.startsWith("java.util.concurrent.") ? name.substring(21)
+                : name.startsWith("java.util.") ? name.substring(10) : null;
+        if (simpleName == null || simpleName.indexOf('.') >= 0)
+            return null;
+        try {
+            Class<?> type = Class.forName(name, false, null);
+            return Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type) ? type : null;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Un buffer di byte che cresce, con varint e zigzag per gli interi
+     */
+    private static final class Output {
+        private byte[] bytes = new byte[64];
+        private int size;
+
+        private void ensure(int more) {
+            if (size + more > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+        }
+
+        void putByte(byte value) {
+            ensure(1);
+            bytes[size++] = value;
+        }
+
+        void putVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void putZigzag(long value) {
+            putVarint((value << 1) ^ (value >> 63));
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8)
+                bytes[size++] = (byte) (value >> shift);
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >> 32));
+            putInt((int) value);
+        }
+
+        void putBytes(byte[] value) {
+            putVarint(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        void putString(String value) {
+            putBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * La lettura di un delta
+     */
+    private static final class Input {
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        byte getByte() {
+            if (position >= bytes.length)
+                throw new IllegalArgumentException("Delta non valido!");
+            return bytes[position++];
+        }
+
+        long getVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = getByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("Delta non valido!");
+        }
+
+        long getZigzag() {
+            long value = getVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int getInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++)
+                value = (value << 8) | (getByte() & 0xFF);
+            return value;
+        }
+
+        long getLong() {
+            return ((long) getInt() << 32) | (getInt() & 0xFFFFFFFFL);
+        }
+
+        byte[] getBytes() {
+            int length = (int) getVarint();
+            if (length < 0 || position + length > bytes.length)
+                throw new IllegalArgumentException("Delta non valido!");
+            byte[] value = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return value;
+        }
+
+        String getString() {
+            return new String(getBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
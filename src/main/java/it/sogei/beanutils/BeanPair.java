@@ -0,0 +1,39 @@
+package it.sogei.beanutils;
+
+/**
+ * Coppia di bean della stessa classe da confrontare (ad es. la versione precedente e quella attuale di un record).
+ *
+ * @param <T> la tipologia dei bean
+ */
+public final class BeanPair<T> {
+    private final T first;
+    private final T second;
+
+    private BeanPair(T first, T second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * @param first l'oggetto sorgente
+     * @param second l'oggetto che si vuole comparare
+     * @param <T> la tipologia dei bean
+     * @return la coppia
+     */
+    public static <T> BeanPair<T> of(T first, T second) {
+        return new BeanPair<>(first, second);
+    }
+
+    public T getFirst() {
+        return first;
+    }
+
+    public T getSecond() {
+        return second;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + first + ", " + second + ")";
+    }
+}
@@ -0,0 +1,589 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * La fotografia dello stato confrontabile di un bean, da confrontare in seguito con l'oggetto "vivo" (ad es.
+ * l'entita' caricata, poi modificata dall'utente) senza doverne fare una copia profonda.
+ *
+ * La fotografia viene presa una sola volta percorrendo i piani delle classi ({@link ClassPlan}) con le stesse
+ * regole della comparazione: ogni bean diventa un {@link Node} con i campi primitivi in un array di long e gli
+ * altri valori in una tabella di oggetti, i campi esclusi non vengono letti. Stringhe, wrapper ed enum sono
+ * immutabili e restano condivisi con l'oggetto originale, le date vengono copiate; collezioni, mappe e array
+ * sono copiati con gli elementi fotografati. Gli elementi di collezioni (e i valori delle mappe, se non
+ * confrontati in profondita') confrontati tramite equals che non sono tipi semplici sono invece conservati per
+ * riferimento, come fa la comparazione.
+ * <pre>
+ *     BeanSnapshot snapshot = BeanSnapshot.of(entity, options);
+ *     // ... l'utente modifica l'entita' ...
+ *     DiffResult changes = snapshot.diff(entity);
+ * </pre>
+ *
+ * La fotografia e' immutabile e vale solo per le opzioni con cui e' stata presa; nelle differenze riportate
+ * i bean fotografati compaiono come {@link Node}.
+ */
+public final class BeanSnapshot {
+    /**
+     * La funzione che restituisce la chiave calcolata quando l'elemento e' stato fotografato
+     */
+    private static final Function<Object, Object> KEY = new Function<Object, Object>() {
+        @Override
+        public Object apply(Object node) {
+            return ((Node) node).key;
+        }
+    };
+
+    private final ComparisonOptions options;
+    private final Node root;
+
+    private BeanSnapshot(ComparisonOptions options, Node root) {
+        this.options = options;
+        this.root = root;
+    }
+
+    /**
+     * Fotografa un bean con le opzioni di default
+     * @param bean il bean
+     * @return la fotografia
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public static BeanSnapshot of(Object bean) throws IllegalArgumentException, IllegalAccessException {
+        return of(bean, ComparisonOptions.defaults());
+    }
+
+    /**
+     * Fotografa un bean
+     * @param bean il bean
+     * @param options le opzioni di comparazione con cui la fotografia verra' confrontata
+     * @return la fotografia
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public static BeanSnapshot of(Object bean, ComparisonOptions options) throws IllegalArgumentException, IllegalAccessException {
+        if (bean == null || options == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        if (ClassPlan.of(bean.getClass()).kind() != ClassPlan.Kind.BEAN)
+            throw new IllegalArgumentException("L'argomento non e' un bean!");
+        PathRules.State state = options.rules().trivial() ? null : options.rules().root();
+        return new BeanSnapshot(options, new Capturer(options).captureBean(bean, state));
+    }
+
+    /**
+     * @return la classe del bean fotografato
+     */
+    public Class<?> getType() {
+        return root.type;
+    }
+
+    /**
+     * @return il nodo del bean fotografato
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Restituisce la lista dei campi per cui l'oggetto differisce dalla fotografia
+     * @param bean l'oggetto da confrontare con la fotografia
+     * @return la collezione dei campi "diversi"
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public Map<Field, List<Map.Entry<Object, Object>>> compare(Object bean) throws IllegalArgumentException, IllegalAccessException {
+        DifferenceCollector collector = new DifferenceCollector();
+        compare(bean, collector);
+        return collector.differentFields();
+    }
+
+    /**
+     * Confronta l'oggetto con la fotografia e restituisce le differenze in un {@link DiffResult}
+     * @param bean l'oggetto da confrontare con la fotografia
+     * @return il risultato della comparazione
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public DiffResult diff(Object bean) throws IllegalArgumentException, IllegalAccessException {
+        DiffResult.Recorder recorder = new DiffResult.Recorder();
+        compare(bean, recorder);
+        return recorder.build();
+    }
+
+    /**
+     * Confronta l'oggetto con la fotografia consegnando le differenze al listener man mano che vengono trovate
+     * @param bean l'oggetto da confrontare con la fotografia
+     * @param listener il listener delle differenze
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public void compare(Object bean, DiffListener listener) throws IllegalArgumentException, IllegalAccessException {
+        checkArgument(bean);
+        if (listener == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        BeanComparator.compareSnapshot(root, bean, ComparisonContext.forSnapshot(options, listener, options.maxDifferences()));
+    }
+
+    /**
+     * Verifica se l'oggetto differisce dalla fotografia in almeno un campo, fermandosi alla prima differenza
+     * (come {@link BeanComparator#differs(Object, Object, ComparisonOptions)} anche per le comparazioni troncate
+     * dal budget)
+     * @param bean l'oggetto da confrontare con la fotografia
+     * @return true se l'oggetto e' stato modificato o se la comparazione e' stata troncata
+     * @throws IllegalArgumentException in caso di errore
+     * @throws IllegalAccessException in caso di errore
+     */
+    public boolean differs(Object bean) throws IllegalArgumentException, IllegalAccessException {
+        checkArgument(bean);
+        ComparisonContext context = ComparisonContext.forSnapshot(options, null, 1);
+        BeanComparator.compareSnapshot(root, bean, context);
+        return context.limitReached() || context.truncated();
+    }
+
+    private void checkArgument(Object bean) throws IllegalArgumentException {
+        if (bean == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        if (bean.getClass() != root.type)
+            throw new IllegalArgumentException("Gli oggetti devono appartenere alla stessa classe!");
+    }
+
+    /**
+     * Restituisce la classe di un valore, che per i bean e i contenitori fotografati e' quella dell'originale
+     * @param value il valore (non nullo)
+     * @return la classe
+     */
+    static Class<?> typeOf(Object value) {
+        if (value instanceof Node)
+            return ((Node) value).type;
+        if (value instanceof Captured)
+            return ((Captured) value).type();
+        return value.getClass();
+    }
+
+    /**
+     * Un bean fotografato: i valori dei campi sono nelle posizioni dei campi del piano (o della selezione delle
+     * regole sui percorsi) usato per la fotografia
+     */
+    public static final class Node {
+        private final Class<?> type;
+        final ClassPlan.FieldPlan[] fields;
+        /**
+         * Per ogni campo la posizione in primitives (campi primitivi) o in values (gli altri), -1 se escluso
+         */
+        private final int[] slots;
+        private final long[] primitives;
+        private final Object[] values;
+        /**
+         * La chiave dell'elemento (se e' registrato un estrattore di chiave per la sua classe)
+         */
+        private Object key;
+        private boolean keyed;
+
+        private Node(Class<?> type, ClassPlan.FieldPlan[] fields, int[] slots, int primitiveCount, int valueCount) {
+            this.type = type;
+            this.fields = fields;
+            this.slots = slots;
+            this.primitives = new long[primitiveCount];
+            this.values = new Object[valueCount];
+        }
+
+        /**
+         * @return la classe del bean fotografato
+         */
+        public Class<?> getType() {
+            return type;
+        }
+
+        /**
+         * Restituisce il valore fotografato di un campo
+         * @param fieldName il nome del campo
+         * @return il valore (con boxing per i campi primitivi)
+         * @throws IllegalArgumentException se il campo non e' stato fotografato
+         */
+        public Object getValue(String fieldName) throws IllegalArgumentException {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].name.equals(fieldName) && slots[i] >= 0)
+                    return fields[i].kind.primitiveField ? box(fields[i].kind, primitives[slots[i]]) : values[slots[i]];
+            }
+            throw new IllegalArgumentException("Campo non presente nella fotografia: " + fieldName);
+        }
+
+        /**
+         * @param index la posizione del campo primitivo
+         * @return i bit del valore fotografato
+         */
+        long bits(int index) {
+            return primitives[slots[index]];
+        }
+
+        /**
+         * @param index la posizione del campo
+         * @return il valore fotografato
+         */
+        Object value(int index) {
+            return values[slots[index]];
+        }
+
+        /**
+         * @return l'estrattore della chiave calcolata alla fotografia, null se la classe non ha estrattore di chiave
+         */
+        Function<Object, Object> keyExtractor() {
+            return keyed ? KEY : null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(type.getSimpleName()).append('{');
+            boolean first = true;
+            for (int i = 0; i < fields.length; i++) {
+                if (slots[i] < 0)
+                    continue;
+                if (!first)
+                    builder.append(", ");
+                first = false;
+                Object value = fields[i].kind.primitiveField ? box(fields[i].kind, primitives[slots[i]]) : values[slots[i]];
+                // i bean annidati sono riportati solo per classe, per non seguire i cicli
+                builder.append(fields[i].name).append('=').append(value instanceof Node ? ((Node) value).type.getSimpleName() + "{...}" : value);
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    /**
+     * Decodifica i bit di un campo primitivo fotografato
+     */
+    private static Object box(ClassPlan.Kind kind, long bits) {
+        switch (kind) {
+            case INT:
+                return (int) bits;
+            case LONG:
+                return bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case BOOLEAN:
+                return bits != 0;
+            case SHORT:
+                return (short) bits;
+            case BYTE:
+                return (byte) bits;
+            default:
+                return (char) bits;
+        }
+    }
+
+    /**
+     * Un contenitore fotografato, che ricorda la classe del contenitore originale
+     */
+    private interface Captured {
+        Class<?> type();
+    }
+
+    private static final class CapturedList extends ArrayList<Object> implements Captured {
+        private static final long serialVersionUID = 1L;
+        private final Class<?> type;
+
+        CapturedList(Class<?> type, int size) {
+            super(size);
+            this.type = type;
+        }
+
+        @Override
+        public Class<?> type() {
+            return type;
+        }
+    }
+
+    private static final class CapturedSet extends LinkedHashSet<Object> implements Captured {
+        private static final long serialVersionUID = 1L;
+        private final Class<?> type;
+
+        CapturedSet(Class<?> type, int size) {
+            super(Math.max(16, (int) (size / .75f) + 1));
+            this.type = type;
+        }
+
+        @Override
+        public Class<?> type() {
+            return type;
+        }
+    }
+
+    private static final class CapturedSortedSet extends TreeSet<Object> implements Captured {
+        private static final long serialVersionUID = 1L;
+        private final Class<?> type;
+
+        CapturedSortedSet(Class<?> type, Comparator<Object> comparator) {
+            super(comparator);
+            this.type = type;
+        }
+
+        @Override
+        public Class<?> type() {
+            return type;
+        }
+    }
+
+    /**
+     * Una collezione che non e' ne' una lista ne' un set (ad es. una coda)
+     */
+    private static final class CapturedCollection extends AbstractCollection<Object> implements Captured {
+        private final Class<?> type;
+        private final List<Object> elements;
+
+        CapturedCollection(Class<?> type, List<Object> elements) {
+            this.type = type;
+            this.elements = elements;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return Collections.unmodifiableList(elements).iterator();
+        }
+
+        @Override
+        public int size() {
+            return elements.size();
+        }
+
+        @Override
+        public Class<?> type() {
+            return type;
+        }
+    }
+
+    private static final class CapturedMap extends LinkedHashMap<Object, Object> implements Captured {
+        private static final long serialVersionUID = 1L;
+        private final Class<?> type;
+
+        CapturedMap(Class<?> type, int size) {
+            super(Math.max(16, (int) (size / .75f) + 1));
+            this.type = type;
+        }
+
+        @Override
+        public Class<?> type() {
+            return type;
+        }
+    }
+
+    private static final class CapturedSortedMap extends TreeMap<Object, Object> implements Captured {
+        private static final long serialVersionUID = 1L;
+        private final Class<?> type;
+
+        CapturedSortedMap(Class<?> type, Comparator<Object> comparator) {
+            super(comparator);
+            this.type = type;
+        }
+
+        @Override
+        public Class<?> type() {
+            return type;
+        }
+    }
+
+    /**
+     * La presa della fotografia: gli oggetti raggiunti piu' volte (sottografi condivisi e cicli) con lo stesso
+     * stato delle regole sui percorsi vengono fotografati una sola volta
+     */
+    private static final class Capturer {
+        private final ComparisonOptions options;
+        private final Map<PathRules.State, IdentityHashMap<Object, Object>> captured = new HashMap<>();
+        /**
+         * Le posizioni dei campi nelle tabelle dei nodi, per ogni elenco di campi
+         */
+        private final IdentityHashMap<ClassPlan.FieldPlan[], int[]> layouts = new IdentityHashMap<>();
+
+        Capturer(ComparisonOptions options) {
+            this.options = options;
+        }
+
+        Object capture(Object value, PathRules.State state) throws IllegalAccessException {
+            if (value == null || value instanceof Enum)
+                return value;
+            // i valori con un confronto registrato nelle opzioni sono conservati per riferimento
+            if (options.hasValueComparators() && options.valueComparatorFor(value.getClass()) != null)
+                return value;
+            ClassPlan.Kind kind = ClassPlan.of(value.getClass()).kind();
+            if (kind == ClassPlan.Kind.PRIMITIVE)
+                return value instanceof java.util.Date ? ((java.util.Date) value).clone() : value;
+            // i valori non caricati sono conservati per riferimento, senza forzarne il caricamento; dei proxy
+            // inizializzati si fotografa l'oggetto reale
+            if (!options.loadStrategy().isLoaded(value))
+                return value;
+            value = options.loadStrategy().unwrap(value);
+            kind = ClassPlan.of(value.getClass()).kind();
+            Object copy = memo(state).get(value);
+            if (copy != null)
+                return copy;
+            switch (kind) {
+                case COLLECTION:
+                    return captureCollection((Collection<?>) value, state);
+                case MAP:
+                    return captureMap((Map<?, ?>) value, state);
+                case ARRAY:
+                    return captureArray(value, state);
+                default:
+                    return captureBean(value, state);
+            }
+        }
+
+        /**
+         * Fotografa un elemento confrontato tramite equals: i tipi semplici vengono fotografati, gli altri
+         * oggetti conservati per riferimento
+         */
+        private Object captureByEquals(Object value, PathRules.State state) throws IllegalAccessException {
+            if (value == null || value instanceof Enum || ClassPlan.of(value.getClass()).kind() == ClassPlan.Kind.PRIMITIVE)
+                return capture(value, state);
+            return value;
+        }
+
+        private IdentityHashMap<Object, Object> memo(PathRules.State state) {
+            IdentityHashMap<Object, Object> memo = captured.get(state);
+            if (memo == null) {
+                memo = new IdentityHashMap<>();
+                captured.put(state, memo);
+            }
+            return memo;
+        }
+
+        Node captureBean(Object bean, PathRules.State state) throws IllegalAccessException {
+            Class<?> type = bean.getClass();
+            ClassPlan.FieldPlan[] fields;
+            PathRules.State[] states;
+            if (state == null) {
+                fields = ClassPlan.of(type).fields();
+                states = null;
+            } else {
+                PathRules.Selection selection = state.select(type);
+                fields = selection.fields;
+                states = selection.states;
+            }
+            int[] slots = layout(fields);
+            Node node = new Node(type, fields, slots, slots[fields.length], slots[fields.length + 1]);
+            Function<Object, Object> extractor = options.keyExtractorFor(type);
+            if (extractor != null) {
+                node.key = extractor.apply(bean);
+                node.keyed = true;
+            }
+            // il nodo e' registrato prima di fotografare i campi, cosi' i cicli tornano su se' stessi
+            memo(state).put(bean, node);
+            for (int i = 0; i < fields.length; i++) {
+                ClassPlan.FieldPlan fieldPlan = fields[i];
+                if (slots[i] < 0)
+                    continue;
+                if (fieldPlan.kind.primitiveField)
+                    node.primitives[slots[i]] = bits(fieldPlan, bean);
+                else
+                    node.values[slots[i]] = capture(fieldPlan.accessor.get(bean), states == null ? null : states[i]);
+            }
+            return node;
+        }
+
+        /**
+         * Calcola le posizioni dei campi: in coda all'array il numero di campi primitivi e quello degli altri campi
+         */
+        private int[] layout(ClassPlan.FieldPlan[] fields) {
+            int[] slots = layouts.get(fields);
+            if (slots == null) {
+                slots = new int[fields.length + 2];
+                int primitiveCount = 0;
+                int valueCount = 0;
+                for (int i = 0; i < fields.length; i++) {
+                    // con le sole esclusioni per nome i campi esclusi restano nel piano, ma non vengono fotografati
+                    if (options.rules().trivial() && options.rules().isExcluded(fields[i].name))
+                        slots[i] = -1;
+                    else
+                        slots[i] = fields[i].kind.primitiveField ? primitiveCount++ : valueCount++;
+                }
+                slots[fields.length] = primitiveCount;
+                slots[fields.length + 1] = valueCount;
+                layouts.put(fields, slots);
+            }
+            return slots;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object captureCollection(Collection<?> collection, PathRules.State state) throws IllegalAccessException {
+            List<Object> elements = new ArrayList<>(collection.size());
+            boolean nodes = false;
+            for (Object element : collection) {
+                Object copy = element == null || options.keyExtractorFor(element.getClass()) == null
+                        ? captureByEquals(element, state) : capture(element, state);
+                nodes |= copy instanceof Node;
+                elements.add(copy);
+            }
+            Collection<Object> copy;
+            if (collection instanceof List) {
+                copy = new CapturedList(collection.getClass(), elements.size());
+                copy.addAll(elements);
+            } else if (collection instanceof SortedSet && !nodes) {
+                // gli elementi abbinati per chiave non sono confrontabili con il comparatore del set
+                copy = new CapturedSortedSet(collection.getClass(), (Comparator<Object>) ((SortedSet<?>) collection).comparator());
+                copy.addAll(elements);
+            } else if (collection instanceof Set) {
+                copy = new CapturedSet(collection.getClass(), elements.size());
+                copy.addAll(elements);
+            } else {
+                copy = new CapturedCollection(collection.getClass(), elements);
+            }
+            memo(state).put(collection, copy);
+            return copy;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object captureMap(Map<?, ?> map, PathRules.State state) throws IllegalAccessException {
+            Map<Object, Object> copy = map instanceof SortedMap
+                    ? new CapturedSortedMap(map.getClass(), (Comparator<Object>) ((SortedMap<?, ?>) map).comparator())
+                    : new CapturedMap(map.getClass(), map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Object value = entry.getValue();
+                copy.put(entry.getKey(), options.deepMapValues() ? capture(value, state) : captureByEquals(value, state));
+            }
+            memo(state).put(map, copy);
+            return copy;
+        }
+
+        private Object captureArray(Object array, PathRules.State state) throws IllegalAccessException {
+            Object copy;
+            if (PrimitiveArrays.isPrimitiveArray(array)) {
+                copy = PrimitiveArrays.copy(array);
+            } else {
+                Object[] elements = (Object[]) array;
+                Object[] captured = new Object[elements.length];
+                for (int i = 0; i < elements.length; i++)
+                    captured[i] = capture(elements[i], state);
+                copy = captured;
+            }
+            memo(state).put(array, copy);
+            return copy;
+        }
+
+        /**
+         * Legge senza boxing i bit di un campo primitivo
+         */
+        private static long bits(ClassPlan.FieldPlan fieldPlan, Object bean) throws IllegalAccessException {
+            FieldAccessor accessor = fieldPlan.accessor;
+            switch (fieldPlan.kind) {
+                case INT:
+                    return accessor.getInt(bean);
+                case LONG:
+                    return accessor.getLong(bean);
+                case DOUBLE:
+                    return Double.doubleToRawLongBits(accessor.getDouble(bean));
+                case FLOAT:
+                    return Float.floatToRawIntBits(accessor.getFloat(bean));
+                case BOOLEAN:
+                    return accessor.getBoolean(bean) ? 1 : 0;
+                case SHORT:
+                    return accessor.getShort(bean);
+                case BYTE:
+                    return accessor.getByte(bean);
+                default:
+                    return accessor.getChar(bean);
+            }
+        }
+    }
+}
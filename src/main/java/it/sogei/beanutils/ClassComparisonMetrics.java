@@ -0,0 +1,114 @@
+package it.sogei.beanutils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * I contatori delle comparazioni per classe di bean: numero di comparazioni, campi visitati, differenze
+ * trovate, tempo complessivo e profondita' massima raggiunta.
+ *
+ * <pre>
+ *     ClassComparisonMetrics metrics = new ClassComparisonMetrics();
+ *     ComparisonOptions options = ComparisonOptions.builder().metrics(metrics).build();
+ *     ...
+ *     ClassComparisonMetrics.Counters counters = metrics.get(Order.class);
+ * </pre>
+ *
+ * I contatori sono aggiornati senza lock da piu' thread e la lettura non blocca le comparazioni in corso.
+ */
+public final class ClassComparisonMetrics implements ComparisonMetrics {
+    private final ConcurrentHashMap<Class<?>, Counters> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public void record(Class<?> type, long nanos, int fieldsVisited, int maxDepth, int differences) {
+        Counters classCounters = counters.get(type);
+        if (classCounters == null)
+            classCounters = counters.computeIfAbsent(type, key -> new Counters());
+        classCounters.compareCalls.increment();
+        classCounters.nanos.add(nanos);
+        classCounters.fieldsVisited.add(fieldsVisited);
+        classCounters.differences.add(differences);
+        classCounters.maxDepth.accumulate(maxDepth);
+    }
+
+    /**
+     * @param type la classe dei bean
+     * @return i contatori della classe, null se non ci sono state comparazioni di quella classe
+     */
+    public Counters get(Class<?> type) {
+        return counters.get(type);
+    }
+
+    /**
+     * @return i contatori di tutte le classi confrontate
+     */
+    public Map<Class<?>, Counters> getAll() {
+        return Collections.unmodifiableMap(new HashMap<>(counters));
+    }
+
+    /**
+     * Azzera tutti i contatori
+     */
+    public void reset() {
+        counters.clear();
+    }
+
+    /**
+     * I contatori di una classe
+     */
+    public static final class Counters {
+        private final LongAdder compareCalls = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder fieldsVisited = new LongAdder();
+        private final LongAdder differences = new LongAdder();
+        private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+        private Counters() {
+        }
+
+        /**
+         * @return il numero di comparazioni
+         */
+        public long getCompareCalls() {
+            return compareCalls.sum();
+        }
+
+        /**
+         * @return il tempo complessivo delle comparazioni in nanosecondi
+         */
+        public long getNanos() {
+            return nanos.sum();
+        }
+
+        /**
+         * @return il numero complessivo di campi visitati
+         */
+        public long getFieldsVisited() {
+            return fieldsVisited.sum();
+        }
+
+        /**
+         * @return il numero complessivo di differenze trovate
+         */
+        public long getDifferences() {
+            return differences.sum();
+        }
+
+        /**
+         * @return la profondita' massima raggiunta
+         */
+        public long getMaxDepth() {
+            return maxDepth.get();
+        }
+
+        @Override
+        public String toString() {
+            return "compareCalls=" + getCompareCalls() + ", nanos=" + getNanos() + ", fieldsVisited=" + getFieldsVisited()
+                    + ", differences=" + getDifferences() + ", maxDepth=" + getMaxDepth();
+        }
+    }
+}
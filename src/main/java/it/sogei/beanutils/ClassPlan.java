@@ -0,0 +1,275 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Piano di comparazione di una classe: contiene i campi da confrontare gia' filtrati, resi accessibili
+ * e ordinati, insieme alla tipologia di confronto da applicare a ciascuno di essi.
+ *
+ * Il piano viene calcolato una sola volta per classe e memorizzato tramite {@link ClassValue}, per cui
+ * dalla seconda comparazione in poi il comparatore percorre solo un array precalcolato.
+ */
+final class ClassPlan {
+    /**
+     * La cache dei piani per classe
+     */
+    private static final ClassValue<ClassPlan> PLANS = new ClassValue<ClassPlan>() {
+        @Override
+        protected ClassPlan computeValue(Class<?> type) {
+            return new ClassPlan(type);
+        }
+    };
+
+    /**
+     * La tipologia di confronto da applicare ad un valore
+     */
+    enum Kind {
+        /** valori semplici (wrapper, stringhe, date, enum, numeri, java.time, etc.): confronto diretto */
+        PRIMITIVE,
+        /** liste, set e collezioni in genere */
+        COLLECTION,
+        /** mappe */
+        MAP,
+        /** array di oggetti o di primitive */
+        ARRAY,
+        /** oggetto generico da attraversare campo per campo */
+        BEAN,
+        /** tipo dichiarato non sufficiente, la tipologia si ricava dal valore a runtime */
+        DYNAMIC,
+        /* campi di tipo primitivo, letti e confrontati senza boxing */
+        BOOLEAN(true), BYTE(true), CHAR(true), SHORT(true), INT(true), LONG(true), FLOAT(true), DOUBLE(true);
+
+        /**
+         * true per i campi dichiarati con un tipo primitivo
+         */
+        final boolean primitiveField;
+
+        Kind() {
+            this(false);
+        }
+
+        Kind(boolean primitiveField) {
+            this.primitiveField = primitiveField;
+        }
+    }
+
+    /**
+     * Un campo del piano con la sua tipologia di confronto e il suo accessor
+     */
+    static final class FieldPlan {
+        final Field field;
+        final String name;
+        final Kind kind;
+        final FieldAccessor accessor;
+
+        private FieldPlan(Field field, Kind kind) {
+            this.field = field;
+            this.name = field.getName();
+            this.kind = kind;
+            this.accessor = FieldAccessor.of(field);
+        }
+    }
+
+    private static final FieldPlan[] NO_FIELDS = new FieldPlan[0];
+
+    /**
+     * Segnaposto per i valori calcolati alla prima richiesta che sono risultati assenti
+     */
+    private static final Object ABSENT = new Object();
+
+    private final Class<?> type;
+    private final Kind kind;
+    private volatile FieldPlan[] fields;
+    private volatile Object keyExtractor;
+    private volatile Object generated;
+
+    private ClassPlan(Class<?> type) {
+        this.type = type;
+        this.kind = kindOf(type);
+    }
+
+    /**
+     * Restituisce il piano (memorizzato in cache) della classe passata
+     * @param aClass la classe
+     * @return il piano di comparazione
+     */
+    static ClassPlan of(Class<?> aClass) {
+        return PLANS.get(aClass);
+    }
+
+    /**
+     * @return la tipologia di confronto dei valori di questa classe
+     */
+    Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Restituisce i campi da confrontare. L'elenco viene calcolato alla prima richiesta, cosi' da non
+     * ispezionare mai via reflection collezioni, mappe e wrapper che vengono confrontati senza attraversarli.
+     * @return i campi della gerarchia di classi, esclusi statici e riferimenti sintetici alla classe esterna
+     */
+    FieldPlan[] fields() {
+        FieldPlan[] result = fields;
+        if (result == null) {
+            result = kind == Kind.BEAN ? buildFields(type) : NO_FIELDS;
+            fields = result;
+        }
+        return result;
+    }
+
+    /**
+     * Restituisce l'estrattore di chiave dichiarato con {@link DiffKey}, letto dal comparatore generato se
+     * presente, altrimenti dal campo annotato
+     * @return l'estrattore o null se la classe non ha un campo chiave
+     */
+    @SuppressWarnings("unchecked")
+    Function<Object, Object> keyExtractor() {
+        Object result = keyExtractor;
+        if (result == null) {
+            result = buildKeyExtractor();
+            keyExtractor = result == null ? ABSENT : result;
+        }
+        return result == ABSENT ? null : (Function<Object, Object>) result;
+    }
+
+    private Function<Object, Object> buildKeyExtractor() {
+        // con il comparatore generato i campi non vengono ispezionati via reflection
+        final GeneratedComparator<Object> comparator = generated();
+        if (comparator != null)
+            return comparator.hasKey() ? comparator::key : null;
+        for (FieldPlan fieldPlan : fields()) {
+            if (!fieldPlan.field.isAnnotationPresent(DiffKey.class))
+                continue;
+            final FieldAccessor accessor = fieldPlan.accessor;
+            return bean -> {
+                try {
+                    return accessor.get(bean);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     * Restituisce il comparatore generato per la classe dall'annotation processor (vedi {@link Diffable}),
+     * cercato una sola volta tra i servizi registrati nel class loader della classe
+     * @return il comparatore o null se la classe non e' annotata o il comparatore non e' stato generato
+     */
+    @SuppressWarnings("unchecked")
+    GeneratedComparator<Object> generated() {
+        Object result = generated;
+        if (result == null) {
+            result = kind == Kind.BEAN && type.isAnnotationPresent(Diffable.class) ? loadGenerated(type) : null;
+            generated = result == null ? ABSENT : result;
+        }
+        return result == ABSENT ? null : (GeneratedComparator<Object>) result;
+    }
+
+    private static GeneratedComparator<?> loadGenerated(Class<?> aClass) {
+        Iterator<?> comparators = ServiceLoader.load(GeneratedComparator.class, aClass.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!comparators.hasNext())
+                    return null;
+                GeneratedComparator<?> comparator = (GeneratedComparator<?>) comparators.next();
+                if (comparator.type() == aClass)
+                    return comparator;
+            } catch (ServiceConfigurationError e) {
+                // registrazioni rimaste da classi rimosse: la classe viene confrontata via reflection
+            }
+        }
+    }
+
+    /**
+     * Ricerca tutte le proprietà (private e pubbliche) della gerarchia di classi, ne prepara gli accessor
+     * e le ordina per nome all'interno di ciascun livello della gerarchia (prima la sottoclasse)
+     * @param aClass la classe di cui si vuole conoscere la totalità dei campi disponibili
+     * @return i campi da confrontare
+     */
+    private static FieldPlan[] buildFields(Class<?> aClass) {
+        List<FieldPlan> plans = new ArrayList<>();
+        do {
+            Field[] declared = aClass.getDeclaredFields();
+            Arrays.sort(declared, new Comparator<Field>() {
+                @Override
+                public int compare(Field f1, Field f2) {
+                    return f1.getName().compareTo(f2.getName());
+                }
+            });
+            for (Field field : declared) {
+                // escludiamo i campi statici e i riferimenti a this e superclassi
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic() || field.getName().startsWith("this$"))
+                    continue;
+                if (field.isAnnotationPresent(DiffIgnore.class))
+                    continue;
+                plans.add(new FieldPlan(field, declaredKindOf(field.getType())));
+            }
+            aClass = aClass.getSuperclass();
+        } while (aClass != null);
+        return plans.toArray(new FieldPlan[plans.size()]);
+    }
+
+    /**
+     * Ricava la tipologia di confronto di un valore a partire dalla sua classe a runtime
+     * @param aClass la classe del valore
+     * @return la tipologia
+     */
+    private static Kind kindOf(Class<?> aClass) {
+        // i valori semplici (wrapper, stringhe, date, enum, java.time, etc.) hanno un confronto predefinito
+        if (ValueComparators.of(aClass) != null)
+            return Kind.PRIMITIVE;
+        if (aClass.isArray())
+            return Kind.ARRAY;
+        if (Collection.class.isAssignableFrom(aClass))
+            return Kind.COLLECTION;
+        if (Map.class.isAssignableFrom(aClass))
+            return Kind.MAP;
+        return Kind.BEAN;
+    }
+
+    /**
+     * Ricava la tipologia di confronto dal tipo dichiarato del campo, quando questo e' sufficiente a
+     * determinarla; altrimenti la tipologia verra' ricavata dal valore a runtime
+     * @param declaredType il tipo dichiarato del campo
+     * @return la tipologia
+     */
+    private static Kind declaredKindOf(Class<?> declaredType) {
+        if (declaredType.isPrimitive())
+            return primitiveKindOf(declaredType);
+        if (declaredType.isArray() || Collection.class.isAssignableFrom(declaredType) || Map.class.isAssignableFrom(declaredType))
+            return kindOf(declaredType);
+        // i wrapper sono classi final, per gli altri tipi una sottoclasse potrebbe cambiare la tipologia
+        if (ValueComparators.of(declaredType) != null && Modifier.isFinal(declaredType.getModifiers()))
+            return Kind.PRIMITIVE;
+        return Kind.DYNAMIC;
+    }
+
+    /**
+     * Ricava la tipologia di confronto di un campo di tipo primitivo
+     * @param primitiveType il tipo primitivo
+     * @return la tipologia
+     */
+    private static Kind primitiveKindOf(Class<?> primitiveType) {
+        if (primitiveType == int.class)
+            return Kind.INT;
+        if (primitiveType == long.class)
+            return Kind.LONG;
+        if (primitiveType == double.class)
+            return Kind.DOUBLE;
+        if (primitiveType == float.class)
+            return Kind.FLOAT;
+        if (primitiveType == boolean.class)
+            return Kind.BOOLEAN;
+        if (primitiveType == short.class)
+            return Kind.SHORT;
+        if (primitiveType == byte.class)
+            return Kind.BYTE;
+        return Kind.CHAR;
+    }
+}
@@ -0,0 +1,713 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Lo stato di una singola comparazione: le opzioni, il listener a cui consegnare le differenze, il percorso
+ * dell'oggetto che si sta confrontando e le coppie di oggetti gia' visitate.
+ *
+ * Il percorso e' tenuto come uno stack di segmenti (campi, posizioni e chiavi) e viene trasformato in un
+ * {@link DiffPath} solo quando c'e' una differenza da riportare.
+ *
+ * Le coppie visitate sono registrate per identita', cosi' da non entrare due volte nella stessa coppia di
+ * oggetti: i grafi ciclici (ad es. relazioni padre/figlio bidirezionali) non vanno in stack overflow e i
+ * sottografi condivisi vengono confrontati una sola volta. Con le regole sui percorsi i campi confrontati
+ * dipendono dal percorso, per cui le coppie sono registrate separatamente per ogni stato delle regole: un
+ * sottografo condiviso raggiunto con regole diverse viene confrontato di nuovo.
+ *
+ * Raggiunto il numero massimo di differenze previsto dalle opzioni la comparazione viene interrotta:
+ * il comparatore verifica {@link #stopped()} nei cicli e smette di percorrere il grafo.
+ *
+ * Nella comparazione parallela ogni task lavora su un proprio contesto (vedi {@link #fork()}) che accumula
+ * le differenze, consegnate al listener del task padre al termine del task: i task condividono solo
+ * le coppie visitate e il conteggio delle differenze, tramite strutture concorrenti.
+ *
+ * Nella comparazione con budget (profondita', nodi o durata, vedi {@link ComparisonOptions#bounded()}) i bean
+ * non vengono attraversati per ricorsione ma rinviati con {@link #defer(Object, Object)} su uno stack esplicito,
+ * insieme alla parte del percorso che li separa dal bean che li contiene; il comparatore li riprende con
+ * {@link #nextFrame()}, che ripristina il percorso.
+ */
+final class ComparisonContext {
+    final ComparisonOptions options;
+
+    /**
+     * Il listener delle differenze (null se interessa solo sapere se ci sono differenze)
+     */
+    private final DiffListener listener;
+    private final int maxDifferences;
+    private int differences;
+    private boolean stopped;
+
+    /*
+     * Le misure della comparazione (vedi ComparisonMetrics): campi visitati, profondita' massima del percorso
+     * e differenze riportate. Nella comparazione parallela ogni task misura la propria parte.
+     */
+    private int fieldsVisited;
+    private int maxDepth;
+    private int reported;
+
+    /*
+     * Lo stack dei segmenti del percorso: per ogni livello la tipologia, il campo o la chiave, le posizioni,
+     * lo stato delle regole sui percorsi e il DiffPath gia' costruito (null finche' non serve)
+     */
+    private DiffPath.Kind[] kinds = new DiffPath.Kind[16];
+    private Object[] segments = new Object[16];
+    private int[] firstIndexes = new int[16];
+    private int[] secondIndexes = new int[16];
+    private PathRules.State[] states = new PathRules.State[16];
+    private DiffPath[] paths = new DiffPath[16];
+    private int depth;
+    /**
+     * Lo stato delle regole sui percorsi del bean confrontato (null se le regole si limitano ai nomi dei campi)
+     */
+    private final PathRules.State rootState;
+
+    /**
+     * Per ogni stato delle regole sui percorsi e per ogni oggetto del primo bean gia' visitato l'oggetto del
+     * secondo bean con cui e' stato confrontato (o un {@link Partners} se e' stato confrontato con piu' oggetti).
+     * Creata solo al primo bisogno.
+     */
+    private Map<PathRules.State, IdentityHashMap<Object, Object>> visited;
+
+    /**
+     * Le impronte dei sottografi del secondo bean, valide per la sola comparazione (null se le opzioni non
+     * prevedono le impronte). Nella comparazione parallela e' condivisa tra i task.
+     */
+    private final Map<Object, Fingerprints.Entry> fingerprints;
+
+    /**
+     * Lo stato condiviso tra i task della comparazione parallela (null se la comparazione e' sequenziale)
+     */
+    private final Shared shared;
+
+    /**
+     * La vista della comparazione per i comparatori generati, creata al primo bisogno
+     */
+    private FieldComparison fieldComparison;
+
+    /*
+     * Il budget della comparazione: i sottografi attraversati, la scadenza (in System.nanoTime), l'interruzione
+     * per esaurimento dei nodi o della durata e il salto di almeno un sottografo (anche per la profondita')
+     */
+    private int nodes;
+    private long deadline;
+    private boolean exhausted;
+    private boolean truncated;
+
+    /*
+     * Lo stack esplicito dei bean da attraversare (null se la comparazione non ha un budget), i bean rinviati
+     * dal bean corrente (spostati sullo stack al termine, cosi' da riprenderli nell'ordine dei campi) e la
+     * profondita' del percorso del bean corrente
+     */
+    private final ArrayDeque<Frame> frames;
+    private final List<Frame> deferred;
+    private int frameBase;
+
+    ComparisonContext(ComparisonOptions options, DiffListener listener) {
+        this(options, listener, options.maxDifferences());
+    }
+
+    ComparisonContext(ComparisonOptions options, DiffListener listener, int maxDifferences) {
+        this(options, listener, maxDifferences, options.parallel() ? new Shared() : null, true);
+    }
+
+    private ComparisonContext(ComparisonOptions options, DiffListener listener, int maxDifferences, Shared shared, boolean fingerprinting) {
+        this.options = options;
+        this.listener = listener;
+        this.maxDifferences = maxDifferences;
+        this.shared = shared;
+        this.rootState = options.rules().trivial() ? null : options.rules().root();
+        this.frames = options.bounded() ? new ArrayDeque<>() : null;
+        this.deferred = options.bounded() ? new ArrayList<>() : null;
+        // il calcolo delle impronte e' ricorsivo e non rispetta il budget
+        if (options.fingerprints() == null || !fingerprinting || options.bounded())
+            this.fingerprints = null;
+        else
+            this.fingerprints = shared != null ? shared.fingerprints : new IdentityHashMap<Object, Fingerprints.Entry>();
+    }
+
+    /**
+     * Crea il contesto della comparazione tra un {@link BeanSnapshot} e l'oggetto vivo (o tra due record di uno
+     * {@link SnapshotFile}): le impronte non si applicano alle fotografie, per cui i sottografi vengono sempre confrontati
+     * @param options le opzioni con cui e' stata presa la fotografia
+     * @param listener il listener delle differenze (null se interessa solo sapere se ci sono differenze)
+     * @param maxDifferences il numero di differenze oltre il quale la comparazione si interrompe
+     * @return il contesto
+     */
+    static ComparisonContext forSnapshot(ComparisonOptions options, DiffListener listener, int maxDifferences) {
+        return new ComparisonContext(options, listener, maxDifferences, options.parallel() ? new Shared() : null, false);
+    }
+
+    /**
+     * @return la vista della comparazione da passare ai comparatori generati
+     */
+    FieldComparison fieldComparison() {
+        if (fieldComparison == null)
+            fieldComparison = new FieldComparison(this);
+        return fieldComparison;
+    }
+
+    /**
+     * @return true se la comparazione puo' essere suddivisa in task paralleli
+     */
+    boolean parallel() {
+        return shared != null;
+    }
+
+    /**
+     * Crea il contesto di un task della comparazione parallela: parte dal percorso corrente, accumula le
+     * differenze fino al {@link #join(ComparisonContext)} e condivide con questo contesto le coppie visitate
+     * e il conteggio delle differenze
+     * @return il contesto del task
+     */
+    ComparisonContext fork() {
+        ComparisonContext task = new ComparisonContext(options, listener == null ? null : new Buffer(), maxDifferences, shared, fingerprints != null);
+        task.kinds = kinds.clone();
+        task.segments = segments.clone();
+        task.firstIndexes = firstIndexes.clone();
+        task.secondIndexes = secondIndexes.clone();
+        task.states = states.clone();
+        task.paths = paths.clone();
+        task.depth = depth;
+        return task;
+    }
+
+    /**
+     * Consegna al listener di questo contesto le differenze accumulate dal contesto di un task
+     * @param task il contesto del task
+     */
+    void join(ComparisonContext task) {
+        if (listener != null)
+            ((Buffer) task.listener).replay(listener);
+        fieldsVisited += task.fieldsVisited;
+        maxDepth = Math.max(maxDepth, task.maxDepth);
+        reported += task.reported;
+    }
+
+    /**
+     * Avvia la misura della comparazione
+     * @return l'istante di inizio (0 se le misure non vengono raccolte)
+     */
+    long startMeasure() {
+        return options.metrics() == ComparisonMetrics.NONE ? 0L : System.nanoTime();
+    }
+
+    /**
+     * Conclude la misura della comparazione, consegnandola alle metriche delle opzioni e all'evento JFR
+     * @param type la classe dei bean confrontati
+     * @param start l'istante di inizio restituito da {@link #startMeasure()}
+     * @param event l'evento della comparazione, gia' iniziato
+     */
+    void endMeasure(Class<?> type, long start, ComparisonEvents.Compare event) {
+        if (options.metrics() != ComparisonMetrics.NONE)
+            options.metrics().record(type, System.nanoTime() - start, fieldsVisited, maxDepth, reported);
+        event.end();
+        if (event.shouldCommit()) {
+            event.beanClass = type;
+            event.fieldsVisited = fieldsVisited;
+            event.maxDepth = maxDepth;
+            event.differences = reported;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return true se le differenze vanno riportate al listener, false se interessa solo sapere se ce ne sono
+     */
+    boolean collecting() {
+        return listener != null;
+    }
+
+    /**
+     * @return true se e' stato raggiunto il numero massimo di differenze o esaurito il budget e la comparazione
+     *         va interrotta
+     */
+    boolean stopped() {
+        return exhausted || (shared == null ? stopped : shared.stopped);
+    }
+
+    /**
+     * @return true se e' stato raggiunto il numero massimo di differenze (e non solo esaurito il budget)
+     */
+    boolean limitReached() {
+        return shared == null ? stopped : shared.stopped;
+    }
+
+    /**
+     * @return true se il budget ha fatto saltare almeno un sottografo, per cui l'assenza di differenze non e'
+     *         garantita
+     */
+    boolean truncated() {
+        return truncated;
+    }
+
+    /**
+     * @return true se la comparazione ha un budget e i bean vanno rinviati sullo stack esplicito
+     */
+    boolean bounded() {
+        return frames != null;
+    }
+
+    /**
+     * Avvia la misura della durata per il budget della comparazione
+     */
+    void startBudget() {
+        if (options.timeoutNanos() != Long.MAX_VALUE)
+            deadline = System.nanoTime() + options.timeoutNanos();
+    }
+
+    /**
+     * Verifica il budget prima di attraversare un sottografo nel percorso corrente, riportando al listener il
+     * troncamento se il sottografo va saltato
+     * @return false se il sottografo non va attraversato (oltre la profondita' massima o budget esaurito)
+     */
+    boolean admit() {
+        if (exhausted)
+            return false;
+        if (depth > options.maxDepth()) {
+            truncate(DiffResult.Truncation.DEPTH);
+            return false;
+        }
+        if (++nodes > options.maxNodes()) {
+            truncate(DiffResult.Truncation.NODES);
+            return false;
+        }
+        // la scadenza viene letta ogni 16 sottografi (la differenza tra istanti non risente dell'overflow)
+        if ((nodes & 15) == 0 && options.timeoutNanos() != Long.MAX_VALUE && System.nanoTime() - deadline >= 0) {
+            truncate(DiffResult.Truncation.DEADLINE);
+            return false;
+        }
+        return true;
+    }
+
+    private void truncate(DiffResult.Truncation budget) {
+        truncated = true;
+        if (budget != DiffResult.Truncation.DEPTH)
+            exhausted = true;
+        if (listener != null)
+            listener.onTruncated(path(), budget);
+    }
+
+    /**
+     * Rinvia il confronto di una coppia di bean nel percorso corrente, da riprendere con {@link #nextFrame()}
+     * @param first l'oggetto del primo bean (o il suo nodo in una fotografia)
+     * @param second l'oggetto del secondo bean
+     */
+    void defer(Object first, Object second) {
+        deferred.add(new Frame(this, first, second));
+    }
+
+    /**
+     * Riprende l'ultimo bean rinviato (dopo aver spostato sullo stack quelli rinviati dal bean corrente),
+     * ripristinandone il percorso: il bean che lo contiene e' sempre sul percorso corrente, per cui basta
+     * sostituire i segmenti successivi
+     * @return il bean da attraversare, null se non ce ne sono piu' o se la comparazione e' stata interrotta
+     */
+    Frame nextFrame() {
+        for (int i = deferred.size() - 1; i >= 0; i--)
+            frames.push(deferred.get(i));
+        deferred.clear();
+        if (stopped()) {
+            frames.clear();
+            return null;
+        }
+        Frame frame = frames.poll();
+        if (frame == null)
+            return null;
+        for (int i = frame.base; i < depth; i++)
+            segments[i] = null;
+        depth = frame.base;
+        for (int i = 0; i < frame.kinds.length; i++) {
+            push(frame.kinds[i], frame.segments[i], frame.firstIndexes[i], frame.secondIndexes[i], frame.states[i]);
+            paths[depth - 1] = frame.paths[i];
+        }
+        frameBase = depth;
+        return frame;
+    }
+
+    /**
+     * @return le impronte dei sottografi del secondo bean calcolate in questa comparazione (null se la
+     *         comparazione non usa le impronte)
+     */
+    Map<Object, Fingerprints.Entry> fingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * @return lo stato delle regole sui percorsi dell'oggetto corrente (null se le regole si limitano ai nomi dei campi)
+     */
+    PathRules.State state() {
+        return depth == 0 ? rootState : states[depth - 1];
+    }
+
+    /**
+     * Entra in un campo dell'oggetto corrente
+     * @param field il campo
+     * @param state lo stato delle regole sui percorsi del campo
+     */
+    void enter(Field field, PathRules.State state) {
+        fieldsVisited++;
+        push(DiffPath.Kind.FIELD, field, -1, -1, state);
+    }
+
+    /**
+     * Entra nell'elemento di un array o di una lista
+     * @param firstIndex la posizione nel primo bean
+     * @param secondIndex la posizione nel secondo bean
+     */
+    void enterIndex(int firstIndex, int secondIndex) {
+        push(DiffPath.Kind.INDEX, null, firstIndex, secondIndex, state());
+    }
+
+    /**
+     * Entra nell'elemento con la chiave indicata (di una mappa o di una collezione con estrattore di chiave)
+     * @param key la chiave
+     */
+    void enterKey(Object key) {
+        push(DiffPath.Kind.KEY, key, -1, -1, state());
+    }
+
+    /**
+     * Esce dall'ultimo segmento in cui si e' entrati
+     */
+    void leave() {
+        segments[--depth] = null;
+    }
+
+    private void push(DiffPath.Kind kind, Object segment, int firstIndex, int secondIndex, PathRules.State state) {
+        if (depth == kinds.length) {
+            int length = depth * 2;
+            kinds = Arrays.copyOf(kinds, length);
+            segments = Arrays.copyOf(segments, length);
+            firstIndexes = Arrays.copyOf(firstIndexes, length);
+            secondIndexes = Arrays.copyOf(secondIndexes, length);
+            states = Arrays.copyOf(states, length);
+            paths = Arrays.copyOf(paths, length);
+        }
+        kinds[depth] = kind;
+        segments[depth] = segment;
+        firstIndexes[depth] = firstIndex;
+        secondIndexes[depth] = secondIndex;
+        states[depth] = state;
+        paths[depth] = null;
+        depth++;
+        if (depth > maxDepth)
+            maxDepth = depth;
+    }
+
+    /**
+     * @return il percorso corrente, costruendo solo i nodi che non sono gia' stati costruiti
+     */
+    private DiffPath path() {
+        DiffPath path = null;
+        for (int i = 0; i < depth; i++) {
+            if (paths[i] == null) {
+                switch (kinds[i]) {
+                    case FIELD:
+                        paths[i] = DiffPath.field(path, (Field) segments[i]);
+                        break;
+                    case INDEX:
+                        paths[i] = path.index(firstIndexes[i], secondIndexes[i]);
+                        break;
+                    default:
+                        paths[i] = path.key(segments[i]);
+                }
+            }
+            path = paths[i];
+        }
+        return path;
+    }
+
+    /**
+     * Riporta un valore differente nel percorso corrente
+     * @param field il campo che contiene la differenza
+     * @param firstBeanPropertyValue il valore nel primo bean
+     * @param secondBeanPropertyValue il valore nel secondo bean
+     */
+    void report(Field field, Object firstBeanPropertyValue, Object secondBeanPropertyValue) {
+        if (count() && listener != null)
+            listener.onDifference(path(), field, firstBeanPropertyValue, secondBeanPropertyValue);
+    }
+
+    /**
+     * Riporta un elemento presente solo nella collezione del primo bean
+     * @param field il campo che contiene la collezione
+     * @param element l'elemento
+     */
+    void removed(Field field, Object element) {
+        if (count() && listener != null)
+            listener.onRemoved(path(), field, element);
+    }
+
+    /**
+     * Riporta un elemento presente solo nella collezione del secondo bean
+     * @param field il campo che contiene la collezione
+     * @param element l'elemento
+     */
+    void added(Field field, Object element) {
+        if (count() && listener != null)
+            listener.onAdded(path(), field, element);
+    }
+
+    /**
+     * Riporta la differenza tra gli elementi in una data posizione (un elemento cancellato se non ha
+     * posizione nel secondo bean, inserito se non ha posizione nel primo)
+     * @param field il campo che contiene l'array o la lista
+     * @param firstIndex la posizione nel primo bean (-1 se assente)
+     * @param secondIndex la posizione nel secondo bean (-1 se assente)
+     * @param firstElement l'elemento del primo bean
+     * @param secondElement l'elemento del secondo bean
+     */
+    void reportIndex(Field field, int firstIndex, int secondIndex, Object firstElement, Object secondElement) {
+        if (!count() || listener == null)
+            return;
+        DiffPath path = path().index(firstIndex, secondIndex);
+        if (firstIndex < 0)
+            listener.onAdded(path, field, secondElement);
+        else if (secondIndex < 0)
+            listener.onRemoved(path, field, firstElement);
+        else
+            listener.onDifference(path, field, firstElement, secondElement);
+    }
+
+    /**
+     * Riporta lo spostamento di un elemento di una lista confrontata come sequenza
+     * @param field il campo che contiene la lista
+     * @param firstIndex la posizione nel primo bean
+     * @param secondIndex la posizione nel secondo bean
+     * @param firstElement l'elemento nel primo bean
+     * @param secondElement l'elemento nel secondo bean
+     */
+    void reportMove(Field field, int firstIndex, int secondIndex, Object firstElement, Object secondElement) {
+        if (count() && listener != null)
+            listener.onMoved(path().index(firstIndex, secondIndex), field, firstElement, secondElement);
+    }
+
+    /**
+     * Riporta la differenza tra i valori associati ad una chiave
+     * @param field il campo che contiene la mappa
+     * @param key la chiave
+     * @param firstValue il valore nel primo bean
+     * @param secondValue il valore nel secondo bean
+     */
+    void reportKey(Field field, Object key, Object firstValue, Object secondValue) {
+        if (count() && listener != null)
+            listener.onDifference(path().key(key), field, firstValue, secondValue);
+    }
+
+    /**
+     * Riporta una chiave presente solo nella mappa del primo bean
+     * @param field il campo che contiene la mappa
+     * @param key la chiave
+     * @param value il valore
+     */
+    void removedKey(Field field, Object key, Object value) {
+        if (count() && listener != null)
+            listener.onRemoved(path().key(key), field, value);
+    }
+
+    /**
+     * Riporta una chiave presente solo nella mappa del secondo bean
+     * @param field il campo che contiene la mappa
+     * @param key la chiave
+     * @param value il valore
+     */
+    void addedKey(Field field, Object key, Object value) {
+        if (count() && listener != null)
+            listener.onAdded(path().key(key), field, value);
+    }
+
+    /**
+     * Riporta un valore non confrontato perche' non caricato in almeno uno dei due bean (non e' una differenza
+     * e non viene contato rispetto al numero massimo)
+     * @param field il campo che contiene il valore
+     * @param firstValue il valore nel primo bean
+     * @param secondValue il valore nel secondo bean
+     */
+    void notCompared(Field field, Object firstValue, Object secondValue) {
+        PathRules.State state = state();
+        if (listener != null && !stopped() && (state == null || state.included))
+            listener.onNotCompared(path(), field, firstValue, secondValue);
+    }
+
+    /**
+     * Conta una differenza rispetto al numero massimo
+     * @return false se la differenza va scartata perche' fuori dai percorsi inclusi o perche' il numero
+     *         massimo e' gia' stato raggiunto
+     */
+    private boolean count() {
+        // le differenze fuori dai percorsi inclusi non vengono riportate (ne' contate)
+        PathRules.State state = state();
+        if (state != null && !state.included)
+            return false;
+        if (shared == null) {
+            if (stopped)
+                return false;
+            if (++differences >= maxDifferences)
+                stopped = true;
+            reported++;
+            return true;
+        }
+        if (shared.stopped)
+            return false;
+        int count = shared.differences.incrementAndGet();
+        if (count >= maxDifferences)
+            shared.stopped = true;
+        if (count > maxDifferences)
+            return false;
+        reported++;
+        return true;
+    }
+
+    /**
+     * Registra la coppia di oggetti come visitata con lo stato corrente delle regole sui percorsi
+     * @param first l'oggetto del primo bean
+     * @param second l'oggetto del secondo bean
+     * @return true se la coppia non era ancora stata visitata con lo stesso stato
+     */
+    boolean visit(Object first, Object second) {
+        PathRules.State state = state();
+        if (shared != null)
+            return shared.visited.add(new VisitedPair(first, second, state));
+        if (visited == null)
+            visited = new HashMap<>();
+        IdentityHashMap<Object, Object> pairs = visited.get(state);
+        if (pairs == null) {
+            pairs = new IdentityHashMap<>();
+            visited.put(state, pairs);
+        }
+        Object partners = pairs.get(first);
+        if (partners == null) {
+            pairs.put(first, second);
+            return true;
+        }
+        if (partners == second)
+            return false;
+        if (partners instanceof Partners)
+            return ((Partners) partners).objects.add(second);
+        Partners set = new Partners();
+        set.objects.add(partners);
+        set.objects.add(second);
+        pairs.put(first, set);
+        return true;
+    }
+
+    /**
+     * Gli oggetti confrontati con uno stesso oggetto del primo bean
+     */
+    private static final class Partners {
+        final Set<Object> objects = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    }
+
+    /**
+     * Le differenze trovate da un task della comparazione parallela, in attesa di essere consegnate al listener
+     */
+    private static final class Buffer implements DiffListener {
+        private final List<Consumer<DiffListener>> events = new ArrayList<>();
+
+        @Override
+        public void onDifference(DiffPath path, Field field, Object left, Object right) {
+            events.add(listener -> listener.onDifference(path, field, left, right));
+        }
+
+        @Override
+        public void onAdded(DiffPath path, Field field, Object element) {
+            events.add(listener -> listener.onAdded(path, field, element));
+        }
+
+        @Override
+        public void onRemoved(DiffPath path, Field field, Object element) {
+            events.add(listener -> listener.onRemoved(path, field, element));
+        }
+
+        @Override
+        public void onMoved(DiffPath path, Field field, Object left, Object right) {
+            events.add(listener -> listener.onMoved(path, field, left, right));
+        }
+
+        @Override
+        public void onNotCompared(DiffPath path, Field field, Object left, Object right) {
+            events.add(listener -> listener.onNotCompared(path, field, left, right));
+        }
+
+        @Override
+        public void onTruncated(DiffPath path, DiffResult.Truncation budget) {
+            events.add(listener -> listener.onTruncated(path, budget));
+        }
+
+        void replay(DiffListener listener) {
+            for (Consumer<DiffListener> event : events)
+                event.accept(listener);
+        }
+    }
+
+    /**
+     * Una coppia di bean rinviata nella comparazione con budget, con i segmenti del percorso successivi a quello
+     * del bean che la contiene
+     */
+    static final class Frame {
+        final Object first;
+        final Object second;
+        private final int base;
+        private final DiffPath.Kind[] kinds;
+        private final Object[] segments;
+        private final int[] firstIndexes;
+        private final int[] secondIndexes;
+        private final PathRules.State[] states;
+        private final DiffPath[] paths;
+
+        private Frame(ComparisonContext context, Object first, Object second) {
+            this.first = first;
+            this.second = second;
+            this.base = context.frameBase;
+            this.kinds = Arrays.copyOfRange(context.kinds, base, context.depth);
+            this.segments = Arrays.copyOfRange(context.segments, base, context.depth);
+            this.firstIndexes = Arrays.copyOfRange(context.firstIndexes, base, context.depth);
+            this.secondIndexes = Arrays.copyOfRange(context.secondIndexes, base, context.depth);
+            this.states = Arrays.copyOfRange(context.states, base, context.depth);
+            this.paths = Arrays.copyOfRange(context.paths, base, context.depth);
+        }
+    }
+
+    /**
+     * Lo stato condiviso tra i task della comparazione parallela
+     */
+    private static final class Shared {
+        final Set<VisitedPair> visited = ConcurrentHashMap.newKeySet();
+        final AtomicInteger differences = new AtomicInteger();
+        volatile boolean stopped;
+        final Map<Object, Fingerprints.Entry> fingerprints = Collections.synchronizedMap(new IdentityHashMap<Object, Fingerprints.Entry>());
+    }
+
+    /**
+     * Una coppia di oggetti visitata con uno stato delle regole sui percorsi, confrontata per identita'
+     */
+    private static final class VisitedPair {
+        private final Object first;
+        private final Object second;
+        private final PathRules.State state;
+
+        VisitedPair(Object first, Object second, PathRules.State state) {
+            this.first = first;
+            this.second = second;
+            this.state = state;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof VisitedPair))
+                return false;
+            VisitedPair other = (VisitedPair) obj;
+            return other.first == first && other.second == second && other.state == state;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * System.identityHashCode(first) + System.identityHashCode(second)) * 31 + System.identityHashCode(state);
+        }
+    }
+}
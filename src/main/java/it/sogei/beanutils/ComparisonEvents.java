@@ -0,0 +1,89 @@
+package it.sogei.beanutils;
+
+import jdk.jfr.*;
+
+/**
+ * Gli eventi JDK Flight Recorder del comparatore, registrati nella categoria "Bean Comparator" di ogni
+ * registrazione JFR in cui sono abilitati.
+ *
+ * Per non riempire le registrazioni gli eventi hanno una soglia: vengono scritti solo se la comparazione
+ * (o quella della singola collezione o mappa) dura piu' della soglia, modificabile nelle impostazioni della
+ * registrazione (ad es. {@code it.sogei.beanutils.Compare#threshold=0 ms}). Con JFR spento la creazione
+ * degli eventi non ha costi apprezzabili.
+ */
+final class ComparisonEvents {
+    private ComparisonEvents() {
+    }
+
+    /**
+     * La comparazione di due bean
+     */
+    @Name("it.sogei.beanutils.Compare")
+    @Label("Bean Comparison")
+    @Category("Bean Comparator")
+    @Description("Comparazione di due bean")
+    @Threshold("10 ms")
+    static final class Compare extends Event {
+        @Label("Bean Class")
+        Class<?> beanClass;
+
+        @Label("Fields Visited")
+        int fieldsVisited;
+
+        @Label("Max Depth")
+        int maxDepth;
+
+        @Label("Differences")
+        int differences;
+    }
+
+    /**
+     * La comparazione di due collezioni
+     */
+    @Name("it.sogei.beanutils.CompareCollections")
+    @Label("Collection Comparison")
+    @Category("Bean Comparator")
+    @Description("Comparazione delle collezioni di un campo")
+    @Threshold("10 ms")
+    static final class CompareCollections extends Event {
+        @Label("Bean Class")
+        Class<?> beanClass;
+
+        @Label("Field")
+        String field;
+
+        @Label("Collection Class")
+        Class<?> collectionClass;
+
+        @Label("First Size")
+        int firstSize;
+
+        @Label("Second Size")
+        int secondSize;
+    }
+
+    /**
+     * La comparazione di due mappe
+     */
+    @Name("it.sogei.beanutils.CompareMaps")
+    @Label("Map Comparison")
+    @Category("Bean Comparator")
+    @Description("Comparazione delle mappe di un campo")
+    @Threshold("10 ms")
+    static final class CompareMaps extends Event {
+        @Label("Bean Class")
+        Class<?> beanClass;
+
+        @Label("Field")
+        String field;
+
+        @Label("Map Class")
+        Class<?> mapClass;
+
+        @Label("First Size")
+        int firstSize;
+
+        @Label("Second Size")
+        int secondSize;
+    }
+}
@@ -0,0 +1,30 @@
+package it.sogei.beanutils;
+
+/**
+ * Riceve le misure di ogni comparazione, per capire in produzione quali classi di bean pesano di piu'.
+ *
+ * Si registra con {@link ComparisonOptions.Builder#metrics(ComparisonMetrics)}; senza registrazione si usa
+ * {@link #NONE}, che non fa nulla e non fa nemmeno misurare il tempo. {@link ClassComparisonMetrics} e'
+ * l'implementazione che accumula i contatori per classe; per inviare le misure ad un sistema di
+ * monitoraggio basta implementare questa interfaccia.
+ *
+ * Il metodo viene invocato al termine di ogni comparazione dal thread che l'ha avviata, anche
+ * contemporaneamente da piu' thread: le implementazioni devono essere thread-safe.
+ */
+public interface ComparisonMetrics {
+    /**
+     * Le misure non vengono raccolte
+     */
+    ComparisonMetrics NONE = (type, nanos, fieldsVisited, maxDepth, differences) -> {
+    };
+
+    /**
+     * Registra una comparazione conclusa
+     * @param type la classe dei bean confrontati
+     * @param nanos la durata in nanosecondi
+     * @param fieldsVisited il numero di campi visitati (a qualunque profondita')
+     * @param maxDepth la profondita' massima raggiunta nel percorso (campi, posizioni e chiavi)
+     * @param differences il numero di differenze trovate
+     */
+    void record(Class<?> type, long nanos, int fieldsVisited, int maxDepth, int differences);
+}
@@ -0,0 +1,567 @@
+package it.sogei.beanutils;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Opzioni di comparazione per {@link BeanComparator#compare(Object, Object, ComparisonOptions)}.
+ *
+ * Le opzioni sono immutabili (e quindi condivisibili tra thread) e si costruiscono tramite {@link #builder()}:
+ * <pre>
+ *     ComparisonOptions options = ComparisonOptions.builder()
+ *             .exclude("id")
+ *             .keyExtractor(SimpleBean.class, SimpleBean::getId)
+ *             .build();
+ * </pre>
+ */
+public final class ComparisonOptions {
+    /**
+     * Segnaposto per le classi senza estrattore di chiave (la ConcurrentHashMap non accetta valori nulli)
+     */
+    private static final Function<Object, Object> NO_EXTRACTOR = new Function<Object, Object>() {
+        @Override
+        public Object apply(Object o) {
+            return null;
+        }
+    };
+
+    /**
+     * Segnaposto per le classi senza confronto registrato
+     */
+    private static final ValueComparator<Object> NO_COMPARATOR = (first, second) -> false;
+
+    private static final ComparisonOptions DEFAULTS = new Builder().build();
+
+    private final PathRules rules;
+    private final Map<Class<?>, Function<Object, Object>> keyExtractors;
+    private final boolean orderedLists;
+    private final boolean deepMapValues;
+    private final boolean bypassConstructors;
+    private final int maxDifferences;
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    private final Fingerprints fingerprints;
+    private final ComparisonMetrics metrics;
+    private final LoadStrategy loadStrategy;
+    private final int maxDepth;
+    private final int maxNodes;
+    private final long timeoutNanos;
+    private final Map<Class<?>, ValueComparator<Object>> valueComparators;
+    /**
+     * Gli estrattori di chiave gia' risolti per la classe a runtime degli elementi
+     */
+    private final ConcurrentHashMap<Class<?>, Function<Object, Object>> resolvedKeyExtractors = new ConcurrentHashMap<>();
+    /**
+     * I confronti registrati gia' risolti per la classe a runtime dei valori
+     */
+    private final ConcurrentHashMap<Class<?>, ValueComparator<Object>> resolvedValueComparators = new ConcurrentHashMap<>();
+
+    private ComparisonOptions(Builder builder) {
+        this.rules = new PathRules(builder.exclusions, builder.excludePaths, builder.includePaths, builder.classExclusions);
+        this.keyExtractors = new HashMap<>(builder.keyExtractors);
+        this.orderedLists = builder.orderedLists;
+        this.deepMapValues = builder.deepMapValues;
+        this.bypassConstructors = builder.bypassConstructors;
+        this.maxDifferences = builder.maxDifferences;
+        this.pool = builder.pool;
+        this.parallelThreshold = builder.parallelThreshold;
+        this.fingerprints = builder.fingerprints;
+        this.metrics = builder.metrics;
+        this.loadStrategy = builder.loadStrategy;
+        this.maxDepth = builder.maxDepth;
+        this.maxNodes = builder.maxNodes;
+        this.timeoutNanos = builder.timeoutNanos;
+        this.valueComparators = new HashMap<>(builder.valueComparators);
+    }
+
+    /**
+     * @return le opzioni di default: nessuna esclusione, confronto delle collezioni tramite equals
+     */
+    public static ComparisonOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * @return un nuovo builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Opzioni con i soli campi esclusi, come per {@link BeanComparator#compare(Object, Object, String...)}
+     * @param exclusions i nomi dei campi da escludere
+     * @return le opzioni
+     */
+    static ComparisonOptions excluding(String... exclusions) {
+        return exclusions.length == 0 ? DEFAULTS : new Builder().exclude(exclusions).build();
+    }
+
+    /**
+     * @return le regole di esclusione e inclusione dei campi, gia' compilate
+     */
+    PathRules rules() {
+        return rules;
+    }
+
+    /**
+     * @return true se e' registrato almeno un estrattore di chiave
+     */
+    boolean hasKeyExtractors() {
+        return !keyExtractors.isEmpty();
+    }
+
+    /**
+     * @return true se le liste vanno confrontate come sequenze ordinate
+     */
+    boolean orderedLists() {
+        return orderedLists;
+    }
+
+    /**
+     * @return true se i valori delle mappe vanno confrontati in profondita'
+     */
+    boolean deepMapValues() {
+        return deepMapValues;
+    }
+
+    /**
+     * @return true se {@link BeanDelta} puo' creare i bean senza costruttore senza argomenti
+     */
+    boolean bypassConstructors() {
+        return bypassConstructors;
+    }
+
+    /**
+     * @return il numero di differenze oltre il quale la comparazione si interrompe
+     */
+    int maxDifferences() {
+        return maxDifferences;
+    }
+
+    /**
+     * @return true se la comparazione va suddivisa in task paralleli (mai con un budget, vedi {@link #bounded()})
+     */
+    boolean parallel() {
+        return pool != null && !bounded();
+    }
+
+    /**
+     * @return true se la comparazione ha un budget (profondita', nodi o durata) e va eseguita con uno stack esplicito
+     */
+    boolean bounded() {
+        return maxDepth != Integer.MAX_VALUE || maxNodes != Integer.MAX_VALUE || timeoutNanos != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return la profondita' massima del percorso (campi, posizioni e chiavi) dei sottografi da attraversare
+     */
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return il numero massimo di sottografi (bean, collezioni, mappe e array) da attraversare
+     */
+    int maxNodes() {
+        return maxNodes;
+    }
+
+    /**
+     * @return la durata massima della comparazione in nanosecondi ({@link Long#MAX_VALUE} se illimitata)
+     */
+    long timeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * @return il pool su cui eseguire i task della comparazione parallela
+     */
+    ForkJoinPool pool() {
+        return pool;
+    }
+
+    /**
+     * @return il numero di elementi oltre il quale collezioni e array vengono suddivisi in task paralleli
+     */
+    int parallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @return la cache delle impronte dei sottografi (null se i sottografi vanno sempre confrontati)
+     */
+    Fingerprints fingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * @return il destinatario delle misure delle comparazioni ({@link ComparisonMetrics#NONE} se non raccolte)
+     */
+    ComparisonMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return la strategia che riconosce i valori non caricati ({@link LoadStrategy#NONE} se non vanno controllati)
+     */
+    LoadStrategy loadStrategy() {
+        return loadStrategy;
+    }
+
+    /**
+     * Restituisce l'estrattore di chiave per gli elementi della classe passata, cercandolo anche tra
+     * le superclassi e le interfacce; in mancanza vale il campo annotato con {@link DiffKey}
+     * @param elementClass la classe a runtime dell'elemento
+     * @return l'estrattore o null se non registrato e non dichiarato
+     */
+    Function<Object, Object> keyExtractorFor(Class<?> elementClass) {
+        if (keyExtractors.isEmpty())
+            return ClassPlan.of(elementClass).keyExtractor();
+        Function<Object, Object> extractor = resolvedKeyExtractors.get(elementClass);
+        if (extractor == null) {
+            extractor = resolve(keyExtractors, elementClass);
+            if (extractor == null)
+                extractor = ClassPlan.of(elementClass).keyExtractor();
+            resolvedKeyExtractors.putIfAbsent(elementClass, extractor == null ? NO_EXTRACTOR : extractor);
+            return extractor;
+        }
+        return extractor == NO_EXTRACTOR ? null : extractor;
+    }
+
+    /**
+     * @return true se sono stati registrati confronti di valori
+     */
+    boolean hasValueComparators() {
+        return !valueComparators.isEmpty();
+    }
+
+    /**
+     * Restituisce il confronto registrato per i valori della classe passata, cercandolo anche tra le
+     * superclassi e le interfacce
+     * @param valueClass la classe a runtime del valore
+     * @return il confronto o null se non registrato
+     */
+    ValueComparator<Object> valueComparatorFor(Class<?> valueClass) {
+        if (valueComparators.isEmpty())
+            return null;
+        ValueComparator<Object> comparator = resolvedValueComparators.get(valueClass);
+        if (comparator == null) {
+            comparator = resolve(valueComparators, valueClass);
+            resolvedValueComparators.putIfAbsent(valueClass, comparator == null ? NO_COMPARATOR : comparator);
+            return comparator;
+        }
+        return comparator == NO_COMPARATOR ? null : comparator;
+    }
+
+    /**
+     * Cerca la voce registrata per una classe, prima lungo le superclassi e poi tra le interfacce
+     */
+    private static <V> V resolve(Map<Class<?>, V> registry, Class<?> aClass) {
+        for (Class<?> current = aClass; current != null; current = current.getSuperclass()) {
+            V value = registry.get(current);
+            if (value != null)
+                return value;
+        }
+        for (Map.Entry<Class<?>, V> entry : registry.entrySet()) {
+            if (entry.getKey().isAssignableFrom(aClass))
+                return entry.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Builder delle opzioni di comparazione
+     */
+    public static final class Builder {
+        private final List<String> exclusions = new ArrayList<>();
+        private final List<String> excludePaths = new ArrayList<>();
+        private final List<String> includePaths = new ArrayList<>();
+        private final Map<Class<?>, Set<String>> classExclusions = new HashMap<>();
+        private final Map<Class<?>, Function<Object, Object>> keyExtractors = new HashMap<>();
+        private boolean orderedLists;
+        private boolean deepMapValues;
+        private boolean bypassConstructors;
+        private int maxDifferences = Integer.MAX_VALUE;
+        private ForkJoinPool pool;
+        private int parallelThreshold;
+        private Fingerprints fingerprints;
+        private ComparisonMetrics metrics = ComparisonMetrics.NONE;
+        private LoadStrategy loadStrategy = LoadStrategy.REFLECTIVE;
+        private int maxDepth = Integer.MAX_VALUE;
+        private int maxNodes = Integer.MAX_VALUE;
+        private long timeoutNanos = Long.MAX_VALUE;
+        private final Map<Class<?>, ValueComparator<Object>> valueComparators = new HashMap<>();
+
+        private Builder() {}
+
+        /**
+         * Esclude dei campi dal confronto (ad es. chiavi dei record che potrebbero anche essere differenti)
+         * @param fieldNames i nomi dei campi da non verificare
+         * @return il builder
+         */
+        public Builder exclude(String... fieldNames) {
+            Collections.addAll(exclusions, fieldNames);
+            return this;
+        }
+
+        /**
+         * Esclude dal confronto dei campi di una classe (e delle sue sottoclassi), ovunque si trovino nel grafo,
+         * lasciando confrontare gli omonimi delle altre classi
+         * @param type la classe
+         * @param fieldNames i nomi dei campi da non verificare
+         * @return il builder
+         */
+        public Builder exclude(Class<?> type, String... fieldNames) {
+            if (type == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            Set<String> names = classExclusions.get(type);
+            if (names == null) {
+                names = new HashSet<>();
+                classExclusions.put(type, names);
+            }
+            Collections.addAll(names, fieldNames);
+            return this;
+        }
+
+        /**
+         * Esclude dal confronto i campi (con tutto il loro sottografo) che corrispondono ai percorsi indicati.
+         * Un percorso e' la sequenza dei nomi dei campi a partire dal bean confrontato, separati da punti:
+         * gli elementi di collezioni, mappe e array non aggiungono segmenti, {@code *} vale per un segmento
+         * qualsiasi e {@code **} per zero o piu' segmenti (ad es. {@code complexBean.stringArray}, {@code **.audit}).
+         * @param paths i percorsi da escludere
+         * @return il builder
+         */
+        public Builder excludePaths(String... paths) {
+            Collections.addAll(excludePaths, paths);
+            return this;
+        }
+
+        /**
+         * Limita il confronto ai campi che corrispondono ai percorsi indicati (con tutto il loro sottografo);
+         * i rami che non possono portare ad un percorso incluso non vengono visitati.
+         * La sintassi e' quella di {@link #excludePaths(String...)}, e le esclusioni prevalgono sulle inclusioni.
+         * @param paths i percorsi da confrontare
+         * @return il builder
+         */
+        public Builder includePaths(String... paths) {
+            Collections.addAll(includePaths, paths);
+            return this;
+        }
+
+        /**
+         * Registra l'estrattore della chiave per gli elementi di una collezione (ad es. il campo id): gli elementi
+         * delle due collezioni vengono abbinati per chiave e le coppie abbinate sono confrontate campo per campo,
+         * invece di essere riportate come rimosse e aggiunte.
+         * @param elementType la classe degli elementi (vale anche per le sottoclassi)
+         * @param keyExtractor la funzione che restituisce la chiave dell'elemento
+         * @param <T> il tipo degli elementi
+         * @return il builder
+         */
+        @SuppressWarnings("unchecked")
+        public <T> Builder keyExtractor(Class<T> elementType, Function<? super T, ?> keyExtractor) {
+            if (elementType == null || keyExtractor == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            keyExtractors.put(elementType, (Function<Object, Object>) keyExtractor);
+            return this;
+        }
+
+        /**
+         * Registra il confronto dei valori di un tipo, che viene trattato come un valore semplice: i valori non
+         * vengono attraversati campo per campo e, se differenti, sono riportati come un'unica differenza. Il
+         * confronto registrato prevale su quello predefinito (vedi {@link ValueComparator}); gli elementi delle
+         * collezioni e le chiavi delle mappe restano confrontati tramite equals.
+         * @param type la classe dei valori (vale anche per le sottoclassi)
+         * @param comparator il confronto
+         * @param <T> il tipo dei valori
+         * @return il builder
+         */
+        @SuppressWarnings("unchecked")
+        public <T> Builder compareWith(Class<T> type, ValueComparator<? super T> comparator) {
+            if (type == null || comparator == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            valueComparators.put(type, (ValueComparator<Object>) comparator);
+            return this;
+        }
+
+        /**
+         * Confronta le liste come sequenze ordinate: le differenze riportano le posizioni degli elementi
+         * cancellati, inseriti e spostati (vedi {@link IndexedEntry}) invece della sola appartenenza.
+         * @param orderedLists true per confrontare le liste come sequenze
+         * @return il builder
+         */
+        public Builder orderedLists(boolean orderedLists) {
+            this.orderedLists = orderedLists;
+            return this;
+        }
+
+        /**
+         * Confronta in profondita' i valori delle mappe associati alla stessa chiave quando sono bean, collezioni,
+         * mappe o array, invece di confrontarli tramite equals.
+         * @param deepMapValues true per confrontare i valori in profondita'
+         * @return il builder
+         */
+        public Builder deepMapValues(boolean deepMapValues) {
+            this.deepMapValues = deepMapValues;
+            return this;
+        }
+
+        /**
+         * Consente a {@link BeanDelta#apply(byte[], Object, ComparisonOptions)} di creare i bean che non hanno un
+         * costruttore senza argomenti (ad es. le classi interne) senza eseguire alcun costruttore, come fa la
+         * serializzazione Java. Va abilitato solo per i delta di provenienza fidata.
+         * @param bypassConstructors true per creare i bean senza costruttore
+         * @return il builder
+         */
+        public Builder bypassConstructors(boolean bypassConstructors) {
+            this.bypassConstructors = bypassConstructors;
+            return this;
+        }
+
+        /**
+         * Interrompe la comparazione dopo aver trovato il numero di differenze indicato: la mappa restituita
+         * contiene solo le prime differenze incontrate (utile quando basta un campione delle differenze).
+         * @param maxDifferences il numero massimo di differenze da riportare (maggiore di zero)
+         * @return il builder
+         */
+        public Builder maxDifferences(int maxDifferences) {
+            if (maxDifferences <= 0)
+                throw new IllegalArgumentException("Il numero massimo di differenze deve essere maggiore di zero!");
+            this.maxDifferences = maxDifferences;
+            return this;
+        }
+
+        /**
+         * Non attraversa i sottografi (bean, collezioni, mappe e array) oltre la profondita' indicata del percorso
+         * (campi, posizioni e chiavi, ad es. {@code a.lista[3]} ha profondita' 2): i sottografi tagliati vengono
+         * riportati come troncati ({@link DiffResult.Truncation#DEPTH}) e la comparazione prosegue con gli altri.
+         * Come ogni budget rende la comparazione sequenziale e senza ricorsione sui bean (vedi {@link #timeout(Duration)}).
+         * @param maxDepth la profondita' massima (maggiore di zero)
+         * @return il builder
+         */
+        public Builder maxDepth(int maxDepth) {
+            if (maxDepth <= 0)
+                throw new IllegalArgumentException("La profondita' massima deve essere maggiore di zero!");
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        /**
+         * Interrompe la comparazione dopo aver attraversato il numero indicato di sottografi (bean, collezioni,
+         * mappe e array): il risultato contiene le differenze trovate fino a quel momento ed e' troncato
+         * ({@link DiffResult.Truncation#NODES}).
+         * @param maxNodes il numero massimo di sottografi (maggiore di zero)
+         * @return il builder
+         */
+        public Builder maxNodes(int maxNodes) {
+            if (maxNodes <= 0)
+                throw new IllegalArgumentException("Il numero massimo di nodi deve essere maggiore di zero!");
+            this.maxNodes = maxNodes;
+            return this;
+        }
+
+        /**
+         * Interrompe la comparazione allo scadere della durata indicata, misurata dall'avvio di ogni comparazione:
+         * il risultato contiene le differenze trovate fino a quel momento ed e' troncato
+         * ({@link DiffResult.Truncation#DEADLINE}). La scadenza viene verificata ad ogni sottografo attraversato,
+         * per cui una singola collezione di valori semplici molto grande viene comunque confrontata per intero.
+         *
+         * Con un budget (durata, profondita' o nodi) i bean vengono attraversati con uno stack esplicito invece
+         * che per ricorsione, cosi' che un grafo molto profondo non possa esaurire lo stack del thread: le
+         * differenze dei sottografi di un bean seguono quelle dei suoi campi semplici e la comparazione e' sempre
+         * sequenziale (l'opzione {@link #parallel(ForkJoinPool, int)} viene ignorata, cosi' come le impronte).
+         * {@link BeanComparator#differs(Object, Object, ComparisonOptions)} considera solo le differenze trovate
+         * entro il budget; il confronto dei record di uno {@link SnapshotFile} non ha budget.
+         * @param timeout la durata massima (positiva)
+         * @return il builder
+         */
+        public Builder timeout(Duration timeout) {
+            if (timeout == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            if (timeout.isNegative() || timeout.isZero())
+                throw new IllegalArgumentException("La durata massima deve essere positiva!");
+            this.timeoutNanos = timeout.compareTo(Duration.ofNanos(Long.MAX_VALUE)) >= 0 ? Long.MAX_VALUE - 1 : timeout.toNanos();
+            return this;
+        }
+
+        /**
+         * Suddivide la comparazione di un singolo grafo di oggetti in task paralleli sul {@link ForkJoinPool} comune
+         * (vedi {@link #parallel(ForkJoinPool, int)})
+         * @param threshold il numero di elementi oltre il quale collezioni e array vengono suddivisi
+         * @return il builder
+         */
+        public Builder parallel(int threshold) {
+            return parallel(ForkJoinPool.commonPool(), threshold);
+        }
+
+        /**
+         * Suddivide la comparazione di un singolo grafo di oggetti in task paralleli: gli elementi abbinati delle
+         * collezioni e degli array piu' grandi della soglia e i sottografi dei campi di uno stesso bean vengono
+         * confrontati su piu' thread. E' utile solo per grafi molto grandi: l'ordine delle differenze riportate
+         * per un campo puo' variare rispetto alla comparazione sequenziale.
+         * @param pool il pool su cui eseguire i task
+         * @param threshold il numero di elementi oltre il quale collezioni e array vengono suddivisi (maggiore di zero)
+         * @return il builder
+         */
+        public Builder parallel(ForkJoinPool pool, int threshold) {
+            if (pool == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            if (threshold <= 0)
+                throw new IllegalArgumentException("La soglia deve essere maggiore di zero!");
+            this.pool = pool;
+            this.parallelThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Confronta i sottografi (bean, collezioni, mappe e array) solo se le loro impronte strutturali
+         * differiscono. Le impronte del primo bean restano nella cache, per cui conviene quando lo stesso bean
+         * di riferimento viene confrontato piu' volte con versioni modificate (vedi {@link Fingerprints}).
+         * @param fingerprints la cache delle impronte
+         * @return il builder
+         */
+        public Builder fingerprints(Fingerprints fingerprints) {
+            if (fingerprints == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            this.fingerprints = fingerprints;
+            return this;
+        }
+
+        /**
+         * Raccoglie le misure di ogni comparazione (durata, campi visitati, profondita' e differenze) per la
+         * classe dei bean confrontati (vedi {@link ClassComparisonMetrics})
+         * @param metrics il destinatario delle misure
+         * @return il builder
+         */
+        public Builder metrics(ComparisonMetrics metrics) {
+            if (metrics == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Indica come riconoscere i proxy e le collezioni a caricamento differito, che non vengono attraversati ma
+         * riportati come non confrontati (di default {@link LoadStrategy#REFLECTIVE}, {@link LoadStrategy#NONE}
+         * per confrontare sempre tutto)
+         * @param loadStrategy la strategia
+         * @return il builder
+         */
+        public Builder loadStrategy(LoadStrategy loadStrategy) {
+            if (loadStrategy == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            this.loadStrategy = loadStrategy;
+            return this;
+        }
+
+        /**
+         * @return le opzioni
+         */
+        public ComparisonOptions build() {
+            return new ComparisonOptions(this);
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package it.sogei.beanutils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Riconciliazione di due dataset della stessa entita' (ad es. l'estrazione di ieri e quella di oggi) troppo
+ * grandi per stare in memoria: i bean vengono abbinati per chiave e le coppie abbinate confrontate con
+ * {@link BatchComparator}.
+ *
+ * Ogni dataset viene ordinato per chiave con un ordinamento esterno: i bean vengono letti a blocchi di al
+ * massimo {@link Builder#maxInMemory(int)} elementi, ogni blocco ordinato in memoria e, se il dataset non sta
+ * in un solo blocco, scritto su un file temporaneo; i file vengono poi fusi in un'unica sequenza ordinata.
+ * Le due sequenze ordinate vengono infine percorse insieme (merge join), per cui la memoria usata non dipende
+ * dalla dimensione dei dataset. Per i dataset che superano il blocco i bean devono essere {@link Serializable}.
+ * <pre>
+ *     DatasetReconciler&lt;Record, Long&gt; reconciler = DatasetReconciler.builder(Record::getId)
+ *             .maxInMemory(100_000)
+ *             .build();
+ *     reconciler.reconcile(yesterday, today, listener);
+ * </pre>
+ *
+ * Se lo stesso dataset contiene piu' bean con la stessa chiave, questi vengono abbinati nell'ordine in cui
+ * compaiono e quelli in eccesso sono riportati come inseriti o cancellati.
+ *
+ * @param <T> la tipologia dei bean
+ * @param <K> la tipologia delle chiavi
+ */
+public final class DatasetReconciler<T, K> {
+    /**
+     * Il numero massimo di file fusi insieme: oltre questo numero i file vengono fusi in piu' passaggi
+     */
+    private static final int MAX_MERGED_RUNS = 64;
+
+    private final Function<? super T, ? extends K> keyExtractor;
+    private final Comparator<? super K> keyComparator;
+    private final BatchComparator comparator;
+    private final int maxInMemory;
+    private final Path tempDirectory;
+    private final boolean presorted;
+
+    private DatasetReconciler(Builder<T, K> builder) {
+        this.keyExtractor = builder.keyExtractor;
+        this.keyComparator = builder.keyComparator;
+        this.comparator = builder.comparator;
+        this.maxInMemory = builder.maxInMemory;
+        this.tempDirectory = builder.tempDirectory;
+        this.presorted = builder.presorted;
+    }
+
+    /**
+     * @param keyExtractor la funzione che restituisce la chiave di un bean (ad es. il campo id)
+     * @param <T> la tipologia dei bean
+     * @param <K> la tipologia delle chiavi, ordinate secondo il loro ordinamento naturale
+     * @return un nuovo builder
+     */
+    public static <T, K extends Comparable<? super K>> Builder<T, K> builder(Function<? super T, ? extends K> keyExtractor) {
+        return new Builder<T, K>(keyExtractor, Comparator.<K>naturalOrder());
+    }
+
+    /**
+     * @param keyExtractor la funzione che restituisce la chiave di un bean (ad es. il campo id)
+     * @param keyComparator l'ordinamento delle chiavi
+     * @param <T> la tipologia dei bean
+     * @param <K> la tipologia delle chiavi
+     * @return un nuovo builder
+     */
+    public static <T, K> Builder<T, K> builder(Function<? super T, ? extends K> keyExtractor, Comparator<? super K> keyComparator) {
+        return new Builder<T, K>(keyExtractor, keyComparator);
+    }
+
+    /**
+     * Riconcilia i due dataset
+     * @param first il primo dataset (ad es. l'estrazione precedente)
+     * @param second il secondo dataset (ad es. l'estrazione attuale)
+     * @param listener riceve i bean inseriti e cancellati e le differenze dei bean abbinati
+     * @throws IllegalArgumentException in caso di errore su una coppia o di dataset non ordinati
+     * @throws IllegalAccessException in caso di errore su una coppia
+     * @throws IOException in caso di errore sui file temporanei
+     */
+    public void reconcile(Iterator<? extends T> first, Iterator<? extends T> second, final ReconciliationListener<? super T, ? super K> listener) throws IllegalArgumentException, IllegalAccessException, IOException {
+        if (first == null || second == null || listener == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        List<Run<T>> runs = new ArrayList<>();
+        try {
+            Run<T> firstSorted = sort(first, runs);
+            Run<T> secondSorted = sort(second, runs);
+            final Join join = new Join(firstSorted, secondSorted, listener);
+            comparator.compareAll(join, (pair, differences) -> {
+                if (!differences.isEmpty())
+                    listener.onChanged(keyExtractor.apply(pair.getFirst()), pair.getFirst(), pair.getSecond(), differences);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (Run<T> run : runs)
+                run.close();
+        }
+    }
+
+    /**
+     * Restituisce il dataset ordinato per chiave: in memoria se sta in un blocco, altrimenti fondendo i blocchi
+     * scritti su file
+     * @param input il dataset
+     * @param runs le sequenze aperte, da chiudere al termine della riconciliazione
+     * @return la sequenza ordinata
+     */
+    private Run<T> sort(Iterator<? extends T> input, List<Run<T>> runs) throws IOException {
+        if (presorted) {
+            Run<T> run = new CheckedRun(input);
+            runs.add(run);
+            return run;
+        }
+        List<T> block = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        while (input.hasNext()) {
+            block.add(input.next());
+            if (block.size() >= maxInMemory) {
+                files.add(spill(block, runs));
+                block.clear();
+            }
+        }
+        if (files.isEmpty()) {
+            Run<T> run = new MemoryRun(block);
+            runs.add(run);
+            return run;
+        }
+        // anche l'ultimo blocco va su file, cosi' in memoria resta al massimo un bean per file
+        if (!block.isEmpty())
+            files.add(spill(block, runs));
+        block = null;
+        // fusioni intermedie finche' i file non sono abbastanza pochi da essere aperti insieme
+        while (files.size() > MAX_MERGED_RUNS) {
+            List<Path> merged = new ArrayList<>();
+            for (int from = 0; from < files.size(); from += MAX_MERGED_RUNS) {
+                List<Path> group = files.subList(from, Math.min(from + MAX_MERGED_RUNS, files.size()));
+                merged.add(group.size() == 1 ? group.get(0) : write(merge(group, runs), runs));
+            }
+            files = merged;
+        }
+        return merge(files, runs);
+    }
+
+    /**
+     * Ordina un blocco e lo scrive su un file temporaneo
+     */
+    private Path spill(List<T> block, List<Run<T>> runs) throws IOException {
+        return write(new MemoryRun(block), runs);
+    }
+
+    /**
+     * Scrive una sequenza ordinata su un file temporaneo, chiudendo la sequenza
+     */
+    private Path write(Run<T> run, List<Run<T>> runs) throws IOException {
+        Path file = tempDirectory == null ? Files.createTempFile("reconcile", ".run") : Files.createTempFile(tempDirectory, "reconcile", ".run");
+        // il file viene cancellato alla chiusura delle sequenze, anche in caso di errore
+        runs.add(new FileRun(file, null));
+        try (ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            while (run.hasNext()) {
+                output.writeBoolean(true);
+                output.writeObject(run.next());
+                // senza reset lo stream terrebbe un riferimento a tutti i bean scritti
+                output.reset();
+            }
+            output.writeBoolean(false);
+        } finally {
+            run.close();
+        }
+        return file;
+    }
+
+    /**
+     * Fonde delle sequenze ordinate scritte su file
+     */
+    private Run<T> merge(List<Path> files, List<Run<T>> runs) throws IOException {
+        List<Run<T>> sources = new ArrayList<>(files.size());
+        for (Path file : files) {
+            Run<T> run = new FileRun(file, new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file))));
+            runs.add(run);
+            sources.add(run);
+        }
+        return new MergedRun(sources);
+    }
+
+    /**
+     * Una sequenza di bean ordinata per chiave, che si puo' consultare senza consumarla
+     */
+    private abstract static class Run<T> implements Closeable {
+        abstract boolean hasNext();
+
+        abstract T peek();
+
+        abstract T next();
+
+        @Override
+        public void close() throws IOException {
+            // per default non ci sono risorse da rilasciare
+        }
+    }
+
+    /**
+     * Un blocco ordinato in memoria
+     */
+    private final class MemoryRun extends Run<T> {
+        private final List<T> block;
+        private int position;
+
+        MemoryRun(List<T> block) {
+            block.sort((a, b) -> keyComparator.compare(keyExtractor.apply(a), keyExtractor.apply(b)));
+            this.block = block;
+        }
+
+        @Override
+        boolean hasNext() {
+            return position < block.size();
+        }
+
+        @Override
+        T peek() {
+            return block.get(position);
+        }
+
+        @Override
+        T next() {
+            T bean = block.get(position);
+            block.set(position++, null);
+            return bean;
+        }
+    }
+
+    /**
+     * Un dataset gia' ordinato per chiave: l'ordinamento viene verificato man mano che lo si percorre
+     */
+    private final class CheckedRun extends Run<T> {
+        private final Iterator<? extends T> input;
+        private T head;
+        private boolean hasHead;
+
+        CheckedRun(Iterator<? extends T> input) {
+            this.input = input;
+            advance();
+        }
+
+        private void advance() {
+            T previous = head;
+            hasHead = input.hasNext();
+            head = hasHead ? input.next() : null;
+            if (hasHead && previous != null && keyComparator.compare(keyExtractor.apply(previous), keyExtractor.apply(head)) > 0)
+                throw new IllegalArgumentException("Il dataset non e' ordinato per chiave: " + keyExtractor.apply(head));
+        }
+
+        @Override
+        boolean hasNext() {
+            return hasHead;
+        }
+
+        @Override
+        T peek() {
+            return head;
+        }
+
+        @Override
+        T next() {
+            T bean = head;
+            advance();
+            return bean;
+        }
+    }
+
+    /**
+     * Un blocco ordinato scritto su file, letto un bean alla volta; il file viene cancellato alla chiusura
+     */
+    private final class FileRun extends Run<T> {
+        private final Path file;
+        private final ObjectInputStream input;
+        private T head;
+        private boolean hasHead;
+
+        FileRun(Path file, ObjectInputStream input) throws IOException {
+            this.file = file;
+            this.input = input;
+            if (input != null)
+                advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            try {
+                hasHead = input.readBoolean();
+                head = hasHead ? (T) input.readObject() : null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        boolean hasNext() {
+            return hasHead;
+        }
+
+        @Override
+        T peek() {
+            return head;
+        }
+
+        @Override
+        T next() {
+            T bean = head;
+            advance();
+            return bean;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (input != null)
+                    input.close();
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * La fusione di piu' sequenze ordinate: a parita' di chiave prevale la sequenza precedente, per cui i bean
+     * con la stessa chiave restano nell'ordine del dataset
+     */
+    private final class MergedRun extends Run<T> {
+        private final List<Run<T>> sources;
+        private final PriorityQueue<Integer> heads;
+
+        MergedRun(List<Run<T>> sources) {
+            this.sources = sources;
+            this.heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+                int comparison = keyComparator.compare(keyExtractor.apply(sources.get(a).peek()), keyExtractor.apply(sources.get(b).peek()));
+                return comparison != 0 ? comparison : Integer.compare(a, b);
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).hasNext())
+                    heads.add(i);
+            }
+        }
+
+        @Override
+        boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        T peek() {
+            return sources.get(heads.peek()).peek();
+        }
+
+        @Override
+        T next() {
+            int source = heads.poll();
+            T bean = sources.get(source).next();
+            if (sources.get(source).hasNext())
+                heads.add(source);
+            return bean;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Run<T> source : sources)
+                source.close();
+        }
+    }
+
+    /**
+     * Il merge join delle due sequenze ordinate: restituisce le coppie di bean con la stessa chiave e consegna
+     * al listener, strada facendo, i bean presenti in una sola delle due sequenze
+     */
+    private final class Join implements Iterable<BeanPair<T>>, Iterator<BeanPair<T>> {
+        private final Run<T> first;
+        private final Run<T> second;
+        private final ReconciliationListener<? super T, ? super K> listener;
+        private BeanPair<T> next;
+
+        Join(Run<T> first, Run<T> second, ReconciliationListener<? super T, ? super K> listener) {
+            this.first = first;
+            this.second = second;
+            this.listener = listener;
+        }
+
+        @Override
+        public Iterator<BeanPair<T>> iterator() {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && (first.hasNext() || second.hasNext())) {
+                int comparison;
+                if (!first.hasNext())
+                    comparison = 1;
+                else if (!second.hasNext())
+                    comparison = -1;
+                else
+                    comparison = keyComparator.compare(keyExtractor.apply(first.peek()), keyExtractor.apply(second.peek()));
+                if (comparison < 0) {
+                    T bean = first.next();
+                    listener.onDeleted(keyExtractor.apply(bean), bean);
+                } else if (comparison > 0) {
+                    T bean = second.next();
+                    listener.onInserted(keyExtractor.apply(bean), bean);
+                } else {
+                    next = BeanPair.of(first.next(), second.next());
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public BeanPair<T> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            BeanPair<T> pair = next;
+            next = null;
+            return pair;
+        }
+    }
+
+    /**
+     * Builder del riconciliatore
+     *
+     * @param <T> la tipologia dei bean
+     * @param <K> la tipologia delle chiavi
+     */
+    public static final class Builder<T, K> {
+        private final Function<? super T, ? extends K> keyExtractor;
+        private final Comparator<? super K> keyComparator;
+        private BatchComparator comparator = BatchComparator.builder().build();
+        private int maxInMemory = 100_000;
+        private Path tempDirectory;
+        private boolean presorted;
+
+        private Builder(Function<? super T, ? extends K> keyExtractor, Comparator<? super K> keyComparator) {
+            if (keyExtractor == null || keyComparator == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            this.keyExtractor = keyExtractor;
+            this.keyComparator = keyComparator;
+        }
+
+        /**
+         * @param options le opzioni di comparazione dei bean abbinati
+         * @return il builder
+         */
+        public Builder<T, K> options(ComparisonOptions options) {
+            return comparator(BatchComparator.builder().options(options).build());
+        }
+
+        /**
+         * @param comparator il comparatore delle coppie di bean abbinati (con le sue opzioni e il suo executor);
+         *                   i risultati vanno ricevuti nell'ordine delle coppie o appena disponibili, a scelta
+         * @return il builder
+         */
+        public Builder<T, K> comparator(BatchComparator comparator) {
+            if (comparator == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            this.comparator = comparator;
+            return this;
+        }
+
+        /**
+         * @param maxInMemory il numero massimo di bean di ciascun dataset tenuti in memoria durante l'ordinamento
+         *                    (default 100.000)
+         * @return il builder
+         */
+        public Builder<T, K> maxInMemory(int maxInMemory) {
+            if (maxInMemory <= 0)
+                throw new IllegalArgumentException("Il numero massimo di bean in memoria deve essere maggiore di zero!");
+            this.maxInMemory = maxInMemory;
+            return this;
+        }
+
+        /**
+         * @param tempDirectory la directory dei file temporanei (default quella di sistema)
+         * @return il builder
+         */
+        public Builder<T, K> tempDirectory(Path tempDirectory) {
+            if (tempDirectory == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            this.tempDirectory = tempDirectory;
+            return this;
+        }
+
+        /**
+         * Dichiara i dataset gia' ordinati per chiave (ad es. estratti con ORDER BY): non vengono ordinati ne'
+         * scritti su file, e un bean fuori ordine interrompe la riconciliazione con una IllegalArgumentException
+         * @param presorted true se i dataset sono gia' ordinati
+         * @return il builder
+         */
+        public Builder<T, K> presorted(boolean presorted) {
+            this.presorted = presorted;
+            return this;
+        }
+
+        /**
+         * @return il riconciliatore
+         */
+        public DatasetReconciler<T, K> build() {
+            return new DatasetReconciler<>(this);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package it.sogei.beanutils;
+
+import java.lang.annotation.*;
+
+/**
+ * Esclude un campo dalla comparazione, in qualunque bean e a qualunque profondita' si trovi (a differenza
+ * di {@link ComparisonOptions.Builder#exclude(String...)} vale solo per questo campo e non per tutti i
+ * campi con lo stesso nome).
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface DiffIgnore {
+}
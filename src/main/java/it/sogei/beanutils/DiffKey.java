@@ -0,0 +1,17 @@
+package it.sogei.beanutils;
+
+import java.lang.annotation.*;
+
+/**
+ * Indica il campo che identifica il bean quando e' elemento di una collezione: gli elementi delle due
+ * collezioni vengono abbinati per il valore di questo campo, come con
+ * {@link ComparisonOptions.Builder#keyExtractor(Class, java.util.function.Function)} (che, se registrato
+ * per la classe, prevale sull'annotazione).
+ *
+ * Un bean puo' avere al massimo un campo chiave.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface DiffKey {
+}
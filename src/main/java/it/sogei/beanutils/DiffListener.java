@@ -0,0 +1,79 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+
+/**
+ * Riceve le differenze man mano che il comparatore le trova, senza che vengano raccolte in memoria
+ * (ad es. per scriverle su un log o su un file).
+ *
+ * Il {@link DiffPath} dice dove si trova la differenza: un campo ({@code a.b.desc}), la posizione di un elemento
+ * ({@code lista[3]}) o una chiave ({@code mappa[chiave]}); il campo passato e' quello a cui appartiene la
+ * differenza (per gli elementi di collezioni, mappe e array e' il campo della collezione).
+ *
+ * Il listener non viene mai invocato in concorrenza, nemmeno nella comparazione parallela.
+ */
+public interface DiffListener {
+    /**
+     * Un valore differente nei due bean
+     * @param path il percorso della differenza
+     * @param field il campo che contiene la differenza
+     * @param left il valore nel primo bean
+     * @param right il valore nel secondo bean
+     */
+    void onDifference(DiffPath path, Field field, Object left, Object right);
+
+    /**
+     * Un elemento (di una collezione, di una lista o di una mappa) presente solo nel secondo bean
+     * @param path il percorso della collezione, o dell'elemento se ha una posizione o una chiave
+     * @param field il campo che contiene la collezione
+     * @param element l'elemento aggiunto
+     */
+    default void onAdded(DiffPath path, Field field, Object element) {
+        onDifference(path, field, null, element);
+    }
+
+    /**
+     * Un elemento (di una collezione, di una lista o di una mappa) presente solo nel primo bean
+     * @param path il percorso della collezione, o dell'elemento se ha una posizione o una chiave
+     * @param field il campo che contiene la collezione
+     * @param element l'elemento rimosso
+     */
+    default void onRemoved(DiffPath path, Field field, Object element) {
+        onDifference(path, field, element, null);
+    }
+
+    /**
+     * Un elemento di una lista confrontata come sequenza (vedi {@link ComparisonOptions.Builder#orderedLists})
+     * spostato in un'altra posizione; le due posizioni del percorso possono coincidere quando gli elementi
+     * intorno sono stati spostati a loro volta (ad es. l'elemento centrale di una lista invertita).
+     * Di default viene riportato come valore differente
+     * @param path il percorso dell'elemento, con la posizione nel primo e nel secondo bean
+     * @param field il campo che contiene la lista
+     * @param left l'elemento nel primo bean
+     * @param right l'elemento nel secondo bean
+     */
+    default void onMoved(DiffPath path, Field field, Object left, Object right) {
+        onDifference(path, field, left, right);
+    }
+
+    /**
+     * Un valore non confrontato perche' non caricato (un proxy o una collezione a caricamento differito di un
+     * ORM, vedi {@link LoadStrategy}) in almeno uno dei due bean; di default viene ignorato
+     * @param path il percorso del valore
+     * @param field il campo che contiene il valore
+     * @param left il valore nel primo bean
+     * @param right il valore nel secondo bean
+     */
+    default void onNotCompared(DiffPath path, Field field, Object left, Object right) {
+    }
+
+    /**
+     * La comparazione ha esaurito un budget delle opzioni (vedi {@link ComparisonOptions.Builder#timeout}): per la
+     * profondita' il sottografo del percorso non e' stato attraversato, per i nodi e la durata la comparazione si e'
+     * interrotta nel percorso indicato e le differenze ricevute sono solo una parte; di default viene ignorato
+     * @param path il percorso del sottografo non attraversato o in cui la comparazione si e' interrotta
+     * @param budget il budget esaurito
+     */
+    default void onTruncated(DiffPath path, DiffResult.Truncation budget) {
+    }
+}
@@ -0,0 +1,140 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+
+/**
+ * Il percorso di una differenza a partire dal bean confrontato, ad es. {@code complexBean.stringArray[1]},
+ * {@code simpleBeanList[3].desc} o {@code map[chiave]}.
+ *
+ * Il percorso e' una lista concatenata immutabile di nodi: ogni nodo e' un campo, una posizione all'interno
+ * di un array o di una lista, oppure una chiave (di una mappa o di un elemento abbinato tramite estrattore di chiave).
+ * Nodi con lo stesso padre condividono il padre, per cui le differenze di uno stesso oggetto costano un solo nodo ciascuna.
+ */
+public final class DiffPath {
+    /**
+     * La tipologia di un nodo del percorso
+     */
+    public enum Kind {
+        /** un campo di un bean */
+        FIELD,
+        /** una posizione in un array o in una lista */
+        INDEX,
+        /** una chiave di una mappa o di un elemento di una collezione */
+        KEY
+    }
+
+    private final DiffPath parent;
+    private final Kind kind;
+    private final Field field;
+    private final int firstIndex;
+    private final int secondIndex;
+    private final Object key;
+
+    private DiffPath(DiffPath parent, Kind kind, Field field, int firstIndex, int secondIndex, Object key) {
+        this.parent = parent;
+        this.kind = kind;
+        this.field = field;
+        this.firstIndex = firstIndex;
+        this.secondIndex = secondIndex;
+        this.key = key;
+    }
+
+    /**
+     * @param parent il percorso padre (null per un campo del bean confrontato)
+     * @param field il campo
+     * @return il percorso del campo
+     */
+    static DiffPath field(DiffPath parent, Field field) {
+        return new DiffPath(parent, Kind.FIELD, field, -1, -1, null);
+    }
+
+    /**
+     * @param firstIndex la posizione nel primo bean (-1 se l'elemento e' stato aggiunto)
+     * @param secondIndex la posizione nel secondo bean (-1 se l'elemento e' stato rimosso)
+     * @return il percorso dell'elemento in quella posizione
+     */
+    DiffPath index(int firstIndex, int secondIndex) {
+        return new DiffPath(this, Kind.INDEX, null, firstIndex, secondIndex, null);
+    }
+
+    /**
+     * @param key la chiave
+     * @return il percorso dell'elemento con quella chiave
+     */
+    DiffPath key(Object key) {
+        return new DiffPath(this, Kind.KEY, null, -1, -1, key);
+    }
+
+    /**
+     * @return il percorso padre, null per un campo del bean confrontato
+     */
+    public DiffPath getParent() {
+        return parent;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return il campo (solo per i nodi {@link Kind#FIELD})
+     */
+    public Field getField() {
+        return field;
+    }
+
+    /**
+     * @return la posizione nel primo bean (solo per i nodi {@link Kind#INDEX}, -1 se l'elemento e' stato aggiunto)
+     */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * @return la posizione nel secondo bean (solo per i nodi {@link Kind#INDEX}, -1 se l'elemento e' stato rimosso)
+     */
+    public int getSecondIndex() {
+        return secondIndex;
+    }
+
+    /**
+     * @return la chiave (solo per i nodi {@link Kind#KEY})
+     */
+    public Object getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        // i nodi vengono raccolti dalla radice senza ricorsione: il percorso puo' essere molto profondo
+        int length = 0;
+        for (DiffPath node = this; node != null; node = node.parent)
+            length++;
+        DiffPath[] nodes = new DiffPath[length];
+        for (DiffPath node = this; node != null; node = node.parent)
+            nodes[--length] = node;
+        StringBuilder builder = new StringBuilder();
+        for (DiffPath node : nodes) {
+            switch (node.kind) {
+                case FIELD:
+                    if (node.parent != null)
+                        builder.append('.');
+                    builder.append(node.field.getName());
+                    break;
+                case INDEX:
+                    builder.append('[');
+                    if (node.firstIndex < 0)
+                        builder.append(node.secondIndex);
+                    else if (node.secondIndex < 0 || node.secondIndex == node.firstIndex)
+                        builder.append(node.firstIndex);
+                    else
+                        builder.append(node.firstIndex).append("->").append(node.secondIndex);
+                    builder.append(']');
+                    break;
+                default:
+                    builder.append('[').append(node.key).append(']');
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,587 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Il risultato compatto di una comparazione: a differenza della mappa restituita da
+ * {@link BeanComparator#compare(Object, Object, ComparisonOptions)} conserva il percorso di ogni differenza,
+ * per cui una modifica di {@code desc} in un bean annidato non si confonde con quella del bean principale.
+ *
+ * Le differenze sono memorizzate per colonne: per ciascuna l'identificativo del percorso e del campo, la
+ * tipologia di modifica e i due valori, in array paralleli. I percorsi e i campi sono memorizzati una sola
+ * volta (i percorsi come tabella di nodi con il padre) e gli oggetti {@link Difference} e {@link DiffPath}
+ * vengono creati solo quando si accede alle viste.
+ *
+ * Il risultato e' immutabile e si ottiene con {@link BeanComparator#diff(Object, Object, ComparisonOptions)}.
+ */
+public final class DiffResult implements Iterable<DiffResult.Difference> {
+    /**
+     * La tipologia di una differenza
+     */
+    public enum ChangeKind {
+        /** valore modificato */
+        CHANGED,
+        /** elemento presente solo nel secondo bean */
+        ADDED,
+        /** elemento presente solo nel primo bean */
+        REMOVED,
+        /** elemento di una lista confrontata come sequenza spostato in un'altra posizione (vedi {@link DiffListener#onMoved}) */
+        MOVED
+    }
+
+    /**
+     * Il budget della comparazione che ha reso il risultato parziale
+     */
+    public enum Truncation {
+        /** alcuni sottografi oltre la profondita' massima non sono stati attraversati */
+        DEPTH,
+        /** la comparazione si e' interrotta dopo il numero massimo di sottografi */
+        NODES,
+        /** la comparazione si e' interrotta allo scadere della durata massima */
+        DEADLINE
+    }
+
+    private static final ChangeKind[] CHANGE_KINDS = ChangeKind.values();
+    private static final DiffPath.Kind[] PATH_KINDS = DiffPath.Kind.values();
+
+    /*
+     * Le colonne delle differenze
+     */
+    private final int size;
+    private final int[] pathIds;
+    private final int[] fieldIds;
+    private final byte[] changeKinds;
+    private final Object[] lefts;
+    private final Object[] rights;
+
+    /*
+     * La tabella dei nodi dei percorsi (il padre e' un identificativo della stessa tabella, -1 per la radice)
+     * e quella dei campi
+     */
+    private final int[] pathParents;
+    private final byte[] pathKinds;
+    private final Object[] pathSegments;
+    private final int[] pathFirstIndexes;
+    private final int[] pathSecondIndexes;
+    private final Field[] fields;
+
+    /*
+     * I percorsi dei valori non caricati, che non sono stati confrontati, e i campi che li contengono
+     */
+    private final List<DiffPath> notCompared;
+    private final Field[] notComparedFields;
+
+    /*
+     * I percorsi in cui la comparazione e' stata troncata e i budget esauriti
+     */
+    private final List<DiffPath> truncated;
+    private final Truncation[] truncations;
+
+    /*
+     * I percorsi ricostruiti e le viste raggruppate, calcolati solo al primo accesso
+     */
+    private DiffPath[] paths;
+    private Map<String, List<Difference>> byPath;
+    private Map<Field, List<Difference>> byField;
+
+    private DiffResult(Recorder recorder) {
+        this.size = recorder.size;
+        this.pathIds = Arrays.copyOf(recorder.pathIds, size);
+        this.fieldIds = Arrays.copyOf(recorder.fieldIds, size);
+        this.changeKinds = Arrays.copyOf(recorder.changeKinds, size);
+        this.lefts = Arrays.copyOf(recorder.lefts, size);
+        this.rights = Arrays.copyOf(recorder.rights, size);
+        int pathCount = recorder.pathCount;
+        this.pathParents = Arrays.copyOf(recorder.pathParents, pathCount);
+        this.pathKinds = Arrays.copyOf(recorder.pathKinds, pathCount);
+        this.pathSegments = Arrays.copyOf(recorder.pathSegments, pathCount);
+        this.pathFirstIndexes = Arrays.copyOf(recorder.pathFirstIndexes, pathCount);
+        this.pathSecondIndexes = Arrays.copyOf(recorder.pathSecondIndexes, pathCount);
+        this.fields = recorder.fields.toArray(new Field[recorder.fields.size()]);
+        this.notCompared = recorder.notCompared.isEmpty() ? Collections.emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(recorder.notCompared));
+        this.notComparedFields = recorder.notComparedFields.toArray(new Field[recorder.notComparedFields.size()]);
+        this.truncated = recorder.truncated.isEmpty() ? Collections.emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(recorder.truncated));
+        this.truncations = recorder.truncations.toArray(new Truncation[recorder.truncations.size()]);
+    }
+
+    /**
+     * @return il numero di differenze
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true se i due bean non hanno differenze
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return i percorsi dei valori non confrontati perche' non caricati (proxy e collezioni a caricamento
+     *         differito, vedi {@link LoadStrategy}), che non sono tra le differenze
+     */
+    public List<DiffPath> getNotCompared() {
+        return notCompared;
+    }
+
+    /**
+     * @return true se la comparazione ha esaurito un budget delle opzioni e il risultato e' parziale
+     */
+    public boolean isTruncated() {
+        return truncations.length > 0;
+    }
+
+    /**
+     * @return il budget che ha interrotto la comparazione ({@link Truncation#NODES} o {@link Truncation#DEADLINE}),
+     *         altrimenti {@link Truncation#DEPTH} se alcuni sottografi non sono stati attraversati, null se il
+     *         risultato e' completo
+     */
+    public Truncation getTruncation() {
+        Truncation truncation = null;
+        for (Truncation budget : truncations) {
+            if (truncation == null || budget != Truncation.DEPTH)
+                truncation = budget;
+        }
+        return truncation;
+    }
+
+    /**
+     * @return i percorsi dei sottografi non attraversati per la profondita' e quello in cui la comparazione si e'
+     *         interrotta, nell'ordine in cui sono stati incontrati
+     */
+    public List<DiffPath> getTruncatedPaths() {
+        return truncated;
+    }
+
+    /**
+     * @param index la posizione della differenza (nell'ordine in cui sono state trovate)
+     * @return il percorso della differenza
+     */
+    public DiffPath getPath(int index) {
+        return path(pathIds[checkIndex(index)]);
+    }
+
+    /**
+     * @param index la posizione della differenza
+     * @return il campo che contiene la differenza
+     */
+    public Field getField(int index) {
+        return fields[fieldIds[checkIndex(index)]];
+    }
+
+    /**
+     * @param index la posizione della differenza
+     * @return la tipologia della differenza
+     */
+    public ChangeKind getChangeKind(int index) {
+        return CHANGE_KINDS[changeKinds[checkIndex(index)]];
+    }
+
+    /**
+     * @param index la posizione della differenza
+     * @return il valore nel primo bean
+     */
+    public Object getLeft(int index) {
+        return lefts[checkIndex(index)];
+    }
+
+    /**
+     * @param index la posizione della differenza
+     * @return il valore nel secondo bean
+     */
+    public Object getRight(int index) {
+        return rights[checkIndex(index)];
+    }
+
+    /**
+     * @param index la posizione della differenza
+     * @return la differenza
+     */
+    public Difference get(int index) {
+        return new Difference(this, checkIndex(index));
+    }
+
+    /**
+     * Scorre le differenze nell'ordine in cui sono state trovate, creando gli oggetti {@link Difference} al volo
+     */
+    @Override
+    public Iterator<Difference> iterator() {
+        return asList().iterator();
+    }
+
+    /**
+     * @return la vista delle differenze come lista
+     */
+    public List<Difference> asList() {
+        return new AbstractList<Difference>() {
+            @Override
+            public Difference get(int index) {
+                return DiffResult.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Consegna le differenze ad un listener, come se la comparazione venisse ripetuta
+     * @param listener il listener
+     */
+    public void replay(DiffListener listener) {
+        for (int i = 0; i < size; i++) {
+            switch (CHANGE_KINDS[changeKinds[i]]) {
+                case ADDED:
+                    listener.onAdded(getPath(i), getField(i), rights[i]);
+                    break;
+                case REMOVED:
+                    listener.onRemoved(getPath(i), getField(i), lefts[i]);
+                    break;
+                case MOVED:
+                    listener.onMoved(getPath(i), getField(i), lefts[i], rights[i]);
+                    break;
+                default:
+                    listener.onDifference(getPath(i), getField(i), lefts[i], rights[i]);
+            }
+        }
+        // i valori non confrontati (senza i valori, che non sono conservati) e i troncamenti vengono consegnati dopo le differenze
+        for (int i = 0; i < notComparedFields.length; i++)
+            listener.onNotCompared(notCompared.get(i), notComparedFields[i], null, null);
+        for (int i = 0; i < truncations.length; i++)
+            listener.onTruncated(truncated.get(i), truncations[i]);
+    }
+
+    /**
+     * @return le differenze raggruppate per percorso (ad es. {@code simpleBeanList[3].desc}), nell'ordine in cui
+     *         i percorsi sono stati trovati
+     */
+    public Map<String, List<Difference>> byPath() {
+        if (byPath == null) {
+            Map<String, List<Difference>> map = new LinkedHashMap<>();
+            for (Map.Entry<Integer, List<Difference>> entry : group(pathIds, pathParents.length).entrySet())
+                map.put(path(entry.getKey()).toString(), entry.getValue());
+            byPath = Collections.unmodifiableMap(map);
+        }
+        return byPath;
+    }
+
+    /**
+     * @return le differenze raggruppate per campo, nell'ordine in cui i campi sono stati trovati
+     */
+    public Map<Field, List<Difference>> byField() {
+        if (byField == null) {
+            Map<Field, List<Difference>> map = new LinkedHashMap<>();
+            for (Map.Entry<Integer, List<Difference>> entry : group(fieldIds, fields.length).entrySet())
+                map.put(fields[entry.getKey()], entry.getValue());
+            byField = Collections.unmodifiableMap(map);
+        }
+        return byField;
+    }
+
+    /**
+     * @return le differenze nel formato di {@link BeanComparator#compare(Object, Object, ComparisonOptions)}
+     */
+    public Map<Field, List<Map.Entry<Object, Object>>> toMap() {
+        DifferenceCollector collector = new DifferenceCollector();
+        replay(collector);
+        return collector.differentFields();
+    }
+
+    /**
+     * Raggruppa le differenze per identificativo (di percorso o di campo) con un counting sort: ogni gruppo e'
+     * una vista su un intervallo di un unico array di posizioni
+     */
+    private Map<Integer, List<Difference>> group(int[] ids, int idCount) {
+        int[] starts = new int[idCount + 1];
+        for (int i = 0; i < size; i++)
+            starts[ids[i] + 1]++;
+        for (int id = 0; id < idCount; id++)
+            starts[id + 1] += starts[id];
+        final int[] order = new int[size];
+        int[] next = Arrays.copyOf(starts, idCount);
+        for (int i = 0; i < size; i++)
+            order[next[ids[i]]++] = i;
+        Map<Integer, List<Difference>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            final int id = ids[i];
+            if (!groups.containsKey(id)) {
+                final int from = starts[id];
+                final int length = starts[id + 1] - from;
+                groups.put(id, new AbstractList<Difference>() {
+                    @Override
+                    public Difference get(int index) {
+                        if (index < 0 || index >= length)
+                            throw new IndexOutOfBoundsException("Indice non valido: " + index);
+                        return new Difference(DiffResult.this, order[from + index]);
+                    }
+
+                    @Override
+                    public int size() {
+                        return length;
+                    }
+                });
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Ricostruisce (una sola volta) il percorso con l'identificativo indicato, a partire dall'antenato piu'
+     * vicino gia' ricostruito (senza ricorsione, per i percorsi molto profondi)
+     */
+    private DiffPath path(int id) {
+        if (paths == null)
+            paths = new DiffPath[pathParents.length];
+        if (paths[id] != null)
+            return paths[id];
+        int[] pending = new int[16];
+        int count = 0;
+        for (int current = id; current >= 0 && paths[current] == null; current = pathParents[current]) {
+            if (count == pending.length)
+                pending = Arrays.copyOf(pending, count * 2);
+            pending[count++] = current;
+        }
+        while (count > 0) {
+            int current = pending[--count];
+            DiffPath parent = pathParents[current] < 0 ? null : paths[pathParents[current]];
+            switch (PATH_KINDS[pathKinds[current]]) {
+                case FIELD:
+                    paths[current] = DiffPath.field(parent, (Field) pathSegments[current]);
+                    break;
+                case INDEX:
+                    paths[current] = parent.index(pathFirstIndexes[current], pathSecondIndexes[current]);
+                    break;
+                default:
+                    paths[current] = parent.key(pathSegments[current]);
+            }
+        }
+        return paths[id];
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Indice non valido: " + index);
+        return index;
+    }
+
+    /**
+     * Una differenza del risultato, creata al momento dell'accesso
+     */
+    public static final class Difference {
+        private final DiffResult result;
+        private final int index;
+
+        private Difference(DiffResult result, int index) {
+            this.result = result;
+            this.index = index;
+        }
+
+        public DiffPath getPath() {
+            return result.getPath(index);
+        }
+
+        public Field getField() {
+            return result.getField(index);
+        }
+
+        public ChangeKind getChangeKind() {
+            return result.getChangeKind(index);
+        }
+
+        public Object getLeft() {
+            return result.getLeft(index);
+        }
+
+        public Object getRight() {
+            return result.getRight(index);
+        }
+
+        @Override
+        public String toString() {
+            return getPath() + " " + getChangeKind() + " " + getLeft() + " -> " + getRight();
+        }
+    }
+
+    /**
+     * Il listener che riempie le colonne durante la comparazione, assegnando un identificativo ad ogni
+     * percorso e ad ogni campo distinti
+     */
+    static final class Recorder implements DiffListener {
+        private int size;
+        private int[] pathIds = new int[16];
+        private int[] fieldIds = new int[16];
+        private byte[] changeKinds = new byte[16];
+        private Object[] lefts = new Object[16];
+        private Object[] rights = new Object[16];
+
+        private int pathCount;
+        private int[] pathParents = new int[16];
+        private byte[] pathKinds = new byte[16];
+        private Object[] pathSegments = new Object[16];
+        private int[] pathFirstIndexes = new int[16];
+        private int[] pathSecondIndexes = new int[16];
+        private final Map<PathKey, Integer> pathTable = new HashMap<>();
+
+        private final List<Field> fields = new ArrayList<>();
+        private final Map<Field, Integer> fieldTable = new HashMap<>();
+
+        private final List<DiffPath> notCompared = new ArrayList<>();
+        private final List<Field> notComparedFields = new ArrayList<>();
+        private final List<DiffPath> truncated = new ArrayList<>();
+        private final List<Truncation> truncations = new ArrayList<>();
+
+        /*
+         * L'ultimo nodo interned: differenze consecutive condividono quasi sempre gli stessi nodi
+         */
+        private DiffPath lastPath;
+        private int lastPathId = -1;
+
+        @Override
+        public void onDifference(DiffPath path, Field field, Object left, Object right) {
+            add(path, field, ChangeKind.CHANGED, left, right);
+        }
+
+        @Override
+        public void onAdded(DiffPath path, Field field, Object element) {
+            add(path, field, ChangeKind.ADDED, null, element);
+        }
+
+        @Override
+        public void onRemoved(DiffPath path, Field field, Object element) {
+            add(path, field, ChangeKind.REMOVED, element, null);
+        }
+
+        @Override
+        public void onMoved(DiffPath path, Field field, Object left, Object right) {
+            add(path, field, ChangeKind.MOVED, left, right);
+        }
+
+        @Override
+        public void onNotCompared(DiffPath path, Field field, Object left, Object right) {
+            notCompared.add(path);
+            notComparedFields.add(field);
+        }
+
+        @Override
+        public void onTruncated(DiffPath path, Truncation budget) {
+            truncated.add(path);
+            truncations.add(budget);
+        }
+
+        /**
+         * @return il risultato, con le colonne ridotte alla dimensione effettiva
+         */
+        DiffResult build() {
+            return new DiffResult(this);
+        }
+
+        private void add(DiffPath path, Field field, ChangeKind kind, Object left, Object right) {
+            if (size == pathIds.length) {
+                int length = size * 2;
+                pathIds = Arrays.copyOf(pathIds, length);
+                fieldIds = Arrays.copyOf(fieldIds, length);
+                changeKinds = Arrays.copyOf(changeKinds, length);
+                lefts = Arrays.copyOf(lefts, length);
+                rights = Arrays.copyOf(rights, length);
+            }
+            pathIds[size] = intern(path);
+            Integer fieldId = fieldTable.get(field);
+            if (fieldId == null) {
+                fieldId = fields.size();
+                fields.add(field);
+                fieldTable.put(field, fieldId);
+            }
+            fieldIds[size] = fieldId;
+            changeKinds[size] = (byte) kind.ordinal();
+            lefts[size] = left;
+            rights[size] = right;
+            size++;
+        }
+
+        private int intern(DiffPath path) {
+            if (path == lastPath)
+                return lastPathId;
+            if (path.getParent() == null || path.getParent() == lastPath)
+                return intern(path, path.getParent() == null ? -1 : lastPathId);
+            // i nodi fino all'ultimo registrato, senza ricorsione: il percorso puo' essere molto profondo
+            ArrayDeque<DiffPath> pending = new ArrayDeque<>();
+            DiffPath current = path;
+            for (; current != null && current != lastPath; current = current.getParent())
+                pending.push(current);
+            int id = current == null ? -1 : lastPathId;
+            for (DiffPath node : pending)
+                id = intern(node, id);
+            return id;
+        }
+
+        /**
+         * Registra un nodo del percorso, dato l'identificativo del padre
+         */
+        private int intern(DiffPath path, int parentId) {
+            Object segment = path.getKind() == DiffPath.Kind.FIELD ? path.getField() : path.getKey();
+            PathKey key = new PathKey(parentId, path.getKind(), segment, path.getFirstIndex(), path.getSecondIndex());
+            Integer id = pathTable.get(key);
+            if (id == null) {
+                id = pathCount;
+                if (pathCount == pathParents.length) {
+                    int length = pathCount * 2;
+                    pathParents = Arrays.copyOf(pathParents, length);
+                    pathKinds = Arrays.copyOf(pathKinds, length);
+                    pathSegments = Arrays.copyOf(pathSegments, length);
+                    pathFirstIndexes = Arrays.copyOf(pathFirstIndexes, length);
+                    pathSecondIndexes = Arrays.copyOf(pathSecondIndexes, length);
+                }
+                pathParents[pathCount] = parentId;
+                pathKinds[pathCount] = (byte) path.getKind().ordinal();
+                pathSegments[pathCount] = segment;
+                pathFirstIndexes[pathCount] = path.getFirstIndex();
+                pathSecondIndexes[pathCount] = path.getSecondIndex();
+                pathCount++;
+                pathTable.put(key, id);
+            }
+            lastPath = path;
+            lastPathId = id;
+            return id;
+        }
+    }
+
+    /**
+     * La chiave di un nodo di percorso nella tabella dei percorsi
+     */
+    private static final class PathKey {
+        private final int parentId;
+        private final DiffPath.Kind kind;
+        private final Object segment;
+        private final int firstIndex;
+        private final int secondIndex;
+
+        PathKey(int parentId, DiffPath.Kind kind, Object segment, int firstIndex, int secondIndex) {
+            this.parentId = parentId;
+            this.kind = kind;
+            this.segment = segment;
+            this.firstIndex = firstIndex;
+            this.secondIndex = secondIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PathKey))
+                return false;
+            PathKey other = (PathKey) obj;
+            return parentId == other.parentId && kind == other.kind && firstIndex == other.firstIndex
+                    && secondIndex == other.secondIndex && Objects.equals(segment, other.segment);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((31 * parentId + kind.hashCode()) * 31 + Objects.hashCode(segment)) * 31 + 17 * firstIndex + secondIndex;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package it.sogei.beanutils;
+
+import java.lang.annotation.*;
+
+/**
+ * Indica un bean per cui l'annotation processor {@code it.sogei.beanutils.processor.DiffableProcessor} genera
+ * in compilazione un comparatore dedicato, che legge i campi direttamente (o tramite i getter per i campi
+ * privati) senza reflection.
+ *
+ * Il comparatore generato si chiama come la classe (con le classi annidate separate da "_") seguita da
+ * "_Diff", si trova nello stesso package, e' registrato come servizio di {@link GeneratedComparator} e viene
+ * usato automaticamente da {@link BeanComparator}; se non e' presente (ad es. processor non attivo) la
+ * comparazione avviene via reflection, con lo stesso risultato.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Diffable {
+}
@@ -0,0 +1,40 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Il listener che raccoglie le differenze nella mappa restituita da {@link BeanComparator#compare(Object, Object, ComparisonOptions)}:
+ * le differenze con una posizione diventano {@link IndexedEntry}, quelle con una chiave {@link KeyedEntry}.
+ */
+final class DifferenceCollector implements DiffListener {
+    private final Map<Field, List<Map.Entry<Object, Object>>> differentFields = new HashMap<>();
+
+    /**
+     * @return la mappa dei campi con valore differente
+     */
+    Map<Field, List<Map.Entry<Object, Object>>> differentFields() {
+        return differentFields;
+    }
+
+    @Override
+    public void onDifference(DiffPath path, Field field, Object left, Object right) {
+        Map.Entry<Object, Object> entry;
+        switch (path.getKind()) {
+            case INDEX:
+                entry = new IndexedEntry(path.getFirstIndex(), path.getSecondIndex(), left, right);
+                break;
+            case KEY:
+                entry = new KeyedEntry(path.getKey(), left, right);
+                break;
+            default:
+                entry = new AbstractMap.SimpleEntry<>(left, right);
+        }
+        List<Map.Entry<Object, Object>> list = differentFields.get(field);
+        if (list == null) {
+            list = new ArrayList<>();
+            differentFields.put(field, list);
+        }
+        list.add(entry);
+    }
+}
@@ -0,0 +1,243 @@
+package it.sogei.beanutils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Accesso in lettura ad un campo di un bean.
+ *
+ * L'accessor viene creato una sola volta per campo e conservato nel {@link ClassPlan} della classe:
+ * quando possibile si basa su un {@link MethodHandle}, che il JIT riesce ad ottimizzare nei cicli di
+ * comparazione, altrimenti (ad es. moduli che non consentono l'accesso) ricade sulla reflection classica.
+ */
+abstract class FieldAccessor {
+    /**
+     * Il tipo dei getter: (Object)Object
+     */
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    final Field field;
+
+    FieldAccessor(Field field) {
+        this.field = field;
+    }
+
+    /**
+     * Crea l'accessor del campo, preferendo i method handle alla reflection
+     * @param field il campo
+     * @return l'accessor
+     */
+    static FieldAccessor of(Field field) {
+        try {
+            field.setAccessible(true);
+        } catch (RuntimeException e) {
+            // modulo chiuso alla reflection: si prova comunque con l'accesso ordinario
+        }
+        try {
+            MethodHandle getter = MethodHandles.lookup().unreflectGetter(field);
+            return new MethodHandleAccessor(field, getter);
+        } catch (IllegalAccessException | RuntimeException e) {
+            return new ReflectiveAccessor(field);
+        }
+    }
+
+    /**
+     * Legge il valore del campo
+     * @param bean l'oggetto da cui leggere
+     * @return il valore (eventualmente con boxing delle primitive)
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    abstract Object get(Object bean) throws IllegalAccessException;
+
+    /*
+     * Letture senza boxing dei campi di tipo primitivo: vanno invocate solo sui campi del tipo corrispondente
+     */
+
+    abstract boolean getBoolean(Object bean) throws IllegalAccessException;
+
+    abstract byte getByte(Object bean) throws IllegalAccessException;
+
+    abstract char getChar(Object bean) throws IllegalAccessException;
+
+    abstract short getShort(Object bean) throws IllegalAccessException;
+
+    abstract int getInt(Object bean) throws IllegalAccessException;
+
+    abstract long getLong(Object bean) throws IllegalAccessException;
+
+    abstract float getFloat(Object bean) throws IllegalAccessException;
+
+    abstract double getDouble(Object bean) throws IllegalAccessException;
+
+    /**
+     * Accessor basato su method handle
+     */
+    static final class MethodHandleAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        /**
+         * Il getter con il tipo esatto del campo primitivo: (Object)int, (Object)long, etc.
+         */
+        private final MethodHandle primitiveGetter;
+
+        MethodHandleAccessor(Field field, MethodHandle getter) {
+            super(field);
+            this.getter = getter.asType(GETTER_TYPE);
+            this.primitiveGetter = field.getType().isPrimitive() ? getter.asType(MethodType.methodType(field.getType(), Object.class)) : null;
+        }
+
+        @Override
+        Object get(Object bean) {
+            try {
+                return (Object) getter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        boolean getBoolean(Object bean) {
+            try {
+                return (boolean) primitiveGetter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        byte getByte(Object bean) {
+            try {
+                return (byte) primitiveGetter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        char getChar(Object bean) {
+            try {
+                return (char) primitiveGetter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        short getShort(Object bean) {
+            try {
+                return (short) primitiveGetter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        int getInt(Object bean) {
+            try {
+                return (int) primitiveGetter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        long getLong(Object bean) {
+            try {
+                return (long) primitiveGetter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        float getFloat(Object bean) {
+            try {
+                return (float) primitiveGetter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        double getDouble(Object bean) {
+            try {
+                return (double) primitiveGetter.invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+
+    /**
+     * Accessor basato sulla reflection, usato quando non e' possibile creare un method handle
+     */
+    static final class ReflectiveAccessor extends FieldAccessor {
+        ReflectiveAccessor(Field field) {
+            super(field);
+        }
+
+        @Override
+        Object get(Object bean) throws IllegalAccessException {
+            return field.get(bean);
+        }
+
+        @Override
+        boolean getBoolean(Object bean) throws IllegalAccessException {
+            return field.getBoolean(bean);
+        }
+
+        @Override
+        byte getByte(Object bean) throws IllegalAccessException {
+            return field.getByte(bean);
+        }
+
+        @Override
+        char getChar(Object bean) throws IllegalAccessException {
+            return field.getChar(bean);
+        }
+
+        @Override
+        short getShort(Object bean) throws IllegalAccessException {
+            return field.getShort(bean);
+        }
+
+        @Override
+        int getInt(Object bean) throws IllegalAccessException {
+            return field.getInt(bean);
+        }
+
+        @Override
+        long getLong(Object bean) throws IllegalAccessException {
+            return field.getLong(bean);
+        }
+
+        @Override
+        float getFloat(Object bean) throws IllegalAccessException {
+            return field.getFloat(bean);
+        }
+
+        @Override
+        double getDouble(Object bean) throws IllegalAccessException {
+            return field.getDouble(bean);
+        }
+    }
+}
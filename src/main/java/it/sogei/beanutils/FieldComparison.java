@@ -0,0 +1,106 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+
+/**
+ * La comparazione in corso, vista dai comparatori generati (vedi {@link GeneratedComparator}): per ogni campo
+ * il codice generato passa la coppia di valori, letti senza reflection, e la comparazione verifica le
+ * esclusioni, confronta i valori (in profondita' per bean, collezioni, mappe e array) e riporta le differenze
+ * con lo stesso percorso della comparazione via reflection.
+ */
+public final class FieldComparison {
+    private final ComparisonContext context;
+
+    FieldComparison(ComparisonContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Entra nel campo se va confrontato
+     * @return false se il campo e' escluso o se la comparazione e' stata interrotta
+     */
+    private boolean enter(Field field) {
+        if (context.stopped() || context.options.rules().isExcluded(field.getName()))
+            return false;
+        context.enter(field, null);
+        return true;
+    }
+
+    public void compare(Field field, int first, int second) {
+        if (enter(field)) {
+            if (first != second)
+                context.report(field, first, second);
+            context.leave();
+        }
+    }
+
+    public void compare(Field field, long first, long second) {
+        if (enter(field)) {
+            if (first != second)
+                context.report(field, first, second);
+            context.leave();
+        }
+    }
+
+    public void compare(Field field, double first, double second) {
+        if (enter(field)) {
+            if (first != second)
+                context.report(field, first, second);
+            context.leave();
+        }
+    }
+
+    public void compare(Field field, float first, float second) {
+        if (enter(field)) {
+            if (first != second)
+                context.report(field, first, second);
+            context.leave();
+        }
+    }
+
+    public void compare(Field field, boolean first, boolean second) {
+        if (enter(field)) {
+            if (first != second)
+                context.report(field, first, second);
+            context.leave();
+        }
+    }
+
+    public void compare(Field field, short first, short second) {
+        if (enter(field)) {
+            if (first != second)
+                context.report(field, first, second);
+            context.leave();
+        }
+    }
+
+    public void compare(Field field, byte first, byte second) {
+        if (enter(field)) {
+            if (first != second)
+                context.report(field, first, second);
+            context.leave();
+        }
+    }
+
+    public void compare(Field field, char first, char second) {
+        if (enter(field)) {
+            if (first != second)
+                context.report(field, first, second);
+            context.leave();
+        }
+    }
+
+    /**
+     * Confronta i valori di un campo che non e' di tipo primitivo
+     * @param field il campo
+     * @param first il valore nel primo bean
+     * @param second il valore nel secondo bean
+     * @throws IllegalAccessException in caso di accesso violato nei sottografi confrontati via reflection
+     */
+    public void compare(Field field, Object first, Object second) throws IllegalAccessException {
+        if (enter(field)) {
+            BeanComparator.compareValues(field, ClassPlan.Kind.DYNAMIC, first, second, context);
+            context.leave();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package it.sogei.beanutils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Le impronte strutturali (hash a 64 bit) dei sottografi di un bean, calcolate con le stesse regole di
+ * {@link BeanComparator#compare(Object, Object, ComparisonOptions)}: campi esclusi, estrattori di chiave,
+ * liste ordinate, valori delle mappe in profondita'. Due sottografi senza differenze hanno la stessa impronta.
+ *
+ * Registrata nelle opzioni con {@link ComparisonOptions.Builder#fingerprints(Fingerprints)}, la cache fa si'
+ * che il comparatore scenda solo nei bean, nelle collezioni, nelle mappe e negli array con impronte differenti.
+ * Le impronte del primo bean (la versione di riferimento) restano nella cache, per cui i confronti ripetuti
+ * con la stessa versione di riferimento percorrono il secondo bean una sola volta e confrontano solo i rami
+ * modificati; quelle del secondo bean valgono per la sola comparazione.
+ *
+ * Gli oggetti del primo bean non devono quindi essere modificati finche' sono nella cache: la cache li
+ * riferisce in modo debole, per identita', e si svuota con {@link #clear()}. Le impronte valgono solo per
+ * le opzioni (la stessa istanza) con cui sono state calcolate.
+ *
+ * Un sottografo non ha impronta (e viene sempre confrontato) se contiene elementi di collezioni, chiavi o
+ * valori di mappe confrontati tramite equals che non sono tipi semplici o enum, cicli, valori NaN, chiavi
+ * duplicate o campi fuori dai percorsi inclusi. Come per ogni hash, due sottografi differenti possono avere
+ * la stessa impronta con probabilita' trascurabile (dell'ordine di 2^-64 per coppia).
+ */
+public final class Fingerprints {
+    /**
+     * Il valore che indica un sottografo senza impronta
+     */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    private static final long NULL = 0x5bd1e9955bd1e995L;
+    private static final long ORDERED = 0x27d4eb2f165667c5L;
+    private static final long UNORDERED = 0x165667b19e3779f9L;
+    private static final long KEYED = 0x85ebca77c2b2ae63L;
+
+    /**
+     * L'impronta del nome di ogni classe
+     */
+    private static final ClassValue<Long> CLASS_HASHES = new ClassValue<Long>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            return mix(stringHash(type.getName(), false));
+        }
+    };
+
+    private final Map<WeakKey, Entry> entries = new HashMap<>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    /**
+     * Calcola l'impronta di un bean e di tutti i suoi sottografi, che restano nella cache come versione di riferimento
+     * @param bean il bean
+     * @param options le opzioni di comparazione
+     * @return l'impronta, vuota se il bean contiene valori senza impronta
+     * @throws IllegalArgumentException in caso di argomenti nulli
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    public OptionalLong fingerprint(Object bean, ComparisonOptions options) throws IllegalArgumentException, IllegalAccessException {
+        if (bean == null || options == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        PathRules.State state = options.rules().trivial() ? null : options.rules().root();
+        long value = new Hasher(options, this, null).hash(bean, state);
+        return value == UNKNOWN ? OptionalLong.empty() : OptionalLong.of(value);
+    }
+
+    /**
+     * @return il numero di oggetti con un'impronta nella cache
+     */
+    public synchronized int size() {
+        expunge();
+        return entries.size();
+    }
+
+    /**
+     * Svuota la cache (ad es. quando la versione di riferimento e' stata modificata)
+     */
+    public synchronized void clear() {
+        entries.clear();
+        while (queue.poll() != null) {
+            // i riferimenti gia' rimossi non servono piu'
+        }
+    }
+
+    /**
+     * Verifica tramite le impronte se due oggetti (bean, collezioni, mappe o array) sono senza differenze
+     * @param first l'oggetto del primo bean
+     * @param second l'oggetto del secondo bean
+     * @param context lo stato della comparazione
+     * @return true se le impronte coincidono, false se differiscono o se uno dei due non ha impronta
+     * @throws IllegalAccessException in caso di accesso violato
+     */
+    static boolean same(Object first, Object second, ComparisonContext context) throws IllegalAccessException {
+        PathRules.State state = context.state();
+        long firstValue = new Hasher(context.options, context.options.fingerprints(), null).hash(first, state);
+        if (firstValue == UNKNOWN)
+            return false;
+        return firstValue == new Hasher(context.options, null, context.fingerprints()).hash(second, state);
+    }
+
+    private synchronized Entry get(Object object) {
+        return entries.get(new WeakKey(object, null));
+    }
+
+    private synchronized void put(Object object, Entry entry) {
+        expunge();
+        entries.put(new WeakKey(object, queue), entry);
+    }
+
+    private void expunge() {
+        for (Object key; (key = queue.poll()) != null; )
+            entries.remove(key);
+    }
+
+    /**
+     * Mescola i bit di un valore (finalizzatore di SplitMix64)
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Combina in modo ordinato un'impronta con la successiva (il risultato e' sconosciuto se lo e' una delle due)
+     */
+    private static long combine(long hash, long value) {
+        if (hash == UNKNOWN || value == UNKNOWN)
+            return UNKNOWN;
+        return mix(hash * 0x9E3779B97F4A7C15L + value);
+    }
+
+    /**
+     * FNV-1a sui caratteri, eventualmente ridotti alla forma usata da equalsIgnoreCase
+     */
+    private static long stringHash(String value, boolean ignoreCase) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (ignoreCase)
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            hash = (hash ^ c) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * L'impronta di un valore semplice (wrapper, stringhe, date, numeri, UUID e java.time)
+     * @param value il valore
+     * @param compare true per le regole del comparatore (stringhe senza distinzione tra maiuscole e minuscole,
+     *                numeri con ==), false per quelle di equals (elementi di collezioni, chiavi e valori di mappe)
+     */
+    private static long primitiveHash(Object value, boolean compare) {
+        long hash;
+        if (value instanceof String) {
+            hash = stringHash((String) value, compare);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (!compare)
+                hash = Double.doubleToLongBits(number);
+            else if (number != number)
+                return UNKNOWN; // NaN e' sempre differente per ==
+            else
+                hash = number == 0 ? 0 : Double.doubleToLongBits(number);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            // BigDecimal e BigInteger non stanno in un long e hanno le loro impronte
+            hash = ((Number) value).longValue();
+        } else if (value instanceof Character) {
+            hash = (Character) value;
+        } else if (value instanceof Boolean) {
+            hash = (Boolean) value ? 1 : 2;
+        } else if (value instanceof java.sql.Timestamp && !compare) {
+            hash = ((java.sql.Timestamp) value).getTime() * 31 + ((java.sql.Timestamp) value).getNanos();
+        } else if (value instanceof java.util.Date) {
+            hash = ((java.util.Date) value).getTime();
+        } else if (value instanceof BigDecimal) {
+            // per il comparatore 1.0 e 1.00 sono uguali
+            BigDecimal number = (BigDecimal) value;
+            hash = stringHash((compare ? number.stripTrailingZeros() : number).toString(), false);
+        } else if (value instanceof UUID) {
+            hash = ((UUID) value).getMostSignificantBits() * 31 + ((UUID) value).getLeastSignificantBits();
+        } else if (value instanceof Void) {
+            hash = 0;
+        } else {
+            // BigInteger e i tipi di java.time hanno una forma testuale canonica
+            hash = stringHash(value.toString(), false);
+        }
+        return combine(CLASS_HASHES.get(value.getClass()), hash);
+    }
+
+    /**
+     * L'impronta di un valore confrontato tramite equals: noto solo per null, tipi semplici ed enum
+     */
+    private static long equalsHash(Object value) {
+        if (value == null)
+            return NULL;
+        if (value instanceof Enum)
+            return combine(CLASS_HASHES.get(value.getClass()), stringHash(((Enum<?>) value).name(), false));
+        if (ClassPlan.of(value.getClass()).kind() == ClassPlan.Kind.PRIMITIVE)
+            return primitiveHash(value, false);
+        return UNKNOWN;
+    }
+
+    /**
+     * Il calcolo delle impronte di un lato della comparazione: le impronte dei sottografi sono memorizzate
+     * nella cache (primo bean) o nella mappa della singola comparazione (secondo bean)
+     */
+    private static final class Hasher {
+        private final ComparisonOptions options;
+        private final Fingerprints cache;
+        private final Map<Object, Entry> memo;
+        /**
+         * Gli oggetti di cui si sta calcolando l'impronta, per riconoscere i cicli
+         */
+        private IdentityHashMap<Object, Boolean> inProgress;
+
+        Hasher(ComparisonOptions options, Fingerprints cache, Map<Object, Entry> memo) {
+            this.options = options;
+            this.cache = cache;
+            this.memo = memo;
+        }
+
+        long hash(Object value, PathRules.State state) throws IllegalAccessException {
+            if (value == null)
+                return NULL;
+            // i valori con un confronto registrato nelle opzioni non hanno un'impronta coerente con il confronto
+            if (options.hasValueComparators() && options.valueComparatorFor(value.getClass()) != null)
+                return UNKNOWN;
+            if (value instanceof Enum)
+                return equalsHash(value);
+            ClassPlan.Kind kind = ClassPlan.of(value.getClass()).kind();
+            if (kind == ClassPlan.Kind.PRIMITIVE)
+                return primitiveHash(value, true);
+            // i valori non caricati non vengono attraversati, come nella comparazione; i proxy inizializzati
+            // contano per l'oggetto reale
+            if (!options.loadStrategy().isLoaded(value))
+                return UNKNOWN;
+            value = options.loadStrategy().unwrap(value);
+            kind = ClassPlan.of(value.getClass()).kind();
+            Entry entry = cache != null ? cache.get(value) : memo.get(value);
+            if (entry != null && entry.options == options && entry.state == state)
+                return entry.value;
+            if (inProgress == null)
+                inProgress = new IdentityHashMap<>();
+            if (inProgress.put(value, Boolean.TRUE) != null)
+                return UNKNOWN;
+            long hash;
+            switch (kind) {
+                case COLLECTION:
+                    hash = collectionHash((Collection<?>) value, state);
+                    break;
+                case MAP:
+                    hash = mapHash((Map<?, ?>) value, state);
+                    break;
+                case ARRAY:
+                    hash = arrayHash(value, state);
+                    break;
+                default:
+                    hash = beanHash(value, state);
+            }
+            inProgress.remove(value);
+            entry = new Entry(options, state, hash);
+            if (cache != null)
+                cache.put(value, entry);
+            else
+                memo.put(value, entry);
+            return hash;
+        }
+
+        private long beanHash(Object bean, PathRules.State state) throws IllegalAccessException {
+            ClassPlan.FieldPlan[] fields;
+            PathRules.State[] states;
+            if (state == null) {
+                fields = ClassPlan.of(bean.getClass()).fields();
+                states = null;
+            } else {
+                PathRules.Selection selection = state.select(bean.getClass());
+                fields = selection.fields;
+                states = selection.states;
+            }
+            long hash = CLASS_HASHES.get(bean.getClass());
+            for (int i = 0; i < fields.length && hash != UNKNOWN; i++) {
+                ClassPlan.FieldPlan fieldPlan = fields[i];
+                if (states == null && options.rules().isExcluded(fieldPlan.name))
+                    continue;
+                if (fieldPlan.kind.primitiveField)
+                    hash = combine(hash, primitiveFieldHash(fieldPlan, bean));
+                else
+                    hash = combine(hash, hash(fieldPlan.accessor.get(bean), states == null ? null : states[i]));
+            }
+            return hash;
+        }
+
+        private long primitiveFieldHash(ClassPlan.FieldPlan fieldPlan, Object bean) throws IllegalAccessException {
+            FieldAccessor accessor = fieldPlan.accessor;
+            switch (fieldPlan.kind) {
+                case INT:
+                    return accessor.getInt(bean);
+                case LONG:
+                    return accessor.getLong(bean);
+                case DOUBLE: {
+                    double value = accessor.getDouble(bean);
+                    return value != value ? UNKNOWN : value == 0 ? 0 : Double.doubleToLongBits(value);
+                }
+                case FLOAT: {
+                    float value = accessor.getFloat(bean);
+                    return value != value ? UNKNOWN : value == 0 ? 0 : Float.floatToIntBits(value);
+                }
+                case BOOLEAN:
+                    return accessor.getBoolean(bean) ? 1 : 2;
+                case SHORT:
+                    return accessor.getShort(bean);
+                case BYTE:
+                    return accessor.getByte(bean);
+                default:
+                    return accessor.getChar(bean);
+            }
+        }
+
+        private long collectionHash(Collection<?> collection, PathRules.State state) throws IllegalAccessException {
+            // fuori dai percorsi inclusi le differenze tra elementi non vengono riportate: nessuna impronta
+            if (state != null && !state.included)
+                return UNKNOWN;
+            if (options.orderedLists() && collection instanceof List) {
+                long hash = ORDERED;
+                for (Object element : collection) {
+                    Function<Object, Object> extractor = element == null ? null : options.keyExtractorFor(element.getClass());
+                    hash = combine(hash, extractor == null ? equalsHash(element) : combine(equalsHash(extractor.apply(element)), hash(element, state)));
+                    if (hash == UNKNOWN)
+                        return UNKNOWN;
+                }
+                return combine(hash, collection.size());
+            }
+            // per le collezioni non ordinate le impronte degli elementi vengono sommate
+            long sum = 0;
+            Set<Object> keys = null;
+            for (Object element : collection) {
+                Function<Object, Object> extractor = element == null ? null : options.keyExtractorFor(element.getClass());
+                long value;
+                if (extractor == null) {
+                    value = equalsHash(element);
+                } else {
+                    Object key = extractor.apply(element);
+                    if (keys == null)
+                        keys = new HashSet<>();
+                    // con chiavi duplicate gli abbinamenti dipendono dall'ordine degli elementi
+                    if (!keys.add(key))
+                        return UNKNOWN;
+                    value = combine(combine(KEYED, equalsHash(key)), hash(element, state));
+                }
+                if (value == UNKNOWN)
+                    return UNKNOWN;
+                sum += mix(value);
+            }
+            return combine(combine(UNORDERED, collection.size()), sum);
+        }
+
+        private long mapHash(Map<?, ?> map, PathRules.State state) throws IllegalAccessException {
+            if (state != null && !state.included)
+                return UNKNOWN;
+            long sum = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Object value = entry.getValue();
+                boolean deep = options.deepMapValues() && value != null && !(value instanceof Enum)
+                        && ClassPlan.of(value.getClass()).kind() != ClassPlan.Kind.PRIMITIVE;
+                long entryHash = combine(equalsHash(entry.getKey()), deep ? hash(value, state) : equalsHash(value));
+                if (entryHash == UNKNOWN)
+                    return UNKNOWN;
+                sum += mix(entryHash);
+            }
+            return combine(combine(KEYED, map.size()), sum);
+        }
+
+        private long arrayHash(Object array, PathRules.State state) throws IllegalAccessException {
+            if (state != null && !state.included)
+                return UNKNOWN;
+            long hash = CLASS_HASHES.get(array.getClass());
+            if (PrimitiveArrays.isPrimitiveArray(array))
+                return PrimitiveArrays.containsNaN(array) ? UNKNOWN : combine(hash, PrimitiveArrays.hash(array));
+            Object[] elements = (Object[]) array;
+            for (int i = 0; i < elements.length && hash != UNKNOWN; i++)
+                hash = combine(hash, hash(elements[i], state));
+            return combine(hash, elements.length);
+        }
+    }
+
+    /**
+     * L'impronta di un oggetto, con le opzioni e lo stato delle regole sui percorsi con cui e' stata calcolata
+     */
+    static final class Entry {
+        final ComparisonOptions options;
+        final PathRules.State state;
+        final long value;
+
+        Entry(ComparisonOptions options, PathRules.State state, long value) {
+            this.options = options;
+            this.state = state;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Il riferimento debole ad un oggetto della cache, confrontato per identita'
+     */
+    private static final class WeakKey extends WeakReference<Object> {
+        private final int hash;
+
+        WeakKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof WeakKey))
+                return false;
+            Object referent = get();
+            return referent != null && referent == ((WeakKey) obj).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
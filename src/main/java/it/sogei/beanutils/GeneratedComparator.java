@@ -0,0 +1,65 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+
+/**
+ * La classe base dei comparatori generati per i bean annotati con {@link Diffable}: il codice generato
+ * confronta i campi nell'ordine in cui li confronterebbe {@link BeanComparator} e consegna ogni coppia di
+ * valori a {@link FieldComparison}, che applica le opzioni e riporta le differenze.
+ *
+ * I comparatori generati sono registrati come servizio ({@link java.util.ServiceLoader}) e vengono trovati
+ * tramite la classe restituita da {@link #type()}.
+ *
+ * Non va estesa a mano: la forma del codice generato puo' cambiare tra una versione e l'altra.
+ *
+ * @param <T> la classe del bean
+ */
+public abstract class GeneratedComparator<T> {
+    protected GeneratedComparator() {
+    }
+
+    /**
+     * Confronta i campi di due bean
+     * @param first il primo bean
+     * @param second il secondo bean
+     * @param comparison la comparazione in corso
+     * @throws IllegalAccessException in caso di accesso violato nei sottografi confrontati via reflection
+     */
+    public abstract void compare(T first, T second, FieldComparison comparison) throws IllegalAccessException;
+
+    /**
+     * @return la classe del bean confrontato
+     */
+    public abstract Class<?> type();
+
+    /**
+     * @return true se il bean ha un campo annotato con {@link DiffKey}
+     */
+    public boolean hasKey() {
+        return false;
+    }
+
+    /**
+     * @param bean il bean
+     * @return il valore del campo annotato con {@link DiffKey}
+     * @throws UnsupportedOperationException se il bean non ha un campo chiave
+     */
+    public Object key(T bean) {
+        throw new UnsupportedOperationException("Il bean non ha un campo chiave!");
+    }
+
+    /**
+     * Risolve un campo del bean, una sola volta all'inizializzazione del comparatore generato: i campi
+     * servono solo ad identificare le differenze riportate
+     * @param type la classe che dichiara il campo
+     * @param name il nome del campo
+     * @return il campo
+     */
+    protected static Field field(Class<?> type, String name) {
+        try {
+            return type.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Comparatore generato non allineato alla classe " + type.getName(), e);
+        }
+    }
+}
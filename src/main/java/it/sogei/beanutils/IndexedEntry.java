@@ -0,0 +1,59 @@
+package it.sogei.beanutils;
+
+import java.util.AbstractMap;
+
+/**
+ * Coppia di valori differenti che riporta anche la posizione degli elementi all'interno
+ * dell'array (o della lista) di appartenenza.
+ *
+ * Resta una normale {@link java.util.Map.Entry} (primo valore come chiave, secondo valore come valore),
+ * per cui chi non e' interessato alla posizione puo' continuare a trattarla come tale.
+ */
+public class IndexedEntry extends AbstractMap.SimpleEntry<Object, Object> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Indice dell'elemento nel primo bean (-1 se l'elemento non e' presente)
+     */
+    private final int firstIndex;
+    /**
+     * Indice dell'elemento nel secondo bean (-1 se l'elemento non e' presente)
+     */
+    private final int secondIndex;
+
+    /**
+     * Crea una coppia di elementi che occupano la stessa posizione
+     * @param index la posizione
+     * @param firstBeanValue l'elemento del primo bean
+     * @param secondBeanValue l'elemento del secondo bean
+     */
+    public IndexedEntry(int index, Object firstBeanValue, Object secondBeanValue) {
+        this(index, index, firstBeanValue, secondBeanValue);
+    }
+
+    /**
+     * Crea una coppia di elementi con posizioni distinte
+     * @param firstIndex la posizione nel primo bean (-1 se assente)
+     * @param secondIndex la posizione nel secondo bean (-1 se assente)
+     * @param firstBeanValue l'elemento del primo bean
+     * @param secondBeanValue l'elemento del secondo bean
+     */
+    public IndexedEntry(int firstIndex, int secondIndex, Object firstBeanValue, Object secondBeanValue) {
+        super(firstBeanValue, secondBeanValue);
+        this.firstIndex = firstIndex;
+        this.secondIndex = secondIndex;
+    }
+
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    public int getSecondIndex() {
+        return secondIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + firstIndex + "," + secondIndex + "] " + super.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package it.sogei.beanutils;
+
+import java.util.AbstractMap;
+
+/**
+ * Coppia di valori differenti di una mappa che riporta anche la chiave a cui i valori sono associati.
+ *
+ * Resta una normale {@link java.util.Map.Entry} (valore del primo bean come chiave, valore del secondo bean
+ * come valore): una chiave presente solo nel primo bean da' la coppia (valore, null), una chiave presente solo
+ * nel secondo bean la coppia (null, valore).
+ */
+public class KeyedEntry extends AbstractMap.SimpleEntry<Object, Object> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * La chiave della mappa
+     */
+    private final Object mapKey;
+
+    /**
+     * @param mapKey la chiave della mappa
+     * @param firstBeanValue il valore nella mappa del primo bean
+     * @param secondBeanValue il valore nella mappa del secondo bean
+     */
+    public KeyedEntry(Object mapKey, Object firstBeanValue, Object secondBeanValue) {
+        super(firstBeanValue, secondBeanValue);
+        this.mapKey = mapKey;
+    }
+
+    public Object getMapKey() {
+        return mapKey;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + mapKey + "] " + super.toString();
+    }
+}
@@ -0,0 +1,42 @@
+package it.sogei.beanutils;
+
+/**
+ * Dice se un valore e' gia' caricato o se e' un proxy (o una collezione) a caricamento differito di un ORM,
+ * che il comparatore non deve attraversare per non forzarne il caricamento.
+ *
+ * Si registra con {@link ComparisonOptions.Builder#loadStrategy(LoadStrategy)}; di default si usa
+ * {@link #REFLECTIVE}, che riconosce via reflection i proxy e le collezioni di Hibernate e di EclipseLink senza
+ * richiedere le librerie nel classpath. I valori non caricati vengono riportati come non confrontati
+ * ({@link DiffResult#getNotCompared()}) invece che come differenze; i proxy gia' inizializzati vengono
+ * confrontati tramite l'oggetto reale restituito da {@link #unwrap(Object)}.
+ *
+ * I metodi vengono invocati anche contemporaneamente da piu' thread e non devono a loro volta caricare il valore.
+ */
+@FunctionalInterface
+public interface LoadStrategy {
+    /**
+     * Tutti i valori sono considerati caricati (nessun controllo)
+     */
+    LoadStrategy NONE = value -> true;
+
+    /**
+     * Riconosce via reflection i proxy non inizializzati di Hibernate ({@code HibernateProxy}), le sue
+     * collezioni non inizializzate ({@code PersistentCollection}) e i contenitori non istanziati di EclipseLink
+     * ({@code IndirectContainer}); gli altri valori sono considerati caricati
+     */
+    LoadStrategy REFLECTIVE = ProxyLoadStrategy.INSTANCE;
+
+    /**
+     * @param value il valore (non nullo)
+     * @return true se il valore puo' essere attraversato senza caricarlo
+     */
+    boolean isLoaded(Object value);
+
+    /**
+     * @param value il valore (non nullo e caricato)
+     * @return l'oggetto reale dietro un proxy inizializzato, il valore stesso negli altri casi
+     */
+    default Object unwrap(Object value) {
+        return value;
+    }
+}
@@ -0,0 +1,289 @@
+package it.sogei.beanutils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Le regole di esclusione e di inclusione dei campi per percorso, compilate una sola volta per
+ * {@link ComparisonOptions}.
+ *
+ * Un percorso e' la sequenza dei nomi dei campi a partire dal bean confrontato, separati da punti
+ * (gli elementi di collezioni, mappe e array non aggiungono segmenti): {@code *} vale per un solo segmento
+ * qualsiasi, {@code **} per zero o piu' segmenti. Ad es. {@code complexBean.stringArray}, {@code *.id},
+ * {@code **.audit}.
+ *
+ * Le regole sono valutate come un automa: lo {@link State} di un oggetto dice quali regole sono ancora
+ * in corso di riconoscimento, e per ogni classe di oggetti lo stato calcola (e memorizza) la
+ * {@link Selection} dei campi da confrontare, gia' privata dei campi esclusi e dei sottografi che non
+ * possono contenere percorsi inclusi. I sottografi esclusi non vengono quindi nemmeno visitati.
+ */
+final class PathRules {
+    private static final String ANY_SEGMENT = "*";
+    private static final String ANY_PATH = "**";
+
+    private final String[][] excludePatterns;
+    private final String[][] includePatterns;
+    /**
+     * I nomi dei campi esclusi per classe (valgono anche per le sottoclassi)
+     */
+    private final Map<Class<?>, Set<String>> classExclusions;
+    /**
+     * I nomi dei campi esclusi a qualunque profondita'
+     */
+    private final Set<String> names;
+
+    private final ConcurrentHashMap<StateKey, State> states = new ConcurrentHashMap<>();
+    private final State root;
+    /**
+     * Lo stato (mai raggiunto dalla traversata) che segnala un campo escluso
+     */
+    private final State excluded;
+
+    PathRules(Collection<String> names, Collection<String> excludePaths, Collection<String> includePaths, Map<Class<?>, Set<String>> classExclusions) {
+        this.names = new HashSet<>(names);
+        this.excludePatterns = compile(excludePaths);
+        this.includePatterns = compile(includePaths);
+        this.classExclusions = new HashMap<>(classExclusions);
+        this.excluded = new State(new int[0], new int[0], false);
+        this.root = state(closure(excludePatterns, initialThreads(excludePatterns)), closure(includePatterns, initialThreads(includePatterns)), includePatterns.length == 0);
+    }
+
+    /**
+     * @return true se ci sono solo esclusioni per nome semplice, che si verificano campo per campo
+     */
+    boolean trivial() {
+        return excludePatterns.length == 0 && includePatterns.length == 0 && classExclusions.isEmpty();
+    }
+
+    /**
+     * @param fieldName il nome del campo
+     * @return true se il campo e' escluso per nome a qualunque profondita'
+     */
+    boolean isExcluded(String fieldName) {
+        return !names.isEmpty() && names.contains(fieldName);
+    }
+
+    /**
+     * @return lo stato del bean confrontato
+     */
+    State root() {
+        return root;
+    }
+
+    private static String[][] compile(Collection<String> paths) {
+        String[][] patterns = new String[paths.size()][];
+        int i = 0;
+        for (String path : paths) {
+            if (path == null || path.isEmpty())
+                throw new IllegalArgumentException("Percorso non valido: " + path);
+            String[] segments = path.split("\\.", -1);
+            for (String segment : segments) {
+                if (segment.isEmpty())
+                    throw new IllegalArgumentException("Percorso non valido: " + path);
+            }
+            patterns[i++] = segments;
+        }
+        return patterns;
+    }
+
+    /*
+     * Un "thread" dell'automa e' la posizione raggiunta in una regola: (indice della regola << 16) | posizione
+     */
+
+    private static int[] initialThreads(String[][] patterns) {
+        int[] threads = new int[patterns.length];
+        for (int i = 0; i < patterns.length; i++)
+            threads[i] = i << 16;
+        return threads;
+    }
+
+    /**
+     * Aggiunge ai thread le posizioni raggiungibili saltando i segmenti ** (che valgono anche zero segmenti)
+     */
+    private static int[] closure(String[][] patterns, int[] threads) {
+        SortedSet<Integer> result = new TreeSet<>();
+        for (int thread : threads) {
+            int pattern = thread >>> 16;
+            int position = thread & 0xFFFF;
+            result.add(thread);
+            while (position < patterns[pattern].length && ANY_PATH.equals(patterns[pattern][position])) {
+                position++;
+                result.add((pattern << 16) | position);
+            }
+        }
+        int[] array = new int[result.size()];
+        int i = 0;
+        for (int thread : result)
+            array[i++] = thread;
+        return array;
+    }
+
+    /**
+     * Avanza i thread sul nome di un campo
+     */
+    private static int[] advance(String[][] patterns, int[] threads, String fieldName) {
+        List<Integer> next = new ArrayList<>();
+        for (int thread : threads) {
+            int pattern = thread >>> 16;
+            int position = thread & 0xFFFF;
+            if (position == patterns[pattern].length)
+                continue;
+            String segment = patterns[pattern][position];
+            if (ANY_PATH.equals(segment))
+                next.add(thread);
+            else if (ANY_SEGMENT.equals(segment) || segment.equals(fieldName))
+                next.add(thread + 1);
+        }
+        int[] array = new int[next.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = next.get(i);
+        return closure(patterns, array);
+    }
+
+    private static boolean accepts(String[][] patterns, int[] threads) {
+        for (int thread : threads) {
+            if ((thread & 0xFFFF) == patterns[thread >>> 16].length)
+                return true;
+        }
+        return false;
+    }
+
+    private State state(int[] excludeThreads, int[] includeThreads, boolean included) {
+        StateKey key = new StateKey(excludeThreads, includeThreads, included);
+        State state = states.get(key);
+        if (state == null) {
+            state = new State(excludeThreads, includeThreads, included);
+            State previous = states.putIfAbsent(key, state);
+            if (previous != null)
+                state = previous;
+        }
+        return state;
+    }
+
+    /**
+     * I campi da confrontare di una classe in un certo stato, con lo stato da cui ripartire per ciascun campo
+     */
+    static final class Selection {
+        final ClassPlan.FieldPlan[] fields;
+        final State[] states;
+
+        private Selection(ClassPlan.FieldPlan[] fields, State[] states) {
+            this.fields = fields;
+            this.states = states;
+        }
+    }
+
+    /**
+     * Lo stato dell'automa per un oggetto del grafo
+     */
+    final class State {
+        private final int[] excludeThreads;
+        private final int[] includeThreads;
+        /**
+         * true se l'oggetto e' incluso nel confronto (nessuna regola di inclusione, oppure una regola di
+         * inclusione riconosciuta per l'oggetto o per un suo antenato)
+         */
+        final boolean included;
+        private final ConcurrentHashMap<Class<?>, Selection> selections = new ConcurrentHashMap<>();
+        /**
+         * Lo stato del campo per nome
+         */
+        private final ConcurrentHashMap<String, State> transitions = new ConcurrentHashMap<>();
+
+        private State(int[] excludeThreads, int[] includeThreads, boolean included) {
+            this.excludeThreads = excludeThreads;
+            this.includeThreads = includeThreads;
+            this.included = included;
+        }
+
+        /**
+         * Restituisce i campi da confrontare per gli oggetti della classe indicata
+         * @param type la classe dell'oggetto
+         * @return la selezione dei campi
+         */
+        Selection select(Class<?> type) {
+            Selection selection = selections.get(type);
+            if (selection == null) {
+                selection = buildSelection(type);
+                Selection previous = selections.putIfAbsent(type, selection);
+                if (previous != null)
+                    selection = previous;
+            }
+            return selection;
+        }
+
+        private Selection buildSelection(Class<?> type) {
+            Set<String> excludedByClass = new HashSet<>();
+            for (Map.Entry<Class<?>, Set<String>> entry : classExclusions.entrySet()) {
+                if (entry.getKey().isAssignableFrom(type))
+                    excludedByClass.addAll(entry.getValue());
+            }
+            List<ClassPlan.FieldPlan> fields = new ArrayList<>();
+            List<State> fieldStates = new ArrayList<>();
+            for (ClassPlan.FieldPlan fieldPlan : ClassPlan.of(type).fields()) {
+                if (names.contains(fieldPlan.name) || excludedByClass.contains(fieldPlan.name))
+                    continue;
+                State next = next(fieldPlan.name);
+                if (next == excluded)
+                    continue;
+                // un campo semplice non ha sottografi: va confrontato solo se e' incluso
+                boolean leaf = fieldPlan.kind.primitiveField || fieldPlan.kind == ClassPlan.Kind.PRIMITIVE;
+                if (!next.included && (leaf || next.includeThreads.length == 0))
+                    continue;
+                fields.add(fieldPlan);
+                fieldStates.add(next);
+            }
+            return new Selection(fields.toArray(new ClassPlan.FieldPlan[fields.size()]), fieldStates.toArray(new State[fieldStates.size()]));
+        }
+
+        /**
+         * @param fieldName il nome del campo
+         * @return lo stato del campo, {@link #excluded} se il campo e' escluso
+         */
+        private State next(String fieldName) {
+            State next = transitions.get(fieldName);
+            if (next == null) {
+                int[] excludes = advance(excludePatterns, excludeThreads, fieldName);
+                if (accepts(excludePatterns, excludes)) {
+                    next = excluded;
+                } else {
+                    int[] includes = included ? includeThreads : advance(includePatterns, includeThreads, fieldName);
+                    boolean nextIncluded = included || accepts(includePatterns, includes);
+                    next = state(excludes, nextIncluded ? new int[0] : includes, nextIncluded);
+                }
+                State previous = transitions.putIfAbsent(fieldName, next);
+                if (previous != null)
+                    next = previous;
+            }
+            return next;
+        }
+    }
+
+    /**
+     * La chiave per riconoscere gli stati equivalenti
+     */
+    private static final class StateKey {
+        private final int[] excludeThreads;
+        private final int[] includeThreads;
+        private final boolean included;
+
+        StateKey(int[] excludeThreads, int[] includeThreads, boolean included) {
+            this.excludeThreads = excludeThreads;
+            this.includeThreads = includeThreads;
+            this.included = included;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof StateKey))
+                return false;
+            StateKey other = (StateKey) obj;
+            return included == other.included && Arrays.equals(excludeThreads, other.excludeThreads) && Arrays.equals(includeThreads, other.includeThreads);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Arrays.hashCode(excludeThreads) * 31 + Arrays.hashCode(includeThreads)) * 2 + (included ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * Confronto degli array di primitive (int[], long[], double[], ...) senza boxing.
+ *
+ * La ricerca degli elementi differenti si basa su {@link Arrays#mismatch}, che la JVM implementa con
+ * istruzioni vettoriali. Per float e double vale invece l'uguaglianza con ==, come per i campi e i valori
+ * semplici (0.0 e -0.0 uguali, NaN sempre differente): {@link Arrays#mismatch} confronta i bit, per cui gli
+ * elementi vengono confrontati uno ad uno.
+ */
+final class PrimitiveArrays {
+    private PrimitiveArrays(){}
+
+    /**
+     * Verifica se l'oggetto e' un array di primitive
+     * @param obj l'oggetto
+     * @return true se array di primitive
+     */
+    static boolean isPrimitiveArray(Object obj) {
+        return obj != null && obj.getClass().isArray() && obj.getClass().getComponentType().isPrimitive();
+    }
+
+    /**
+     * Restituisce la lunghezza dell'array di primitive
+     * @param array l'array
+     * @return la lunghezza
+     */
+    static int length(Object array) {
+        return Array.getLength(array);
+    }
+
+    /**
+     * Ricerca il primo elemento differente a partire dalla posizione indicata.
+     * I due array devono essere dello stesso tipo e della stessa lunghezza.
+     * @param firstArray il primo array
+     * @param secondArray il secondo array
+     * @param from la posizione da cui partire
+     * @return la posizione del primo elemento differente, -1 se da from in poi gli array coincidono
+     */
+    static int nextMismatch(Object firstArray, Object secondArray, int from) {
+        int length = Array.getLength(firstArray);
+        int mismatch;
+        if (firstArray instanceof int[])
+            mismatch = Arrays.mismatch((int[]) firstArray, from, length, (int[]) secondArray, from, length);
+        else if (firstArray instanceof long[])
+            mismatch = Arrays.mismatch((long[]) firstArray, from, length, (long[]) secondArray, from, length);
+        else if (firstArray instanceof double[]) {
+            double[] first = (double[]) firstArray, second = (double[]) secondArray;
+            for (int i = from; i < length; i++) {
+                if (first[i] != second[i])
+                    return i;
+            }
+            return -1;
+        } else if (firstArray instanceof float[]) {
+            float[] first = (float[]) firstArray, second = (float[]) secondArray;
+            for (int i = from; i < length; i++) {
+                if (first[i] != second[i])
+                    return i;
+            }
+            return -1;
+        }
+        else if (firstArray instanceof byte[])
+            mismatch = Arrays.mismatch((byte[]) firstArray, from, length, (byte[]) secondArray, from, length);
+        else if (firstArray instanceof short[])
+            mismatch = Arrays.mismatch((short[]) firstArray, from, length, (short[]) secondArray, from, length);
+        else if (firstArray instanceof char[])
+            mismatch = Arrays.mismatch((char[]) firstArray, from, length, (char[]) secondArray, from, length);
+        else
+            mismatch = Arrays.mismatch((boolean[]) firstArray, from, length, (boolean[]) secondArray, from, length);
+        return mismatch < 0 ? -1 : from + mismatch;
+    }
+
+    /**
+     * Calcola un'impronta a 64 bit del contenuto dell'array, coerente con {@link #nextMismatch}: array
+     * dello stesso tipo senza elementi differenti hanno la stessa impronta (gli array di float e double con
+     * NaN non hanno un'impronta, vedi {@link #containsNaN(Object)})
+     * @param array l'array
+     * @return l'impronta (non ancora mescolata con {@link Fingerprints})
+     */
+    static long hash(Object array) {
+        long hash = 0xcbf29ce484222325L;
+        if (array instanceof int[]) {
+            for (int value : (int[]) array)
+                hash = (hash ^ value) * 0x100000001b3L;
+        } else if (array instanceof long[]) {
+            for (long value : (long[]) array)
+                hash = (hash ^ value) * 0x100000001b3L;
+        } else if (array instanceof double[]) {
+            for (double value : (double[]) array)
+                hash = (hash ^ (value == 0 ? 0 : Double.doubleToLongBits(value))) * 0x100000001b3L;
+        } else if (array instanceof float[]) {
+            for (float value : (float[]) array)
+                hash = (hash ^ (value == 0 ? 0 : Float.floatToIntBits(value))) * 0x100000001b3L;
+        } else if (array instanceof byte[]) {
+            for (byte value : (byte[]) array)
+                hash = (hash ^ value) * 0x100000001b3L;
+        } else if (array instanceof short[]) {
+            for (short value : (short[]) array)
+                hash = (hash ^ value) * 0x100000001b3L;
+        } else if (array instanceof char[]) {
+            for (char value : (char[]) array)
+                hash = (hash ^ value) * 0x100000001b3L;
+        } else {
+            for (boolean value : (boolean[]) array)
+                hash = (hash ^ (value ? 1 : 2)) * 0x100000001b3L;
+        }
+        return hash ^ length(array);
+    }
+
+    /**
+     * @param array l'array di primitive
+     * @return true se l'array e' di float o double e contiene un NaN (sempre differente per ==)
+     */
+    static boolean containsNaN(Object array) {
+        if (array instanceof double[]) {
+            for (double value : (double[]) array) {
+                if (value != value)
+                    return true;
+            }
+        } else if (array instanceof float[]) {
+            for (float value : (float[]) array) {
+                if (value != value)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copia l'array di primitive
+     * @param array l'array
+     * @return la copia, dello stesso tipo
+     */
+    static Object copy(Object array) {
+        Object copy = Array.newInstance(array.getClass().getComponentType(), length(array));
+        System.arraycopy(array, 0, copy, 0, length(array));
+        return copy;
+    }
+
+    /**
+     * Legge (con boxing) un elemento dell'array: va usato solo per riportare le differenze
+     * @param array l'array
+     * @param index la posizione
+     * @return l'elemento
+     */
+    static Object get(Object array, int index) {
+        return Array.get(array, index);
+    }
+}
@@ -0,0 +1,139 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * La strategia di caricamento predefinita: riconosce le interfacce dei proxy degli ORM per nome, per cui non
+ * richiede Hibernate o EclipseLink nel classpath. I proxy di Hibernate inizializzati vengono sostituiti
+ * dall'entita' reale ({@code LazyInitializer.getImplementation()}), le cui classe e campi sono quelli da
+ * confrontare; le collezioni sono gia' esse stesse il contenitore da attraversare.
+ *
+ * La verifica di ogni classe viene risolta una sola volta tramite un {@link ClassValue}: per le classi che non
+ * implementano nessuna delle interfacce note (la quasi totalita') il controllo e' un solo accesso alla tabella.
+ */
+final class ProxyLoadStrategy implements LoadStrategy {
+    static final ProxyLoadStrategy INSTANCE = new ProxyLoadStrategy();
+
+    /**
+     * La verifica del caricamento di un'istanza di una data classe
+     */
+    private interface Probe {
+        boolean isLoaded(Object value) throws ReflectiveOperationException;
+
+        default Object unwrap(Object value) throws ReflectiveOperationException {
+            return value;
+        }
+    }
+
+    private static final Probe LOADED = value -> true;
+
+    private static final ClassValue<Probe> PROBES = new ClassValue<Probe>() {
+        @Override
+        protected Probe computeValue(Class<?> type) {
+            for (Class<?> iface : interfacesOf(type)) {
+                Probe probe = probeFor(iface);
+                if (probe != null)
+                    return probe;
+            }
+            return LOADED;
+        }
+    };
+
+    private ProxyLoadStrategy() {
+    }
+
+    @Override
+    public boolean isLoaded(Object value) {
+        Probe probe = PROBES.get(value.getClass());
+        if (probe == LOADED)
+            return true;
+        try {
+            return probe.isLoaded(value);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Impossibile verificare il caricamento di " + value.getClass().getName(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Impossibile verificare il caricamento di " + value.getClass().getName(), e);
+        }
+    }
+
+    @Override
+    public Object unwrap(Object value) {
+        Probe probe = PROBES.get(value.getClass());
+        if (probe == LOADED)
+            return value;
+        try {
+            Object unwrapped = probe.unwrap(value);
+            return unwrapped != null ? unwrapped : value;
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Impossibile ricavare l'oggetto reale di " + value.getClass().getName(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Impossibile ricavare l'oggetto reale di " + value.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * @return la verifica dei proxy che implementano l'interfaccia, null se l'interfaccia non e' di un ORM noto
+     */
+    private static Probe probeFor(Class<?> iface) {
+        try {
+            switch (iface.getName()) {
+                case "org.hibernate.proxy.HibernateProxy": {
+                    Method initializer = iface.getMethod("getHibernateLazyInitializer");
+                    Method uninitialized = initializer.getReturnType().getMethod("isUninitialized");
+                    Method implementation = initializer.getReturnType().getMethod("getImplementation");
+                    return new Probe() {
+                        @Override
+                        public boolean isLoaded(Object value) throws ReflectiveOperationException {
+                            return !(Boolean) uninitialized.invoke(initializer.invoke(value));
+                        }
+
+                        @Override
+                        public Object unwrap(Object value) throws ReflectiveOperationException {
+                            // getImplementation() caricherebbe un proxy non inizializzato
+                            Object lazyInitializer = initializer.invoke(value);
+                            return (Boolean) uninitialized.invoke(lazyInitializer) ? value : implementation.invoke(lazyInitializer);
+                        }
+                    };
+                }
+                case "org.hibernate.collection.spi.PersistentCollection": {
+                    Method initialized = iface.getMethod("wasInitialized");
+                    return value -> (Boolean) initialized.invoke(value);
+                }
+                case "org.eclipse.persistence.indirection.IndirectContainer": {
+                    Method instantiated = iface.getMethod("isInstantiated");
+                    return value -> (Boolean) instantiated.invoke(value);
+                }
+                default:
+                    return null;
+            }
+        } catch (NoSuchMethodException e) {
+            // una versione della libreria con un'altra API: i valori sono considerati caricati
+            return null;
+        }
+    }
+
+    /**
+     * @return tutte le interfacce implementate dalla classe, anche tramite le superclassi e le superinterfacce
+     */
+    private static Set<Class<?>> interfacesOf(Class<?> type) {
+        Set<Class<?>> interfaces = new LinkedHashSet<>();
+        Deque<Class<?>> pending = new ArrayDeque<>();
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for (Class<?> iface : current.getInterfaces())
+                pending.add(iface);
+        }
+        while (!pending.isEmpty()) {
+            Class<?> iface = pending.poll();
+            if (interfaces.add(iface)) {
+                for (Class<?> parent : iface.getInterfaces())
+                    pending.add(parent);
+            }
+        }
+        return interfaces;
+    }
+}
@@ -0,0 +1,39 @@
+package it.sogei.beanutils;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Riceve l'esito della riconciliazione di due dataset (vedi {@link DatasetReconciler}) man mano che le chiavi
+ * vengono abbinate: i bean presenti in uno solo dei due dataset e le differenze dei bean con la stessa chiave.
+ *
+ * Il listener viene invocato sempre dal thread che ha avviato la riconciliazione, mai in concorrenza.
+ *
+ * @param <T> la tipologia dei bean
+ * @param <K> la tipologia delle chiavi
+ */
+public interface ReconciliationListener<T, K> {
+    /**
+     * Un bean presente solo nel secondo dataset
+     * @param key la chiave
+     * @param bean il bean
+     */
+    void onInserted(K key, T bean);
+
+    /**
+     * Un bean presente solo nel primo dataset
+     * @param key la chiave
+     * @param bean il bean
+     */
+    void onDeleted(K key, T bean);
+
+    /**
+     * Due bean con la stessa chiave che hanno almeno un campo differente
+     * @param key la chiave
+     * @param first il bean del primo dataset
+     * @param second il bean del secondo dataset
+     * @param differences la mappa dei campi "diversi", come per {@link BeanComparator#compare(Object, Object, ComparisonOptions)}
+     */
+    void onChanged(K key, T first, T second, Map<Field, List<Map.Entry<Object, Object>>> differences);
+}
@@ -0,0 +1,239 @@
+package it.sogei.beanutils;
+
+import java.util.Arrays;
+
+/**
+ * Differenza tra due sequenze (algoritmo di Myers nella variante a spazio lineare, con ricerca del
+ * "middle snake" e rimozione preventiva del prefisso e del suffisso comuni).
+ *
+ * Le sequenze sono ridotte ad array di interi (ogni intero identifica un elemento, elementi uguali hanno
+ * lo stesso identificativo) e il risultato e' lo script delle operazioni in ordine: abbinamenti,
+ * cancellazioni dalla prima sequenza e inserimenti dalla seconda. La memoria usata e' proporzionale alla
+ * somma delle lunghezze delle sequenze e la ricorsione e' sostituita da uno stack esplicito; oltre una certa
+ * soglia di costo la ricerca si accontenta di uno script non minimo, per non degenerare in tempo quadratico.
+ */
+final class SequenceDiff {
+    /**
+     * Costo minimo (numero di operazioni) esplorato prima di ricorrere alla euristica
+     */
+    private static final int MIN_COST = 256;
+
+    private static final int SUBPROBLEM = 0;
+    private static final int MATCH = 1;
+
+    private final int[] a;
+    private final int[] b;
+    private final int maxCost;
+    /**
+     * Lo script: per ciascuna operazione la posizione nella prima e nella seconda sequenza (-1 se assente)
+     */
+    private final int[] firstIndexes;
+    private final int[] secondIndexes;
+    private int size;
+
+    /**
+     * I vettori dei cammini in avanti e all'indietro, riusati da tutti i sottoproblemi
+     */
+    private final int[] forward;
+    private final int[] backward;
+
+    private int[] stack = new int[5 * 16];
+    private int top;
+
+    private SequenceDiff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.maxCost = Math.max(MIN_COST, (int) Math.sqrt(a.length + b.length));
+        this.firstIndexes = new int[a.length + b.length];
+        this.secondIndexes = new int[a.length + b.length];
+        this.forward = new int[a.length + b.length + 2];
+        this.backward = new int[a.length + b.length + 2];
+    }
+
+    /**
+     * Calcola lo script delle differenze tra due sequenze
+     * @param a la prima sequenza
+     * @param b la seconda sequenza
+     * @return lo script
+     */
+    static SequenceDiff diff(int[] a, int[] b) {
+        SequenceDiff diff = new SequenceDiff(a, b);
+        diff.run();
+        return diff;
+    }
+
+    /**
+     * @return il numero di operazioni dello script
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param operation l'operazione
+     * @return la posizione nella prima sequenza, -1 per un inserimento
+     */
+    int firstIndex(int operation) {
+        return firstIndexes[operation];
+    }
+
+    /**
+     * @param operation l'operazione
+     * @return la posizione nella seconda sequenza, -1 per una cancellazione
+     */
+    int secondIndex(int operation) {
+        return secondIndexes[operation];
+    }
+
+    private void run() {
+        push(SUBPROBLEM, 0, a.length, 0, b.length);
+        while (top > 0) {
+            top -= 5;
+            int kind = stack[top], aLo = stack[top + 1], aHi = stack[top + 2], bLo = stack[top + 3], bHi = stack[top + 4];
+            if (kind == MATCH) {
+                while (aLo < aHi)
+                    emit(aLo++, bLo++);
+                continue;
+            }
+            // prefisso comune
+            while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo])
+                emit(aLo++, bLo++);
+            // suffisso comune, da riportare dopo la parte centrale
+            int suffix = 0;
+            while (aLo < aHi - suffix && bLo < bHi - suffix && a[aHi - 1 - suffix] == b[bHi - 1 - suffix])
+                suffix++;
+            if (suffix > 0) {
+                push(MATCH, aHi - suffix, aHi, bHi - suffix, bHi);
+                aHi -= suffix;
+                bHi -= suffix;
+            }
+            if (aLo == aHi) {
+                for (int j = bLo; j < bHi; j++)
+                    emit(-1, j);
+            } else if (bLo == bHi) {
+                for (int i = aLo; i < aHi; i++)
+                    emit(i, -1);
+            } else {
+                bisect(aLo, aHi, bLo, bHi);
+            }
+        }
+    }
+
+    /**
+     * Cerca il punto in cui i cammini in avanti e all'indietro si sovrappongono e divide il problema in due
+     * sottoproblemi; se non lo trova le due parti vengono riportate come cancellate e inserite.
+     */
+    private void bisect(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD;
+        Arrays.fill(forward, 0, length, -1);
+        Arrays.fill(backward, 0, length, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // se delta e' dispari la sovrapposizione va cercata durante il cammino in avanti
+        boolean front = (delta & 1) != 0;
+        int k1start = 0, k1end = 0, k2start = 0, k2end = 0;
+        for (int d = 0; d < maxD; d++) {
+            // cammino in avanti
+            int bestX = -1, bestY = -1;
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1]))
+                    x1 = forward[k1Offset + 1];
+                else
+                    x1 = forward[k1Offset - 1] + 1;
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aLo + x1] == b[bLo + y1]) {
+                    x1++;
+                    y1++;
+                }
+                forward[k1Offset] = x1;
+                if (x1 > n) {
+                    k1end += 2;
+                } else if (y1 > m) {
+                    k1start += 2;
+                } else {
+                    if (front) {
+                        int k2Offset = offset + delta - k1;
+                        if (k2Offset >= 0 && k2Offset < length && backward[k2Offset] != -1 && x1 >= n - backward[k2Offset]) {
+                            split(aLo, aHi, bLo, bHi, x1, y1);
+                            return;
+                        }
+                    }
+                    if (x1 + y1 > bestX + bestY && x1 + y1 < n + m) {
+                        bestX = x1;
+                        bestY = y1;
+                    }
+                }
+            }
+            // cammino all'indietro
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1]))
+                    x2 = backward[k2Offset + 1];
+                else
+                    x2 = backward[k2Offset - 1] + 1;
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aHi - x2 - 1] == b[bHi - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                backward[k2Offset] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && forward[k1Offset] != -1) {
+                        int x1 = forward[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            split(aLo, aHi, bLo, bHi, x1, y1);
+                            return;
+                        }
+                    }
+                }
+            }
+            // oltre la soglia di costo si divide sul punto piu' avanzato del cammino in avanti
+            if (d >= maxCost && bestX + bestY > 0) {
+                split(aLo, aHi, bLo, bHi, bestX, bestY);
+                return;
+            }
+        }
+        // nessuna parte in comune
+        for (int i = aLo; i < aHi; i++)
+            emit(i, -1);
+        for (int j = bLo; j < bHi; j++)
+            emit(-1, j);
+    }
+
+    private void split(int aLo, int aHi, int bLo, int bHi, int x, int y) {
+        // lo stack e' LIFO: prima la parte destra, poi quella sinistra
+        push(SUBPROBLEM, aLo + x, aHi, bLo + y, bHi);
+        push(SUBPROBLEM, aLo, aLo + x, bLo, bLo + y);
+    }
+
+    private void emit(int firstIndex, int secondIndex) {
+        firstIndexes[size] = firstIndex;
+        secondIndexes[size] = secondIndex;
+        size++;
+    }
+
+    private void push(int kind, int aLo, int aHi, int bLo, int bHi) {
+        if (top + 5 > stack.length)
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top] = kind;
+        stack[top + 1] = aLo;
+        stack[top + 2] = aHi;
+        stack[top + 3] = bLo;
+        stack[top + 4] = bHi;
+        top += 5;
+    }
+}
@@ -0,0 +1,1328 @@
+package it.sogei.beanutils;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Un file binario di fotografie di bean, da confrontare anche tra processi diversi o a distanza di giorni
+ * senza serializzazione Java e senza ricostruire i grafi di oggetti.
+ *
+ * Il file si scrive in sequenza con {@link #create(Path)} e contiene, dopo l'intestazione, due tipi di voci:
+ * la descrizione di una classe (nome, e per ogni campo del suo {@link ClassPlan} nome, classe dichiarante e
+ * tipo primitivo), scritta prima del primo record che la usa, e i record, uno per ogni bean scritto. In un record
+ * i campi primitivi di un bean occupano solo i loro byte, gli altri valori sono preceduti da un tag; bean,
+ * collezioni, mappe e array riportano la propria lunghezza (per essere saltati senza leggerli) e gli oggetti
+ * gia' scritti nello stesso record (sottografi condivisi e cicli) sono riferimenti alla tabella degli oggetti
+ * in coda al record.
+ *
+ * La lettura ({@link #open(Path)}) mappa il file in memoria con un {@link MappedByteBuffer}: il confronto di
+ * due record legge i campi direttamente dal buffer, con le regole di {@link BeanComparator} (campi esclusi,
+ * regole sui percorsi, liste ordinate, valori delle mappe in profondita', numero massimo di differenze). Solo i
+ * valori semplici differenti vengono decodificati per essere riportati; bean, collezioni, mappe e array sono
+ * riportati come {@link Value}. Gli elementi delle collezioni e i valori delle mappe non confrontati in
+ * profondita' sono uguali se hanno la stessa codifica: a differenza della comparazione degli oggetti non c'e'
+ * un equals da invocare, per cui i bean contenuti nelle collezioni sono confrontati per contenuto (byte per
+ * byte, senza esclusioni) e gli estrattori di chiave e i confronti registrati nelle opzioni non si applicano.
+ *
+ * Le classi dei bean devono essere disponibili a chi confronta i file, che devono essere piu' piccoli di 2GB.
+ */
+public final class SnapshotFile {
+    private static final int MAGIC = 0x42444946;
+    private static final byte VERSION = 2;
+
+    /*
+     * Le tipologie di voce del file
+     */
+    private static final byte CLASS_ENTRY = 1;
+    private static final byte RECORD_ENTRY = 2;
+
+    /*
+     * I tag dei valori (quelli delle primitive valgono anche come tipo dei campi e degli array primitivi)
+     */
+    private static final byte NULL = 0;
+    private static final byte BEAN = 1;
+    private static final byte REF = 2;
+    private static final byte STRING = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte BYTE = 5;
+    private static final byte CHAR = 6;
+    private static final byte SHORT = 7;
+    private static final byte INT = 8;
+    private static final byte LONG = 9;
+    private static final byte FLOAT = 10;
+    private static final byte DOUBLE = 11;
+    private static final byte DATE = 12;
+    private static final byte SQL_DATE = 13;
+    private static final byte TIMESTAMP = 14;
+    private static final byte ENUM = 15;
+    private static final byte LIST = 16;
+    private static final byte SET = 17;
+    private static final byte COLLECTION = 18;
+    private static final byte MAP = 19;
+    private static final byte PRIMITIVE_ARRAY = 20;
+    private static final byte OBJECT_ARRAY = 21;
+    /*
+     * Gli altri valori semplici, con la loro lunghezza: BigDecimal (scala e valore non scalato), BigInteger,
+     * UUID e i tipi di java.time (codice del tipo, componenti ed eventuale zona, vedi TimeValues)
+     */
+    private static final byte BIG_DECIMAL = 22;
+    private static final byte BIG_INTEGER = 23;
+    private static final byte UUID_VALUE = 24;
+    private static final byte TEMPORAL = 25;
+
+    private final ByteBuffer buffer;
+    private final Map<Integer, ClassDef> classes = new HashMap<>();
+    /**
+     * La posizione del contenuto di ciascun record
+     */
+    private int[] records = new int[16];
+    private int size;
+
+    private SnapshotFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < 5 || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION)
+            throw new IOException("Il file non e' un file di fotografie!");
+        int position = 5;
+        while (position < buffer.limit()) {
+            byte entry = buffer.get(position);
+            int length = buffer.getInt(position + 1);
+            if (entry == CLASS_ENTRY) {
+                ClassDef def = new ClassDef(buffer, position + 5);
+                classes.put(def.id, def);
+            } else if (entry == RECORD_ENTRY) {
+                if (size == records.length)
+                    records = Arrays.copyOf(records, size * 2);
+                records[size++] = position + 5;
+            } else {
+                throw new IOException("Voce non valida alla posizione " + position);
+            }
+            position += 5 + length;
+        }
+    }
+
+    /**
+     * Crea un file di fotografie, da scrivere in sequenza
+     * @param file il file (sovrascritto se esiste)
+     * @return il writer
+     * @throws IOException in caso di errore di scrittura
+     */
+    public static Writer create(Path file) throws IOException {
+        if (file == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        return new Writer(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file))));
+    }
+
+    /**
+     * Apre in lettura un file di fotografie, mappandolo in memoria
+     * @param file il file
+     * @return il file di fotografie
+     * @throws IOException in caso di errore di lettura o di file non valido
+     */
+    public static SnapshotFile open(Path file) throws IOException {
+        if (file == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Il file e' troppo grande: " + channel.size());
+            // la mappatura resta valida anche dopo la chiusura del canale
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new SnapshotFile(buffer);
+        }
+    }
+
+    /**
+     * @return il numero di record del file
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index la posizione del record
+     * @return il nome della classe del bean fotografato nel record
+     */
+    public String getTypeName(int index) {
+        int value = valueStart(record(index));
+        return classes.get(buffer.getInt(value + 5)).name;
+    }
+
+    /**
+     * Confronta un record di questo file con un record di un altro file (o dello stesso) consegnando le
+     * differenze al listener man mano che vengono trovate
+     * @param index la posizione del record in questo file
+     * @param other l'altro file
+     * @param otherIndex la posizione del record nell'altro file
+     * @param options le opzioni di comparazione
+     * @param listener il listener delle differenze
+     * @throws IllegalArgumentException in caso di errore (ad es. record di classi differenti)
+     */
+    public void compare(int index, SnapshotFile other, int otherIndex, ComparisonOptions options, DiffListener listener) throws IllegalArgumentException {
+        if (other == null || options == null || listener == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        new Comparison(this, record(index), other, other.record(otherIndex), ComparisonContext.forSnapshot(options, listener, options.maxDifferences())).compareRoot();
+    }
+
+    /**
+     * Confronta un record di questo file con un record di un altro file e restituisce le differenze in un {@link DiffResult}
+     * @param index la posizione del record in questo file
+     * @param other l'altro file
+     * @param otherIndex la posizione del record nell'altro file
+     * @param options le opzioni di comparazione
+     * @return il risultato della comparazione
+     * @throws IllegalArgumentException in caso di errore (ad es. record di classi differenti)
+     */
+    public DiffResult diff(int index, SnapshotFile other, int otherIndex, ComparisonOptions options) throws IllegalArgumentException {
+        DiffResult.Recorder recorder = new DiffResult.Recorder();
+        compare(index, other, otherIndex, options, recorder);
+        return recorder.build();
+    }
+
+    /**
+     * Verifica se un record di questo file differisce da un record di un altro file, fermandosi alla prima differenza
+     * @param index la posizione del record in questo file
+     * @param other l'altro file
+     * @param otherIndex la posizione del record nell'altro file
+     * @param options le opzioni di comparazione
+     * @return true se i record sono differenti
+     * @throws IllegalArgumentException in caso di errore (ad es. record di classi differenti)
+     */
+    public boolean differs(int index, SnapshotFile other, int otherIndex, ComparisonOptions options) throws IllegalArgumentException {
+        if (other == null || options == null)
+            throw new IllegalArgumentException("Argomento nullo!");
+        ComparisonContext context = ComparisonContext.forSnapshot(options, null, 1);
+        new Comparison(this, record(index), other, other.record(otherIndex), context).compareRoot();
+        return context.stopped();
+    }
+
+    private int record(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Indice non valido: " + index);
+        return records[index];
+    }
+
+    /**
+     * Il contenuto di un record inizia con la posizione (relativa) della tabella degli oggetti, seguita dal valore
+     */
+    private static int valueStart(int record) {
+        return record + 4;
+    }
+
+    /**
+     * Un valore di un file di fotografie che non e' un tipo semplice (bean, collezione, mappa o array), riportato
+     * nelle differenze senza essere decodificato
+     */
+    public static final class Value {
+        private final String typeName;
+        private final int position;
+
+        private Value(String typeName, int position) {
+            this.typeName = typeName;
+            this.position = position;
+        }
+
+        /**
+         * @return il nome della classe per i bean, la tipologia (List, Set, Collection, Map, array) per gli altri valori
+         */
+        public String getTypeName() {
+            return typeName;
+        }
+
+        /**
+         * @return la posizione del valore nel file
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        @Override
+        public String toString() {
+            return typeName + "@" + position;
+        }
+    }
+
+    /**
+     * La descrizione di una classe: i campi nell'ordine in cui sono scritti
+     */
+    private static final class ClassDef {
+        final int id;
+        final String name;
+        final String[] fieldNames;
+        final String[] declaringClasses;
+        /**
+         * Il tag del tipo primitivo di ciascun campo, {@link #NULL} per i campi che non sono primitivi
+         */
+        final byte[] kinds;
+        private Class<?> type;
+        /**
+         * Per ogni elenco di campi da confrontare (piano o selezione delle regole) la posizione dei campi in questa descrizione
+         */
+        private final IdentityHashMap<ClassPlan.FieldPlan[], int[]> indexes = new IdentityHashMap<>();
+
+        ClassDef(ByteBuffer buffer, int position) {
+            this.id = buffer.getInt(position);
+            position += 4;
+            this.name = string(buffer, position);
+            position += 4 + buffer.getInt(position);
+            int count = buffer.getInt(position);
+            position += 4;
+            this.fieldNames = new String[count];
+            this.declaringClasses = new String[count];
+            this.kinds = new byte[count];
+            for (int i = 0; i < count; i++) {
+                fieldNames[i] = string(buffer, position);
+                position += 4 + buffer.getInt(position);
+                declaringClasses[i] = string(buffer, position);
+                position += 4 + buffer.getInt(position);
+                kinds[i] = buffer.get(position++);
+            }
+        }
+
+        Class<?> type() {
+            if (type == null)
+                type = load(name);
+            return type;
+        }
+
+        int[] indexes(ClassPlan.FieldPlan[] fields) {
+            int[] result = indexes.get(fields);
+            if (result == null) {
+                result = new int[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    result[i] = -1;
+                    for (int j = 0; j < fieldNames.length; j++) {
+                        if (fieldNames[j].equals(fields[i].name) && declaringClasses[j].equals(fields[i].field.getDeclaringClass().getName())) {
+                            result[i] = j;
+                            break;
+                        }
+                    }
+                }
+                indexes.put(fields, result);
+            }
+            return result;
+        }
+    }
+
+    private static Class<?> load(String name) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try {
+            return Class.forName(name, false, loader != null ? loader : SnapshotFile.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Classe non disponibile: " + name, e);
+        }
+    }
+
+    private static String string(ByteBuffer buffer, int position) {
+        byte[] bytes = new byte[buffer.getInt(position)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return il numero di byte di un valore primitivo del tipo indicato
+     */
+    private static int width(byte kind) {
+        switch (kind) {
+            case BOOLEAN:
+            case BYTE:
+                return 1;
+            case CHAR:
+            case SHORT:
+                return 2;
+            case INT:
+            case FLOAT:
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    /**
+     * @return il tag del tipo primitivo (di un campo o degli elementi di un array)
+     */
+    private static byte primitiveTag(Class<?> primitiveType) {
+        if (primitiveType == int.class)
+            return INT;
+        if (primitiveType == long.class)
+            return LONG;
+        if (primitiveType == double.class)
+            return DOUBLE;
+        if (primitiveType == float.class)
+            return FLOAT;
+        if (primitiveType == boolean.class)
+            return BOOLEAN;
+        if (primitiveType == short.class)
+            return SHORT;
+        if (primitiveType == byte.class)
+            return BYTE;
+        return CHAR;
+    }
+
+    /**
+     * Scrive i bean in un file di fotografie, un record per ogni bean
+     */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream output;
+        private final Map<Class<?>, Integer> classIds = new HashMap<>();
+        /**
+         * Il record in corso di scrittura
+         */
+        private final Output record = new Output();
+        /**
+         * Le posizioni degli oggetti gia' scritti nel record in corso, in ordine di scrittura
+         */
+        private final IdentityHashMap<Object, Integer> objects = new IdentityHashMap<>();
+        private int[] objectPositions = new int[16];
+
+        private Writer(DataOutputStream output) throws IOException {
+            this.output = output;
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+        }
+
+        /**
+         * Aggiunge un bean al file
+         * @param bean il bean
+         * @throws IllegalArgumentException se il bean e' nullo o non e' un bean
+         * @throws IllegalAccessException in caso di accesso violato
+         * @throws IOException in caso di errore di scrittura
+         */
+        public void write(Object bean) throws IllegalArgumentException, IllegalAccessException, IOException {
+            if (bean == null)
+                throw new IllegalArgumentException("Argomento nullo!");
+            if (bean instanceof Enum || ClassPlan.of(bean.getClass()).kind() != ClassPlan.Kind.BEAN)
+                throw new IllegalArgumentException("L'argomento non e' un bean!");
+            record.reset();
+            objects.clear();
+            record.putInt(0);
+            value(bean);
+            // la tabella degli oggetti in coda al record
+            record.patchInt(0, record.size());
+            record.putInt(objects.size());
+            for (int i = 0; i < objects.size(); i++)
+                record.putInt(objectPositions[i]);
+            output.writeByte(RECORD_ENTRY);
+            output.writeInt(record.size());
+            record.writeTo(output);
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+
+        private void value(Object value) throws IllegalAccessException, IOException {
+            if (value == null) {
+                record.putByte(NULL);
+                return;
+            }
+            if (value instanceof Enum) {
+                record.putByte(ENUM);
+                record.putString(((Enum<?>) value).getDeclaringClass().getName());
+                record.putString(((Enum<?>) value).name());
+                return;
+            }
+            ClassPlan.Kind kind = ClassPlan.of(value.getClass()).kind();
+            if (kind == ClassPlan.Kind.PRIMITIVE) {
+                leaf(value);
+                return;
+            }
+            Integer id = objects.get(value);
+            if (id != null) {
+                record.putByte(REF);
+                record.putInt(id);
+                return;
+            }
+            if (objects.size() == objectPositions.length)
+                objectPositions = Arrays.copyOf(objectPositions, objects.size() * 2);
+            objectPositions[objects.size()] = record.size();
+            objects.put(value, objects.size());
+            switch (kind) {
+                case COLLECTION: {
+                    Collection<?> collection = (Collection<?>) value;
+                    int length = begin(collection instanceof List ? LIST : collection instanceof Set ? SET : COLLECTION);
+                    record.putInt(collection.size());
+                    for (Object element : collection)
+                        value(element);
+                    end(length);
+                    break;
+                }
+                case MAP: {
+                    Map<?, ?> map = (Map<?, ?>) value;
+                    int length = begin(MAP);
+                    record.putInt(map.size());
+                    for (Map.Entry<?, ?> entry : map.entrySet()) {
+                        value(entry.getKey());
+                        value(entry.getValue());
+                    }
+                    end(length);
+                    break;
+                }
+                case ARRAY:
+                    if (PrimitiveArrays.isPrimitiveArray(value))
+                        primitiveArray(value);
+                    else
+                        objectArray((Object[]) value);
+                    break;
+                default:
+                    bean(value);
+            }
+        }
+
+        private void bean(Object bean) throws IllegalAccessException, IOException {
+            int length = begin(BEAN);
+            record.putInt(classId(bean.getClass()));
+            for (ClassPlan.FieldPlan fieldPlan : ClassPlan.of(bean.getClass()).fields()) {
+                if (!fieldPlan.kind.primitiveField) {
+                    value(fieldPlan.accessor.get(bean));
+                    continue;
+                }
+                FieldAccessor accessor = fieldPlan.accessor;
+                switch (fieldPlan.kind) {
+                    case INT:
+                        record.putInt(accessor.getInt(bean));
+                        break;
+                    case LONG:
+                        record.putLong(accessor.getLong(bean));
+                        break;
+                    case DOUBLE:
+                        record.putLong(Double.doubleToRawLongBits(accessor.getDouble(bean)));
+                        break;
+                    case FLOAT:
+                        record.putInt(Float.floatToRawIntBits(accessor.getFloat(bean)));
+                        break;
+                    case BOOLEAN:
+                        record.putByte((byte) (accessor.getBoolean(bean) ? 1 : 0));
+                        break;
+                    case SHORT:
+                        record.putShort(accessor.getShort(bean));
+                        break;
+                    case BYTE:
+                        record.putByte(accessor.getByte(bean));
+                        break;
+                    default:
+                        record.putShort((short) accessor.getChar(bean));
+                }
+            }
+            end(length);
+        }
+
+        private void leaf(Object value) throws IOException {
+            if (value instanceof String) {
+                record.putByte(STRING);
+                record.putString((String) value);
+            } else if (value instanceof Integer) {
+                record.putByte(INT);
+                record.putInt((Integer) value);
+            } else if (value instanceof Long) {
+                record.putByte(LONG);
+                record.putLong((Long) value);
+            } else if (value instanceof Double) {
+                record.putByte(DOUBLE);
+                record.putLong(Double.doubleToRawLongBits((Double) value));
+            } else if (value instanceof Float) {
+                record.putByte(FLOAT);
+                record.putInt(Float.floatToRawIntBits((Float) value));
+            } else if (value instanceof Boolean) {
+                record.putByte(BOOLEAN);
+                record.putByte((byte) ((Boolean) value ? 1 : 0));
+            } else if (value instanceof Short) {
+                record.putByte(SHORT);
+                record.putShort((Short) value);
+            } else if (value instanceof Byte) {
+                record.putByte(BYTE);
+                record.putByte((Byte) value);
+            } else if (value instanceof Character) {
+                record.putByte(CHAR);
+                record.putShort((short) ((Character) value).charValue());
+            } else if (value instanceof java.sql.Timestamp) {
+                record.putByte(TIMESTAMP);
+                record.putLong(((java.sql.Timestamp) value).getTime());
+                record.putInt(((java.sql.Timestamp) value).getNanos());
+            } else if (value instanceof java.sql.Date) {
+                record.putByte(SQL_DATE);
+                record.putLong(((java.sql.Date) value).getTime());
+            } else if (value instanceof java.util.Date) {
+                record.putByte(DATE);
+                record.putLong(((java.util.Date) value).getTime());
+            } else if (value instanceof BigDecimal) {
+                int length = begin(BIG_DECIMAL);
+                record.putInt(((BigDecimal) value).scale());
+                record.putBytes(((BigDecimal) value).unscaledValue().toByteArray());
+                end(length);
+            } else if (value instanceof BigInteger) {
+                int length = begin(BIG_INTEGER);
+                record.putBytes(((BigInteger) value).toByteArray());
+                end(length);
+            } else if (value instanceof UUID) {
+                int length = begin(UUID_VALUE);
+                record.putLong(((UUID) value).getMostSignificantBits());
+                record.putLong(((UUID) value).getLeastSignificantBits());
+                end(length);
+            } else if (TimeValues.kindOf(value.getClass()) >= 0) {
+                int length = begin(TEMPORAL);
+                record.putByte((byte) TimeValues.kindOf(value.getClass()));
+                for (long component : TimeValues.components(value))
+                    record.putLong(component);
+                String zone = TimeValues.zone(value);
+                if (zone != null)
+                    record.putString(zone);
+                end(length);
+            } else {
+                throw new IllegalArgumentException("Valore non supportato nelle fotografie: " + value.getClass().getName());
+            }
+        }
+
+        private void primitiveArray(Object array) {
+            int length = begin(PRIMITIVE_ARRAY);
+            int count = PrimitiveArrays.length(array);
+            byte component = primitiveTag(array.getClass().getComponentType());
+            record.putByte(component);
+            record.putInt(count);
+            // i float e i double sono scritti nella forma canonica, cosi' l'uguaglianza dei byte e' quella di Arrays.equals
+            if (array instanceof int[]) {
+                for (int value : (int[]) array)
+                    record.putInt(value);
+            } else if (array instanceof long[]) {
+                for (long value : (long[]) array)
+                    record.putLong(value);
+            } else if (array instanceof double[]) {
+                for (double value : (double[]) array)
+                    record.putLong(Double.doubleToLongBits(value));
+            } else if (array instanceof float[]) {
+                for (float value : (float[]) array)
+                    record.putInt(Float.floatToIntBits(value));
+            } else if (array instanceof byte[]) {
+                for (byte value : (byte[]) array)
+                    record.putByte(value);
+            } else if (array instanceof short[]) {
+                for (short value : (short[]) array)
+                    record.putShort(value);
+            } else if (array instanceof char[]) {
+                for (char value : (char[]) array)
+                    record.putShort((short) value);
+            } else {
+                for (boolean value : (boolean[]) array)
+                    record.putByte((byte) (value ? 1 : 0));
+            }
+            end(length);
+        }
+
+        private void objectArray(Object[] array) throws IllegalAccessException, IOException {
+            int length = begin(OBJECT_ARRAY);
+            record.putInt(array.length);
+            for (Object element : array)
+                value(element);
+            end(length);
+        }
+
+        /**
+         * Scrive il tag di un valore di lunghezza variabile e lo spazio per la sua lunghezza
+         * @return la posizione della lunghezza
+         */
+        private int begin(byte tag) {
+            record.putByte(tag);
+            int position = record.size();
+            record.putInt(0);
+            return position;
+        }
+
+        private void end(int lengthPosition) {
+            record.patchInt(lengthPosition, record.size() - lengthPosition - 4);
+        }
+
+        /**
+         * Restituisce l'identificativo della classe, scrivendone la descrizione (prima del record in corso) la prima volta
+         */
+        private int classId(Class<?> type) throws IOException {
+            Integer id = classIds.get(type);
+            if (id == null) {
+                id = classIds.size();
+                classIds.put(type, id);
+                Output def = new Output();
+                def.putInt(id);
+                def.putString(type.getName());
+                ClassPlan.FieldPlan[] fields = ClassPlan.of(type).fields();
+                def.putInt(fields.length);
+                for (ClassPlan.FieldPlan fieldPlan : fields) {
+                    def.putString(fieldPlan.name);
+                    def.putString(fieldPlan.field.getDeclaringClass().getName());
+                    def.putByte(fieldPlan.kind.primitiveField ? primitiveTag(fieldPlan.field.getType()) : NULL);
+                }
+                output.writeByte(CLASS_ENTRY);
+                output.writeInt(def.size());
+                def.writeTo(output);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Un buffer di byte che cresce, con la possibilita' di riscrivere un intero gia' scritto
+     */
+    private static final class Output {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+        }
+
+        void putByte(byte value) {
+            ensure(1);
+            bytes[size++] = value;
+        }
+
+        void putShort(short value) {
+            ensure(2);
+            bytes[size++] = (byte) (value >> 8);
+            bytes[size++] = (byte) value;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            patchInt(size, value);
+            size += 4;
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >> 32));
+            putInt((int) value);
+        }
+
+        void putString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putInt(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        void patchInt(int position, int value) {
+            bytes[position] = (byte) (value >> 24);
+            bytes[position + 1] = (byte) (value >> 16);
+            bytes[position + 2] = (byte) (value >> 8);
+            bytes[position + 3] = (byte) value;
+        }
+
+        void writeTo(OutputStream output) throws IOException {
+            output.write(bytes, 0, size);
+        }
+
+        void putBytes(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+    }
+
+    /**
+     * Il confronto di due record, letti direttamente dai buffer dei due file
+     */
+    private static final class Comparison {
+        private final Side first;
+        private final Side second;
+        private final ComparisonContext context;
+        /**
+         * Le coppie di posizioni gia' confrontate (grafi ciclici e sottografi condivisi)
+         */
+        private final Set<Long> visited = new HashSet<>();
+
+        Comparison(SnapshotFile firstFile, int firstRecord, SnapshotFile secondFile, int secondRecord, ComparisonContext context) {
+            this.first = new Side(firstFile, firstRecord);
+            this.second = new Side(secondFile, secondRecord);
+            this.context = context;
+        }
+
+        void compareRoot() {
+            int a = valueStart(first.record);
+            int b = valueStart(second.record);
+            if (!first.typeName(a).equals(second.typeName(b)))
+                throw new IllegalArgumentException("Gli oggetti devono appartenere alla stessa classe!");
+            ComparisonEvents.Compare event = new ComparisonEvents.Compare();
+            event.begin();
+            long start = context.startMeasure();
+            visit(a, b);
+            compareBeans(a, b);
+            context.endMeasure(first.classDef(a).type(), start, event);
+        }
+
+        private boolean visit(int a, int b) {
+            return visited.add(((long) a << 32) | (b & 0xffffffffL));
+        }
+
+        private void compareBeans(int a, int b) {
+            ClassDef firstDef = first.classDef(a);
+            ClassDef secondDef = second.classDef(b);
+            Class<?> type = firstDef.type();
+            PathRules.State state = context.state();
+            ClassPlan.FieldPlan[] fields;
+            PathRules.State[] states;
+            if (state == null) {
+                fields = ClassPlan.of(type).fields();
+                states = null;
+            } else {
+                PathRules.Selection selection = state.select(type);
+                fields = selection.fields;
+                states = selection.states;
+            }
+            int[] firstIndexes = firstDef.indexes(fields);
+            int[] secondIndexes = secondDef.indexes(fields);
+            int[] firstOffsets = first.fieldOffsets(a, firstDef);
+            int[] secondOffsets = second.fieldOffsets(b, secondDef);
+            for (int i = 0; i < fields.length; i++) {
+                ClassPlan.FieldPlan fieldPlan = fields[i];
+                if (context.stopped())
+                    return;
+                if (states == null && context.options.rules().isExcluded(fieldPlan.name))
+                    continue;
+                int firstIndex = firstIndexes[i];
+                int secondIndex = secondIndexes[i];
+                context.enter(fieldPlan.field, states == null ? null : states[i]);
+                if (fieldPlan.kind.primitiveField) {
+                    comparePrimitiveFields(fieldPlan.field, firstIndex < 0 ? NULL : firstDef.kinds[firstIndex], firstIndex < 0 ? -1 : firstOffsets[firstIndex],
+                            secondIndex < 0 ? NULL : secondDef.kinds[secondIndex], secondIndex < 0 ? -1 : secondOffsets[secondIndex]);
+                } else {
+                    // un campo assente in una delle due versioni della classe vale null
+                    compareValues(fieldPlan.field, firstIndex < 0 ? -1 : firstOffsets[firstIndex], secondIndex < 0 ? -1 : secondOffsets[secondIndex]);
+                }
+                context.leave();
+            }
+        }
+
+        private void comparePrimitiveFields(Field field, byte firstKind, int a, byte secondKind, int b) {
+            if (firstKind != secondKind || firstKind == NULL) {
+                Object firstValue = first.primitive(firstKind, a);
+                Object secondValue = second.primitive(secondKind, b);
+                if (!Objects.equals(firstValue, secondValue))
+                    context.report(field, firstValue, secondValue);
+                return;
+            }
+            ByteBuffer x = first.buffer;
+            ByteBuffer y = second.buffer;
+            boolean equal;
+            switch (firstKind) {
+                case INT:
+                    equal = x.getInt(a) == y.getInt(b);
+                    break;
+                case LONG:
+                    equal = x.getLong(a) == y.getLong(b);
+                    break;
+                case DOUBLE:
+                    equal = Double.longBitsToDouble(x.getLong(a)) == Double.longBitsToDouble(y.getLong(b));
+                    break;
+                case FLOAT:
+                    equal = Float.intBitsToFloat(x.getInt(a)) == Float.intBitsToFloat(y.getInt(b));
+                    break;
+                case SHORT:
+                case CHAR:
+                    equal = x.getShort(a) == y.getShort(b);
+                    break;
+                default:
+                    equal = x.get(a) == y.get(b);
+            }
+            if (!equal)
+                context.report(field, first.primitive(firstKind, a), second.primitive(secondKind, b));
+        }
+
+        private void compareValues(Field field, int a, int b) {
+            a = first.resolve(a);
+            b = second.resolve(b);
+            byte firstTag = first.tag(a);
+            byte secondTag = second.tag(b);
+            if (firstTag == NULL || secondTag == NULL) {
+                if (firstTag != secondTag)
+                    context.report(field, first.value(a), second.value(b));
+                return;
+            }
+            if (isLeaf(firstTag) || isLeaf(secondTag)) {
+                if (!leavesEqual(a, b))
+                    context.report(field, first.value(a), second.value(b));
+                return;
+            }
+            boolean collections = isCollection(firstTag) && isCollection(secondTag);
+            if (firstTag != secondTag && !collections) {
+                context.report(field, first.value(a), second.value(b));
+                return;
+            }
+            if (firstTag == BEAN && !first.typeName(a).equals(second.typeName(b))) {
+                context.report(field, first.value(a), second.value(b));
+                return;
+            }
+            // una coppia gia' confrontata (grafo ciclico o sottografo condiviso) non va confrontata di nuovo
+            if (!visit(a, b))
+                return;
+            if (collections)
+                compareCollections(field, a, b);
+            else if (firstTag == MAP)
+                compareMaps(field, a, b);
+            else if (firstTag == PRIMITIVE_ARRAY)
+                comparePrimitiveArrays(field, a, b);
+            else if (firstTag == OBJECT_ARRAY)
+                compareArrays(field, a, b);
+            else
+                compareBeans(a, b);
+        }
+
+        /**
+         * Confronta due valori semplici con le regole del comparatore (stringhe senza distinzione tra maiuscole
+         * e minuscole, date per istante, BigDecimal per valore): valori con la stessa codifica sono uguali (tranne
+         * i NaN, sempre differenti per ==), per cui vengono decodificati solo i valori con byte differenti
+         */
+        private boolean leavesEqual(int a, int b) {
+            byte tag = first.tag(a);
+            if (tag == second.tag(b) && tag != DOUBLE && tag != FLOAT && first.sameBytes(a, second, b))
+                return true;
+            Object firstValue = first.value(a);
+            Object secondValue = second.value(b);
+            if (firstValue == null || secondValue == null || firstValue.getClass() != secondValue.getClass())
+                return false;
+            if (firstValue instanceof Enum)
+                return firstValue == secondValue;
+            return BeanComparator.arePrimitivesEqual(firstValue, secondValue);
+        }
+
+        private void compareCollections(Field field, int a, int b) {
+            int[] firstElements = first.elements(a, 1);
+            int[] secondElements = second.elements(b, 1);
+            if (!context.collecting() && firstElements.length != secondElements.length) {
+                context.report(field, first.value(a), second.value(b));
+                return;
+            }
+            if (context.options.orderedLists() && first.tag(a) == LIST && second.tag(b) == LIST) {
+                compareSequences(field, firstElements, secondElements);
+                return;
+            }
+            // le collezioni sono confrontate come multiset degli elementi codificati
+            Map<Encoded, int[]> occurrences = new HashMap<>();
+            for (int element : secondElements) {
+                Encoded encoded = second.encoded(element);
+                int[] count = occurrences.get(encoded);
+                if (count == null)
+                    occurrences.put(encoded, new int[]{1});
+                else
+                    count[0]++;
+            }
+            for (int element : firstElements) {
+                int[] count = occurrences.get(first.encoded(element));
+                if (count == null || count[0] == 0) {
+                    context.removed(field, first.value(first.resolve(element)));
+                    if (context.stopped())
+                        return;
+                } else {
+                    count[0]--;
+                }
+            }
+            for (int element : secondElements) {
+                int[] count = occurrences.get(second.encoded(element));
+                if (count[0] > 0) {
+                    count[0]--;
+                    context.added(field, second.value(second.resolve(element)));
+                    if (context.stopped())
+                        return;
+                }
+            }
+        }
+
+        private void compareSequences(Field field, int[] firstElements, int[] secondElements) {
+            Map<Encoded, Integer> ids = new HashMap<>();
+            int[] firstIds = new int[firstElements.length];
+            int[] secondIds = new int[secondElements.length];
+            for (int i = 0; i < firstElements.length; i++)
+                firstIds[i] = id(ids, first.encoded(firstElements[i]));
+            for (int j = 0; j < secondElements.length; j++)
+                secondIds[j] = id(ids, second.encoded(secondElements[j]));
+            SequenceDiff script = SequenceDiff.diff(firstIds, secondIds);
+            for (int op = 0; op < script.size() && !context.stopped(); op++) {
+                int i = script.firstIndex(op);
+                int j = script.secondIndex(op);
+                if (i >= 0 && j < 0)
+                    context.reportIndex(field, i, -1, first.value(first.resolve(firstElements[i])), null);
+                else if (i < 0)
+                    context.reportIndex(field, -1, j, null, second.value(second.resolve(secondElements[j])));
+            }
+        }
+
+        private static int id(Map<Encoded, Integer> ids, Encoded encoded) {
+            Integer id = ids.get(encoded);
+            if (id == null) {
+                id = ids.size();
+                ids.put(encoded, id);
+            }
+            return id;
+        }
+
+        private void compareMaps(Field field, int a, int b) {
+            int[] firstEntries = first.elements(a, 2);
+            int[] secondEntries = second.elements(b, 2);
+            if (!context.collecting() && firstEntries.length != secondEntries.length) {
+                context.report(field, first.value(a), second.value(b));
+                return;
+            }
+            Map<Object, Integer> secondValues = new HashMap<>();
+            for (int i = 0; i < secondEntries.length; i += 2)
+                secondValues.put(second.key(secondEntries[i]), secondEntries[i + 1]);
+            Set<Object> firstKeys = new HashSet<>();
+            for (int i = 0; i < firstEntries.length && !context.stopped(); i += 2) {
+                Object key = first.key(firstEntries[i]);
+                firstKeys.add(key);
+                int firstValue = first.resolve(firstEntries[i + 1]);
+                Integer secondValue = secondValues.get(key);
+                if (secondValue == null) {
+                    context.removedKey(field, first.value(first.resolve(firstEntries[i])), first.value(firstValue));
+                    continue;
+                }
+                int b2 = second.resolve(secondValue);
+                byte firstTag = first.tag(firstValue);
+                if (context.options.deepMapValues() && firstTag != NULL && !isLeaf(firstTag) && firstTag == second.tag(b2)) {
+                    context.enterKey(first.value(first.resolve(firstEntries[i])));
+                    compareValues(field, firstValue, b2);
+                    context.leave();
+                } else if (!first.encoded(firstValue).equals(second.encoded(b2))) {
+                    context.reportKey(field, first.value(first.resolve(firstEntries[i])), first.value(firstValue), second.value(b2));
+                }
+            }
+            for (int i = 0; i < secondEntries.length && !context.stopped(); i += 2) {
+                if (!firstKeys.contains(second.key(secondEntries[i])))
+                    context.addedKey(field, second.value(second.resolve(secondEntries[i])), second.value(second.resolve(secondEntries[i + 1])));
+            }
+        }
+
+        private void comparePrimitiveArrays(Field field, int a, int b) {
+            byte component = first.buffer.get(a + 5);
+            int count = first.buffer.getInt(a + 6);
+            if (component != second.buffer.get(b + 5) || count != second.buffer.getInt(b + 6)) {
+                context.report(field, first.value(a), second.value(b));
+                return;
+            }
+            int width = width(component);
+            if (component == DOUBLE || component == FLOAT) {
+                // float e double si confrontano con == (0.0 e -0.0 uguali, NaN sempre differente), non per bit
+                for (int i = 0; i < count && !context.stopped(); i++) {
+                    int x = a + 10 + i * width, y = b + 10 + i * width;
+                    boolean equal = component == DOUBLE
+                            ? first.buffer.getDouble(x) == second.buffer.getDouble(y)
+                            : first.buffer.getFloat(x) == second.buffer.getFloat(y);
+                    if (!equal)
+                        context.reportIndex(field, i, i, first.primitive(component, x), second.primitive(component, y));
+                }
+                return;
+            }
+            ByteBuffer x = first.slice(a + 10, count * width);
+            ByteBuffer y = second.slice(b + 10, count * width);
+            int i = 0;
+            while (i < count && !context.stopped()) {
+                x.position(i * width);
+                y.position(i * width);
+                int mismatch = x.mismatch(y);
+                if (mismatch < 0)
+                    return;
+                i += mismatch / width;
+                context.reportIndex(field, i, i, first.primitive(component, a + 10 + i * width), second.primitive(component, b + 10 + i * width));
+                i++;
+            }
+        }
+
+        private void compareArrays(Field field, int a, int b) {
+            int[] firstElements = first.elements(a, 1);
+            int[] secondElements = second.elements(b, 1);
+            if (firstElements.length != secondElements.length) {
+                context.report(field, first.value(a), second.value(b));
+                return;
+            }
+            for (int i = 0; i < firstElements.length && !context.stopped(); i++) {
+                int x = first.resolve(firstElements[i]);
+                int y = second.resolve(secondElements[i]);
+                byte firstTag = first.tag(x);
+                byte secondTag = second.tag(y);
+                if (firstTag == NULL || secondTag == NULL || isLeaf(firstTag)) {
+                    // elementi semplici: la differenza viene riportata con la sua posizione
+                    if (firstTag == NULL ? secondTag != NULL : secondTag == NULL || !leavesEqual(x, y))
+                        context.reportIndex(field, i, i, first.value(x), second.value(y));
+                } else {
+                    context.enterIndex(i, i);
+                    compareValues(field, x, y);
+                    context.leave();
+                }
+            }
+        }
+
+        private static boolean isLeaf(byte tag) {
+            return tag >= STRING && tag <= ENUM || tag >= BIG_DECIMAL;
+        }
+
+        private static boolean isCollection(byte tag) {
+            return tag == LIST || tag == SET || tag == COLLECTION;
+        }
+    }
+
+    /**
+     * Un record di un file, letto tramite il buffer del file
+     */
+    private static final class Side {
+        final SnapshotFile file;
+        final ByteBuffer buffer;
+        final int record;
+
+        Side(SnapshotFile file, int record) {
+            this.file = file;
+            this.buffer = file.buffer;
+            this.record = record;
+        }
+
+        /**
+         * @return il tag del valore, {@link #NULL} per le posizioni negative (campi assenti)
+         */
+        byte tag(int position) {
+            return position < 0 ? NULL : buffer.get(position);
+        }
+
+        /**
+         * Sostituisce un riferimento con la posizione dell'oggetto riferito
+         */
+        int resolve(int position) {
+            if (position < 0 || buffer.get(position) != REF)
+                return position;
+            int table = record + buffer.getInt(record);
+            return record + buffer.getInt(table + 4 + 4 * buffer.getInt(position + 1));
+        }
+
+        ClassDef classDef(int bean) {
+            return file.classes.get(buffer.getInt(bean + 5));
+        }
+
+        String typeName(int bean) {
+            return classDef(bean).name;
+        }
+
+        byte[] bytes(int position, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.get(bytes);
+            return bytes;
+        }
+
+        ByteBuffer slice(int position, int length) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.limit(position + length);
+            return view.slice();
+        }
+
+        /**
+         * @return la posizione del valore successivo
+         */
+        int skip(int position) {
+            switch (buffer.get(position)) {
+                case NULL:
+                    return position + 1;
+                case REF:
+                    return position + 5;
+                case STRING:
+                    return position + 5 + buffer.getInt(position + 1);
+                case BOOLEAN:
+                case BYTE:
+                    return position + 2;
+                case CHAR:
+                case SHORT:
+                    return position + 3;
+                case INT:
+                case FLOAT:
+                    return position + 5;
+                case LONG:
+                case DOUBLE:
+                case DATE:
+                case SQL_DATE:
+                    return position + 9;
+                case TIMESTAMP:
+                    return position + 13;
+                case ENUM: {
+                    int name = position + 5 + buffer.getInt(position + 1);
+                    return name + 4 + buffer.getInt(name);
+                }
+                default:
+                    return position + 5 + buffer.getInt(position + 1);
+            }
+        }
+
+        /**
+         * @return la posizione di ciascun campo del bean, nell'ordine della descrizione della classe
+         */
+        int[] fieldOffsets(int bean, ClassDef def) {
+            int[] offsets = new int[def.kinds.length];
+            int position = bean + 9;
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = position;
+                position = def.kinds[i] == NULL ? skip(position) : position + width(def.kinds[i]);
+            }
+            return offsets;
+        }
+
+        /**
+         * @param perElement il numero di valori per elemento (2 per le entry delle mappe)
+         * @return le posizioni dei valori contenuti in una collezione, in una mappa o in un array di oggetti
+         */
+        int[] elements(int container, int perElement) {
+            int[] positions = new int[buffer.getInt(container + 5) * perElement];
+            int position = container + 9;
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = position;
+                position = skip(position);
+            }
+            return positions;
+        }
+
+        /**
+         * @return la chiave di una mappa: il valore per i tipi semplici, la codifica per gli altri
+         */
+        Object key(int position) {
+            position = resolve(position);
+            byte tag = tag(position);
+            return tag == NULL || Comparison.isLeaf(tag) ? value(position) : encoded(position);
+        }
+
+        Encoded encoded(int position) {
+            position = resolve(position);
+            return new Encoded(buffer, position, skip(position) - position);
+        }
+
+        boolean sameBytes(int position, Side other, int otherPosition) {
+            return encoded(position).equals(other.encoded(otherPosition));
+        }
+
+        /**
+         * Decodifica un valore primitivo
+         */
+        Object primitive(byte kind, int position) {
+            if (position < 0)
+                return null;
+            switch (kind) {
+                case INT:
+                    return buffer.getInt(position);
+                case LONG:
+                    return buffer.getLong(position);
+                case DOUBLE:
+                    return Double.longBitsToDouble(buffer.getLong(position));
+                case FLOAT:
+                    return Float.intBitsToFloat(buffer.getInt(position));
+                case BOOLEAN:
+                    return buffer.get(position) != 0;
+                case SHORT:
+                    return buffer.getShort(position);
+                case BYTE:
+                    return buffer.get(position);
+                case CHAR:
+                    return (char) buffer.getShort(position);
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Decodifica un valore semplice; gli altri valori sono riportati come {@link Value}
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Object value(int position) {
+            position = resolve(position);
+            byte tag = tag(position);
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return string(buffer, position + 1);
+                case DATE:
+                    return new java.util.Date(buffer.getLong(position + 1));
+                case SQL_DATE:
+                    return new java.sql.Date(buffer.getLong(position + 1));
+                case TIMESTAMP: {
+                    java.sql.Timestamp timestamp = new java.sql.Timestamp(buffer.getLong(position + 1));
+                    timestamp.setNanos(buffer.getInt(position + 9));
+                    return timestamp;
+                }
+                case ENUM: {
+                    String type = string(buffer, position + 1);
+                    String name = string(buffer, position + 5 + buffer.getInt(position + 1));
+                    return Enum.valueOf((Class<Enum>) load(type), name);
+                }
+                case BEAN:
+                    return new Value(typeName(position), position);
+                case LIST:
+                    return new Value("List", position);
+                case SET:
+                    return new Value("Set", position);
+                case COLLECTION:
+                    return new Value("Collection", position);
+                case MAP:
+                    return new Value("Map", position);
+                case PRIMITIVE_ARRAY:
+                case OBJECT_ARRAY:
+                    return new Value("array", position);
+                case BIG_DECIMAL: {
+                    int length = buffer.getInt(position + 1);
+                    return new BigDecimal(new BigInteger(bytes(position + 9, length - 4)), buffer.getInt(position + 5));
+                }
+                case BIG_INTEGER:
+                    return new BigInteger(bytes(position + 5, buffer.getInt(position + 1)));
+                case UUID_VALUE:
+                    return new UUID(buffer.getLong(position + 5), buffer.getLong(position + 13));
+                case TEMPORAL: {
+                    int kind = buffer.get(position + 5);
+                    long[] components = new long[TimeValues.componentCount(kind)];
+                    for (int i = 0; i < components.length; i++)
+                        components[i] = buffer.getLong(position + 6 + 8 * i);
+                    int zone = position + 6 + 8 * components.length;
+                    return TimeValues.value(kind, components, zone < skip(position) ? string(buffer, zone) : null);
+                }
+                default:
+                    return primitive(tag, position + 1);
+            }
+        }
+    }
+
+    /**
+     * La codifica di un valore, confrontata byte per byte
+     */
+    private static final class Encoded {
+        private final ByteBuffer bytes;
+        private final int hash;
+
+        Encoded(ByteBuffer buffer, int position, int length) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.limit(position + length);
+            this.bytes = view.slice();
+            this.hash = bytes.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Encoded && ((Encoded) obj).hash == hash && ((Encoded) obj).bytes.equals(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package it.sogei.beanutils;
+
+import java.time.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * La scomposizione dei valori di {@code java.time} in numeri (e, per i fusi orari, nel nome della zona), per
+ * scriverli nei formati binari della libreria ({@link SnapshotFile}, {@link BeanDelta}) senza serializzazione Java.
+ *
+ * Ogni tipo ha un codice e un numero fisso di componenti: chi scrive registra il codice, le componenti e la
+ * zona ({@link #zone(Object)}, solo per i tipi che ne hanno una); chi legge ricostruisce il valore con
+ * {@link #value(int, long[], String)}.
+ */
+final class TimeValues {
+    static final int INSTANT = 0;
+    static final int LOCAL_DATE = 1;
+    static final int LOCAL_TIME = 2;
+    static final int LOCAL_DATE_TIME = 3;
+    static final int OFFSET_DATE_TIME = 4;
+    static final int OFFSET_TIME = 5;
+    static final int ZONED_DATE_TIME = 6;
+    static final int DURATION = 7;
+    static final int PERIOD = 8;
+    static final int YEAR = 9;
+    static final int YEAR_MONTH = 10;
+    static final int MONTH_DAY = 11;
+    static final int ZONE_OFFSET = 12;
+    static final int ZONE_ID = 13;
+
+    private static final int[] COMPONENTS = {2, 1, 1, 2, 3, 2, 3, 2, 3, 1, 2, 2, 1, 0};
+
+    private static final Map<Class<?>, Integer> KINDS = new HashMap<>();
+
+    static {
+        KINDS.put(Instant.class, INSTANT);
+        KINDS.put(LocalDate.class, LOCAL_DATE);
+        KINDS.put(LocalTime.class, LOCAL_TIME);
+        KINDS.put(LocalDateTime.class, LOCAL_DATE_TIME);
+        KINDS.put(OffsetDateTime.class, OFFSET_DATE_TIME);
+        KINDS.put(OffsetTime.class, OFFSET_TIME);
+        KINDS.put(ZonedDateTime.class, ZONED_DATE_TIME);
+        KINDS.put(Duration.class, DURATION);
+        KINDS.put(Period.class, PERIOD);
+        KINDS.put(Year.class, YEAR);
+        KINDS.put(YearMonth.class, YEAR_MONTH);
+        KINDS.put(MonthDay.class, MONTH_DAY);
+        KINDS.put(ZoneOffset.class, ZONE_OFFSET);
+    }
+
+    private TimeValues() {
+    }
+
+    /**
+     * @param type la classe del valore
+     * @return il codice del tipo, -1 se la classe non e' un tipo di java.time supportato
+     */
+    static int kindOf(Class<?> type) {
+        Integer kind = KINDS.get(type);
+        if (kind == null)
+            return ZoneId.class.isAssignableFrom(type) ? ZONE_ID : -1;
+        return kind;
+    }
+
+    /**
+     * @param kind il codice del tipo
+     * @return true se il tipo ha una zona oltre alle componenti
+     */
+    static boolean zoned(int kind) {
+        return kind == ZONED_DATE_TIME || kind == ZONE_ID;
+    }
+
+    /**
+     * @param kind il codice del tipo
+     * @return il numero di componenti del tipo
+     */
+    static int componentCount(int kind) {
+        if (kind < 0 || kind >= COMPONENTS.length)
+            throw new IllegalArgumentException("Tipo di java.time non valido: " + kind);
+        return COMPONENTS[kind];
+    }
+
+    /**
+     * @param value il valore (di un tipo supportato)
+     * @return le componenti numeriche del valore
+     */
+    static long[] components(Object value) {
+        switch (kindOf(value.getClass())) {
+            case INSTANT:
+                return new long[]{((Instant) value).getEpochSecond(), ((Instant) value).getNano()};
+            case LOCAL_DATE:
+                return new long[]{((LocalDate) value).toEpochDay()};
+            case LOCAL_TIME:
+                return new long[]{((LocalTime) value).toNanoOfDay()};
+            case LOCAL_DATE_TIME:
+                return dateTime((LocalDateTime) value, null);
+            case OFFSET_DATE_TIME:
+                return dateTime(((OffsetDateTime) value).toLocalDateTime(), ((OffsetDateTime) value).getOffset());
+            case OFFSET_TIME:
+                return new long[]{((OffsetTime) value).toLocalTime().toNanoOfDay(), ((OffsetTime) value).getOffset().getTotalSeconds()};
+            case ZONED_DATE_TIME:
+                return dateTime(((ZonedDateTime) value).toLocalDateTime(), ((ZonedDateTime) value).getOffset());
+            case DURATION:
+                return new long[]{((Duration) value).getSeconds(), ((Duration) value).getNano()};
+            case PERIOD:
+                return new long[]{((Period) value).getYears(), ((Period) value).getMonths(), ((Period) value).getDays()};
+            case YEAR:
+                return new long[]{((Year) value).getValue()};
+            case YEAR_MONTH:
+                return new long[]{((YearMonth) value).getYear(), ((YearMonth) value).getMonthValue()};
+            case MONTH_DAY:
+                return new long[]{((MonthDay) value).getMonthValue(), ((MonthDay) value).getDayOfMonth()};
+            case ZONE_OFFSET:
+                return new long[]{((ZoneOffset) value).getTotalSeconds()};
+            case ZONE_ID:
+                return new long[0];
+            default:
+                throw new IllegalArgumentException("Tipo di java.time non supportato: " + value.getClass().getName());
+        }
+    }
+
+    private static long[] dateTime(LocalDateTime dateTime, ZoneOffset offset) {
+        long day = dateTime.toLocalDate().toEpochDay();
+        long time = dateTime.toLocalTime().toNanoOfDay();
+        return offset == null ? new long[]{day, time} : new long[]{day, time, offset.getTotalSeconds()};
+    }
+
+    /**
+     * @param value il valore (di un tipo supportato)
+     * @return il nome della zona per i valori che ne hanno una, altrimenti null
+     */
+    static String zone(Object value) {
+        if (value instanceof ZonedDateTime)
+            return ((ZonedDateTime) value).getZone().getId();
+        return kindOf(value.getClass()) == ZONE_ID ? ((ZoneId) value).getId() : null;
+    }
+
+    /**
+     * Ricostruisce un valore dalle sue componenti
+     * @param kind il codice del tipo
+     * @param components le componenti
+     * @param zone il nome della zona (solo per i tipi che ne hanno una)
+     * @return il valore
+     * @throws DateTimeException se le componenti non sono valide
+     */
+    static Object value(int kind, long[] components, String zone) {
+        switch (kind) {
+            case INSTANT:
+                return Instant.ofEpochSecond(components[0], components[1]);
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(components[0]);
+            case LOCAL_TIME:
+                return LocalTime.ofNanoOfDay(components[0]);
+            case LOCAL_DATE_TIME:
+                return LocalDateTime.of(LocalDate.ofEpochDay(components[0]), LocalTime.ofNanoOfDay(components[1]));
+            case OFFSET_DATE_TIME:
+                return OffsetDateTime.of(LocalDate.ofEpochDay(components[0]), LocalTime.ofNanoOfDay(components[1]), offset(components[2]));
+            case OFFSET_TIME:
+                return OffsetTime.of(LocalTime.ofNanoOfDay(components[0]), offset(components[1]));
+            case ZONED_DATE_TIME:
+                return ZonedDateTime.ofLocal(LocalDateTime.of(LocalDate.ofEpochDay(components[0]), LocalTime.ofNanoOfDay(components[1])),
+                        ZoneId.of(zone), offset(components[2]));
+            case DURATION:
+                return Duration.ofSeconds(components[0], components[1]);
+            case PERIOD:
+                return Period.of(Math.toIntExact(components[0]), Math.toIntExact(components[1]), Math.toIntExact(components[2]));
+            case YEAR:
+                return Year.of(Math.toIntExact(components[0]));
+            case YEAR_MONTH:
+                return YearMonth.of(Math.toIntExact(components[0]), Math.toIntExact(components[1]));
+            case MONTH_DAY:
+                return MonthDay.of(Math.toIntExact(components[0]), Math.toIntExact(components[1]));
+            case ZONE_OFFSET:
+                return offset(components[0]);
+            case ZONE_ID:
+                return ZoneId.of(zone);
+            default:
+                throw new IllegalArgumentException("Tipo di java.time non valido: " + kind);
+        }
+    }
+
+    private static ZoneOffset offset(long seconds) {
+        return ZoneOffset.ofTotalSeconds(Math.toIntExact(seconds));
+    }
+}
@@ -0,0 +1,23 @@
+package it.sogei.beanutils;
+
+/**
+ * Il confronto dei valori di un tipo che va trattato come un valore semplice, senza scendere via reflection
+ * nei suoi campi (ad es. importi, codici o identificativi con una propria nozione di uguaglianza).
+ *
+ * I tipi piu' comuni hanno gia' un confronto predefinito: wrapper delle primitive, stringhe (senza distinzione
+ * tra maiuscole e minuscole), date, enum, {@link java.math.BigDecimal} (per valore, indipendentemente dalla
+ * scala), {@link java.math.BigInteger}, {@link java.util.UUID} e i tipi di {@code java.time}. Per gli altri
+ * tipi il confronto si registra nelle opzioni con
+ * {@link ComparisonOptions.Builder#compareWith(Class, ValueComparator)}.
+ *
+ * @param <T> il tipo dei valori
+ */
+@FunctionalInterface
+public interface ValueComparator<T> {
+    /**
+     * @param first il valore del primo bean (non nullo)
+     * @param second il valore del secondo bean (non nullo, della stessa classe del primo)
+     * @return true se i valori sono uguali
+     */
+    boolean equal(T first, T second);
+}
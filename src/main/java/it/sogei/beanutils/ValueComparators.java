@@ -0,0 +1,76 @@
+package it.sogei.beanutils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * La tabella dei confronti predefiniti dei valori semplici, risolta una sola volta per classe tramite un
+ * {@link ClassValue}: il comparatore trova il confronto di un valore con un solo accesso alla tabella,
+ * invece di una catena di instanceof.
+ *
+ * Le classi senza confronto predefinito (bean, collezioni, mappe e array) non hanno una voce nella tabella.
+ */
+final class ValueComparators {
+    private static final ValueComparator<Object> EQUALS = Object::equals;
+    private static final ValueComparator<Object> IDENTITY = (first, second) -> first == second;
+
+    private static final Map<Class<?>, ValueComparator<Object>> BUILT_INS = new HashMap<>();
+
+    static {
+        register(String.class, String::equalsIgnoreCase);
+        register(Character.class, EQUALS);
+        register(Boolean.class, EQUALS);
+        register(Byte.class, EQUALS);
+        register(Short.class, EQUALS);
+        register(Integer.class, EQUALS);
+        register(Long.class, EQUALS);
+        // i numeri in virgola mobile si confrontano con == (0.0 e -0.0 uguali, NaN sempre differente)
+        register(Double.class, (first, second) -> first.doubleValue() == second.doubleValue());
+        register(Float.class, (first, second) -> first.floatValue() == second.floatValue());
+        // le date si confrontano per istante (vale anche per java.sql.Date e java.sql.Timestamp)
+        register(java.util.Date.class, (first, second) -> first.getTime() == second.getTime());
+        register(java.sql.Date.class, (first, second) -> first.getTime() == second.getTime());
+        register(java.sql.Timestamp.class, (first, second) -> first.getTime() == second.getTime());
+        register(Void.class, (first, second) -> true);
+        // 1.0 e 1.00 sono lo stesso importo
+        register(BigDecimal.class, (first, second) -> first.compareTo(second) == 0);
+        register(BigInteger.class, EQUALS);
+        register(UUID.class, EQUALS);
+        for (Class<?> type : new Class<?>[]{Instant.class, LocalDate.class, LocalTime.class, LocalDateTime.class, OffsetDateTime.class,
+                OffsetTime.class, ZonedDateTime.class, Duration.class, Period.class, Year.class, YearMonth.class, MonthDay.class, ZoneOffset.class})
+            BUILT_INS.put(type, EQUALS);
+    }
+
+    private static final ClassValue<ValueComparator<Object>> DISPATCH = new ClassValue<ValueComparator<Object>>() {
+        @Override
+        protected ValueComparator<Object> computeValue(Class<?> type) {
+            ValueComparator<Object> comparator = BUILT_INS.get(type);
+            if (comparator == null && Enum.class.isAssignableFrom(type))
+                comparator = IDENTITY;
+            // le zone hanno un'implementazione non pubblica (ZoneRegion), che non va attraversata via reflection
+            if (comparator == null && ZoneId.class.isAssignableFrom(type))
+                comparator = EQUALS;
+            return comparator;
+        }
+    };
+
+    private ValueComparators() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void register(Class<T> type, ValueComparator<? super T> comparator) {
+        BUILT_INS.put(type, (ValueComparator<Object>) comparator);
+    }
+
+    /**
+     * @param type la classe del valore
+     * @return il confronto predefinito dei valori della classe, null se la classe non e' un valore semplice
+     */
+    static ValueComparator<Object> of(Class<?> type) {
+        return DISPATCH.get(type);
+    }
+}
@@ -0,0 +1,302 @@
+package it.sogei.beanutils.processor;
+
+import it.sogei.beanutils.DiffIgnore;
+import it.sogei.beanutils.DiffKey;
+import it.sogei.beanutils.Diffable;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * L'annotation processor che genera il comparatore dedicato di ogni classe annotata con {@link Diffable}.
+ *
+ * Il comparatore generato confronta i campi nello stesso ordine del comparatore via reflection (per nome
+ * all'interno di ciascun livello della gerarchia, prima la sottoclasse) leggendoli direttamente se sono
+ * accessibili dal package della classe, altrimenti tramite il getter (getX, o isX per i boolean) dichiarato
+ * dalla stessa classe del campo, con lo stesso tipo e non ridefinito nelle sottoclassi. I campi delle
+ * superclassi vengono letti attraverso la superclasse, per cui un campo nascosto da uno omonimo della
+ * sottoclasse viene comunque confrontato. I campi statici e quelli annotati con {@link DiffIgnore} non
+ * vengono confrontati.
+ *
+ * I comparatori generati vengono elencati in {@code META-INF/services/it.sogei.beanutils.GeneratedComparator},
+ * da cui {@link it.sogei.beanutils.BeanComparator} li carica senza cercarli per nome.
+ *
+ * Il processor e' registrato come servizio nel jar della libreria, per cui basta averla nel classpath di
+ * compilazione (o nel processor path).
+ */
+@SupportedAnnotationTypes("it.sogei.beanutils.Diffable")
+public class DiffableProcessor extends AbstractProcessor {
+    private static final String SUFFIX = "_Diff";
+    private static final String SERVICE = "META-INF/services/it.sogei.beanutils.GeneratedComparator";
+
+    /**
+     * I comparatori generati finora, da registrare come servizio nell'ultimo round
+     */
+    private final Set<String> generated = new TreeSet<>();
+
+    /**
+     * Un campo da confrontare con l'espressione che ne legge il valore (senza il bean)
+     */
+    private static final class Property {
+        final VariableElement field;
+        final TypeElement declaringType;
+        final String accessor;
+        final String cast;
+
+        Property(VariableElement field, TypeElement declaringType, String accessor, String cast) {
+            this.field = field;
+            this.declaringType = declaringType;
+            this.accessor = accessor;
+            this.cast = cast;
+        }
+
+        /**
+         * @return l'espressione che legge il campo dal bean indicato
+         */
+        String read(String bean) {
+            return (cast == null ? bean : "((" + cast + ") " + bean + ")") + "." + accessor;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            register();
+            return true;
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Diffable.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@Diffable si applica solo alle classi");
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            if (!accessible(type)) {
+                error(type, "@Diffable richiede una classe non privata, non locale e non anonima");
+                continue;
+            }
+            List<Property> properties = properties(type);
+            if (properties != null)
+                generate(type, properties);
+        }
+        return true;
+    }
+
+    /**
+     * @return true se la classe e' raggiungibile dal codice generato nello stesso package
+     */
+    private static boolean accessible(TypeElement type) {
+        for (Element current = type; current.getKind() != ElementKind.PACKAGE; current = current.getEnclosingElement()) {
+            if (!(current instanceof TypeElement) || current.getModifiers().contains(Modifier.PRIVATE))
+                return false;
+            NestingKind nesting = ((TypeElement) current).getNestingKind();
+            if (nesting == NestingKind.LOCAL || nesting == NestingKind.ANONYMOUS)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Raccoglie i campi da confrontare della gerarchia della classe
+     * @return i campi o null se qualche campo non e' leggibile (l'errore e' gia' stato segnalato)
+     */
+    private List<Property> properties(TypeElement type) {
+        List<Property> properties = new ArrayList<>();
+        boolean valid = true;
+        String packageName = packageOf(type);
+        List<ExecutableElement> methods = ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type));
+        for (TypeElement current = type; current != null; current = superclassOf(current)) {
+            List<VariableElement> fields = new ArrayList<>(ElementFilter.fieldsIn(current.getEnclosedElements()));
+            fields.sort(Comparator.comparing(field -> field.getSimpleName().toString()));
+            for (VariableElement field : fields) {
+                if (field.getModifiers().contains(Modifier.STATIC) || field.getAnnotation(DiffIgnore.class) != null)
+                    continue;
+                String accessor = accessorOf(field, type, current, packageName, methods);
+                if (accessor == null) {
+                    error(field, "campo " + field.getSimpleName() + " non leggibile dal comparatore generato: serve un getter non privato"
+                            + " dello stesso tipo, dichiarato nella classe del campo e non ridefinito");
+                    valid = false;
+                    continue;
+                }
+                // i campi delle superclassi si leggono attraverso la superclasse: la sottoclasse potrebbe nasconderli
+                String cast = current == type ? null : processingEnv.getTypeUtils().erasure(current.asType()).toString();
+                properties.add(new Property(field, current, accessor, cast));
+            }
+        }
+        return valid ? properties : null;
+    }
+
+    /**
+     * I getter vengono accettati solo se dichiarati dalla classe del campo (i metodi ricevuti sono quelli della
+     * classe annotata, per cui un getter ridefinito da una sottoclasse appartiene alla sottoclasse) e solo se
+     * restituiscono esattamente il tipo del campo
+     * @return l'espressione che legge il campo (accesso diretto o getter), null se il campo non e' leggibile
+     */
+    private String accessorOf(VariableElement field, TypeElement type, TypeElement declaringType, String packageName, List<ExecutableElement> methods) {
+        String name = field.getSimpleName().toString();
+        if (visible(field, packageName) && visible(declaringType, packageName))
+            return name;
+        Types types = processingEnv.getTypeUtils();
+        DeclaredType beanType = (DeclaredType) type.asType();
+        TypeMirror fieldType = types.asMemberOf(beanType, field);
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        List<String> getters = field.asType().getKind() == TypeKind.BOOLEAN
+                ? Arrays.asList("is" + capitalized, "get" + capitalized) : Collections.singletonList("get" + capitalized);
+        for (String getter : getters) {
+            for (ExecutableElement method : methods) {
+                if (method.getSimpleName().contentEquals(getter) && method.getParameters().isEmpty()
+                        && !method.getModifiers().contains(Modifier.STATIC) && method.getEnclosingElement().equals(declaringType)
+                        && types.isSameType(((ExecutableType) types.asMemberOf(beanType, method)).getReturnType(), fieldType)
+                        && visible(method, packageName) && visible(declaringType, packageName))
+                    return getter + "()";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true se l'elemento e' accessibile da una classe non derivata del package indicato
+     */
+    private static boolean visible(Element element, String packageName) {
+        Set<Modifier> modifiers = element.getModifiers();
+        if (modifiers.contains(Modifier.PUBLIC))
+            return true;
+        if (modifiers.contains(Modifier.PRIVATE))
+            return false;
+        Element typeElement = element instanceof TypeElement ? element : element.getEnclosingElement();
+        return packageOf((TypeElement) typeElement).equals(packageName);
+    }
+
+    private static TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED)
+            return null;
+        return (TypeElement) ((DeclaredType) superclass).asElement();
+    }
+
+    private static String packageOf(TypeElement type) {
+        Element current = type;
+        while (current.getKind() != ElementKind.PACKAGE)
+            current = current.getEnclosingElement();
+        return ((PackageElement) current).getQualifiedName().toString();
+    }
+
+    /**
+     * Scrive il sorgente del comparatore generato
+     */
+    private void generate(TypeElement type, List<Property> properties) {
+        String packageName = packageOf(type);
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String generatedName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$', '_') + SUFFIX;
+        String rawName = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+        String beanType = rawName;
+        if (!type.getTypeParameters().isEmpty())
+            beanType += "<" + String.join(", ", Collections.nCopies(type.getTypeParameters().size(), "?")) + ">";
+
+        Property key = null;
+        for (Property property : properties) {
+            if (property.field.getAnnotation(DiffKey.class) == null)
+                continue;
+            if (key != null) {
+                error(property.field, "@DiffKey puo' essere dichiarata su un solo campo del bean");
+                return;
+            }
+            key = property;
+        }
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(packageName.isEmpty() ? generatedName : packageName + "." + generatedName, type).openWriter())) {
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("@javax.annotation.processing.Generated(\"" + DiffableProcessor.class.getName() + "\")");
+            out.println("public final class " + generatedName + " extends it.sogei.beanutils.GeneratedComparator<" + beanType + "> {");
+            out.println("    private static final java.lang.reflect.Field[] FIELDS = {");
+            for (Property property : properties) {
+                out.println("            field(" + processingEnv.getTypeUtils().erasure(property.declaringType.asType())
+                        + ".class, \"" + property.field.getSimpleName() + "\"),");
+            }
+            out.println("    };");
+            out.println();
+            out.println("    @Override");
+            out.println("    public void compare(" + beanType + " first, " + beanType + " second, it.sogei.beanutils.FieldComparison comparison) throws IllegalAccessException {");
+            for (int i = 0; i < properties.size(); i++) {
+                Property property = properties.get(i);
+                out.println("        comparison.compare(FIELDS[" + i + "], " + property.read("first") + ", " + property.read("second") + ");");
+            }
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public Class<?> type() {");
+            out.println("        return " + rawName + ".class;");
+            out.println("    }");
+            if (key != null) {
+                out.println();
+                out.println("    @Override");
+                out.println("    public boolean hasKey() {");
+                out.println("        return true;");
+                out.println("    }");
+                out.println();
+                out.println("    @Override");
+                out.println("    public Object key(" + beanType + " bean) {");
+                out.println("        return " + key.read("bean") + ";");
+                out.println("    }");
+            }
+            out.println("}");
+        } catch (IOException e) {
+            error(type, "impossibile generare il comparatore: " + e.getMessage());
+            return;
+        }
+        generated.add(packageName.isEmpty() ? generatedName : packageName + "." + generatedName);
+    }
+
+    /**
+     * Scrive l'elenco dei comparatori generati, conservando quelli registrati da una compilazione precedente
+     * nella stessa cartella (compilazione incrementale)
+     */
+    private void register() {
+        if (generated.isEmpty())
+            return;
+        Filer filer = processingEnv.getFiler();
+        try {
+            FileObject existing = filer.getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE);
+            try (BufferedReader reader = new BufferedReader(existing.openReader(true))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (!line.trim().isEmpty())
+                        generated.add(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            // nessuna registrazione precedente
+        }
+        try (PrintWriter out = new PrintWriter(filer.createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE).openWriter())) {
+            for (String name : generated)
+                out.println(name);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "impossibile registrare i comparatori generati: " + e.getMessage());
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
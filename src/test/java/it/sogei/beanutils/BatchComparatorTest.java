@@ -0,0 +1,71 @@
+package it.sogei.beanutils;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class BatchComparatorTest {
+    @Test
+    public void compareAllInOrder() throws Exception {
+        List<BeanPair<Item>> pairs = pairs(1000);
+        List<Map<Field, List<Map.Entry<Object, Object>>>> results = BatchComparator.builder().maxPending(8).build().compareAll(pairs);
+        assertEquals(1000, results.size());
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(i % 3 == 0 ? 1 : 0, results.get(i).size());
+    }
+
+    @Test
+    public void compareAllUnorderedOnDedicatedPool() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Set<Integer> different = new HashSet<>();
+            final int[] delivered = new int[1];
+            BatchComparator batch = BatchComparator.builder().executor(executor).ordered(false).build();
+            batch.compareAll(pairs(1000).stream(), new BiConsumer<BeanPair<Item>, Map<Field, List<Map.Entry<Object, Object>>>>() {
+                @Override
+                public void accept(BeanPair<Item> pair, Map<Field, List<Map.Entry<Object, Object>>> differences) {
+                    delivered[0]++;
+                    if (!differences.isEmpty())
+                        different.add(pair.getFirst().id);
+                }
+            });
+            assertEquals(1000, delivered[0]);
+            assertEquals(334, different.size());
+            assertTrue(different.contains(999));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compareAllPropagatesErrors() throws Exception {
+        List<BeanPair<Object>> pairs = new ArrayList<>();
+        pairs.add(BeanPair.<Object>of(new Item(1, "a"), new Item(1, "a")));
+        pairs.add(BeanPair.<Object>of(new Item(2, "a"), "b"));
+        BatchComparator.builder().build().compareAll(pairs);
+    }
+
+    private static List<BeanPair<Item>> pairs(int size) {
+        return IntStream.range(0, size)
+                .mapToObj(i -> BeanPair.of(new Item(i, "desc" + i), new Item(i, i % 3 == 0 ? "changed" + i : "desc" + i)))
+                .collect(Collectors.toList());
+    }
+
+    static class Item {
+        private final int id;
+        private final String desc;
+
+        Item(int id, String desc) {
+            this.id = id;
+            this.desc = desc;
+        }
+    }
+}
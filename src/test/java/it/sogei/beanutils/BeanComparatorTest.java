@@ -1,9 +1,25 @@
 package it.sogei.beanutils;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.eclipse.persistence.indirection.IndirectContainer;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -122,6 +138,52 @@ public class BeanComparatorTest {
         assertTrue(fields.size() == 1);
     }
 
+    @Test
+    public void compareSimpleClassWithDuplicatesInCollections() throws Exception {
+        SimpleClassWithCollections a = new SimpleClassWithCollections(Arrays.asList("a", "a", "b"));
+        SimpleClassWithCollections b = new SimpleClassWithCollections(Arrays.asList("b", "a", "c"));
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b);
+        List<Map.Entry<Object, Object>> entries = map.get(SimpleClassWithCollections.class.getDeclaredField("lista"));
+        assertEquals(2, entries.size());
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>("a", null), entries.get(0));
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>(null, "c"), entries.get(1));
+    }
+
+    @Test
+    public void compareSimpleClassWithLargeCollections() throws Exception {
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            first.add("element" + i);
+            second.add("element" + (i + 1));
+        }
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(new SimpleClassWithCollections(first), new SimpleClassWithCollections(second));
+        List<Map.Entry<Object, Object>> entries = map.get(SimpleClassWithCollections.class.getDeclaredField("lista"));
+        assertEquals(2, entries.size());
+        assertEquals("element0", entries.get(0).getKey());
+        assertEquals("element50000", entries.get(1).getValue());
+    }
+
+    @Test
+    public void compareSimpleClassWithOrderedLists() throws Exception {
+        SimpleClassWithCollections a = new SimpleClassWithCollections(Arrays.asList("a", "b", "c", "d"));
+        SimpleClassWithCollections b = new SimpleClassWithCollections(Arrays.asList("b", "c", "x", "d", "a"));
+        ComparisonOptions options = ComparisonOptions.builder().orderedLists(true).build();
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b, options);
+        List<Map.Entry<Object, Object>> entries = map.get(SimpleClassWithCollections.class.getDeclaredField("lista"));
+        assertEquals(2, entries.size());
+        // "x" inserito in posizione 2
+        IndexedEntry inserted = (IndexedEntry) entries.get(0);
+        assertEquals(-1, inserted.getFirstIndex());
+        assertEquals(2, inserted.getSecondIndex());
+        assertEquals("x", inserted.getValue());
+        // "a" spostato dalla posizione 0 alla 4
+        IndexedEntry moved = (IndexedEntry) entries.get(1);
+        assertEquals(0, moved.getFirstIndex());
+        assertEquals(4, moved.getSecondIndex());
+        assertEquals("a", moved.getKey());
+    }
+
     @Test
     public void compareSimpleClassWithMap() throws Exception {
         SimpleClassWithMap a = new SimpleClassWithMap(new HashMap<String, String>()
@@ -141,6 +203,40 @@ public class BeanComparatorTest {
         assertTrue(fields.size() == 1);
     }
 
+    @Test
+    public void compareSimpleClassWithSortedMapAndNullValues() throws Exception {
+        Map<String, String> first = new TreeMap<>();
+        first.put("One", "1");
+        first.put("Two", null);
+        first.put("Three", "3");
+        Map<String, String> second = new TreeMap<>();
+        second.put("One", null);
+        second.put("Two", null);
+        second.put("Four", "4");
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(new SimpleClassWithMap(first), new SimpleClassWithMap(second));
+        List<Map.Entry<Object, Object>> entries = map.get(SimpleClassWithMap.class.getDeclaredField("map"));
+        // le chiavi sono percorse in ordine: Four, One, Three
+        assertEquals(3, entries.size());
+        assertEquals("Four", ((KeyedEntry) entries.get(0)).getMapKey());
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>(null, "4"), entries.get(0));
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>("1", null), entries.get(1));
+        assertEquals("Three", ((KeyedEntry) entries.get(2)).getMapKey());
+    }
+
+    @Test
+    public void compareSimpleClassWithDeepMapValues() throws Exception {
+        Map<String, SimpleBean> first = new HashMap<>();
+        first.put("a", new SimpleBean(1, "one"));
+        first.put("b", new SimpleBean(2, "two"));
+        Map<String, SimpleBean> second = new HashMap<>();
+        second.put("a", new SimpleBean(1, "uno"));
+        second.put("b", new SimpleBean(2, "two"));
+        ComparisonOptions options = ComparisonOptions.builder().deepMapValues(true).build();
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(new SimpleClassWithBeanMap(first), new SimpleClassWithBeanMap(second), options);
+        assertTrue(map.keySet().size() == 1);
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>("one", "uno"), map.get(SimpleBean.class.getDeclaredField("desc")).get(0));
+    }
+
     @Test
     public void compareSuperComplexMegaBean() throws Exception{
         SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 2.0d, Arrays.asList(1.0f, 2.0f), Arrays.asList(new SimpleBean(1, "1")), new ComplexBean(2, "2", new String[]{"q", "w"}));
@@ -150,6 +246,833 @@ public class BeanComparatorTest {
         assertTrue(fields.size() == 3);
     }
 
+    @Test
+    public void compareSuperComplexMegaBeanWithKeyedCollections() throws Exception {
+        SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 2.0d, Arrays.asList(1.0f, 2.0f), Arrays.asList(new SimpleBean(1, "1"), new SimpleBean(2, "2")), new ComplexBean(2, "2", new String[]{"q", "w"}));
+        SuperComplexMegaBean b = new SuperComplexMegaBean(1, "a", 2.0d, Arrays.asList(1.0f, 2.0f), Arrays.asList(new SimpleBean(3, "3"), new SimpleBean(1, "4")), new ComplexBean(2, "2", new String[]{"q", "w"}));
+        ComparisonOptions options = ComparisonOptions.builder()
+                .keyExtractor(SimpleBean.class, SimpleBean::getId)
+                .build();
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b, options);
+        assertTrue(map.keySet().size() == 2);
+        // l'elemento con id 1 e' confrontato campo per campo
+        List<Map.Entry<Object, Object>> desc = map.get(SimpleBean.class.getDeclaredField("desc"));
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>("1", "4"), desc.get(0));
+        // gli elementi con id 2 e 3 sono rimosso e aggiunto
+        List<Map.Entry<Object, Object>> list = map.get(SuperComplexMegaBean.class.getDeclaredField("simpleBeanList"));
+        assertEquals(2, list.size());
+        assertEquals(2, ((SimpleBean) list.get(0).getKey()).getId());
+        assertEquals(3, ((SimpleBean) list.get(1).getValue()).getId());
+    }
+
+    @Test
+    public void compareObjectsWithNullProperties() throws Exception {
+        SuperComplexBean a = new SuperComplexBean(1, null, null, new SimpleBean(1, "ff"));
+        SuperComplexBean b = new SuperComplexBean(1, "b", null, null);
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b);
+        Set<Field> fields = map.keySet();
+        assertTrue(fields.size() == 2);
+    }
+
+    @Test
+    public void compareBeansWithPrimitiveArrays() throws Exception {
+        MeasurementBean a = new MeasurementBean(1L, true, 'm', new int[]{1, 2, 3, 4}, new double[]{0.5d, 1.5d});
+        MeasurementBean b = new MeasurementBean(1L, true, 'm', new int[]{1, 5, 3, 6}, new double[]{0.5d, 1.5d});
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b);
+        assertTrue(map.keySet().size() == 1);
+        List<Map.Entry<Object, Object>> samples = map.get(MeasurementBean.class.getDeclaredField("samples"));
+        assertEquals(2, samples.size());
+        assertEquals(1, ((IndexedEntry) samples.get(0)).getFirstIndex());
+        assertEquals(2, samples.get(0).getKey());
+        assertEquals(5, samples.get(0).getValue());
+        assertEquals(3, ((IndexedEntry) samples.get(1)).getFirstIndex());
+    }
+
+    @Test
+    public void compareBeansWithPrimitiveFields() throws Exception {
+        MeasurementBean a = new MeasurementBean(1L, true, 'm', new int[0], new double[]{0.5d});
+        MeasurementBean b = new MeasurementBean(2L, false, 'k', new int[0], new double[]{0.5d, 1.5d});
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b);
+        assertTrue(map.keySet().size() == 4);
+        assertEquals(1L, map.get(MeasurementBean.class.getDeclaredField("timestamp")).get(0).getKey());
+    }
+
+    @Test
+    public void compareCyclicGraphs() throws Exception {
+        Parent a = new Parent("a");
+        a.child = new Child(a, "c1");
+        Parent b = new Parent("a");
+        b.child = new Child(b, "c2");
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b);
+        assertTrue(map.keySet().size() == 1);
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>("c1", "c2"), map.get(Child.class.getDeclaredField("name")).get(0));
+    }
+
+    @Test
+    public void compareSharedSubgraphsOnce() throws Exception {
+        SimpleBean shared1 = new SimpleBean(1, "x");
+        SimpleBean shared2 = new SimpleBean(1, "y");
+        ComplexBean dummy = new ComplexBean(1, "d", new String[0]);
+        SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 1d, null, Arrays.asList(shared1, shared1, shared1), dummy);
+        SuperComplexMegaBean b = new SuperComplexMegaBean(1, "a", 1d, null, Arrays.asList(shared2, shared2, shared2), dummy);
+        ComparisonOptions options = ComparisonOptions.builder().orderedLists(true).keyExtractor(SimpleBean.class, SimpleBean::getId).build();
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b, options);
+        assertEquals(1, map.get(SimpleBean.class.getDeclaredField("desc")).size());
+    }
+
+    @Test
+    public void differsStopsAtFirstDifference() throws Exception {
+        assertFalse(BeanComparator.differs(new SimpleBean(1, "a"), new SimpleBean(1, "A")));
+        assertTrue(BeanComparator.differs(new SimpleBean(1, "a"), new SimpleBean(2, "b")));
+        assertFalse(BeanComparator.differs(new SimpleBean(1, "a"), new SimpleBean(2, "a"), "id"));
+        assertTrue(BeanComparator.differs(new SimpleClassWithCollections(Arrays.asList("a", "b")), new SimpleClassWithCollections(Arrays.asList("a"))));
+        assertFalse(BeanComparator.differs(new SimpleClassWithCollections(Arrays.asList("a", "b")), new SimpleClassWithCollections(Arrays.asList("b", "a"))));
+    }
+
+    @Test
+    public void compareWithMaxDifferences() throws Exception {
+        MeasurementBean a = new MeasurementBean(1L, true, 'm', new int[]{1, 2, 3, 4}, new double[]{0.5d});
+        MeasurementBean b = new MeasurementBean(2L, false, 'k', new int[]{5, 6, 7, 8}, new double[]{1.5d});
+        ComparisonOptions options = ComparisonOptions.builder().maxDifferences(2).build();
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b, options);
+        int differences = 0;
+        for (List<Map.Entry<Object, Object>> entries : map.values())
+            differences += entries.size();
+        assertEquals(2, differences);
+    }
+
+    @Test
+    public void compareLargeGraphInParallel() throws Exception {
+        List<SimpleBean> first = new ArrayList<>();
+        List<SimpleBean> second = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            first.add(new SimpleBean(i, "desc" + i));
+            second.add(new SimpleBean(i, i % 100 == 0 ? "changed" + i : "desc" + i));
+        }
+        SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 1d, null, first, new ComplexBean(1, "x", new String[]{"q", "w"}));
+        SuperComplexMegaBean b = new SuperComplexMegaBean(1, "a", 1d, null, second, new ComplexBean(1, "y", new String[]{"q", "e"}));
+        ComparisonOptions.Builder builder = ComparisonOptions.builder().keyExtractor(SimpleBean.class, SimpleBean::getId);
+        Map<Field, List<Map.Entry<Object, Object>>> sequential = BeanComparator.compare(a, b, builder.build());
+        Map<Field, List<Map.Entry<Object, Object>>> parallel = BeanComparator.compare(a, b, builder.parallel(1000).build());
+        assertEquals(sequential, parallel);
+        assertEquals(201, parallel.get(SimpleBean.class.getDeclaredField("desc")).size());
+        // con un numero massimo di differenze i task si fermano tutti
+        Map<Field, List<Map.Entry<Object, Object>>> limited = BeanComparator.compare(a, b, builder.maxDifferences(10).build());
+        int differences = 0;
+        for (List<Map.Entry<Object, Object>> entries : limited.values())
+            differences += entries.size();
+        assertEquals(10, differences);
+    }
+
+    @Test
+    public void compareCyclicGraphsInParallel() throws Exception {
+        Parent a = new Parent("a");
+        a.child = new Child(a, "c1");
+        Parent b = new Parent("a");
+        b.child = new Child(b, "c2");
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b, ComparisonOptions.builder().parallel(1).build());
+        assertTrue(map.keySet().size() == 1);
+    }
+
+    @Test
+    public void compareWithListener() throws Exception {
+        SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 2.0d, Arrays.asList(1.0f, 2.0f), Arrays.asList(new SimpleBean(1, "1"), new SimpleBean(2, "2")), new ComplexBean(2, "2", new String[]{"q", "w"}));
+        SuperComplexMegaBean b = new SuperComplexMegaBean(1, "a", 2.0d, Arrays.asList(1.0f, 3.0f), Arrays.asList(new SimpleBean(1, "4")), new ComplexBean(2, "2", new String[]{"q", "e"}));
+        ComparisonOptions options = ComparisonOptions.builder().keyExtractor(SimpleBean.class, SimpleBean::getId).build();
+        final List<String> events = new ArrayList<>();
+        BeanComparator.compare(a, b, options, new DiffListener() {
+            @Override
+            public void onDifference(DiffPath path, Field field, Object left, Object right) {
+                events.add(path + " " + left + " -> " + right);
+            }
+
+            @Override
+            public void onAdded(DiffPath path, Field field, Object element) {
+                events.add(path + " + " + element);
+            }
+
+            @Override
+            public void onRemoved(DiffPath path, Field field, Object element) {
+                events.add(path + " - " + element);
+            }
+        });
+        assertEquals(Arrays.asList("complexBean.stringArray[1] w -> e", "floatList - 2.0", "floatList + 3.0",
+                "simpleBeanList[1].desc 1 -> 4", "simpleBeanList - " + a.simpleBeanList.get(1)), events);
+    }
+
+    @Test
+    public void diffKeepsPaths() throws Exception {
+        SuperComplexBean a = new SuperComplexBean(1, "a", new String[]{"x"}, new SimpleBean(2, "a"));
+        SuperComplexBean b = new SuperComplexBean(1, "b", new String[]{"y"}, new SimpleBean(2, "b"));
+        DiffResult result = BeanComparator.diff(a, b, ComparisonOptions.defaults());
+        assertEquals(3, result.size());
+        // le due modifiche di desc hanno percorsi distinti
+        Map<String, List<DiffResult.Difference>> byPath = result.byPath();
+        assertEquals(new HashSet<>(Arrays.asList("desc", "s.desc", "stringArray[0]")), byPath.keySet());
+        assertEquals("a", byPath.get("s.desc").get(0).getLeft());
+        assertEquals(2, result.byField().get(SimpleBean.class.getDeclaredField("desc")).size());
+        assertEquals(DiffResult.ChangeKind.CHANGED, result.getChangeKind(0));
+        assertEquals(BeanComparator.compare(a, b), result.toMap());
+    }
+
+    @Test
+    public void diffWithCollectionChanges() throws Exception {
+        SimpleClassWithCollections a = new SimpleClassWithCollections(Arrays.asList("a", "b", "c"));
+        SimpleClassWithCollections b = new SimpleClassWithCollections(Arrays.asList("a", "c", "d"));
+        DiffResult result = BeanComparator.diff(a, b, ComparisonOptions.builder().orderedLists(true).build());
+        assertEquals(2, result.size());
+        assertEquals(DiffResult.ChangeKind.REMOVED, result.getChangeKind(0));
+        assertEquals("lista[1]", result.getPath(0).toString());
+        assertEquals(DiffResult.ChangeKind.ADDED, result.getChangeKind(1));
+        assertEquals("d", result.get(1).getRight());
+        int count = 0;
+        for (DiffResult.Difference difference : result)
+            count++;
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void diffWithPathExclusions() throws Exception {
+        SuperComplexBean a = new SuperComplexBean(1, "a", new String[]{"x"}, new SimpleBean(2, "a"));
+        SuperComplexBean b = new SuperComplexBean(3, "b", new String[]{"y"}, new SimpleBean(4, "b"));
+        // solo il desc del bean annidato
+        DiffResult result = BeanComparator.diff(a, b, ComparisonOptions.builder().excludePaths("s.desc").build());
+        assertEquals(new HashSet<>(Arrays.asList("id", "desc", "stringArray[0]", "s.id")), result.byPath().keySet());
+        // gli id a qualunque profondita'
+        result = BeanComparator.diff(a, b, ComparisonOptions.builder().excludePaths("**.id").build());
+        assertEquals(new HashSet<>(Arrays.asList("desc", "stringArray[0]", "s.desc")), result.byPath().keySet());
+        // il desc dei soli SuperComplexBean (e delle sottoclassi)
+        result = BeanComparator.diff(a, b, ComparisonOptions.builder().exclude(SuperComplexBean.class, "desc").build());
+        assertEquals(new HashSet<>(Arrays.asList("id", "stringArray[0]", "s.id", "s.desc")), result.byPath().keySet());
+    }
+
+    @Test
+    public void diffWithPathInclusions() throws Exception {
+        SuperComplexBean a = new SuperComplexBean(1, "a", new String[]{"x"}, new SimpleBean(2, "a"));
+        SuperComplexBean b = new SuperComplexBean(3, "b", new String[]{"y"}, new SimpleBean(4, "b"));
+        DiffResult result = BeanComparator.diff(a, b, ComparisonOptions.builder().includePaths("s", "stringArray").excludePaths("s.id").build());
+        assertEquals(new HashSet<>(Arrays.asList("stringArray[0]", "s.desc")), result.byPath().keySet());
+        result = BeanComparator.diff(a, b, ComparisonOptions.builder().includePaths("*.desc").build());
+        assertEquals(Collections.singleton("s.desc"), result.byPath().keySet());
+        assertFalse(BeanComparator.differs(a, b, ComparisonOptions.builder().includePaths("s.missing").build()));
+    }
+
+    @Test
+    public void pathRulesOnSharedSubgraph() throws Exception {
+        // lo stesso figlio raggiunto da due percorsi va confrontato con le regole di ciascun percorso
+        Siblings a = new Siblings(new SimpleBean(1, "a"));
+        Siblings b = new Siblings(new SimpleBean(1, "b"));
+        for (boolean parallel : new boolean[]{false, true}) {
+            ComparisonOptions options = (parallel ? ComparisonOptions.builder().parallel(1) : ComparisonOptions.builder()).excludePaths("a.desc").build();
+            assertEquals(Collections.singleton("b.desc"), BeanComparator.diff(a, b, options).byPath().keySet());
+            assertTrue(BeanComparator.differs(a, b, options));
+            options = (parallel ? ComparisonOptions.builder().parallel(1) : ComparisonOptions.builder()).includePaths("a.id", "b.desc").build();
+            assertEquals(Collections.singleton("b.desc"), BeanComparator.diff(a, b, options).byPath().keySet());
+            assertTrue(BeanComparator.differs(a, b, options));
+        }
+    }
+
+    @Test
+    public void compareWithFingerprints() throws Exception {
+        List<SimpleBean> first = new ArrayList<>();
+        List<SimpleBean> second = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            first.add(new SimpleBean(i, "desc" + i));
+            second.add(new SimpleBean(i, i == 500 ? "changed" : "desc" + i));
+        }
+        SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 1d, Arrays.asList(1.0f), first, new ComplexBean(1, "x", new String[]{"q", "w"}));
+        SuperComplexMegaBean b = new SuperComplexMegaBean(1, "a", 1d, Arrays.asList(1.0f), second, new ComplexBean(1, "x", new String[]{"q", "w"}));
+        Fingerprints fingerprints = new Fingerprints();
+        ComparisonOptions.Builder builder = ComparisonOptions.builder().keyExtractor(SimpleBean.class, SimpleBean::getId);
+        ComparisonOptions options = builder.fingerprints(fingerprints).build();
+        Map<Field, List<Map.Entry<Object, Object>>> expected = BeanComparator.compare(a, b, builder.build());
+        // la seconda comparazione usa le impronte del primo bean gia' in cache
+        for (int i = 0; i < 2; i++) {
+            DiffResult result = BeanComparator.diff(a, b, options);
+            assertEquals(1, result.size());
+            assertEquals("simpleBeanList[500].desc", result.getPath(0).toString());
+            assertEquals(expected, result.toMap());
+        }
+        assertTrue(fingerprints.size() > 1000);
+        assertFalse(BeanComparator.differs(a, new SuperComplexMegaBean(1, "A", 1d, Arrays.asList(1.0f), first, new ComplexBean(1, "x", new String[]{"q", "w"})), options));
+    }
+
+    @Test
+    public void fingerprintsFollowComparisonRules() throws Exception {
+        Fingerprints fingerprints = new Fingerprints();
+        ComparisonOptions options = ComparisonOptions.defaults();
+        // le stringhe sono confrontate senza distinzione tra maiuscole e minuscole
+        assertEquals(fingerprints.fingerprint(new SuperComplexBean(1, "a", new String[]{"x"}, new SimpleBean(2, "b")), options),
+                fingerprints.fingerprint(new SuperComplexBean(1, "A", new String[]{"X"}, new SimpleBean(2, "B")), options));
+        assertNotEquals(fingerprints.fingerprint(new SuperComplexBean(1, "a", new String[]{"x"}, new SimpleBean(2, "b")), options),
+                fingerprints.fingerprint(new SuperComplexBean(1, "a", new String[]{"x"}, new SimpleBean(3, "b")), options));
+        // i campi esclusi non contano
+        ComparisonOptions excluding = ComparisonOptions.builder().excludePaths("s.id").build();
+        assertEquals(fingerprints.fingerprint(new SuperComplexBean(1, "a", null, new SimpleBean(2, "b")), excluding),
+                fingerprints.fingerprint(new SuperComplexBean(1, "a", null, new SimpleBean(3, "b")), excluding));
+        // le collezioni non ordinate ignorano l'ordine, le liste ordinate no
+        assertEquals(fingerprints.fingerprint(new SimpleClassWithCollections(Arrays.asList("a", "b")), options),
+                fingerprints.fingerprint(new SimpleClassWithCollections(Arrays.asList("b", "a")), options));
+        ComparisonOptions ordered = ComparisonOptions.builder().orderedLists(true).build();
+        assertNotEquals(fingerprints.fingerprint(new SimpleClassWithCollections(Arrays.asList("a", "b")), ordered),
+                fingerprints.fingerprint(new SimpleClassWithCollections(Arrays.asList("b", "a")), ordered));
+        // elementi confrontati con equals che non sono tipi semplici: nessuna impronta
+        SuperComplexMegaBean mega = new SuperComplexMegaBean(1, "a", 1d, null, Arrays.asList(new SimpleBean(1, "1")), null);
+        assertFalse(fingerprints.fingerprint(mega, options).isPresent());
+        assertTrue(fingerprints.fingerprint(mega, ComparisonOptions.builder().keyExtractor(SimpleBean.class, SimpleBean::getId).build()).isPresent());
+        fingerprints.clear();
+        assertEquals(0, fingerprints.size());
+    }
+
+    @Test
+    public void fingerprintsDistinguishLargeNumbers() throws Exception {
+        // importi e interi grandi con la stessa parte intera (o lo stesso long) hanno impronte diverse
+        ComparisonOptions options = ComparisonOptions.builder().fingerprints(new Fingerprints()).build();
+        Ledger first = new Ledger(new BigDecimal("10.50"), BigInteger.ONE);
+        Ledger second = new Ledger(new BigDecimal("10.99"), BigInteger.ONE);
+        assertTrue(BeanComparator.differs(first, second, options));
+        assertEquals(Arrays.asList("amounts.amount"), sortedPaths(BeanComparator.diff(first, second, options)));
+        second = new Ledger(new BigDecimal("10.50"), BigInteger.ONE.shiftLeft(64).add(BigInteger.ONE));
+        assertTrue(BeanComparator.differs(first, second, options));
+        assertEquals(Arrays.asList("amounts.units"), sortedPaths(BeanComparator.diff(first, second, options)));
+        // la scala non conta, come nel confronto
+        assertFalse(BeanComparator.differs(first, new Ledger(new BigDecimal("10.500"), BigInteger.ONE), options));
+    }
+
+    @Test
+    public void compareWithSnapshot() throws Exception {
+        SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 2.0d, Arrays.asList(1.0f, 2.0f), Arrays.asList(new SimpleBean(1, "1"), new SimpleBean(2, "2")), new ComplexBean(2, "2", new String[]{"q", "w"}));
+        SuperComplexMegaBean original = new SuperComplexMegaBean(1, "a", 2.0d, Arrays.asList(1.0f, 2.0f), Arrays.asList(new SimpleBean(1, "1"), new SimpleBean(2, "2")), new ComplexBean(2, "2", new String[]{"q", "w"}));
+        ComparisonOptions options = ComparisonOptions.builder().keyExtractor(SimpleBean.class, SimpleBean::getId).build();
+        BeanSnapshot snapshot = BeanSnapshot.of(a, options);
+        assertFalse(snapshot.differs(a));
+        // modifiche in place dell'oggetto fotografato
+        a.setId(3);
+        a.setS("b");
+        a.getSimpleBeanList().get(0).setDesc("x");
+        a.getSimpleBeanList().set(1, new SimpleBean(4, "4"));
+        a.getComplexBean().getStringArray()[1] = "e";
+        a.getFloatList().set(0, 5.0f);
+        assertTrue(snapshot.differs(a));
+        DiffResult result = snapshot.diff(a);
+        DiffResult expected = BeanComparator.diff(original, a, options);
+        assertEquals(expected.size(), result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(expected.getPath(i).toString(), result.getPath(i).toString());
+            assertEquals(expected.getChangeKind(i), result.getChangeKind(i));
+        }
+        assertEquals(1, result.byPath().get("id").get(0).getLeft());
+        assertEquals("1", result.byPath().get("simpleBeanList[1].desc").get(0).getLeft());
+        // l'elemento rimosso e' il nodo della fotografia
+        BeanSnapshot.Node removed = (BeanSnapshot.Node) result.byPath().get("simpleBeanList").get(0).getLeft();
+        assertEquals(2, removed.getValue("id"));
+    }
+
+    @Test
+    public void compareSnapshotOfCyclicGraphWithPrimitives() throws Exception {
+        Parent a = new Parent("a");
+        a.child = new Child(a, "c1");
+        BeanSnapshot snapshot = BeanSnapshot.of(a);
+        a.child.name = "c2";
+        Map<Field, List<Map.Entry<Object, Object>>> map = snapshot.compare(a);
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>("c1", "c2"), map.get(Child.class.getDeclaredField("name")).get(0));
+
+        MeasurementBean m = new MeasurementBean(1L, true, 'm', new int[]{1, 2}, new double[]{0.5d});
+        snapshot = BeanSnapshot.of(m, ComparisonOptions.builder().exclude("unit").build());
+        m.timestamp = 2L;
+        m.unit = 'k';
+        m.samples[1] = 3;
+        map = snapshot.compare(m);
+        assertEquals(2, map.size());
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>(1L, 2L), map.get(MeasurementBean.class.getDeclaredField("timestamp")).get(0));
+        // IndexedEntry.equals confronta solo i valori: le posizioni vanno verificate a parte
+        IndexedEntry sample = (IndexedEntry) map.get(MeasurementBean.class.getDeclaredField("samples")).get(0);
+        assertEquals(1, sample.getFirstIndex());
+        assertEquals(1, sample.getSecondIndex());
+        assertEquals(2, sample.getKey());
+        assertEquals(3, sample.getValue());
+    }
+
+    @Test
+    public void collectMetricsPerClass() throws Exception {
+        ClassComparisonMetrics metrics = new ClassComparisonMetrics();
+        ComparisonOptions options = ComparisonOptions.builder().metrics(metrics).build();
+        BeanComparator.compare(new SimpleBean(1, "a"), new SimpleBean(2, "b"), options);
+        BeanComparator.differs(new SimpleBean(1, "a"), new SimpleBean(1, "a"), options);
+        SuperComplexBean a = new SuperComplexBean(1, "a", new String[]{"x"}, new SimpleBean(1, "s"));
+        SuperComplexBean b = new SuperComplexBean(1, "a", new String[]{"x"}, new SimpleBean(1, "t"));
+        BeanComparator.compare(a, b, options);
+
+        ClassComparisonMetrics.Counters simple = metrics.get(SimpleBean.class);
+        assertEquals(2, simple.getCompareCalls());
+        assertEquals(4, simple.getFieldsVisited());
+        assertEquals(2, simple.getDifferences());
+        assertEquals(1, simple.getMaxDepth());
+        assertTrue(simple.getNanos() > 0);
+        ClassComparisonMetrics.Counters complex = metrics.get(SuperComplexBean.class);
+        assertEquals(1, complex.getCompareCalls());
+        // i quattro campi del bean e i due del bean annidato
+        assertEquals(6, complex.getFieldsVisited());
+        assertEquals(1, complex.getDifferences());
+        assertEquals(2, complex.getMaxDepth());
+        assertEquals(2, metrics.getAll().size());
+    }
+
+    @Test
+    public void recordFlightRecorderEvents() throws Exception {
+        Path file = Files.createTempFile("comparison", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("it.sogei.beanutils.Compare").withThreshold(Duration.ZERO);
+            recording.enable("it.sogei.beanutils.CompareCollections").withThreshold(Duration.ZERO);
+            recording.enable("it.sogei.beanutils.CompareMaps").withThreshold(Duration.ZERO);
+            recording.start();
+            BeanComparator.compare(new SimpleClassWithCollections(Arrays.asList("a", "b")), new SimpleClassWithCollections(Arrays.asList("a", "c")));
+            Map<String, String> first = new HashMap<>();
+            first.put("k", "v");
+            BeanComparator.compare(new SimpleClassWithMap(first), new SimpleClassWithMap(new HashMap<String, String>()));
+            recording.stop();
+            recording.dump(file);
+            Map<String, RecordedEvent> events = new HashMap<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file))
+                events.put(event.getEventType().getName() + ":" + (event.hasField("field") ? event.getString("field") : event.getClass("beanClass").getName()), event);
+            assertTrue(events.containsKey("it.sogei.beanutils.Compare:" + SimpleClassWithCollections.class.getName()));
+            assertEquals(1, events.get("it.sogei.beanutils.Compare:" + SimpleClassWithMap.class.getName()).getInt("differences"));
+            RecordedEvent collections = events.get("it.sogei.beanutils.CompareCollections:lista");
+            assertEquals(2, collections.getInt("firstSize"));
+            assertEquals(2, collections.getInt("secondSize"));
+            RecordedEvent maps = events.get("it.sogei.beanutils.CompareMaps:map");
+            assertEquals(1, maps.getInt("firstSize"));
+            assertEquals(0, maps.getInt("secondSize"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void compareValueTypesWithoutDescendingIntoThem() throws Exception {
+        UUID id = UUID.randomUUID();
+        ValueTypesBean a = new ValueTypesBean(new BigDecimal("10.50"), LocalDateTime.of(2020, 1, 1, 10, 0), Instant.ofEpochSecond(1000), new UUID(id.getMostSignificantBits(), id.getLeastSignificantBits()), Thread.State.NEW);
+        ValueTypesBean b = new ValueTypesBean(new BigDecimal("10.5"), LocalDateTime.of(2020, 1, 1, 10, 0), Instant.ofEpochSecond(1000), id, Thread.State.NEW);
+        assertFalse(BeanComparator.differs(a, b));
+
+        b.dateTime = LocalDateTime.of(2020, 1, 2, 10, 0);
+        b.state = Thread.State.RUNNABLE;
+        b.amount = new BigDecimal("10.51");
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b);
+        assertEquals(3, map.size());
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>(Thread.State.NEW, Thread.State.RUNNABLE), map.get(ValueTypesBean.class.getDeclaredField("state")).get(0));
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>(a.dateTime, b.dateTime), map.get(ValueTypesBean.class.getDeclaredField("dateTime")).get(0));
+
+        // le fotografie e le impronte seguono gli stessi confronti
+        BeanSnapshot snapshot = BeanSnapshot.of(a);
+        assertEquals(3, snapshot.diff(b).size());
+        Fingerprints fingerprints = new Fingerprints();
+        ComparisonOptions options = ComparisonOptions.builder().fingerprints(fingerprints).build();
+        b.dateTime = a.dateTime;
+        b.state = a.state;
+        b.amount = new BigDecimal("10.500");
+        assertEquals(fingerprints.fingerprint(a, options), fingerprints.fingerprint(b, options));
+        assertFalse(BeanComparator.differs(a, b, options));
+    }
+
+    @Test
+    public void compareZonesAsValues() throws Exception {
+        // la classe concreta delle zone (ZoneRegion) non e' pubblica e non puo' essere attraversata
+        ZonedBean a = new ZonedBean(ZoneId.of("Europe/Rome"));
+        ZonedBean b = new ZonedBean(ZoneId.of("Europe/Rome"));
+        assertFalse(BeanComparator.differs(a, b));
+
+        b.zone = ZoneId.of("Europe/Paris");
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(a, b);
+        assertEquals(new AbstractMap.SimpleEntry<Object, Object>(a.zone, b.zone), map.get(ZonedBean.class.getDeclaredField("zone")).get(0));
+        assertEquals(1, BeanSnapshot.of(a).diff(b).size());
+        Fingerprints fingerprints = new Fingerprints();
+        ComparisonOptions options = ComparisonOptions.builder().fingerprints(fingerprints).build();
+        assertTrue(BeanComparator.differs(a, b, options));
+        b.zone = ZoneId.of("Europe/Rome");
+        assertFalse(BeanComparator.differs(a, b, options));
+    }
+
+    @Test
+    public void compareWithRegisteredValueComparator() throws Exception {
+        // gli importi sono uguali se coincidono al centesimo
+        ComparisonOptions options = ComparisonOptions.builder()
+                .compareWith(BigDecimal.class, (first, second) -> first.setScale(2, RoundingMode.HALF_UP).compareTo(second.setScale(2, RoundingMode.HALF_UP)) == 0)
+                .compareWith(SimpleBean.class, (first, second) -> first.getId() == second.getId())
+                .build();
+        ValueTypesBean a = new ValueTypesBean(new BigDecimal("10.501"), null, null, null, null);
+        ValueTypesBean b = new ValueTypesBean(new BigDecimal("10.499"), null, null, null, null);
+        assertFalse(BeanComparator.differs(a, b, options));
+        b.amount = new BigDecimal("10.51");
+        assertEquals(1, BeanComparator.compare(a, b, options).size());
+
+        // un bean con un confronto registrato viene riportato come un'unica differenza
+        SuperComplexBean first = new SuperComplexBean(1, "a", null, new SimpleBean(1, "s"));
+        SuperComplexBean second = new SuperComplexBean(1, "a", null, new SimpleBean(1, "t"));
+        assertFalse(BeanComparator.differs(first, second, options));
+        second.setS(new SimpleBean(2, "s"));
+        Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(first, second, options);
+        assertEquals(1, map.size());
+        assertSame(second.getS(), map.get(SuperComplexBean.class.getDeclaredField("s")).get(0).getValue());
+        assertEquals(1, BeanSnapshot.of(first, options).diff(second).size());
+    }
+
+    @Test
+    public void applyDeltaOfNestedBeans() throws Exception {
+        SuperComplexBean a = new SuperComplexBean(1, "a", new String[]{"x", "y"}, new SimpleBean(1, "ff"));
+        SuperComplexBean b = new SuperComplexBean(2, "b", new String[]{"x", "z"}, new SimpleBean(3, "gg"));
+        byte[] delta = BeanDelta.encode(a, b, ComparisonOptions.defaults());
+        // lo stesso delta si ottiene dal risultato della comparazione
+        assertArrayEquals(delta, BeanDelta.encode(BeanComparator.diff(a, b, ComparisonOptions.defaults())));
+        assertSame(a, BeanDelta.apply(delta, a));
+        assertFalse(BeanComparator.differs(a, b));
+        assertEquals("z", a.getStringArray()[1]);
+
+        // un bean nuovo senza costruttore senza argomenti viene istanziato solo se richiesto
+        SuperComplexBean c = new SuperComplexBean(2, "b", null, null);
+        byte[] withNewBean = BeanDelta.encode(c, b, ComparisonOptions.defaults());
+        try {
+            BeanDelta.apply(withNewBean, c);
+            fail();
+        } catch (IllegalStateException e) {
+            // la classe interna SimpleBean non ha un costruttore senza argomenti
+        }
+        BeanDelta.apply(withNewBean, c, ComparisonOptions.builder().bypassConstructors(true).build());
+        assertFalse(BeanComparator.differs(c, b));
+        assertNotSame(b.getS(), c.getS());
+    }
+
+    @Test
+    public void applyDeltaOfCollectionsAndMaps() throws Exception {
+        ComparisonOptions options = ComparisonOptions.builder()
+                .keyExtractor(SimpleBean.class, SimpleBean::getId)
+                .bypassConstructors(true)
+                .build();
+        SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 2.0d, Arrays.asList(1.0f, 2.0f), Arrays.asList(new SimpleBean(1, "1"), new SimpleBean(2, "2")), new ComplexBean(2, "2", new String[]{"q", "w"}));
+        SuperComplexMegaBean b = new SuperComplexMegaBean(1, "a", 2.5d, Arrays.asList(2.0f, 3.0f), Arrays.asList(new SimpleBean(3, "3"), new SimpleBean(1, "4")), new ComplexBean(2, "2", new String[]{"q", "w"}));
+        BeanDelta.apply(BeanDelta.encode(a, b, options), a, options);
+        assertFalse(BeanComparator.differs(a, b, options));
+        assertEquals(new HashSet<>(Arrays.asList(2.0f, 3.0f)), new HashSet<>(a.getFloatList()));
+        assertEquals("4", a.getSimpleBeanList().get(0).getDesc());
+
+        Map<String, String> first = new TreeMap<>();
+        first.put("One", "1");
+        first.put("Two", null);
+        first.put("Three", "3");
+        Map<String, String> second = new TreeMap<>();
+        second.put("One", null);
+        second.put("Two", null);
+        second.put("Four", "4");
+        SimpleClassWithMap withMap = new SimpleClassWithMap(first);
+        BeanDelta.apply(BeanDelta.encode(withMap, new SimpleClassWithMap(second), ComparisonOptions.defaults()), withMap);
+        assertEquals(second, withMap.getMap());
+
+        Map<String, SimpleBean> beans = new HashMap<>();
+        beans.put("a", new SimpleBean(1, "one"));
+        beans.put("b", new SimpleBean(2, "two"));
+        Map<String, SimpleBean> changedBeans = new HashMap<>();
+        changedBeans.put("a", new SimpleBean(1, "uno"));
+        changedBeans.put("c", new SimpleBean(3, "tre"));
+        ComparisonOptions deep = ComparisonOptions.builder().deepMapValues(true).bypassConstructors(true).build();
+        SimpleClassWithBeanMap withBeans = new SimpleClassWithBeanMap(beans);
+        SimpleBean unchanged = beans.get("a");
+        BeanDelta.apply(BeanDelta.encode(withBeans, new SimpleClassWithBeanMap(changedBeans), deep), withBeans, deep);
+        assertFalse(BeanComparator.differs(withBeans, new SimpleClassWithBeanMap(changedBeans), deep));
+        assertSame(unchanged, withBeans.map.get("a"));
+    }
+
+    @Test
+    public void applyDeltaOfOrderedLists() throws Exception {
+        ComparisonOptions options = ComparisonOptions.builder().orderedLists(true).build();
+        SimpleClassWithCollections a = new SimpleClassWithCollections(Arrays.asList("a", "b", "c", "d"));
+        SimpleClassWithCollections b = new SimpleClassWithCollections(Arrays.asList("b", "c", "x", "d", "a"));
+        BeanDelta.apply(BeanDelta.encode(a, b, options), a, options);
+        assertEquals(b.getLista(), a.getLista());
+
+        // liste invertite: l'elemento centrale e' spostato anche se la posizione riportata non cambia
+        for (List<String> elements : Arrays.asList(Arrays.asList("a", "b", "c"), Arrays.asList("a", "b", "c", "d", "e"))) {
+            List<String> reversed = new ArrayList<>(elements);
+            Collections.reverse(reversed);
+            b = new SimpleClassWithCollections(reversed);
+            DiffResult result = BeanComparator.diff(new SimpleClassWithCollections(elements), b, options);
+            boolean movedInPlace = false;
+            for (DiffResult.Difference difference : result)
+                movedInPlace |= difference.getChangeKind() == DiffResult.ChangeKind.MOVED && difference.getPath().getFirstIndex() == difference.getPath().getSecondIndex();
+            assertTrue(movedInPlace);
+            for (byte[] delta : Arrays.asList(BeanDelta.encode(new SimpleClassWithCollections(elements), b, options), BeanDelta.encode(result))) {
+                a = new SimpleClassWithCollections(elements);
+                BeanDelta.apply(delta, a, options);
+                assertEquals(reversed, a.getLista());
+                assertFalse(BeanComparator.differs(a, b, options));
+            }
+        }
+
+        // elementi con chiave spostati e modificati
+        ComparisonOptions keyed = ComparisonOptions.builder().orderedLists(true).keyExtractor(SimpleBean.class, SimpleBean::getId).bypassConstructors(true).build();
+        SuperComplexMegaBean first = new SuperComplexMegaBean(1, "a", null, null, new ArrayList<>(Arrays.asList(new SimpleBean(1, "1"), new SimpleBean(2, "2"), new SimpleBean(3, "3"))), null);
+        SuperComplexMegaBean second = new SuperComplexMegaBean(1, "a", null, null, Arrays.asList(new SimpleBean(3, "tre"), new SimpleBean(1, "1"), new SimpleBean(4, "4")), null);
+        BeanDelta.apply(BeanDelta.encode(first, second, keyed), first, keyed);
+        assertFalse(BeanComparator.differs(first, second, keyed));
+        assertEquals(Arrays.asList(3, 1, 4), Arrays.asList(first.getSimpleBeanList().get(0).getId(), first.getSimpleBeanList().get(1).getId(), first.getSimpleBeanList().get(2).getId()));
+    }
+
+    @Test
+    public void applyDeltaOfPrimitivesAndValueTypes() throws Exception {
+        MeasurementBean a = new MeasurementBean(1L, true, 'm', new int[]{1, 2, 3, 4}, new double[]{0.5d, 1.5d});
+        MeasurementBean b = new MeasurementBean(-7L, false, 'k', new int[]{1, 5, 3, -6}, new double[]{0.5d, 1.5d, 2.5d});
+        BeanDelta.apply(BeanDelta.encode(a, b, ComparisonOptions.defaults()), a);
+        assertFalse(BeanComparator.differs(a, b));
+
+        ValueTypesBean first = new ValueTypesBean(new BigDecimal("10.50"), LocalDateTime.of(2020, 1, 1, 10, 0), Instant.ofEpochSecond(1000), UUID.randomUUID(), Thread.State.NEW);
+        ValueTypesBean second = new ValueTypesBean(new BigDecimal("-3.14159"), LocalDateTime.of(2021, 6, 30, 8, 15), null, UUID.randomUUID(), Thread.State.BLOCKED);
+        BeanDelta.apply(BeanDelta.encode(first, second, ComparisonOptions.defaults()), first);
+        assertFalse(BeanComparator.differs(first, second));
+        assertEquals(second.id, first.id);
+    }
+
+    @Test
+    public void applyDeltaWithClassesOfTheBeanOnly() throws Exception {
+        // i valori semplici non usano la serializzazione Java
+        ZonedBean zoned = new ZonedBean(ZoneId.of("Europe/Rome"));
+        byte[] delta = BeanDelta.encode(zoned, new ZonedBean(ZoneId.of("Asia/Tokyo")), ComparisonOptions.defaults());
+        for (int i = 0; i + 1 < delta.length; i++)
+            assertFalse(delta[i] == (byte) 0xAC && delta[i + 1] == (byte) 0xED);
+        assertEquals(ZoneId.of("Asia/Tokyo"), BeanDelta.apply(delta, zoned).zone);
+
+        // una classe non raggiungibile dai campi del bean viene rifiutata
+        Envelope empty = new Envelope();
+        Envelope withPayload = new Envelope();
+        withPayload.payload = new Payload();
+        try {
+            BeanDelta.apply(BeanDelta.encode(empty, withPayload, ComparisonOptions.defaults()), empty);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertNull(empty.payload);
+        }
+
+        // una collezione di una classe non raggiungibile viene ricreata con una classe di java.util
+        Envelope withTags = new Envelope();
+        withTags.tags = new Tags();
+        withTags.tags.add("urgente");
+        BeanDelta.apply(BeanDelta.encode(empty, withTags, ComparisonOptions.defaults()), empty);
+        assertEquals(ArrayList.class, empty.tags.getClass());
+        assertEquals(withTags.tags, empty.tags);
+    }
+
+    @Test
+    public void deltaIsSmallerThanTheBean() throws Exception {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            values.add("valore " + i);
+        List<String> changed = new ArrayList<>(values);
+        changed.set(10, "modificato");
+        changed.add("aggiunto");
+        SimpleClassWithCollections b = new SimpleClassWithCollections(changed);
+        byte[] full = BeanDelta.encode(new SimpleClassWithCollections(null), b, ComparisonOptions.defaults());
+        byte[] delta = BeanDelta.encode(new SimpleClassWithCollections(values), b, ComparisonOptions.defaults());
+        assertTrue(delta.length * 100 < full.length);
+
+        SimpleClassWithCollections a = new SimpleClassWithCollections(new ArrayList<>(values));
+        BeanDelta.apply(delta, a);
+        assertFalse(BeanComparator.differs(a, b));
+    }
+
+    @Test
+    public void skipUnloadedValues() throws Exception {
+        LoadStrategy lazy = value -> !(value instanceof LazyList) || ((LazyList<?>) value).loaded;
+        ComparisonOptions options = ComparisonOptions.builder().loadStrategy(lazy).build();
+        SuperComplexMegaBean first = new SuperComplexMegaBean(1, "a", 1.0, new LazyList<>(), Arrays.asList(new SimpleBean(1, "1")), null);
+        SuperComplexMegaBean second = new SuperComplexMegaBean(1, "b", 1.0, Arrays.asList(2f), new LazyList<>(), null);
+
+        // le liste non caricate non vengono lette (LazyList lancia un'eccezione) ne' riportate come differenze
+        DiffResult result = BeanComparator.diff(first, second, options);
+        assertEquals(1, result.size());
+        assertEquals("s", result.getPath(0).toString());
+        assertEquals(Arrays.asList("floatList", "simpleBeanList"), Arrays.asList(result.getNotCompared().get(0).toString(), result.getNotCompared().get(1).toString()));
+        assertEquals(1, BeanComparator.compare(first, second, options).size());
+        assertFalse(BeanComparator.differs(first, new SuperComplexMegaBean(1, "a", 1.0, Arrays.asList(2f), new LazyList<>(), null), options));
+
+        // anche con la comparazione parallela, le impronte e le fotografie
+        List<String> notCompared = new ArrayList<>();
+        BeanComparator.compare(first, second, ComparisonOptions.builder().loadStrategy(lazy).parallel(1).build(), new DiffListener() {
+            @Override
+            public void onDifference(DiffPath path, Field field, Object left, Object right) {
+            }
+
+            @Override
+            public void onNotCompared(DiffPath path, Field field, Object left, Object right) {
+                notCompared.add(path + " " + field.getName());
+            }
+        });
+        assertEquals(Arrays.asList("floatList floatList", "simpleBeanList simpleBeanList"), notCompared);
+        ComparisonOptions fingerprints = ComparisonOptions.builder().loadStrategy(lazy).fingerprints(new Fingerprints()).build();
+        assertEquals(2, BeanComparator.diff(first, second, fingerprints).getNotCompared().size());
+        BeanSnapshot snapshot = BeanSnapshot.of(first, options);
+        assertTrue(snapshot.diff(first).isEmpty());
+
+        // una volta caricate le liste vengono confrontate
+        ((LazyList<Float>) first.getFloatList()).load(Arrays.asList(2f));
+        assertEquals(1, BeanComparator.diff(first, second, options).getNotCompared().size());
+        assertTrue(LoadStrategy.REFLECTIVE.isLoaded(first.getSimpleBeanList()));
+    }
+
+    @Test
+    public void recognizeOrmProxiesByInterfaceName() throws Exception {
+        Account first = new Account("conto");
+        Account second = new Account("conto");
+        first.parent = new AccountProxy(null);
+        second.parent = new Account("padre");
+        first.tags = new PersistentList<>();
+        second.tags = Arrays.asList("a");
+        first.notes = new IndirectList<>();
+        second.notes = Arrays.asList("b");
+
+        // proxy e collezioni non inizializzati non vengono letti (lancerebbero un'eccezione) ne' riportati come differenze
+        DiffResult result = BeanComparator.diff(first, second, ComparisonOptions.defaults());
+        assertTrue(result.isEmpty());
+        List<String> notCompared = new ArrayList<>();
+        for (DiffPath path : result.getNotCompared())
+            notCompared.add(path.toString());
+        Collections.sort(notCompared);
+        assertEquals(Arrays.asList("notes", "parent", "tags"), notCompared);
+        assertFalse(BeanComparator.differs(first, second));
+        assertEquals(3, BeanComparator.diff(first, second, ComparisonOptions.builder().fingerprints(new Fingerprints()).build()).getNotCompared().size());
+        assertTrue(BeanSnapshot.of(first).diff(first).isEmpty());
+
+        // una volta inizializzati si confrontano i contenuti e, per i proxy, l'entita' reale
+        first.parent = new AccountProxy(new Account("padre"));
+        ((PersistentList<String>) first.tags).load(Arrays.asList("a"));
+        ((IndirectList<String>) first.notes).load(Arrays.asList("c"));
+        result = BeanComparator.diff(first, second, ComparisonOptions.defaults());
+        assertTrue(result.getNotCompared().isEmpty());
+        assertEquals(Arrays.asList("notes", "notes"), sortedPaths(result));
+        second.notes = Arrays.asList("c");
+        assertFalse(BeanComparator.differs(first, second));
+        assertFalse(BeanComparator.differs(first, second, ComparisonOptions.builder().fingerprints(new Fingerprints()).build()));
+        assertTrue(BeanSnapshot.of(first).diff(second).isEmpty());
+        ((AccountProxy) first.parent).initializer.implementation.name = "altro";
+        assertEquals(Arrays.asList("parent.name"), sortedPaths(BeanComparator.diff(first, second, ComparisonOptions.defaults())));
+
+        // anche come bean confrontati
+        assertFalse(BeanComparator.differs(new AccountProxy(second), second));
+        assertEquals(Arrays.asList("parent.name"), sortedPaths(BeanComparator.diff(new AccountProxy(first), second, ComparisonOptions.defaults())));
+    }
+
+    @Test
+    public void boundedComparisonFindsTheSameDifferences() throws Exception {
+        SuperComplexMegaBean a = new SuperComplexMegaBean(1, "a", 1.0, Arrays.asList(1f, 2f),
+                Arrays.asList(new SimpleBean(1, "1"), new SimpleBean(2, "2")), new ComplexBean(1, "c", new String[]{"x", "y"}));
+        SuperComplexMegaBean b = new SuperComplexMegaBean(1, "b", 1.0, Arrays.asList(1f, 3f),
+                Arrays.asList(new SimpleBean(1, "uno"), new SimpleBean(2, "2")), new ComplexBean(1, "d", new String[]{"x", "z"}));
+        ComparisonOptions bounded = ComparisonOptions.builder().maxNodes(1000).timeout(Duration.ofMinutes(1)).build();
+        DiffResult expected = BeanComparator.diff(a, b, ComparisonOptions.defaults());
+        DiffResult result = BeanComparator.diff(a, b, bounded);
+        assertFalse(result.isTruncated());
+        assertNull(result.getTruncation());
+        Set<String> paths = new HashSet<>();
+        for (DiffResult.Difference difference : expected)
+            paths.add(difference.toString());
+        for (DiffResult.Difference difference : result)
+            assertTrue(difference.toString(), paths.remove(difference.toString()));
+        assertTrue(paths.isEmpty());
+        assertTrue(BeanComparator.differs(a, b, bounded));
+    }
+
+    @Test
+    public void compareDeepGraphWithoutRecursion() throws Exception {
+        // una catena che con la ricorsione esaurirebbe lo stack del thread
+        ChainBean first = ChainBean.of(100_000, -1);
+        ChainBean second = ChainBean.of(100_000, 99_999);
+        DiffResult result = BeanComparator.diff(first, second, ComparisonOptions.builder().timeout(Duration.ofMinutes(1)).build());
+        assertFalse(result.isTruncated());
+        assertEquals(1, result.size());
+        assertEquals(-1, result.getRight(0));
+        assertTrue(result.getPath(0).toString().endsWith("next.next.value"));
+    }
+
+    @Test
+    public void truncateAtBudget() throws Exception {
+        ChainBean first = ChainBean.of(10, -1);
+        ChainBean second = ChainBean.of(10, 2);
+        second.next.next.next.next.next.next.next.next.value = -1;
+
+        // profondita': i sottografi oltre il limite vengono saltati, gli altri confrontati
+        DiffResult result = BeanComparator.diff(first, second, ComparisonOptions.builder().maxDepth(3).build());
+        assertEquals(Collections.singletonList("next.next.value"), Collections.singletonList(result.getPath(0).toString()));
+        assertEquals(1, result.size());
+        assertEquals(DiffResult.Truncation.DEPTH, result.getTruncation());
+        assertEquals("next.next.next.next", result.getTruncatedPaths().get(0).toString());
+
+        // nodi: la comparazione si interrompe e il risultato contiene le differenze trovate fino a quel punto
+        result = BeanComparator.diff(first, second, ComparisonOptions.builder().maxNodes(5).build());
+        assertEquals(1, result.size());
+        assertEquals(DiffResult.Truncation.NODES, result.getTruncation());
+        assertEquals(1, result.getTruncatedPaths().size());
+        // la mappa dei campi non puo' indicare il troncamento, per cui non accetta un budget
+        try {
+            BeanComparator.compare(first, second, ComparisonOptions.builder().maxNodes(5).build());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // usare diff o un DiffListener
+        }
+        // senza differenze trovate prima del troncamento i bean non possono essere dichiarati uguali
+        assertTrue(BeanComparator.differs(ChainBean.of(10, -1), ChainBean.of(10, 9), ComparisonOptions.builder().maxNodes(5).build()));
+        assertTrue(BeanComparator.differs(ChainBean.of(10, -1), ChainBean.of(10, -1), ComparisonOptions.builder().maxDepth(3).build()));
+        assertTrue(BeanSnapshot.of(ChainBean.of(10, -1), ComparisonOptions.builder().maxNodes(5).build()).differs(ChainBean.of(10, -1)));
+        assertFalse(BeanComparator.differs(ChainBean.of(10, -1), ChainBean.of(10, -1), ComparisonOptions.builder().maxNodes(50).build()));
+
+        // durata: la scadenza viene verificata ogni 16 sottografi
+        result = BeanComparator.diff(ChainBean.of(1000, -1), ChainBean.of(1000, 999), ComparisonOptions.builder().timeout(Duration.ofNanos(1)).build());
+        assertTrue(result.isEmpty());
+        assertEquals(DiffResult.Truncation.DEADLINE, result.getTruncation());
+
+        try {
+            BeanDelta.encode(first, second, ComparisonOptions.builder().maxNodes(5).build());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // il delta richiede tutte le differenze
+        }
+    }
+
+    @Test
+    public void compareFloatingPointAsScalarsAndArrays() throws Exception {
+        // stessa semantica (==) per campi, valori boxed e array: 0.0 e -0.0 uguali, NaN sempre differente
+        FloatingBean first = new FloatingBean(Double.NaN, -0.0d, new double[]{0.0d, Double.NaN}, new float[]{-0.0f, 1f});
+        FloatingBean second = new FloatingBean(Double.NaN, 0.0d, new double[]{-0.0d, Double.NaN}, new float[]{0.0f, 1f});
+        List<String> expected = Arrays.asList("value", "values[1]");
+        assertEquals(expected, sortedPaths(BeanComparator.diff(first, second, ComparisonOptions.defaults())));
+        assertEquals(expected, sortedPaths(BeanComparator.diff(first, second, ComparisonOptions.builder().fingerprints(new Fingerprints()).build())));
+        assertEquals(expected, sortedPaths(BeanSnapshot.of(first, ComparisonOptions.defaults()).diff(second)));
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            try (SnapshotFile.Writer writer = SnapshotFile.create(file)) {
+                writer.write(first);
+                writer.write(second);
+            }
+            SnapshotFile snapshots = SnapshotFile.open(file);
+            assertEquals(expected, sortedPaths(snapshots.diff(0, snapshots, 1, ComparisonOptions.defaults())));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<String> sortedPaths(DiffResult result) {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++)
+            paths.add(result.getPath(i).toString());
+        Collections.sort(paths);
+        return paths;
+    }
+
+    @Test
+    public void compareSameClassTwice() throws Exception {
+        // la seconda comparazione usa il piano della classe gia' in cache
+        for (int i = 0; i < 2; i++) {
+            Map<Field, List<Map.Entry<Object, Object>>> map = BeanComparator.compare(new SimpleBean(1, "a"), new SimpleBean(1, "b"));
+            assertTrue(map.keySet().size() == 1);
+        }
+    }
+
 
 
     class SimpleBean {
@@ -280,6 +1203,65 @@ public class BeanComparatorTest {
         }
     }
 
+    class SimpleClassWithBeanMap{
+        Map<String, SimpleBean> map;
+
+        public SimpleClassWithBeanMap(Map<String, SimpleBean> map) {
+            this.map = map;
+        }
+    }
+
+    class Parent {
+        String name;
+        Child child;
+
+        Parent(String name) {
+            this.name = name;
+        }
+    }
+
+    class Child {
+        Parent parent;
+        String name;
+
+        Child(Parent parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+    class MeasurementBean {
+        private long timestamp;
+        private boolean valid;
+        private char unit;
+        private int[] samples;
+        private double[] values;
+
+        MeasurementBean(long timestamp, boolean valid, char unit, int[] samples, double[] values) {
+            this.timestamp = timestamp;
+            this.valid = valid;
+            this.unit = unit;
+            this.samples = samples;
+            this.values = values;
+        }
+    }
+
+    class ValueTypesBean {
+        BigDecimal amount;
+        LocalDateTime dateTime;
+        Instant instant;
+        UUID id;
+        Thread.State state;
+
+        ValueTypesBean(BigDecimal amount, LocalDateTime dateTime, Instant instant, UUID id, Thread.State state) {
+            this.amount = amount;
+            this.dateTime = dateTime;
+            this.instant = instant;
+            this.id = id;
+            this.state = state;
+        }
+    }
+
     class SuperComplexMegaBean{
         int id;
         String s;
@@ -346,4 +1328,172 @@ public class BeanComparatorTest {
         }
     }
 
-}
\ No newline at end of file
+    static class Envelope {
+        Object payload;
+        List<String> tags;
+    }
+
+    static class Payload {
+        String content = "contenuto";
+    }
+
+    static class Tags extends ArrayList<String> {
+    }
+
+    static class Siblings {
+        SimpleBean a;
+        SimpleBean b;
+
+        Siblings(SimpleBean child) {
+            this.a = child;
+            this.b = child;
+        }
+    }
+
+    static class Ledger {
+        Amounts amounts = new Amounts();
+
+        Ledger(BigDecimal amount, BigInteger units) {
+            amounts.amount = amount;
+            amounts.units = units;
+        }
+    }
+
+    static class Amounts {
+        BigDecimal amount;
+        BigInteger units;
+    }
+
+    static class ZonedBean {
+        ZoneId zone;
+
+        ZonedBean(ZoneId zone) {
+            this.zone = zone;
+        }
+    }
+
+    static class FloatingBean {
+        double value;
+        Double boxed;
+        double[] values;
+        float[] floats;
+
+        FloatingBean(double value, Double boxed, double[] values, float[] floats) {
+            this.value = value;
+            this.boxed = boxed;
+            this.values = values;
+            this.floats = floats;
+        }
+    }
+
+        /**
+     * Un elemento di una catena di bean
+     */
+    static class ChainBean {
+        int value;
+        ChainBean next;
+
+        /**
+         * @return una catena lunga quanto indicato, con -1 al posto del valore nella posizione indicata
+         */
+        static ChainBean of(int length, int changed) {
+            ChainBean head = null;
+            for (int i = length - 1; i >= 0; i--) {
+                ChainBean bean = new ChainBean();
+                bean.value = i == changed ? -1 : i;
+                bean.next = head;
+                head = bean;
+            }
+            return head;
+        }
+    }
+
+        /**
+     * Una lista a caricamento differito, che non puo' essere letta prima di essere caricata
+     */
+    static class Account {
+        String name;
+        Account parent;
+        List<String> tags;
+        List<String> notes;
+
+        Account(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Un proxy come quelli generati da Hibernate: i campi ereditati restano vuoti, l'entita' e' nell'inizializzatore
+     */
+    static class AccountProxy extends Account implements HibernateProxy {
+        final AccountInitializer initializer;
+
+        AccountProxy(Account implementation) {
+            super(null);
+            this.initializer = new AccountInitializer(implementation);
+        }
+
+        @Override
+        public LazyInitializer getHibernateLazyInitializer() {
+            return initializer;
+        }
+    }
+
+    static class AccountInitializer implements LazyInitializer {
+        final Account implementation;
+
+        AccountInitializer(Account implementation) {
+            this.implementation = implementation;
+        }
+
+        @Override
+        public boolean isUninitialized() {
+            return implementation == null;
+        }
+
+        @Override
+        public Object getImplementation() {
+            if (implementation == null)
+                throw new IllegalStateException("proxy non inizializzato");
+            return implementation;
+        }
+    }
+
+    static class PersistentList<E> extends LazyList<E> implements PersistentCollection {
+        @Override
+        public boolean wasInitialized() {
+            return loaded;
+        }
+    }
+
+    static class IndirectList<E> extends LazyList<E> implements IndirectContainer {
+        @Override
+        public boolean isInstantiated() {
+            return loaded;
+        }
+    }
+
+    static class LazyList<E> extends AbstractList<E> {
+        boolean loaded;
+        private List<E> elements;
+
+        void load(List<E> elements) {
+            this.elements = elements;
+            loaded = true;
+        }
+
+        @Override
+        public E get(int index) {
+            if (!loaded)
+                throw new IllegalStateException("lista non caricata");
+            return elements.get(index);
+        }
+
+        @Override
+        public int size() {
+            if (!loaded)
+                throw new IllegalStateException("lista non caricata");
+            return elements.size();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package it.sogei.beanutils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DatasetReconcilerTest {
+    @Test
+    public void reconcileWithSpillToDisk() throws Exception {
+        List<Record> first = new ArrayList<>();
+        List<Record> second = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // il primo dataset non ha le chiavi multiple di 7, il secondo quelle multiple di 11
+            if (i % 7 != 0)
+                first.add(new Record(i, "desc" + i));
+            if (i % 11 != 0)
+                second.add(new Record(i, i % 100 == 1 ? "changed" + i : "desc" + i));
+        }
+        Collections.shuffle(first, new Random(1));
+        Collections.shuffle(second, new Random(2));
+        Path directory = Files.createTempDirectory("reconcile");
+        Collector collector = new Collector();
+        DatasetReconciler.<Record, Integer>builder(Record::getId)
+                .maxInMemory(10)
+                .tempDirectory(directory)
+                .build()
+                .reconcile(first.iterator(), second.iterator(), collector);
+        int inserted = 0, deleted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 7 == 0 && i % 11 != 0)
+                inserted++;
+            if (i % 11 == 0 && i % 7 != 0)
+                deleted++;
+        }
+        assertEquals(inserted, collector.inserted.size());
+        assertEquals(deleted, collector.deleted.size());
+        // 301 e' multiplo di 7: inserito, non modificato
+        assertEquals(Arrays.asList(1, 101, 201, 401, 501, 601, 701, 801, 901), collector.changed);
+        // i file temporanei sono stati cancellati
+        File[] files = directory.toFile().listFiles();
+        assertEquals(0, files.length);
+        Files.delete(directory);
+    }
+
+    @Test
+    public void reconcilePresortedDatasets() throws Exception {
+        List<Record> first = Arrays.asList(new Record(1, "a"), new Record(2, "b"), new Record(2, "c"), new Record(4, "d"));
+        List<Record> second = Arrays.asList(new Record(2, "b"), new Record(3, "x"), new Record(4, "e"));
+        Collector collector = new Collector();
+        DatasetReconciler.<Record, Integer>builder(Record::getId)
+                .presorted(true)
+                .build()
+                .reconcile(first.iterator(), second.iterator(), collector);
+        assertEquals(Collections.singletonList(3), collector.inserted);
+        // la seconda occorrenza della chiave 2 non ha abbinamento
+        assertEquals(Arrays.asList(1, 2), collector.deleted);
+        assertEquals(Collections.singletonList(4), collector.changed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reconcileUnsortedDatasetDeclaredPresorted() throws Exception {
+        List<Record> first = Arrays.asList(new Record(2, "a"), new Record(1, "b"));
+        DatasetReconciler.<Record, Integer>builder(Record::getId)
+                .presorted(true)
+                .build()
+                .reconcile(first.iterator(), Collections.<Record>emptyIterator(), new Collector());
+    }
+
+    static class Collector implements ReconciliationListener<Record, Integer> {
+        final List<Integer> inserted = new ArrayList<>();
+        final List<Integer> deleted = new ArrayList<>();
+        final List<Integer> changed = new ArrayList<>();
+
+        @Override
+        public void onInserted(Integer key, Record bean) {
+            inserted.add(key);
+        }
+
+        @Override
+        public void onDeleted(Integer key, Record bean) {
+            deleted.add(key);
+        }
+
+        @Override
+        public void onChanged(Integer key, Record first, Record second, Map<Field, List<Map.Entry<Object, Object>>> differences) {
+            assertEquals(1, differences.size());
+            changed.add(key);
+        }
+    }
+
+    static class Record implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private int id;
+        private String desc;
+
+        Record(int id, String desc) {
+            this.id = id;
+            this.desc = desc;
+        }
+
+        public int getId() {
+            return id;
+        }
+    }
+}
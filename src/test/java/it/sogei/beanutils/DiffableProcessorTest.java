@@ -0,0 +1,166 @@
+package it.sogei.beanutils;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DiffableProcessorTest {
+    @Test
+    public void useGeneratedComparator() throws Exception {
+        assertNotNull(ClassPlan.of(Customer.class).generated());
+        assertNotNull(ClassPlan.of(Address.class).generated());
+        assertNull(ClassPlan.of(BeanComparatorTest.class).generated());
+
+        Customer first = customer(1, "Mario", "Roma");
+        Customer second = customer(1, "Mario", "Milano");
+        second.active = false;
+        second.score = 3.5;
+        second.tags.add("vip");
+        second.setCode('B');
+
+        DiffResult result = BeanComparator.diff(first, second, ComparisonOptions.defaults());
+        // lo stesso risultato della comparazione via reflection (le regole sui percorsi escludono il comparatore generato)
+        DiffResult reflective = BeanComparator.diff(first, second, ComparisonOptions.builder().excludePaths("nessuno").build());
+        assertEquals(describe(reflective), describe(result));
+        assertEquals(Arrays.asList("active", "address.city", "code", "score", "tags"), paths(result));
+        assertFalse(BeanComparator.differs(first, customer(1, "MARIO", "Roma")));
+    }
+
+    @Test
+    public void ignoreAnnotatedFields() throws Exception {
+        Customer first = customer(1, "Mario", "Roma");
+        Customer second = customer(1, "Mario", "Roma");
+        second.lastAccess = 42;
+        assertTrue(BeanComparator.compare(first, second).isEmpty());
+        assertTrue(BeanComparator.diff(first, second, ComparisonOptions.builder().excludePaths("nessuno").build()).isEmpty());
+        assertEquals(Arrays.asList("code"), paths(BeanComparator.diff(first, customer(2, "Mario", "Roma"), ComparisonOptions.excluding("id"))));
+    }
+
+    @Test
+    public void matchElementsByAnnotatedKey() throws Exception {
+        Portfolio first = new Portfolio();
+        first.customers.add(customer(1, "Mario", "Roma"));
+        first.customers.add(customer(2, "Luigi", "Roma"));
+        Portfolio second = new Portfolio();
+        second.customers.add(customer(3, "Anna", "Torino"));
+        Customer changed = customer(1, "Mario", "Napoli");
+        second.customers.add(changed);
+
+        DiffResult result = BeanComparator.diff(first, second, ComparisonOptions.defaults());
+        assertEquals(3, result.size());
+        assertEquals(Arrays.asList("customers[1].address.city", "customers", "customers"), paths(result));
+        assertEquals(DiffResult.ChangeKind.REMOVED, result.getChangeKind(1));
+        assertEquals(DiffResult.ChangeKind.ADDED, result.getChangeKind(2));
+
+        // un estrattore registrato prevale sull'annotazione
+        Portfolio renumbered = new Portfolio();
+        renumbered.customers.add(customer(9, "Mario", "Roma"));
+        renumbered.customers.add(customer(2, "Luigi", "Roma"));
+        assertEquals(Arrays.asList("customers", "customers"), paths(BeanComparator.diff(first, renumbered, ComparisonOptions.excluding("code"))));
+        ComparisonOptions byName = ComparisonOptions.builder().exclude("code").keyExtractor(Customer.class, Customer::getName).build();
+        assertEquals(Arrays.asList("customers[Mario].id"), paths(BeanComparator.diff(first, renumbered, byName)));
+    }
+
+    @Test
+    public void readHiddenFieldsThroughTheirClass() throws Exception {
+        assertNotNull(ClassPlan.of(Labelled.class).generated());
+        Labelled first = new Labelled("corrente", "base");
+        Labelled second = new Labelled("corrente", "modificata");
+
+        // il campo della superclasse e' nascosto da quello omonimo della sottoclasse
+        DiffResult result = BeanComparator.diff(first, second, ComparisonOptions.defaults());
+        DiffResult reflective = BeanComparator.diff(first, second, ComparisonOptions.builder().excludePaths("nessuno").build());
+        assertEquals(describe(reflective), describe(result));
+        assertEquals(1, result.size());
+        assertEquals("base", result.getLeft(0));
+        assertEquals("modificata", result.getRight(0));
+        assertEquals(Label.class, result.getField(0).getDeclaringClass());
+    }
+
+    private static Customer customer(long id, String name, String city) {
+        Customer customer = new Customer();
+        customer.id = id;
+        customer.name = name;
+        customer.setCode((char) ('A' + id - 1));
+        customer.active = true;
+        customer.score = 1.0;
+        customer.balance = new BigDecimal("10.00");
+        customer.tags.add("base");
+        customer.address = new Address();
+        customer.address.city = city;
+        return customer;
+    }
+
+    private static List<String> paths(DiffResult result) {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++)
+            paths.add(result.getPath(i).toString());
+        return paths;
+    }
+
+    private static List<String> describe(DiffResult result) {
+        List<String> differences = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++)
+            differences.add(result.getPath(i) + " " + result.getChangeKind(i) + " " + result.getLeft(i) + " " + result.getRight(i));
+        return differences;
+    }
+
+    @Diffable
+    static class Person {
+        @DiffKey
+        long id;
+        String name;
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @Diffable
+    static class Customer extends Person {
+        Address address;
+        boolean active;
+        BigDecimal balance;
+        private char code;
+        @DiffIgnore
+        long lastAccess;
+        double score;
+        List<String> tags = new ArrayList<>();
+
+        public char getCode() {
+            return code;
+        }
+
+        public void setCode(char code) {
+            this.code = code;
+        }
+    }
+
+    @Diffable
+    static class Label {
+        String label;
+    }
+
+    @Diffable
+    static class Labelled extends Label {
+        String label;
+
+        Labelled(String label, String hidden) {
+            this.label = label;
+            ((Label) this).label = hidden;
+        }
+    }
+
+    @Diffable
+    static class Address {
+        String city;
+    }
+
+    @Diffable
+    static class Portfolio {
+        List<Customer> customers = new ArrayList<>();
+    }
+}
@@ -0,0 +1,37 @@
+package it.sogei.beanutils;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+
+public class FieldAccessorTest {
+    @Test
+    public void methodHandleAccessorOnPrivateField() throws Exception {
+        Field field = Bean.class.getDeclaredField("desc");
+        FieldAccessor accessor = FieldAccessor.of(field);
+        assertTrue(accessor instanceof FieldAccessor.MethodHandleAccessor);
+        assertEquals("a", accessor.get(new Bean(1, "a")));
+    }
+
+    @Test
+    public void reflectiveAccessorReadsTheSameValues() throws Exception {
+        Field field = Bean.class.getDeclaredField("id");
+        FieldAccessor handle = FieldAccessor.of(field);
+        FieldAccessor reflective = new FieldAccessor.ReflectiveAccessor(field);
+        Bean bean = new Bean(7, "a");
+        assertEquals(7, handle.get(bean));
+        assertEquals(handle.get(bean), reflective.get(bean));
+    }
+
+    static class Bean {
+        private int id;
+        private String desc;
+
+        Bean(int id, String desc) {
+            this.id = id;
+            this.desc = desc;
+        }
+    }
+}
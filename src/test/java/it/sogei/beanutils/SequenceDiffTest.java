@@ -0,0 +1,91 @@
+package it.sogei.beanutils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SequenceDiffTest {
+    @Test
+    public void diffOfEqualSequencesIsAllMatches() {
+        SequenceDiff diff = SequenceDiff.diff(new int[]{1, 2, 3}, new int[]{1, 2, 3});
+        assertEquals(3, diff.size());
+        for (int op = 0; op < diff.size(); op++) {
+            assertEquals(op, diff.firstIndex(op));
+            assertEquals(op, diff.secondIndex(op));
+        }
+    }
+
+    @Test
+    public void diffReportsInsertsAndDeletesInOrder() {
+        SequenceDiff diff = SequenceDiff.diff(new int[]{1, 2, 3, 4}, new int[]{1, 5, 3, 4, 6});
+        assertValidScript(new int[]{1, 2, 3, 4}, new int[]{1, 5, 3, 4, 6}, diff);
+        assertEquals(3, matches(diff));
+    }
+
+    @Test
+    public void diffIsMinimalOnRandomSequences() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            int[] a = randomSequence(random, random.nextInt(40));
+            int[] b = randomSequence(random, random.nextInt(40));
+            SequenceDiff diff = SequenceDiff.diff(a, b);
+            assertValidScript(a, b, diff);
+            assertEquals(longestCommonSubsequence(a, b), matches(diff));
+        }
+    }
+
+    @Test
+    public void diffOfLongSequencesStaysValid() {
+        Random random = new Random(7);
+        int[] a = randomSequence(random, 100000);
+        int[] b = a.clone();
+        for (int i = 0; i < 1000; i++)
+            b[random.nextInt(b.length)] = random.nextInt(1000);
+        SequenceDiff diff = SequenceDiff.diff(a, b);
+        assertValidScript(a, b, diff);
+        assertTrue(matches(diff) >= a.length - 1000);
+    }
+
+    private static int[] randomSequence(Random random, int length) {
+        int[] sequence = new int[length];
+        for (int i = 0; i < length; i++)
+            sequence[i] = random.nextInt(5);
+        return sequence;
+    }
+
+    private static int matches(SequenceDiff diff) {
+        int matches = 0;
+        for (int op = 0; op < diff.size(); op++) {
+            if (diff.firstIndex(op) >= 0 && diff.secondIndex(op) >= 0)
+                matches++;
+        }
+        return matches;
+    }
+
+    private static void assertValidScript(int[] a, int[] b, SequenceDiff diff) {
+        int i = 0, j = 0;
+        for (int op = 0; op < diff.size(); op++) {
+            int first = diff.firstIndex(op), second = diff.secondIndex(op);
+            if (first >= 0) {
+                assertEquals(i++, first);
+            }
+            if (second >= 0) {
+                assertEquals(j++, second);
+            }
+            if (first >= 0 && second >= 0)
+                assertEquals(a[first], b[second]);
+        }
+        assertEquals(a.length, i);
+        assertEquals(b.length, j);
+    }
+
+    private static int longestCommonSubsequence(int[] a, int[] b) {
+        int[][] lcs = new int[a.length + 1][b.length + 1];
+        for (int i = a.length - 1; i >= 0; i--)
+            for (int j = b.length - 1; j >= 0; j--)
+                lcs[i][j] = a[i] == b[j] ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+        return lcs[0][0];
+    }
+}
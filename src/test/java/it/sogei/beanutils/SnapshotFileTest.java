@@ -0,0 +1,243 @@
+package it.sogei.beanutils;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SnapshotFileTest {
+    @Test
+    public void diffRecordsOfTwoFiles() throws Exception {
+        Path firstPath = Files.createTempFile("snapshot", ".bin");
+        Path secondPath = Files.createTempFile("snapshot", ".bin");
+        try {
+            try (SnapshotFile.Writer writer = SnapshotFile.create(firstPath)) {
+                writer.write(order(1, "Mario", 10.5, 3));
+                writer.write(order(2, "Luigi", 7, 2));
+            }
+            Order changed = order(1, "MARIO", 12, 3);
+            changed.tags.add("urgente");
+            changed.lines.get(1).quantity = 9;
+            changed.attributes.put("canale", "web");
+            changed.status = Status.SHIPPED;
+            changed.codes[1] = 42;
+            try (SnapshotFile.Writer writer = SnapshotFile.create(secondPath)) {
+                writer.write(changed);
+                writer.write(order(2, "Luigi", 7, 2));
+            }
+            SnapshotFile first = SnapshotFile.open(firstPath);
+            SnapshotFile second = SnapshotFile.open(secondPath);
+            assertEquals(2, first.size());
+            assertEquals(Order.class.getName(), first.getTypeName(0));
+
+            ComparisonOptions options = ComparisonOptions.defaults();
+            assertFalse(first.differs(1, second, 1, options));
+            assertTrue(first.differs(0, second, 0, options));
+
+            DiffResult result = first.diff(0, second, 0, options);
+            Set<String> paths = new TreeSet<>();
+            for (int i = 0; i < result.size(); i++)
+                paths.add(result.getPath(i).toString());
+            // la riga modificata di una lista non ordinata e' rimossa e aggiunta
+            assertEquals(7, result.size());
+            assertEquals(new TreeSet<>(Arrays.asList("amount", "status", "tags", "lines", "attributes[canale]", "codes[1]")), paths);
+            assertEquals(12.0, result.getRight(0));
+            assertTrue(result.getLeft(3) instanceof SnapshotFile.Value);
+            assertEquals(Line.class.getName(), ((SnapshotFile.Value) result.getLeft(3)).getTypeName());
+
+            // il nome non differisce: le stringhe si confrontano senza distinguere maiuscole e minuscole
+            DiffResult excluded = first.diff(0, second, 0, ComparisonOptions.excluding("amount", "tags", "lines", "attributes", "status", "codes"));
+            assertEquals(0, excluded.size());
+        } finally {
+            Files.delete(firstPath);
+            Files.delete(secondPath);
+        }
+    }
+
+    @Test
+    public void diffCyclicGraphs() throws Exception {
+        Path path = Files.createTempFile("snapshot", ".bin");
+        try {
+            try (SnapshotFile.Writer writer = SnapshotFile.create(path)) {
+                writer.write(cycle("a", "b"));
+                writer.write(cycle("a", "c"));
+            }
+            SnapshotFile file = SnapshotFile.open(path);
+            DiffResult result = file.diff(0, file, 1, ComparisonOptions.defaults());
+            assertEquals(1, result.size());
+            assertEquals("next.name", result.getPath(0).toString());
+            assertEquals("b", result.getLeft(0));
+            assertEquals("c", result.getRight(0));
+            assertFalse(file.differs(0, file, 0, ComparisonOptions.defaults()));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void diffValueTypes() throws Exception {
+        Path path = Files.createTempFile("snapshot", ".bin");
+        try {
+            Payment first = new Payment();
+            first.amount = new BigDecimal("10.50");
+            first.paidAt = Instant.ofEpochSecond(1000);
+            first.reference = new UUID(1, 2);
+            Payment second = new Payment();
+            second.amount = new BigDecimal("10.5");
+            second.paidAt = Instant.ofEpochSecond(2000);
+            second.reference = new UUID(1, 2);
+            try (SnapshotFile.Writer writer = SnapshotFile.create(path)) {
+                writer.write(first);
+                writer.write(second);
+            }
+            SnapshotFile file = SnapshotFile.open(path);
+            DiffResult result = file.diff(0, file, 1, ComparisonOptions.defaults());
+            assertEquals(1, result.size());
+            assertEquals("paidAt", result.getPath(0).toString());
+            assertEquals(Instant.ofEpochSecond(1000), result.getLeft(0));
+            assertEquals(Instant.ofEpochSecond(2000), result.getRight(0));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void encodeValueTypesWithoutSerialization() throws Exception {
+        Path path = Files.createTempFile("snapshot", ".bin");
+        try {
+            Schedule first = schedule(LocalDateTime.of(2020, 1, 31, 10, 15, 30, 123_000_000), ZoneId.of("Europe/Rome"));
+            Schedule second = schedule(LocalDateTime.of(2021, 6, 1, 8, 0), ZoneId.of("America/New_York"));
+            try (SnapshotFile.Writer writer = SnapshotFile.create(path)) {
+                writer.write(first);
+                writer.write(second);
+                writer.write(first);
+            }
+            byte[] bytes = Files.readAllBytes(path);
+            for (int i = 0; i + 1 < bytes.length; i++)
+                assertFalse("serializzazione Java alla posizione " + i, bytes[i] == (byte) 0xAC && bytes[i + 1] == (byte) 0xED);
+
+            SnapshotFile file = SnapshotFile.open(path);
+            assertFalse(file.differs(0, file, 2, ComparisonOptions.defaults()));
+            DiffResult result = file.diff(0, file, 1, ComparisonOptions.defaults());
+            Map<String, Object> lefts = new HashMap<>();
+            Map<String, Object> rights = new HashMap<>();
+            for (int i = 0; i < result.size(); i++) {
+                lefts.put(result.getPath(i).toString(), result.getLeft(i));
+                rights.put(result.getPath(i).toString(), result.getRight(i));
+            }
+            assertEquals(14, result.size());
+            assertEquals(first.zoned, lefts.get("zoned"));
+            assertEquals(second.zoned, rights.get("zoned"));
+            assertEquals(first.offsetDateTime, lefts.get("offsetDateTime"));
+            assertEquals(second.period, rights.get("period"));
+            assertEquals(first.big, lefts.get("big"));
+            assertEquals(second.monthDay, rights.get("monthDay"));
+            assertEquals(ZoneId.of("Europe/Rome"), lefts.get("zone"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static Schedule schedule(LocalDateTime dateTime, ZoneId zone) {
+        Schedule schedule = new Schedule();
+        schedule.big = BigInteger.valueOf(dateTime.getYear()).pow(5).negate();
+        schedule.date = dateTime.toLocalDate();
+        schedule.time = dateTime.toLocalTime();
+        schedule.dateTime = dateTime;
+        schedule.zoned = dateTime.atZone(zone);
+        schedule.offsetDateTime = schedule.zoned.toOffsetDateTime();
+        schedule.offsetTime = schedule.offsetDateTime.toOffsetTime();
+        schedule.duration = Duration.ofSeconds(dateTime.getSecond(), dateTime.getNano());
+        schedule.period = Period.of(dateTime.getYear(), dateTime.getMonthValue(), dateTime.getDayOfMonth());
+        schedule.year = Year.of(dateTime.getYear());
+        schedule.yearMonth = YearMonth.from(dateTime);
+        schedule.monthDay = MonthDay.from(dateTime);
+        schedule.offset = schedule.zoned.getOffset();
+        schedule.zone = zone;
+        return schedule;
+    }
+
+    private static Order order(int id, String customer, double amount, int lines) {
+        Order order = new Order();
+        order.id = id;
+        order.customer = customer;
+        order.amount = amount;
+        order.status = Status.NEW;
+        order.created = new Date(1_000_000L * id);
+        order.tags = new HashSet<>(Arrays.asList("b2b", "standard"));
+        order.lines = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            Line line = new Line();
+            line.product = "P" + i;
+            line.quantity = i + 1;
+            order.lines.add(line);
+        }
+        order.attributes = new HashMap<>();
+        order.attributes.put("origine", "negozio");
+        order.codes = new int[]{1, 2, 3};
+        return order;
+    }
+
+    private static Node cycle(String firstName, String secondName) {
+        Node first = new Node();
+        Node second = new Node();
+        first.name = firstName;
+        second.name = secondName;
+        first.next = second;
+        second.next = first;
+        return first;
+    }
+
+    enum Status {NEW, SHIPPED}
+
+    static class Order {
+        int id;
+        String customer;
+        double amount;
+        Status status;
+        Date created;
+        Set<String> tags;
+        List<Line> lines;
+        Map<String, String> attributes;
+        int[] codes;
+    }
+
+    static class Line {
+        String product;
+        int quantity;
+    }
+
+    static class Payment {
+        BigDecimal amount;
+        Instant paidAt;
+        UUID reference;
+    }
+
+    static class Schedule {
+        BigInteger big;
+        LocalDate date;
+        LocalTime time;
+        LocalDateTime dateTime;
+        ZonedDateTime zoned;
+        OffsetDateTime offsetDateTime;
+        OffsetTime offsetTime;
+        Duration duration;
+        Period period;
+        Year year;
+        YearMonth yearMonth;
+        MonthDay monthDay;
+        ZoneOffset offset;
+        ZoneId zone;
+    }
+
+    static class Node {
+        String name;
+        Node next;
+    }
+}
@@ -0,0 +1,8 @@
+package org.eclipse.persistence.indirection;
+
+/**
+ * Sostituto per i test dell'interfaccia dei contenitori di EclipseLink, con i soli metodi usati dalla libreria
+ */
+public interface IndirectContainer {
+    boolean isInstantiated();
+}
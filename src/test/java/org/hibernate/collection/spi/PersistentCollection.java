@@ -0,0 +1,8 @@
+package org.hibernate.collection.spi;
+
+/**
+ * Sostituto per i test dell'interfaccia delle collezioni di Hibernate, con i soli metodi usati dalla libreria
+ */
+public interface PersistentCollection {
+    boolean wasInitialized();
+}
@@ -0,0 +1,8 @@
+package org.hibernate.proxy;
+
+/**
+ * Sostituto per i test dell'interfaccia dei proxy di Hibernate, con i soli metodi usati dalla libreria
+ */
+public interface HibernateProxy {
+    LazyInitializer getHibernateLazyInitializer();
+}
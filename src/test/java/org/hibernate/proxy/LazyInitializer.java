@@ -0,0 +1,10 @@
+package org.hibernate.proxy;
+
+/**
+ * Sostituto per i test dell'inizializzatore dei proxy di Hibernate, con i soli metodi usati dalla libreria
+ */
+public interface LazyInitializer {
+    boolean isUninitialized();
+
+    Object getImplementation();
+}